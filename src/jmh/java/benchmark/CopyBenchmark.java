@@ -0,0 +1,58 @@
+package benchmark;
+
+import com.google.common.io.ByteStreams;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.lang.invoke.MethodHandle;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of JDLink's buffered copy loop for different buffer and payload sizes, both from memory, which
+ * isolates the loop itself, and from a file on disk, which is what a transfer actually reads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CopyBenchmark {
+    private static final MethodHandle COPY = Handles.staticMethod("JDLink", "inputStreamToOutputStream",
+            InputStream.class, OutputStream.class, long.class, int.class);
+
+    @Param({"2048", "8192", "65536", "262144"})
+    public int bufferSize;
+
+    @Param({"1048576", "67108864"})
+    public int fileSize;
+
+    private byte[] payload;
+    private File file;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        // Fixed seed, every run copies the same bytes
+        payload = new byte[fileSize];
+        new Random(42).nextBytes(payload);
+        file = File.createTempFile("jd-copy", ".bin");
+        Files.write(file.toPath(), payload);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Benchmark
+    public void copyFromMemory() throws Throwable {
+        COPY.invokeExact((InputStream) new ByteArrayInputStream(payload), ByteStreams.nullOutputStream(),
+                (long) fileSize, bufferSize);
+    }
+
+    @Benchmark
+    public void copyFromFile() throws Throwable {
+        try (final InputStream in = new FileInputStream(file)) {
+            COPY.invokeExact(in, ByteStreams.nullOutputStream(), (long) fileSize, bufferSize);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of picking a save file name when the save directory already holds many files, in the worst case where
+ * every earlier increment of the name is taken.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FilenameBenchmark {
+    private static final String FILENAME = "report.csv";
+    private static final MethodHandle CREATE_INCREMENTED_FILENAME = Handles.staticMethod("FileUtils",
+            "createIncrementedFilename", String.class, Set.class);
+    private static final MethodHandle CREATE_UNIQUE_FILE = Handles.staticMethod("FileUtils", "createUniqueFile",
+            String.class, String.class);
+
+    @Param({"100", "10000"})
+    public int existingFiles;
+
+    private Set<String> existingNames;
+    private File directory;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        existingNames = new HashSet<>();
+        existingNames.add(FILENAME);
+        for (int i = 1; i < existingFiles; i++)
+            existingNames.add("report-" + i + ".csv");
+        directory = Files.createTempDirectory("jd-filenames").toFile();
+        for (String name : existingNames)
+            new File(directory, name).createNewFile();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files)
+                file.delete();
+        }
+        directory.delete();
+    }
+
+    @Benchmark
+    public String createIncrementedFilename() throws Throwable {
+        return (String) CREATE_INCREMENTED_FILENAME.invokeExact(FILENAME, existingNames);
+    }
+
+    /**
+     * Includes listing the directory and creating the file, the file is deleted again so the directory stays
+     * the same size across invocations.
+     */
+    @Benchmark
+    public boolean createUniqueFile() throws Throwable {
+        final File file = (File) CREATE_UNIQUE_FILE.invokeExact(FILENAME, directory.getPath());
+        return file.delete();
+    }
+}
@@ -0,0 +1,67 @@
+package benchmark;
+
+import com.google.common.io.ByteStreams;
+import model.TransferRequest;
+import org.openjdk.jmh.annotations.*;
+import protocol.ControlMessage;
+import protocol.FrameReader;
+
+import java.io.*;
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of encoding and decoding a transfer request, with the legacy char-at-a-time string helpers of JDLink
+ * next to the binary frames that replaced them for control messages.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FramingBenchmark {
+    private static final MethodHandle READ_STRING = Handles.staticMethod("JDLink", "readStringFromRemote",
+            InputStream.class);
+    private static final MethodHandle WRITE_STRING = Handles.staticMethod("JDLink", "writeStringToRemote",
+            OutputStream.class, String.class);
+
+    @Param({"12", "200"})
+    public int filenameLength;
+
+    private String metadata;
+    private byte[] encodedString;
+    private TransferRequest request;
+    private byte[] encodedFrame;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        final StringBuilder filename = new StringBuilder();
+        while (filename.length() < filenameLength)
+            filename.append((char) ('a' + filename.length() % 26));
+        request = new TransferRequest(123456789L, filename.toString(), "192.168.1.20");
+        metadata = request.getFilename() + "/" + request.getFilesize() + "/" + request.getHost();
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        WRITE_STRING.invokeExact((OutputStream) out, metadata);
+        encodedString = out.toByteArray();
+        encodedFrame = ControlMessage.fromTransferRequest(request).encode();
+    }
+
+    @Benchmark
+    public void writeString() throws Throwable {
+        WRITE_STRING.invokeExact(ByteStreams.nullOutputStream(), metadata);
+    }
+
+    @Benchmark
+    public String readString() throws Throwable {
+        return (String) READ_STRING.invokeExact((InputStream) new ByteArrayInputStream(encodedString));
+    }
+
+    @Benchmark
+    public void writeFrame() throws IOException {
+        ControlMessage.fromTransferRequest(request).writeTo(ByteStreams.nullOutputStream());
+    }
+
+    @Benchmark
+    public TransferRequest readFrame() throws IOException {
+        return new FrameReader(new ByteArrayInputStream(encodedFrame)).read().toTransferRequest();
+    }
+}
@@ -0,0 +1,25 @@
+package benchmark;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
+
+/**
+ * JMH does not allow benchmarks in the default package, and classes of the default package cannot be imported
+ * from a named one, so the benchmarks reach JDLink and friends through method handles. The handles are kept in
+ * static final fields, which the JIT inlines like a direct call.
+ */
+final class Handles {
+    private Handles() {
+    }
+
+    static MethodHandle staticMethod(final String className, final String name, final Class<?>... parameterTypes) {
+        try {
+            final Method method = Class.forName(className).getDeclaredMethod(name, parameterTypes);
+            method.setAccessible(true);
+            return MethodHandles.lookup().unreflect(method);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Could not find " + className + "." + name, e);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package benchmark;
+
+import compression.Codec;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.lang.invoke.MethodHandle;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A whole payload sent file to file over a loopback connection, through the same JDLink calls that
+ * ServerProcessor and ClientProcessor use, for each transfer mode. The connection is opened per invocation, so
+ * the handshake cost is part of the measurement just like for a real transfer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class LoopbackTransferBenchmark {
+    private static final MethodHandle WRITE_FILE = Handles.staticMethod("JDLink", "writeFileToRemote",
+            FileInputStream.class, OutputStream.class, long.class, WritableByteChannel.class, Codec.class);
+    private static final MethodHandle READ_FILE = Handles.staticMethod("JDLink", "readRemoteToFile",
+            InputStream.class, FileOutputStream.class, long.class, ReadableByteChannel.class, Codec.class);
+
+    @Param({"stream", "zeroCopy", "LZ4", "DEFLATE"})
+    public String mode;
+
+    @Param({"random", "text"})
+    public String content;
+
+    @Param({"67108864"})
+    public int fileSize;
+
+    private File source;
+    private File destination;
+    private ServerSocketChannel server;
+    private ExecutorService receiver;
+    private boolean zeroCopy;
+    private Codec codec;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        zeroCopy = "zeroCopy".equals(mode);
+        codec = "stream".equals(mode) || zeroCopy ? Codec.NONE : Codec.fromName(mode);
+        source = File.createTempFile("jd-loopback-src", ".bin");
+        destination = File.createTempFile("jd-loopback-dst", ".bin");
+        Files.write(source.toPath(), generateContent());
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        receiver = Executors.newSingleThreadExecutor();
+    }
+
+    /**
+     * Random bytes do not compress at all, the text is roughly as compressible as a log file. Fixed seed so every
+     * run sends the same bytes.
+     */
+    private byte[] generateContent() {
+        final Random random = new Random(42);
+        if ("random".equals(content)) {
+            final byte[] bytes = new byte[fileSize];
+            random.nextBytes(bytes);
+            return bytes;
+        }
+        final StringBuilder text = new StringBuilder(fileSize);
+        while (text.length() < fileSize) {
+            text.append("2020-06-01 12:00:").append(random.nextInt(60))
+                    .append(" DEBUG JDServer - dispatched client ").append(random.nextInt(100000)).append('\n');
+        }
+        return text.substring(0, fileSize).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        receiver.shutdownNow();
+        server.close();
+        source.delete();
+        destination.delete();
+    }
+
+    @Benchmark
+    public void transfer() throws Throwable {
+        final Future<?> received = receiver.submit(() -> {
+            try (final SocketChannel channel = server.accept();
+                 final FileOutputStream out = new FileOutputStream(destination)) {
+                final InputStream in = new BufferedInputStream(Channels.newInputStream(channel));
+                READ_FILE.invokeExact(in, out, (long) fileSize, (ReadableByteChannel) (zeroCopy ? channel : null), codec);
+            } catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+            return null;
+        });
+        try (final SocketChannel channel = SocketChannel.open(server.getLocalAddress());
+             final FileInputStream in = new FileInputStream(source)) {
+            final OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel));
+            WRITE_FILE.invokeExact(in, out, (long) fileSize, (WritableByteChannel) (zeroCopy ? channel : null), codec);
+            out.flush();
+            received.get();
+        }
+    }
+}
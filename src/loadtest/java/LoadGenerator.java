@@ -0,0 +1,296 @@
+import com.google.common.base.Splitter;
+import metrics.TransferMetrics;
+import metrics.TransferStats;
+import model.ProtocolConstants;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.config.Configurator;
+
+import javax.annotation.Nonnull;
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Reproduces production load against a receiver started in this JVM on loopback: concurrent senders push files
+ * drawn from a weighted size distribution, and the run is summarized as throughput, latency percentiles, heap
+ * usage and thread count. Run it with {@code ./gradlew loadTest}, options go in {@code -PloadTestArgs="..."}:
+ * <pre>
+ *     --concurrency 4          senders running at once
+ *     --transfers 200          transfers measured, after the warmup
+ *     --warmup 10              transfers sent first and left out of the results
+ *     --sizes 64k:70,1m:25,16m:5   file sizes and their relative weights
+ *     --receiver threaded      threaded or selector
+ *     --receiver-threads 4     transfers the threaded receiver runs at once, the concurrency by default
+ *     --output results.json    where the machine-readable results go
+ *     --seed 42                seed for file contents and the size draw
+ * </pre>
+ * Both sides share this JVM, so heap and threads are those of sender and receiver together. Settings are read
+ * from the usual settings file and apply to both sides, except that files are received into a temporary directory.
+ * Received files are deleted as soon as they arrive, and the directory once the run is over.
+ */
+public class LoadGenerator {
+    private static final String FILE_PREFIX = "jd-load-";
+    private static final long SAMPLE_MILLIS = 50;
+
+    private final Map<String, String> options;
+    private final int concurrency, transfers, warmup;
+    private final long seed;
+    private final NavigableMap<Integer, Long> sizesByCumulativeWeight = new TreeMap<>();
+    private final int totalWeight;
+    // Where the receiver saves files during the run
+    private Path received;
+
+    // Collected during the measured part of the run
+    private final List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+    private final List<Long> connectLatencies = Collections.synchronizedList(new ArrayList<>());
+    private final List<Long> handshakeLatencies = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong peakHeap = new AtomicLong();
+    private volatile boolean measuring;
+
+    private LoadGenerator(@Nonnull final Map<String, String> options) {
+        this.options = options;
+        concurrency = Integer.parseInt(options.getOrDefault("concurrency", "4"));
+        transfers = Integer.parseInt(options.getOrDefault("transfers", "200"));
+        warmup = Integer.parseInt(options.getOrDefault("warmup", "10"));
+        seed = Long.parseLong(options.getOrDefault("seed", "42"));
+        int weight = 0;
+        for (Map.Entry<String, String> size : Splitter.on(',').trimResults().omitEmptyStrings()
+                .withKeyValueSeparator(':').split(options.getOrDefault("sizes", "64k:70,1m:25,16m:5")).entrySet()) {
+            weight += Integer.parseInt(size.getValue());
+            sizesByCumulativeWeight.put(weight, parseSize(size.getKey()));
+        }
+        totalWeight = weight;
+    }
+
+    public static void main(@Nonnull final String[] args) throws Exception {
+        final Map<String, String> options = new LinkedHashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--"))
+                throw new IllegalArgumentException("Expected an option but found " + args[i]);
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+        Settings.loadSettingsOrDefaults(Settings.SETTINGS_FILE_PATH);
+        JDLink.configureBandwidth();
+        // Per-transfer logging would dominate the measurement
+        Configurator.setRootLevel(Level.WARN);
+        new LoadGenerator(options).run();
+        // The receiver's threads are not daemons
+        System.exit(0);
+    }
+
+    private static long parseSize(@Nonnull final String size) {
+        final String lower = size.toLowerCase();
+        final char unit = lower.charAt(lower.length() - 1);
+        final long multiplier = unit == 'k' ? 1024 : unit == 'm' ? 1024 * 1024 : unit == 'g' ? 1024 * 1024 * 1024 : 1;
+        return Long.parseLong(multiplier == 1 ? lower : lower.substring(0, lower.length() - 1)) * multiplier;
+    }
+
+    private void run() throws Exception {
+        final Path sources = Files.createTempDirectory("jd-load");
+        final Map<Long, File> templates = createTemplates(sources);
+        received = Files.createTempDirectory("jd-load-received");
+        Settings.overrideSetting(Settings.DOWNLOAD_DIR_KEY, received.toString());
+        final Closeable receiver = startReceiver();
+        final Consumer<TransferMetrics> handshakes = metrics -> {
+            if (measuring && metrics.getDirection() == TransferMetrics.Direction.SEND)
+                handshakeLatencies.add(metrics.getHandshakeNanos());
+        };
+        TransferStats.getInstance().addListener(handshakes);
+        final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        final ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor();
+        sampler.scheduleAtFixedRate(
+                () -> peakHeap.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max),
+                0, SAMPLE_MILLIS, TimeUnit.MILLISECONDS);
+        try {
+            final Random random = new Random(seed);
+            System.out.println("warming up with " + warmup + " transfers");
+            runTransfers(warmup, templates, sources, random);
+
+            System.out.println("measuring " + transfers + " transfers from " + concurrency + " senders");
+            threads.resetPeakThreadCount();
+            peakHeap.set(0);
+            measuring = true;
+            final long begin = System.nanoTime();
+            runTransfers(transfers, templates, sources, random);
+            final long elapsed = System.nanoTime() - begin;
+            measuring = false;
+
+            final String results = toJson(elapsed, threads.getPeakThreadCount());
+            System.out.println(results);
+            final String output = options.get("output");
+            if (output != null) {
+                final File file = new File(output);
+                if (file.getParentFile() != null)
+                    file.getParentFile().mkdirs();
+                Files.write(file.toPath(), results.getBytes(StandardCharsets.UTF_8));
+                System.out.println("results written to " + file.getAbsolutePath());
+            }
+        } finally {
+            sampler.shutdownNow();
+            TransferStats.getInstance().removeListener(handshakes);
+            receiver.close();
+            for (File template : templates.values())
+                template.delete();
+            sources.toFile().delete();
+            // Failed transfers may leave partial files behind
+            org.apache.commons.io.FileUtils.deleteQuietly(received.toFile());
+        }
+    }
+
+    /**
+     * One file per size, every transfer links to one of them under a name of its own.
+     */
+    @Nonnull
+    private Map<Long, File> createTemplates(@Nonnull final Path directory) throws IOException {
+        final Map<Long, File> templates = new HashMap<>();
+        final Random random = new Random(seed);
+        final byte[] block = new byte[1024 * 1024];
+        for (long size : sizesByCumulativeWeight.values()) {
+            final File template = directory.resolve("template-" + size).toFile();
+            try (final OutputStream out = new BufferedOutputStream(new FileOutputStream(template))) {
+                for (long written = 0; written < size; written += block.length) {
+                    random.nextBytes(block);
+                    out.write(block, 0, (int) Math.min(block.length, size - written));
+                }
+            }
+            templates.put(size, template);
+        }
+        return templates;
+    }
+
+    @Nonnull
+    private Closeable startReceiver() throws IOException, InterruptedException {
+        final int receiverThreads = Integer.parseInt(options.getOrDefault("receiver-threads",
+                String.valueOf(concurrency)));
+        if ("selector".equals(options.getOrDefault("receiver", "threaded"))) {
+            final SelectorReceiver receiver = new SelectorReceiver(ProtocolConstants.PORT, 2);
+            startThread(() -> {
+                try {
+                    receiver.serve();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+            Thread.sleep(500);
+            return () -> receiver.shutdown(10);
+        }
+        final JDServer receiver = new JDServer(ProtocolConstants.PORT, receiverThreads, concurrency);
+        startThread(receiver::serve);
+        Thread.sleep(500);
+        return () -> receiver.shutdown(10);
+    }
+
+    private static void startThread(@Nonnull final Runnable runnable) {
+        final Thread thread = new Thread(runnable, "jd-load-receiver");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void runTransfers(final int count,
+                              @Nonnull final Map<Long, File> templates,
+                              @Nonnull final Path directory,
+                              @Nonnull final Random random) throws InterruptedException {
+        // Sizes are drawn up front, so that the same seed always yields the same mix in the same order
+        final List<Long> sizes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            sizes.add(sizesByCumulativeWeight.higherEntry(random.nextInt(totalWeight)).getValue());
+        final AtomicInteger next = new AtomicInteger();
+        final ExecutorService senders = Executors.newFixedThreadPool(concurrency);
+        for (int i = 0; i < concurrency; i++) {
+            senders.execute(() -> {
+                int index;
+                while ((index = next.getAndIncrement()) < count)
+                    transfer(templates.get(sizes.get(index)), directory);
+            });
+        }
+        senders.shutdown();
+        senders.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+    }
+
+    private void transfer(@Nonnull final File template, @Nonnull final Path directory) {
+        final String name = FILE_PREFIX + UUID.randomUUID() + ".bin";
+        final File source = directory.resolve(name).toFile();
+        try {
+            try {
+                Files.createLink(source.toPath(), template.toPath());
+            } catch (IOException | UnsupportedOperationException e) {
+                Files.copy(template.toPath(), source.toPath());
+            }
+            final long begin = System.nanoTime();
+            final ServerProcessor processor = new ServerProcessor(source, "localhost");
+            final long connected = System.nanoTime();
+            final boolean sent = processor.attemptTransfer();
+            final long end = System.nanoTime();
+            if (!measuring)
+                return;
+            if (!sent) {
+                failed.incrementAndGet();
+                return;
+            }
+            latencies.add(end - begin);
+            connectLatencies.add(connected - begin);
+            bytes.addAndGet(source.length());
+        } catch (IOException e) {
+            e.printStackTrace();
+            failed.incrementAndGet();
+        } finally {
+            source.delete();
+            received.resolve(name).toFile().delete();
+        }
+    }
+
+    @Nonnull
+    private String toJson(final long elapsedNanos, final int peakThreads) {
+        final double seconds = elapsedNanos / 1e9;
+        final double mebibytesPerSecond = bytes.get() / seconds / (1024 * 1024);
+        return "{\n"
+                + "  \"concurrency\": " + concurrency + ",\n"
+                + "  \"transfers\": " + latencies.size() + ",\n"
+                + "  \"failed\": " + failed.get() + ",\n"
+                + "  \"sizes\": \"" + options.getOrDefault("sizes", "64k:70,1m:25,16m:5") + "\",\n"
+                + "  \"receiver\": \"" + options.getOrDefault("receiver", "threaded") + "\",\n"
+                + "  \"bytes\": " + bytes.get() + ",\n"
+                + "  \"durationMillis\": " + TimeUnit.NANOSECONDS.toMillis(elapsedNanos) + ",\n"
+                + "  \"throughputMiBPerSecond\": " + String.format(Locale.ROOT, "%.2f", mebibytesPerSecond) + ",\n"
+                + "  \"transfersPerSecond\": " + String.format(Locale.ROOT, "%.2f", latencies.size() / seconds) + ",\n"
+                + "  \"latencyMillis\": " + percentiles(latencies) + ",\n"
+                + "  \"connectMillis\": " + percentiles(connectLatencies) + ",\n"
+                + "  \"handshakeMillis\": " + percentiles(handshakeLatencies) + ",\n"
+                + "  \"peakHeapMiB\": " + peakHeap.get() / (1024 * 1024) + ",\n"
+                + "  \"peakThreads\": " + peakThreads + ",\n"
+                + "  \"javaVersion\": \"" + System.getProperty("java.version") + "\"\n"
+                + "}";
+    }
+
+    @Nonnull
+    private static String percentiles(@Nonnull final List<Long> nanos) {
+        final long[] sorted;
+        synchronized (nanos) {
+            sorted = nanos.stream().mapToLong(Long::longValue).sorted().toArray();
+        }
+        return String.format(Locale.ROOT, "{\"p50\": %.3f, \"p99\": %.3f, \"max\": %.3f}",
+                percentile(sorted, 0.5), percentile(sorted, 0.99), percentile(sorted, 1));
+    }
+
+    /**
+     * Nearest rank, in milliseconds.
+     */
+    private static double percentile(@Nonnull final long[] sorted, final double fraction) {
+        if (sorted.length == 0)
+            return 0;
+        final int rank = (int) Math.ceil(fraction * sorted.length);
+        return sorted[Math.max(0, rank - 1)] / 1e6;
+    }
+}
@@ -0,0 +1,278 @@
+import bandwidth.Throttle;
+import compression.Codec;
+import compression.CompressedStreams;
+import metrics.TransferMetrics;
+import model.ArchiveHeader;
+import model.ProtocolConstants;
+import protocol.ControlMessage;
+import protocol.FrameReader;
+import protocol.MessageType;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.AllArgsConstructor;
+import lombok.extern.log4j.Log4j2;
+
+import javax.annotation.Nonnull;
+import java.io.*;
+import java.net.Socket;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Sends a tree of many small files as one stream of records, see {@link ArchiveUnpacker} for the format. Unlike a
+ * batch, nothing is framed or copied per file beyond a short record header, and the whole stream can be compressed
+ * at once. The tree is walked and small files are read ahead on several threads, while the connection writes
+ * them out in order.
+ */
+@Log4j2
+public class ArchiveSender {
+    // Configuration
+    // Threads that walk the tree and read files ahead of the connection
+    private static final String READER_THREADS_KEY = "archiveReaderThreads";
+    private static final int DEFAULT_READER_THREADS = 4;
+    // Files up to this size are read ahead whole, larger ones are copied from disk by the connection itself
+    private static final int READ_AHEAD_FILE_LIMIT = 1024 * 1024;
+    private static final long MAX_READ_AHEAD_BYTES = 32 * 1024 * 1024;
+    private static final int MAX_READ_AHEAD_FILES = 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * @param sources files and directories, directories are sent with everything below them
+     * @return whether every file of the archive was sent
+     */
+    public static boolean send(@Nonnull final List<File> sources, @Nonnull final String destination) {
+        final int threads = Math.max(1, Settings.getIntSetting(READER_THREADS_KEY, DEFAULT_READER_THREADS));
+        final List<Item> items;
+        try {
+            items = collectItems(sources, threads);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("Source files could not be listed");
+            return false;
+        }
+        if (items.isEmpty()) {
+            System.out.println("There are no files to send");
+            return false;
+        }
+        long totalSize = 0;
+        for (Item item : items)
+            totalSize += item.size;
+        final Codec configured = Codec.fromName(Settings.getStringSetting(ServerProcessor.COMPRESSION_KEY,
+                Codec.NONE.name()));
+        final ArchiveHeader header = new ArchiveHeader(destination, items.get(0).path.split("/")[0], items.size(),
+                totalSize, configured == null ? Codec.NONE : configured);
+
+        final TransferMetrics metrics = TransferMetrics.start(TransferMetrics.Direction.SEND, destination);
+        metrics.setFilename("archive of " + items.size() + " files");
+        final ExecutorService readers = Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setNameFormat("jd-archive-reader-%d").build());
+        final long handshakeStart = System.nanoTime();
+        final Throttle throttle = Throttle.start(destination);
+        try (final Socket sock = SocketTuning.connect(destination, ProtocolConstants.PORT, false)) {
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(sock.getOutputStream()));
+            // Step 1: Send the totals, the paths follow with the records
+            ControlMessage.fromArchiveHeader(header).writeTo(out);
+            log.debug("sent archive header for " + items.size() + " files to remote, waiting for response");
+
+            // Step 2: Wait for OK, given once for the whole archive
+            final FrameReader frames = new FrameReader(in);
+            frames.setQueueListener(ServerProcessor::printQueuePosition);
+            final ControlMessage response = frames.read(MessageType.RESPONSE);
+            final String status = response.getString(ControlMessage.STATUS);
+            log.debug("received response " + status);
+            if (!BatchSender.isAccepted(status, metrics, "archive"))
+                return false;
+            header.setCompression(ServerProcessor.getAcceptedCompression(response, header.getCompression()));
+            metrics.addHandshakeNanos(System.nanoTime() - handshakeStart);
+
+            // Step 3: Stream the records, closing the archive ends the compressed stream and the connection
+            try (final OutputStream archive = CompressedStreams.compress(header.getCompression(), out)) {
+                final DataOutputStream records = new DataOutputStream(new BufferedOutputStream(archive, BUFFER_SIZE));
+                writeRecords(items, records, readers);
+                records.writeInt(ArchiveUnpacker.END_OF_ARCHIVE);
+                records.flush();
+            }
+            metrics.succeed();
+            System.out.println("Archive of " + items.size() + " files has been sent");
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            metrics.fail(e);
+            System.out.println("Archive transfer has failed due to exception");
+            return false;
+        } finally {
+            throttle.close();
+            readers.shutdownNow();
+        }
+    }
+
+    /**
+     * Writes every file as a record, waiting for the readers only when the connection has caught up with them.
+     */
+    @VisibleForTesting
+    static void writeRecords(@Nonnull final List<Item> items,
+                             @Nonnull final DataOutputStream records,
+                             @Nonnull final ExecutorService readers) throws IOException {
+        final TransferMetrics metrics = TransferMetrics.current();
+        final Throttle throttle = Throttle.current();
+        // Contents of the small files after the current one, in order, large files have no entry
+        final Deque<Future<byte[]>> ahead = new ArrayDeque<>();
+        long aheadBytes = 0;
+        int next = 0;
+        for (int i = 0; i < items.size(); i++) {
+            while (next < items.size() && ahead.size() < MAX_READ_AHEAD_FILES
+                    && (next == i || aheadBytes + items.get(next).size <= MAX_READ_AHEAD_BYTES)) {
+                final Item item = items.get(next++);
+                if (item.size <= READ_AHEAD_FILE_LIMIT) {
+                    ahead.add(readers.submit(() -> read(item)));
+                    aheadBytes += item.size;
+                }
+            }
+            final Item item = items.get(i);
+            final byte[] path = item.path.getBytes(ArchiveUnpacker.PATH_CHARSET);
+            if (item.size > READ_AHEAD_FILE_LIMIT) {
+                writeRecordHeader(records, path, item.size);
+                try (final FileInputStream fileIn = new FileInputStream(item.file)) {
+                    JDLink.writeFileToRemote(fileIn, records, item.size);
+                }
+                continue;
+            }
+            final long begin = System.nanoTime();
+            final byte[] content = await(ahead.remove());
+            final long readDone = System.nanoTime();
+            aheadBytes -= item.size;
+            writeRecordHeader(records, path, item.size);
+            records.write(content);
+            metrics.addReadNanos(readDone - begin);
+            metrics.addWriteNanos(System.nanoTime() - readDone);
+            metrics.addBytes(content.length);
+            throttle.acquire(content.length);
+        }
+    }
+
+    private static void writeRecordHeader(@Nonnull final DataOutputStream records,
+                                          @Nonnull final byte[] path,
+                                          final long size) throws IOException {
+        records.writeInt(path.length);
+        records.write(path);
+        records.writeLong(size);
+    }
+
+    /**
+     * @return exactly as many bytes as the file was listed with, like a batch a file that grew is cut off
+     */
+    @Nonnull
+    private static byte[] read(@Nonnull final Item item) throws IOException {
+        final byte[] content = new byte[(int) item.size];
+        try (final FileInputStream fileIn = new FileInputStream(item.file)) {
+            ByteStreams.readFully(fileIn, content);
+        }
+        return content;
+    }
+
+    @Nonnull
+    private static byte[] await(@Nonnull final Future<byte[]> content) throws IOException {
+        try {
+            return content.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading ahead");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException("Reading ahead has failed", e.getCause());
+        }
+    }
+
+    /**
+     * Lists every regular file below the sources, walking directories in parallel. Paths use '/' and start with
+     * the source's own name, like those of a batch manifest, and are sorted within each source.
+     */
+    @Nonnull
+    @VisibleForTesting
+    static List<Item> collectItems(@Nonnull final List<File> sources, final int threads) throws IOException {
+        final List<Item> items = new ArrayList<>();
+        final ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            for (File source : sources) {
+                if (source.isFile()) {
+                    items.add(new Item(source.getName(), source, source.length()));
+                    continue;
+                }
+                // Normalized so that "." or a trailing separator still yield the directory's real name
+                final Path root = source.getAbsoluteFile().toPath().normalize();
+                final List<Item> tree = pool.invoke(new Walk(root,
+                        root.getFileName() == null ? "root" : root.getFileName().toString()));
+                tree.sort(Comparator.comparing(item -> item.path));
+                items.addAll(tree);
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            pool.shutdown();
+        }
+        return items;
+    }
+
+    @AllArgsConstructor
+    @VisibleForTesting
+    static class Item {
+        @Nonnull
+        final String path;
+        @Nonnull
+        final File file;
+        final long size;
+    }
+
+    /**
+     * Lists one directory, forking a task for each subdirectory. Links to directories are not followed, links to
+     * files are sent as the file they point to.
+     */
+    @AllArgsConstructor
+    private static class Walk extends RecursiveTask<List<Item>> {
+        private static final long serialVersionUID = 1L;
+
+        @Nonnull
+        private final Path directory;
+        @Nonnull
+        private final String path;
+
+        @Override
+        protected List<Item> compute() {
+            final List<Item> items = new ArrayList<>();
+            final List<Walk> subtrees = new ArrayList<>();
+            try (final DirectoryStream<Path> children = Files.newDirectoryStream(directory)) {
+                for (Path child : children) {
+                    final String childPath = path + '/' + child.getFileName();
+                    final BasicFileAttributes attributes = Files.readAttributes(child, BasicFileAttributes.class,
+                            LinkOption.NOFOLLOW_LINKS);
+                    if (attributes.isDirectory()) {
+                        final Walk subtree = new Walk(child, childPath);
+                        subtree.fork();
+                        subtrees.add(subtree);
+                    } else if (attributes.isRegularFile()) {
+                        items.add(new Item(childPath, child.toFile(), attributes.size()));
+                    } else if (attributes.isSymbolicLink() && Files.isRegularFile(child)) {
+                        items.add(new Item(childPath, child.toFile(), Files.size(child)));
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            for (Walk subtree : subtrees)
+                items.addAll(subtree.join());
+            return items;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+import bandwidth.Throttle;
+import metrics.TransferMetrics;
+import model.ArchiveHeader;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.log4j.Log4j2;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.*;
+import java.net.ProtocolException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unpacks an archive as it arrives, without ever holding more of it than a few files. Each file is a record of
+ * the path's length (4 bytes), the path in UTF-8 with '/' separators, the size (8 bytes) and the content, and
+ * the archive ends with {@link #END_OF_ARCHIVE} where the next path's length would be. Records are parsed on the
+ * connection's thread, small files are handed to a pool of writers while large ones are copied straight to disk.
+ * The layout is recreated like that of a batch, each top-level file or directory under a unique name.
+ */
+@Log4j2
+class ArchiveUnpacker {
+    static final int END_OF_ARCHIVE = -1;
+    static final Charset PATH_CHARSET = StandardCharsets.UTF_8;
+    // Configuration
+    private static final String WRITER_THREADS_KEY = "archiveWriterThreads";
+    private static final int DEFAULT_WRITER_THREADS = 4;
+    private static final int MAX_PATH_LENGTH = 4096;
+    // Files up to this size are buffered for the writers, larger ones are written by the connection's thread
+    private static final int HAND_OFF_FILE_LIMIT = 1024 * 1024;
+    private static final int MAX_HANDED_OFF_BYTES = 32 * 1024 * 1024;
+
+    @Nonnull
+    private final String directory;
+    @Nonnull
+    private final ArchiveHeader header;
+    private final Map<String, File> roots = new HashMap<>();
+    private final Set<String> paths = new HashSet<>();
+    // Directories known to exist, so that a directory of many files is only created once
+    private final Set<File> directories = new HashSet<>();
+    // Bounds the content waiting for the writers
+    private final Semaphore handedOff = new Semaphore(MAX_HANDED_OFF_BYTES);
+    // First failure of a writer, the connection's thread stops at the next record
+    @Nullable
+    private volatile IOException writeFailure;
+
+    ArchiveUnpacker(@Nonnull final String directory, @Nonnull final ArchiveHeader header) {
+        this.directory = directory;
+        this.header = header;
+    }
+
+    /**
+     * Reads every record of the archive and waits for all files to be written.
+     *
+     * @param in the decompressed archive, positioned at the first record
+     */
+    void unpack(@Nonnull final InputStream in) throws IOException {
+        final DataInputStream records = new DataInputStream(in);
+        final TransferMetrics metrics = TransferMetrics.current();
+        final Throttle throttle = Throttle.current();
+        final ExecutorService writers = Executors.newFixedThreadPool(
+                Math.max(1, Settings.getIntSetting(WRITER_THREADS_KEY, DEFAULT_WRITER_THREADS)),
+                new ThreadFactoryBuilder().setNameFormat("jd-archive-writer-%d").build());
+        long received = 0;
+        try {
+            for (long i = 0; i < header.getFileCount(); i++) {
+                final String path = readPath(records);
+                final long size = records.readLong();
+                if (size < 0 || size > header.getTotalSize() - received)
+                    throw new ProtocolException("Archive holds more than the " + header.getTotalSize()
+                            + " bytes it announced");
+                received += size;
+                checkWriters();
+                final File saveFile = resolve(path);
+                if (size > HAND_OFF_FILE_LIMIT) {
+                    writeLarge(records, saveFile, size);
+                    continue;
+                }
+                final byte[] content = new byte[(int) size];
+                final long begin = System.nanoTime();
+                records.readFully(content);
+                metrics.addReadNanos(System.nanoTime() - begin);
+                metrics.addBytes(size);
+                throttle.acquire(size);
+                handedOff.acquire(content.length);
+                writers.execute(() -> writeSmall(saveFile, content));
+            }
+            if (records.readInt() != END_OF_ARCHIVE)
+                throw new ProtocolException("Archive holds more than the " + header.getFileCount()
+                        + " files it announced");
+            if (received != header.getTotalSize())
+                throw new ProtocolException("Archive holds " + received + " bytes instead of "
+                        + header.getTotalSize());
+            writers.shutdown();
+            final long begin = System.nanoTime();
+            if (!writers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS))
+                throw new IOException("Writers did not finish");
+            metrics.addWriteNanos(System.nanoTime() - begin);
+            checkWriters();
+            log.debug("unpacked archive of " + header.getFileCount() + " files");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while unpacking the archive");
+        } finally {
+            writers.shutdownNow();
+        }
+    }
+
+    @Nonnull
+    private String readPath(@Nonnull final DataInputStream records) throws IOException {
+        final int length = records.readInt();
+        if (length == END_OF_ARCHIVE)
+            throw new EOFException("Archive ended after " + paths.size() + " of " + header.getFileCount()
+                    + " files");
+        if (length <= 0 || length > MAX_PATH_LENGTH)
+            throw new ProtocolException("Invalid path length " + length);
+        final byte[] bytes = new byte[length];
+        records.readFully(bytes);
+        final String path = new String(bytes, PATH_CHARSET);
+        // Every path has to stay inside the archive's own directory, and no file may arrive twice
+        for (String segment : path.split("/", -1)) {
+            if (!ClientProcessor.isValidFilename(segment))
+                throw new ProtocolException("Invalid path " + path);
+        }
+        if (!paths.add(path))
+            throw new ProtocolException("Archive holds " + path + " twice");
+        return path;
+    }
+
+    @Nonnull
+    private File resolve(@Nonnull final String path) throws IOException {
+        final String[] segments = path.split("/", 2);
+        if (segments.length == 1)
+            return FileUtils.createUniqueFile(segments[0], directory);
+        File root = roots.get(segments[0]);
+        if (root == null) {
+            root = FileUtils.createUniqueDirectory(segments[0], directory);
+            roots.put(segments[0], root);
+            directories.add(root);
+        }
+        final File saveFile = new File(root, segments[1]);
+        final File parent = saveFile.getParentFile();
+        if (!directories.contains(parent)) {
+            if (!parent.isDirectory() && !parent.mkdirs())
+                throw new IOException("Directory for " + path + " could not be created");
+            directories.add(parent);
+        }
+        return saveFile;
+    }
+
+    private void writeLarge(@Nonnull final InputStream records,
+                            @Nonnull final File saveFile,
+                            final long size) throws IOException {
+        try (final FileOutputStream fileOut = new FileOutputStream(saveFile)) {
+            JDLink.readRemoteToFile(records, fileOut, size);
+        } catch (IOException e) {
+            if (!saveFile.delete())
+                log.error("Could not delete incomplete file " + saveFile.getName());
+            throw e;
+        }
+    }
+
+    private void writeSmall(@Nonnull final File saveFile, @Nonnull final byte[] content) {
+        try (final FileOutputStream fileOut = new FileOutputStream(saveFile)) {
+            fileOut.write(content);
+        } catch (IOException e) {
+            e.printStackTrace();
+            log.error("Could not write " + saveFile.getName() + " from the archive");
+            writeFailure = e;
+        } finally {
+            handedOff.release(content.length);
+        }
+    }
+
+    private void checkWriters() throws IOException {
+        final IOException failure = writeFailure;
+        if (failure != null)
+            throw new IOException("Unpacking the archive has failed", failure);
+    }
+}
@@ -0,0 +1,145 @@
+import bandwidth.Throttle;
+import metrics.TransferMetrics;
+import model.BatchManifest;
+import model.ProtocolConstants;
+import protocol.ControlMessage;
+import protocol.FrameReader;
+import protocol.MessageType;
+import com.google.common.annotations.VisibleForTesting;
+import lombok.extern.log4j.Log4j2;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.*;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Sends many files, including whole directory trees, over a single connection. The receiver gets a manifest of
+ * every file up front, accepts or rejects the batch once, and then reads the files back-to-back in manifest
+ * order, so a batch costs one handshake no matter how many files it holds.
+ */
+@Log4j2
+public class BatchSender {
+
+    /**
+     * @param sources files and directories, directories are sent with everything below them
+     * @return whether every file of the batch was sent
+     */
+    public static boolean send(@Nonnull final List<File> sources, @Nonnull final String destination) {
+        final List<File> files = new ArrayList<>();
+        final BatchManifest manifest;
+        try {
+            manifest = new BatchManifest(destination, collectEntries(sources, files));
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("Source files could not be listed");
+            return false;
+        }
+        if (manifest.getEntries().isEmpty()) {
+            System.out.println("There are no files to send");
+            return false;
+        }
+
+        final TransferMetrics metrics = TransferMetrics.start(TransferMetrics.Direction.SEND, destination);
+        metrics.setFilename("batch of " + files.size() + " files");
+        final long handshakeStart = System.nanoTime();
+        final Throttle throttle = Throttle.start(destination);
+        try (final Socket sock = SocketTuning.connect(destination, ProtocolConstants.PORT, false)) {
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(sock.getOutputStream()));
+            // Step 1: Send the manifest
+            for (ControlMessage frame : ControlMessage.fromBatchManifest(manifest))
+                frame.writeTo(out);
+            log.debug("sent manifest of " + files.size() + " files to remote, waiting for response");
+
+            // Step 2: Wait for OK, given once for the whole batch
+            final FrameReader frames = new FrameReader(in);
+            frames.setQueueListener(ServerProcessor::printQueuePosition);
+            final String status = frames.read(MessageType.RESPONSE).getString(ControlMessage.STATUS);
+            log.debug("received response " + status);
+            if (!isAccepted(status, metrics, "batch"))
+                return false;
+            metrics.addHandshakeNanos(System.nanoTime() - handshakeStart);
+
+            // Step 3: Write the files back-to-back, exactly as many bytes as the manifest lists for each
+            for (int i = 0; i < files.size(); i++) {
+                try (final FileInputStream fileIn = new FileInputStream(files.get(i))) {
+                    JDLink.writeFileToRemote(fileIn, out, manifest.getEntries().get(i).getSize());
+                }
+            }
+            metrics.succeed();
+            System.out.println("Batch of " + files.size() + " files has been sent");
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            metrics.fail(e);
+            System.out.println("Batch transfer has failed due to exception");
+            return false;
+        } finally {
+            throttle.close();
+        }
+    }
+
+    /**
+     * @return whether the receiver accepted the batch or archive as a whole, the user is told why not otherwise
+     */
+    static boolean isAccepted(@Nullable final String status,
+                              @Nonnull final TransferMetrics metrics,
+                              @Nonnull final String kind) {
+        if (ProtocolConstants.NO_SPACE_RESPONSE.equals(status)) {
+            metrics.fail("no-space");
+            System.out.println("Receiver does not have enough space for this " + kind);
+            return false;
+        }
+        if (ProtocolConstants.BUSY_RESPONSE.equals(status)) {
+            metrics.fail("busy");
+            System.out.println("Receiver is busy, try again later");
+            return false;
+        }
+        if (!ProtocolConstants.OK_RESPONSE.equals(status)) {
+            metrics.fail("denied");
+            System.out.println("Receiver has denied " + kind + " transfer request");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param files filled with the file behind each returned entry, in the same order
+     */
+    @Nonnull
+    @VisibleForTesting
+    static List<BatchManifest.Entry> collectEntries(@Nonnull final List<File> sources,
+                                                    @Nonnull final List<File> files) throws IOException {
+        final List<BatchManifest.Entry> entries = new ArrayList<>();
+        for (File source : sources) {
+            if (source.isFile()) {
+                files.add(source);
+                entries.add(new BatchManifest.Entry(source.getName(), source.length()));
+                continue;
+            }
+            // Normalized so that "." or a trailing separator still yield the directory's real name
+            final Path root = source.getAbsoluteFile().toPath().normalize();
+            final String rootName = root.getFileName() == null ? "root" : root.getFileName().toString();
+            final List<Path> tree;
+            try (final Stream<Path> walk = Files.walk(root)) {
+                tree = walk.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+            }
+            for (Path path : tree) {
+                // Manifest paths always use '/', whatever the sending platform's separator is
+                final StringBuilder relative = new StringBuilder(rootName);
+                for (Path segment : root.relativize(path))
+                    relative.append('/').append(segment);
+                files.add(path.toFile());
+                entries.add(new BatchManifest.Entry(relative.toString(), path.toFile().length()));
+            }
+        }
+        return entries;
+    }
+}
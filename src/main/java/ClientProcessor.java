@@ -1,34 +1,130 @@
+import bandwidth.Throttle;
+import compression.Codec;
+import compression.CompressedStreams;
+import delta.BlockSignature;
+import delta.DeltaDecoder;
+import integrity.ChunkHasher;
+import integrity.ChunkVerificationException;
+import metrics.TransferMetrics;
+import model.ArchiveHeader;
+import model.BatchManifest;
 import model.ProtocolConstants;
 import model.TransferRequest;
+import permissions.DialogArbiter;
+import permissions.PermissionPipeline;
+import permissions.PermissionPolicy;
+import permissions.Permissions;
+import protocol.ControlMessage;
+import protocol.FrameReader;
+import protocol.MessageType;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.net.InetAddresses;
 import lombok.extern.log4j.Log4j2;
-import org.apache.commons.lang3.math.NumberUtils;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.io.*;
+import java.net.ProtocolException;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @Log4j2
 public class ClientProcessor {
-    private static final String SAVE_DIR = "/Users/johnteng/dev";
+    // Configuration
+    private static final String RESUMABLE_TRANSFERS_KEY = "resumableTransfers";
+    static final String INTEGRITY_CHECK_KEY = "integrityCheck";
+    // Whether a file is rebuilt from an older copy under the same name, opt-in since that copy may be unrelated
+    private static final String DELTA_SYNC_KEY = "deltaSync";
+    // Whether a file rebuilt by delta sync replaces the older copy, otherwise it is saved under a new name
+    private static final String DELTA_SYNC_REPLACE_KEY = "deltaSyncReplace";
+    // Chunks are verified against the sender's hashes, corrupt ones are sent again for at most this many rounds
+    private static final int MAX_RETRANSMIT_ROUNDS = 3;
+    // More corrupt chunks than this means the connection is hopeless, the transfer fails instead
+    private static final int MAX_RETRANSMIT_CHUNKS = 1024;
+    private static final int MAX_INTEGRITY_CHUNK_SIZE = 64 * 1024 * 1024;
+    // Save files are sized up front and written at explicit positions, see PreallocatedFile
+    static final String PREALLOCATE_KEY = "preallocate";
+    private static final String RECEIVE_WRITE_MODE_KEY = "receiveWriteMode";
+    private static final String SYNC_POLICY_KEY = "syncPolicy";
+    private static final String SYNC_INTERVAL_MB_KEY = "syncIntervalMb";
+    // Permission rules, see PermissionPolicy. Transfers the rules leave open are put to the user in a dialog if
+    // permissionDialog is set, and accepted otherwise. Off by default, since the receiver usually runs headless.
+    private static final String PERMISSION_DIALOG_KEY = "permissionDialog";
+    private static final boolean DEFAULT_PERMISSION_DIALOG = false;
+    static final String TRUSTED_HOSTS_KEY = "trustedHosts";
+    private static final String BLOCKED_EXTENSIONS_KEY = "blockedExtensions";
+    private static final String MAX_TRANSFER_SIZE_MB_KEY = "maxTransferSizeMb";
+    private static final String PERMISSION_MEMORY_KEY = "permissionMemorySeconds";
+    // How long a transfer waits for a decision before it is denied
+    private static final String PERMISSION_TIMEOUT_KEY = "permissionTimeoutSeconds";
+    // A session that stays idle this long is closed, senders close theirs sooner
+    private static final String SESSION_TIMEOUT_KEY = "sessionTimeoutSeconds";
+    private static final int DEFAULT_SESSION_TIMEOUT_SECONDS = 120;
+    // Most payload a sender may stream ahead of the answer to its request, held in memory until the answer
+    static final String OPTIMISTIC_STAGING_KEY = "optimisticStagingKiB";
+    private static final int DEFAULT_OPTIMISTIC_STAGING_KIB = 1024;
+    // Whether files are passed on to the next receivers a sender names, off so that nobody relays through us unasked
+    private static final String RELAY_KEY = "relayTransfers";
+    private static final int MAX_RELAY_HOPS = 32;
+    // Whether compressed payloads are decoded, otherwise senders are asked to send raw payload instead
+    private static final String ACCEPT_COMPRESSION_KEY = "acceptCompression";
+    // A connection that is turned away is drained for at most this long, so that our answer is not lost to a reset
+    private static final int REJECT_LINGER_MILLIS = 1000;
+    private static final int MAX_DRAINED_BYTES = 64 * 1024;
+
+    @Nullable
+    private static PermissionPipeline permissions;
 
     @Nonnull
     protected final Socket csock;
     @Nullable
     protected DataInputStream in;
+    // The buffer under in, which may already hold payload that followed a control frame
+    @Nullable
+    private ReadAheadInputStream readAhead;
     @Nullable
     protected DataOutputStream out;
     @Nullable
     protected FileOutputStream fileOut;
+    @Nullable
+    protected FrameReader frames;
+    // Payload the sender streamed ahead of our answer to the current request, null if it waited for the answer
+    @Nullable
+    private byte[] staged;
+    // Passes the current transfer on to the next receiver of its chain, null if it ends here
+    @Nullable
+    private Relay relay;
+    // When processing started, handshake time is measured from here up to the first payload byte
+    private long processingStartNanos;
 
     public ClientProcessor(@Nonnull Socket sock) {
         csock = sock;
         log.debug("Connected to client from IP " + csock.getRemoteSocketAddress().toString() + " Port " + csock.getPort());
         try {
-            in = new DataInputStream(new BufferedInputStream(csock.getInputStream()));
+            SocketTuning.configure(csock);
+            readAhead = new ReadAheadInputStream(csock.getInputStream());
+            in = new DataInputStream(readAhead);
             out = new DataOutputStream(new BufferedOutputStream(csock.getOutputStream()));
+            frames = new FrameReader(in);
         } catch (IOException e) {
             e.printStackTrace();
             log.error("ClientProcessor could not be initialized with I/O Streams");
@@ -36,6 +132,16 @@ public class ClientProcessor {
         }
     }
 
+    /**
+     * Closes the file a transfer appended to, which would otherwise stay open until the connection closes.
+     */
+    private void closeSaveFile() throws IOException {
+        if (fileOut != null) {
+            fileOut.close();
+            fileOut = null;
+        }
+    }
+
     private void closeConnections() {
         try {
             csock.close();
@@ -51,29 +157,221 @@ public class ClientProcessor {
         }
     }
 
-    @VisibleForTesting
-    boolean isValidTransferMetadata(@Nonnull String[] parts) {
-        return parts.length == 3
-                && NumberUtils.isParsable(parts[1])
-                && ("localhost".equals(parts[2]) || InetAddresses.isInetAddress(parts[2]));
+    /**
+     * Closes the connection once the sender has had the chance to read our last answer. Closing a socket with
+     * unread input resets the connection, which can discard the answer before the sender reads it, so the output
+     * is shut down first and whatever the sender still had in flight is read and dropped.
+     */
+    static void closeAfterReply(@Nonnull final Socket sock) {
+        try {
+            sock.shutdownOutput();
+            sock.setSoTimeout(REJECT_LINGER_MILLIS);
+            final InputStream in = sock.getInputStream();
+            final byte[] buffer = new byte[8192];
+            final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(REJECT_LINGER_MILLIS);
+            long drained = 0;
+            int read;
+            while (drained < MAX_DRAINED_BYTES && System.nanoTime() < deadline && (read = in.read(buffer)) >= 0)
+                drained += read;
+        } catch (IOException e) {
+            log.debug("rejected client did not close in time: " + e.getMessage());
+        } finally {
+            try {
+                sock.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+                log.error("There was a problem with closing connections");
+            }
+        }
     }
 
+    /**
+     * @return the directory received files are saved in, from {@link Settings#DOWNLOAD_DIR_KEY}, created if it does
+     * not exist yet
+     */
     @Nonnull
+    static String getSaveDir() throws IOException {
+        final String directory = Settings.getStringSetting(Settings.DOWNLOAD_DIR_KEY, Settings.DOWNLOADS_DIR);
+        final File saveDir = new File(directory);
+        if (!saveDir.isDirectory() && !saveDir.mkdirs())
+            throw new IOException("Save directory " + directory + " could not be created");
+        return directory;
+    }
+
+    /**
+     * Names are used as-is inside the save directory, so they must not be able to point anywhere else.
+     */
+    static boolean isValidFilename(@Nonnull final String filename) {
+        return !filename.isEmpty() && !filename.contains("/") && !filename.contains("\\")
+                && !".".equals(filename) && !"..".equals(filename);
+    }
+
+    private static boolean isValidHost(@Nonnull final String host) {
+        return "localhost".equals(host) || InetAddresses.isInetAddress(host);
+    }
+
     @VisibleForTesting
-    String[] readMetadataPartsFromStream() throws IOException {
-        final String metadata = JDLink.readStringFromRemote(in);
-        log.debug("read metadata from remote: " + metadata);
-        return metadata.split(ProtocolConstants.DELIMITER);
+    static boolean isValidTransferRequest(@Nonnull final TransferRequest request) {
+        if (!isValidFilename(request.getFilename()) || !isValidHost(request.getHost()))
+            return false;
+        // Only a whole, raw file may be sent ahead of the answer, a window larger than we stage is turned down
+        // with our limit instead, see exceedsStagingLimit
+        if (request.getOptimisticLength() != 0 && (request.getOptimisticLength() < 0
+                || request.getOptimisticLength() > request.getLength()
+                || request.isMultiStream() || request.getCompression() != Codec.NONE || request.isDeltaSync()))
+            return false;
+        // A relayed file is forwarded as it arrives, which only works for a whole file sent in full
+        if (request.isRelayed() && (request.getRelayHops().size() > MAX_RELAY_HOPS || request.isMultiStream()
+                || request.isDeltaSync() || !request.getRelayHops().stream().allMatch(ClientProcessor::isValidHost)))
+            return false;
+        // A single stream carries the whole file, each of several streams a range of it
+        return request.getFilesize() >= 0 && request.getStreams() > 0
+                && request.getOffset() >= 0 && request.getLength() >= 0
+                && request.getOffset() <= request.getFilesize() - request.getLength()
+                && (request.isMultiStream()
+                ? !request.getTransferId().isEmpty()
+                : request.getOffset() == 0 && request.getLength() == request.getFilesize());
+    }
+
+    static long getOptimisticStagingLimit() {
+        return Settings.getIntSetting(OPTIMISTIC_STAGING_KEY, DEFAULT_OPTIMISTIC_STAGING_KIB) * 1024L;
+    }
+
+    /**
+     * A sender may be configured with a larger window than we stage, it is told our limit and asks again.
+     */
+    static boolean exceedsStagingLimit(@Nonnull final TransferRequest request) {
+        return request.getOptimisticLength() > getOptimisticStagingLimit();
     }
 
+    @Nonnull
+    static ControlMessage windowTooLargeResponse() {
+        return ControlMessage.response(ProtocolConstants.WINDOW_TOO_LARGE_RESPONSE)
+                .putLong(ControlMessage.OPTIMISTIC_LENGTH, getOptimisticStagingLimit());
+    }
+
+    /**
+     * Every path has to stay inside the batch's own directory, and no file may be listed twice.
+     */
     @VisibleForTesting
-    boolean isUserPermissionGranted(@Nonnull final String filename,
-                                    @Nonnull final String host,
-                                    final long filesize) {
-        // TODO show dialog with options and ask user if we should proceed
+    static boolean isValidBatchManifest(@Nonnull final BatchManifest manifest) {
+        if (manifest.getEntries().isEmpty() || !isValidHost(manifest.getHost()))
+            return false;
+        final Set<String> paths = new HashSet<>();
+        for (BatchManifest.Entry entry : manifest.getEntries()) {
+            if (entry.getSize() < 0 || !paths.add(entry.getPath()))
+                return false;
+            for (String segment : entry.getPath().split("/", -1)) {
+                if (!isValidFilename(segment))
+                    return false;
+            }
+        }
         return true;
     }
 
+    @VisibleForTesting
+    static boolean isValidArchiveHeader(@Nonnull final ArchiveHeader header) {
+        return header.getFileCount() > 0 && header.getTotalSize() >= 0 && isValidHost(header.getHost())
+                && isValidFilename(header.getName());
+    }
+
+    @Nonnull
+    @VisibleForTesting
+    static TransferRequest toTransferRequest(@Nonnull final ControlMessage message) throws ProtocolException {
+        if (message.getType() != MessageType.TRANSFER_REQUEST)
+            throw new ProtocolException("Expected a transfer request but received " + message.getType());
+        final TransferRequest request = message.toTransferRequest();
+        log.debug("read metadata from remote: " + request.getFilename() + ", " + request.getFilesize() + " bytes");
+        return request;
+    }
+
+    /**
+     * Shared by all connections, so that every prompt goes through the same queue and remembered answers apply
+     * across connections.
+     */
+    @Nonnull
+    private static synchronized PermissionPipeline getPermissions() {
+        if (permissions == null) {
+            final Splitter list = Splitter.on(',').trimResults().omitEmptyStrings();
+            final PermissionPolicy policy = new PermissionPolicy(
+                    ImmutableSet.copyOf(list.split(Settings.getStringSetting(TRUSTED_HOSTS_KEY, ""))),
+                    ImmutableSet.copyOf(list.split(Settings.getStringSetting(BLOCKED_EXTENSIONS_KEY, "")
+                            .toLowerCase())),
+                    Settings.getIntSetting(MAX_TRANSFER_SIZE_MB_KEY, -1) * 1024L * 1024L,
+                    Settings.getIntSetting(PERMISSION_MEMORY_KEY, 600));
+            permissions = new PermissionPipeline(policy,
+                    Settings.getBooleanSetting(PERMISSION_DIALOG_KEY, DEFAULT_PERMISSION_DIALOG)
+                            ? new DialogArbiter() : Permissions.ACCEPT_ALL,
+                    TimeUnit.SECONDS.toMillis(getPermissionTimeoutSeconds()));
+        }
+        return permissions;
+    }
+
+    /**
+     * @param source address of the sending peer, which the permission rules trust or remember
+     */
+    @Nonnull
+    static CompletableFuture<Boolean> requestPermission(@Nonnull final String filename,
+                                                        @Nonnull final String source,
+                                                        final long filesize) {
+        return getPermissions().request(filename, source, filesize);
+    }
+
+    /**
+     * The ranges of a multi-stream transfer share one decision for the whole file.
+     */
+    @Nonnull
+    static CompletableFuture<Boolean> requestPermission(@Nonnull final TransferRequest request,
+                                                        @Nonnull final String source) {
+        if (!request.isMultiStream())
+            return requestPermission(request.getFilename(), source, request.getFilesize());
+        return RangeAssembler.requestPermission(source, request,
+                () -> requestPermission(request.getFilename(), source, request.getFilesize()));
+    }
+
+    private static boolean askUserPermission(@Nonnull final String filename,
+                                             @Nonnull final String source,
+                                             final long filesize) {
+        return awaitPermission(filename, requestPermission(filename, source, filesize));
+    }
+
+    private static int getPermissionTimeoutSeconds() {
+        return Settings.getIntSetting(PERMISSION_TIMEOUT_KEY, PermissionPipeline.DEFAULT_PROMPT_TIMEOUT_SECONDS);
+    }
+
+    /**
+     * The answer is needed before the transfer can go on, so this connection waits for it, for a bounded time,
+     * and records how long the decision took.
+     */
+    private static boolean awaitPermission(@Nonnull final String filename,
+                                           @Nonnull final CompletableFuture<Boolean> permission) {
+        final long begin = System.nanoTime();
+        boolean granted;
+        try {
+            granted = permission.get(getPermissionTimeoutSeconds(), TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            log.error("Permission for " + filename + " was not given in time");
+            granted = false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            granted = false;
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+            granted = false;
+        }
+        TransferMetrics.current().addPermissionNanos(System.nanoTime() - begin);
+        return granted;
+    }
+
+    /**
+     * The payload is about to start, so the exchange before it counts as handshake, except for the time the user
+     * took to grant permission.
+     */
+    private void recordHandshake() {
+        final TransferMetrics metrics = TransferMetrics.current();
+        metrics.addHandshakeNanos(System.nanoTime() - processingStartNanos - metrics.getPermissionNanos());
+    }
+
     @VisibleForTesting
     void showErrorDialog() {
         // TODO show dialog telling the user that the transfer/connection failed
@@ -86,62 +384,759 @@ public class ClientProcessor {
 
     @Nullable
     @VisibleForTesting
-    TransferRequest getTransferRequest() throws IOException {
-        final String[] parts = readMetadataPartsFromStream();
-        if (!isValidTransferMetadata(parts)) {
+    TransferRequest getTransferRequest(@Nonnull final ControlMessage message) throws IOException {
+        final TransferRequest request = toTransferRequest(message);
+        TransferMetrics.current().setFilename(request.getFilename());
+        if (!isValidTransferRequest(request)) {
             log.error("Received metadata contains error");
+            TransferMetrics.current().fail("invalid-request");
+            return null;
+        }
+        // The sender switches to the codec our answer names
+        request.setCompression(getAcceptedCompression(request));
+        if (request.isRelayed() && !Settings.getBooleanSetting(RELAY_KEY, false)) {
+            log.error("Relaying is turned off, not passing " + request.getFilename() + " on to "
+                    + request.getRelayHops());
+            TransferMetrics.current().fail("relay-disabled");
             return null;
         }
-        final TransferRequest request = new TransferRequest(Long.parseLong(parts[1]), parts[0], parts[2]);
-        if (!isUserPermissionGranted(request.getFilename(), request.getHost(), request.getFilesize())) {
+        // Read what was sent ahead before prompting, it is already on its way and the answer may take a while
+        staged = null;
+        if (exceedsStagingLimit(request)) {
+            // Read away rather than staged, so that the answer is not lost to a reset connection
+            log.error(request.getOptimisticLength() + " bytes were sent ahead, more than the "
+                    + getOptimisticStagingLimit() + " we stage");
+            discard(request.getOptimisticLength());
+            windowTooLargeResponse().writeTo(out);
+            TransferMetrics.current().fail("window-too-large");
+            return null;
+        }
+        if (request.getOptimisticLength() > 0) {
+            staged = new byte[(int) request.getOptimisticLength()];
+            in.readFully(staged);
+            log.debug("staged " + staged.length + " bytes sent ahead of the response");
+        }
+        final String source = csock.getInetAddress().getHostAddress();
+        if (!awaitPermission(request.getFilename(), requestPermission(request, source))) {
             log.error("User has denied permission for file transfer");
+            TransferMetrics.current().fail("permission-denied");
             return null;
         }
         return request;
     }
 
+    private void discard(long bytes) throws IOException {
+        final byte[] buffer = new byte[8192];
+        while (bytes > 0) {
+            final int read = in.read(buffer, 0, (int) Math.min(buffer.length, bytes));
+            if (read < 0)
+                throw new EOFException("Client closed the connection with " + bytes + " bytes still to be sent ahead");
+            bytes -= read;
+        }
+    }
+
+    /**
+     * Turns the transfer down before any payload is sent if the save directory cannot hold it.
+     */
+    private boolean rejectIfNoSpace(final long bytes) throws IOException {
+        if (PreallocatedFile.hasSpaceFor(new File(getSaveDir()), bytes))
+            return false;
+        log.error("Not enough space left in the save directory for " + bytes + " bytes");
+        ControlMessage.response(ProtocolConstants.NO_SPACE_RESPONSE).writeTo(out);
+        TransferMetrics.current().fail("no-space");
+        return true;
+    }
+
+    @Nullable
+    private BatchManifest getBatchManifest(@Nonnull final ControlMessage header) throws IOException {
+        final BatchManifest manifest = frames.readBatchManifest(header);
+        log.debug("read batch manifest from remote: " + manifest.getEntries().size() + " files, "
+                + manifest.getTotalSize() + " bytes");
+        if (!isValidBatchManifest(manifest)) {
+            log.error("Received batch manifest contains error");
+            TransferMetrics.current().fail("invalid-request");
+            return null;
+        }
+        // The batch is accepted or rejected as a whole
+        final String description = manifest.getEntries().get(0).getPath().split("/")[0]
+                + (manifest.getEntries().size() > 1 ? " and " + (manifest.getEntries().size() - 1) + " more files" : "");
+        TransferMetrics.current().setFilename(description);
+        if (!askUserPermission(description, csock.getInetAddress().getHostAddress(), manifest.getTotalSize())) {
+            log.error("User has denied permission for batch transfer");
+            TransferMetrics.current().fail("permission-denied");
+            return null;
+        }
+        return manifest;
+    }
+
+    @Nullable
+    private ArchiveHeader getArchiveHeader(@Nonnull final ControlMessage message) throws IOException {
+        final ArchiveHeader header = message.toArchiveHeader();
+        log.debug("read archive header from remote: " + header.getFileCount() + " files, "
+                + header.getTotalSize() + " bytes");
+        if (!isValidArchiveHeader(header)) {
+            log.error("Received archive header contains error");
+            TransferMetrics.current().fail("invalid-request");
+            return null;
+        }
+        // The sender switches to the codec our answer names, like it does for a single file
+        header.setCompression(getAcceptedCompression(header.getCompression()));
+        // Accepted or rejected as a whole, like a batch
+        final String description = header.getName()
+                + (header.getFileCount() > 1 ? " and " + (header.getFileCount() - 1) + " more files" : "");
+        TransferMetrics.current().setFilename(description);
+        if (!askUserPermission(description, csock.getInetAddress().getHostAddress(), header.getTotalSize())) {
+            log.error("User has denied permission for archive transfer");
+            TransferMetrics.current().fail("permission-denied");
+            return null;
+        }
+        return header;
+    }
+
+    private void receiveFile(@Nonnull final TransferRequest request) throws IOException {
+        final String source = csock.getInetAddress().getHostAddress();
+        final String saveDir = getSaveDir();
+        final boolean resumable = Settings.getBooleanSetting(RESUMABLE_TRANSFERS_KEY, true);
+        PartialTransfer partial = resumable ? PartialTransfer.find(saveDir, request, source) : null;
+        // Resuming a partial copy of this very file beats rebuilding it from an older one
+        final File basis = partial == null ? getDeltaBasis(request, saveDir) : null;
+        if (basis != null) {
+            receiveDelta(request, basis);
+            return;
+        }
+        long offset = 0;
+        // A sender that streamed ahead starts from the beginning, and a relay forwards from the beginning, so no
+        // resume is offered to either
+        if (partial != null && partial.getCommitted() > 0 && staged == null && relay == null) {
+            // The sender confirms the offset it will actually start from, 0 if its prefix does not match ours
+            log.debug("offering to resume at byte " + partial.getCommitted());
+            okResponse(request)
+                    .putLong(ControlMessage.RESUME_OFFSET, partial.getCommitted())
+                    .putLong(ControlMessage.RESUME_CHECKSUM, partial.getChecksum())
+                    .writeTo(out);
+            offset = readResumeConfirmation(partial.getCommitted());
+        } else {
+            log.debug("sending OK response");
+            okResponse(request).writeTo(out);
+        }
+
+        final File saveFile;
+        if (partial != null) {
+            saveFile = partial.getSaveFile();
+        } else {
+            log.debug("creating new savefile at specified directory");
+            saveFile = FileUtils.createUniqueFile(request.getFilename(), saveDir);
+            if (resumable)
+                partial = PartialTransfer.create(saveDir, request, source, saveFile);
+        }
+        // Staged bytes are committed by reading them ahead of the socket, and relayed bytes are forwarded as they
+        // are read, both rule out reading from the socket's channel
+        final InputStream received = staged != null
+                ? new SequenceInputStream(new ByteArrayInputStream(staged), in) : in;
+        final InputStream payloadIn = relay != null ? relay.tee(received) : received;
+        staged = null;
+        final ReadableByteChannel channel = payloadIn == in ? getPayloadChannel() : null;
+        final int chunkSize = getAcceptedChunkSize(request);
+        if (!Settings.getBooleanSetting(PREALLOCATE_KEY, true)) {
+            receiveAppending(request, saveFile, partial, offset, payloadIn, channel, chunkSize);
+            return;
+        }
+
+        log.debug("reading file bytes from remote into preallocated file, starting at " + offset);
+        recordHandshake();
+        try (final PreallocatedFile file = openPreallocated(saveFile, request.getFilesize())) {
+            final ChunkReceiver receiver = (position, length, progress) ->
+                    file.receive(payloadIn, position, length, channel, request.getCompression(), progress);
+            try {
+                if (chunkSize > 0)
+                    receiveVerified(file.getChannel(), offset, request.getFilesize() - offset, chunkSize, receiver);
+                else
+                    receiver.receive(offset, request.getFilesize() - offset, null);
+                file.finish();
+            } catch (ChunkVerificationException e) {
+                if (partial != null)
+                    keepPartial(partial, request, source, Math.min(file.getReceivedEnd(), e.getFirstCorruptPosition()));
+                throw e;
+            } catch (IOException e) {
+                if (partial != null)
+                    keepPartial(partial, request, source, file.getReceivedEnd());
+                throw e;
+            }
+        }
+        if (partial != null)
+            partial.complete();
+    }
+
+    @Nonnull
+    private static PreallocatedFile openPreallocated(@Nonnull final File saveFile, final long size)
+            throws IOException {
+        final PreallocatedFile.WriteMode writeMode = PreallocatedFile.WriteMode.valueOf(
+                Settings.getStringSetting(RECEIVE_WRITE_MODE_KEY, "positional").trim().toUpperCase());
+        final PreallocatedFile.SyncPolicy syncPolicy = PreallocatedFile.SyncPolicy.valueOf(
+                Settings.getStringSetting(SYNC_POLICY_KEY, "none").trim().toUpperCase());
+        return PreallocatedFile.open(saveFile, size, writeMode, syncPolicy,
+                Settings.getIntSetting(SYNC_INTERVAL_MB_KEY, 64) * 1024L * 1024L);
+    }
+
+    /**
+     * Receives the rest of the file by appending to the save file, which grows as the payload arrives.
+     */
+    private void receiveAppending(@Nonnull final TransferRequest request,
+                                  @Nonnull final File saveFile,
+                                  @Nullable final PartialTransfer partial,
+                                  final long offset,
+                                  @Nonnull final InputStream payloadIn,
+                                  @Nullable final ReadableByteChannel channel,
+                                  final int chunkSize) throws IOException {
+        final String source = csock.getInetAddress().getHostAddress();
+        // Drop anything past the agreed offset, then append the rest of the file
+        try (final RandomAccessFile file = new RandomAccessFile(saveFile, "rw")) {
+            file.setLength(offset);
+        }
+        fileOut = new FileOutputStream(saveFile, true);
+
+        log.debug("reading file bytes from remote, starting at " + offset);
+        recordHandshake();
+        try {
+            if (chunkSize > 0) {
+                try (final RandomAccessFile file = new RandomAccessFile(saveFile, "rw")) {
+                    // First pass appends through fileOut like an unverified transfer, retransmits go through file
+                    receiveVerified(file.getChannel(), offset, request.getFilesize() - offset, chunkSize,
+                            (position, length, progress) -> JDLink.readRemoteToFile(payloadIn, fileOut, length,
+                                    channel, request.getCompression(), progress));
+                }
+            } else {
+                JDLink.readRemoteToFile(payloadIn, fileOut, request.getFilesize() - offset, channel,
+                        request.getCompression());
+            }
+        } catch (ChunkVerificationException e) {
+            if (partial != null)
+                keepPartial(partial, request, source, e.getFirstCorruptPosition());
+            throw e;
+        } catch (IOException e) {
+            if (partial != null)
+                keepPartial(partial, request, source, request.getFilesize());
+            throw e;
+        }
+        if (partial != null)
+            partial.complete();
+    }
+
+    /**
+     * @return the older copy of the requested file to rebuild it from, null if the file is sent in full
+     */
+    @Nullable
+    @VisibleForTesting
+    static File getDeltaBasis(@Nonnull final TransferRequest request, @Nonnull final String saveDir) {
+        if (!request.isDeltaSync() || !Settings.getBooleanSetting(DELTA_SYNC_KEY, false))
+            return null;
+        // Save files are created with lowercase names
+        final File basis = new File(saveDir, request.getFilename().toLowerCase());
+        return basis.isFile() && basis.length() > 0 ? basis : null;
+    }
+
+    /**
+     * Sends the signature of the older copy along with the OK, rebuilds the file from the sender's delta into a
+     * temporary file, and moves it into place once its hash matches.
+     */
+    private void receiveDelta(@Nonnull final TransferRequest request, @Nonnull final File basis) throws IOException {
+        final File rebuilt = File.createTempFile(".jd-delta-", ".tmp", basis.getParentFile());
+        try (final FileChannel basisChannel = FileChannel.open(basis.toPath());
+             final FileChannel target = FileChannel.open(rebuilt.toPath(), StandardOpenOption.WRITE)) {
+            final BlockSignature signature = BlockSignature.compute(basisChannel,
+                    BlockSignature.chooseBlockSize(basisChannel.size()));
+            log.debug("offering delta sync against " + basis.getName() + " in " + signature.getBlockCount()
+                    + " blocks of " + signature.getBlockSize() + " bytes");
+            ControlMessage.response(ProtocolConstants.OK_RESPONSE).putLong(ControlMessage.DELTA_SYNC, 1).writeTo(out);
+            for (ControlMessage frame : ControlMessage.fromBlockSignature(signature))
+                frame.writeTo(out);
+            recordHandshake();
+            final long literalBytes = DeltaDecoder.decode(in, basisChannel, signature, request.getFilesize(), target);
+            log.debug("rebuilt " + request.getFilename() + " with " + literalBytes + " of "
+                    + request.getFilesize() + " bytes sent");
+        } catch (IOException e) {
+            if (!rebuilt.delete())
+                log.error("Could not delete incomplete file " + rebuilt.getName());
+            throw e;
+        }
+        final File saveFile = Settings.getBooleanSetting(DELTA_SYNC_REPLACE_KEY, false)
+                ? basis : FileUtils.createUniqueFile(request.getFilename(), basis.getParent());
+        Files.move(rebuilt.toPath(), saveFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        ControlMessage.response(ProtocolConstants.OK_RESPONSE).writeTo(out);
+    }
+
+    /**
+     * Reading from the socket's channel bypasses the buffer of {@link #in}, so the channel may only take over once
+     * that buffer is empty. After the resume confirmation, for one, the payload usually arrives right behind it.
+     *
+     * @return the channel to read the payload from, null if it has to be read through {@link #in}
+     */
+    @Nullable
+    private ReadableByteChannel getPayloadChannel() {
+        if (!JDLink.isZeroCopyEnabled() || readAhead == null || readAhead.getBuffered() > 0)
+            return null;
+        return csock.getChannel();
+    }
+
+    private long readResumeConfirmation(final long offeredOffset) throws IOException {
+        final long offset = frames.read(MessageType.RESUME_CONFIRMATION).getLong(ControlMessage.OFFSET, -1);
+        if (offset != 0 && offset != offeredOffset)
+            throw new IOException("Sender wants to resume at " + offset + ", but " + offeredOffset + " was offered");
+        log.debug(offset == 0 ? "sender declined to resume" : "resuming at byte " + offset);
+        return offset;
+    }
+
+    /**
+     * @param limit no bytes past this are kept, even if they were written
+     */
+    private void keepPartial(@Nonnull final PartialTransfer partial,
+                             @Nonnull final TransferRequest request,
+                             @Nonnull final String source,
+                             final long limit) {
+        try {
+            if (fileOut != null)
+                fileOut.close();
+            final long committed = Math.min(partial.getSaveFile().length(), limit);
+            partial.commit(request, source, committed);
+        } catch (IOException e) {
+            e.printStackTrace();
+            log.error("Partial transfer could not be recorded");
+        }
+    }
+
+    private void receiveRange(@Nonnull final TransferRequest request) throws IOException {
+        log.debug("reading range " + request.getOffset() + "+" + request.getLength() + " from remote");
+        recordHandshake();
+        final RangeAssembler assembly = RangeAssembler.join(
+                csock.getInetAddress().getHostAddress(), request, getSaveDir());
+        final ReadableByteChannel channel = getPayloadChannel();
+        final int chunkSize = getAcceptedChunkSize(request);
+        try {
+            if (chunkSize > 0) {
+                receiveVerified(assembly.getChannel(), request.getOffset(), request.getLength(), chunkSize,
+                        (position, length, progress) -> JDLink.readRemoteToFileAt(in, assembly.getChannel(),
+                                position, length, channel, request.getCompression(), progress));
+            } else {
+                JDLink.readRemoteToFileAt(in, assembly.getChannel(), request.getOffset(), request.getLength(),
+                        channel, request.getCompression());
+            }
+            assembly.completeRange(request);
+        } catch (IOException e) {
+            assembly.fail();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the chunk size the payload will be verified in, 0 if the sender did not ask for verification or
+     * this receiver does not accept it
+     */
+    @VisibleForTesting
+    static int getAcceptedChunkSize(@Nonnull final TransferRequest request) {
+        final int chunkSize = request.getIntegrityChunkSize();
+        // Retransmitted chunks would not reach the next hop of a relay, so relayed payloads are not verified
+        if (request.isRelayed())
+            return 0;
+        // Chunks have to line up with compression blocks so that each chunk can be decoded on its own
+        if (chunkSize <= 0 || chunkSize > MAX_INTEGRITY_CHUNK_SIZE || chunkSize % JDLink.COMPRESSION_BLOCK_SIZE != 0)
+            return 0;
+        return Settings.getBooleanSetting(INTEGRITY_CHECK_KEY, true) ? chunkSize : 0;
+    }
+
+    /**
+     * @return the codec the payload will be decoded with, the requested one or none at all
+     */
+    @VisibleForTesting
+    static Codec getAcceptedCompression(@Nonnull final TransferRequest request) {
+        return getAcceptedCompression(request.getCompression());
+    }
+
+    @Nonnull
+    private static Codec getAcceptedCompression(@Nonnull final Codec requested) {
+        return Settings.getBooleanSetting(ACCEPT_COMPRESSION_KEY, true) ? requested : Codec.NONE;
+    }
+
+    /**
+     * Accepts the transfer, naming the codec the payload is to be sent with and echoing the verification chunk size
+     * if the payload will be verified.
+     */
+    @Nonnull
+    private static ControlMessage okResponse(@Nonnull final TransferRequest request) {
+        final ControlMessage response = ControlMessage.response(ProtocolConstants.OK_RESPONSE)
+                .putString(ControlMessage.COMPRESSION, request.getCompression().name());
+        final int chunkSize = getAcceptedChunkSize(request);
+        return chunkSize > 0 ? response.putLong(ControlMessage.INTEGRITY_CHUNK_SIZE, chunkSize) : response;
+    }
+
+    /**
+     * Receives the payload in one go, hashing each chunk on the hash pool as soon as the receiver reports it has
+     * landed. Once the sender's hashes arrive, corrupt chunks are requested again until every chunk matches.
+     *
+     * @param file     the save file, read back for hashing and written to for retransmitted chunks
+     * @param receiver receives the payload in the regular way, reporting how far it has been written
+     */
+    private void receiveVerified(@Nonnull final FileChannel file,
+                                 final long position,
+                                 final long length,
+                                 final int chunkSize,
+                                 @Nonnull final ChunkReceiver receiver) throws IOException {
+        final ChunkHasher hasher = new ChunkHasher(file, position, length, chunkSize);
+        // Chunks are submitted in order, from the receiver's disk thread while the rest is still arriving
+        final AtomicInteger submitted = new AtomicInteger();
+        final ReceivePipeline.Progress progress = end -> {
+            int next = submitted.get();
+            while (next < hasher.getChunkCount() && hasher.getChunkPosition(next) + hasher.getChunkLength(next) <= end)
+                hasher.submit(next++);
+            submitted.set(next);
+        };
+        receiver.receive(position, length, progress);
+        progress.written(position + length);
+
+        final ControlMessage header = frames.read(MessageType.CHUNK_HASHES);
+        final List<byte[]> expected = frames.readChunkHashes(header);
+        if (expected.size() != hasher.getChunkCount()
+                || !Arrays.equals(ChunkHasher.merkleRoot(expected), header.getBytes(ControlMessage.ROOT_HASH)))
+            throw new ProtocolException("Sender's chunk hashes are inconsistent");
+        for (int round = 0; ; round++) {
+            final List<Integer> corrupt = new ArrayList<>();
+            for (int i = 0; i < expected.size(); i++) {
+                if (!Arrays.equals(expected.get(i), hasher.getHash(i)))
+                    corrupt.add(i);
+            }
+            if (corrupt.isEmpty()) {
+                log.debug("verified " + expected.size() + " chunks");
+                ControlMessage.retransmitRequest(corrupt).writeTo(out);
+                return;
+            }
+            if (round == MAX_RETRANSMIT_ROUNDS || corrupt.size() > MAX_RETRANSMIT_CHUNKS)
+                throw new ChunkVerificationException(corrupt.size() + " chunks are still corrupt after "
+                        + round + " retransmits", hasher.getChunkPosition(corrupt.get(0)));
+            log.error(corrupt.size() + " chunks are corrupt, requesting them again");
+            ControlMessage.retransmitRequest(corrupt).writeTo(out);
+            for (int i : corrupt) {
+                JDLink.readRemoteToFileAt(in, file, hasher.getChunkPosition(i), hasher.getChunkLength(i),
+                        null, Codec.NONE);
+                hasher.submit(i);
+            }
+        }
+    }
+
+    /**
+     * Recreates the batch's layout under the save directory. Each top-level file or directory gets a unique name
+     * there, so a batch never mixes its files into an existing directory.
+     */
+    private void receiveBatch(@Nonnull final BatchManifest manifest) throws IOException {
+        recordHandshake();
+        final String saveDir = getSaveDir();
+        final Map<String, File> roots = new HashMap<>();
+        for (BatchManifest.Entry entry : manifest.getEntries()) {
+            final String[] segments = entry.getPath().split("/", 2);
+            final File saveFile;
+            if (segments.length == 1) {
+                saveFile = FileUtils.createUniqueFile(segments[0], saveDir);
+            } else {
+                File root = roots.get(segments[0]);
+                if (root == null) {
+                    root = FileUtils.createUniqueDirectory(segments[0], saveDir);
+                    roots.put(segments[0], root);
+                }
+                saveFile = new File(root, segments[1]);
+                final File parent = saveFile.getParentFile();
+                if (!parent.isDirectory() && !parent.mkdirs())
+                    throw new IOException("Directory for " + entry.getPath() + " could not be created");
+            }
+            fileOut = new FileOutputStream(saveFile);
+            try {
+                JDLink.readRemoteToFile(in, fileOut, entry.getSize());
+            } catch (IOException e) {
+                fileOut.close();
+                if (!saveFile.delete())
+                    log.error("Could not delete incomplete file " + saveFile.getName());
+                throw e;
+            }
+            fileOut.close();
+            fileOut = null;
+        }
+        log.debug("received batch of " + manifest.getEntries().size() + " files");
+    }
+
+    /**
+     * Unpacks the archive as it arrives, see {@link ArchiveUnpacker}.
+     */
+    private void receiveArchive(@Nonnull final ArchiveHeader header) throws IOException {
+        recordHandshake();
+        final InputStream archive = CompressedStreams.decompress(header.getCompression(), in);
+        new ArchiveUnpacker(getSaveDir(), header).unpack(archive);
+        // A compressed stream marks its own end after the last record, which has to be read too
+        if (header.getCompression() != Codec.NONE && archive.read() != -1)
+            throw new ProtocolException("Archive continues after its last record");
+    }
+
     public void processClient() {
+        final ControlMessage message = readFirstFrame(0);
+        if (message != null)
+            processClient(message);
+    }
+
+    /**
+     * @param timeoutMillis how long the sender may take to send the frame, 0 to wait for it indefinitely
+     * @return the frame the connection opens with, null if it could not be read and the connection was closed
+     */
+    @Nullable
+    ControlMessage readFirstFrame(final int timeoutMillis) {
         // check IO Pipe before we attempt
         if (in == null || out == null) {
             closeConnectionsWithError();
-            return;
+            return null;
         }
-        // TODO unsuccessful completion of this main loop should show error dialog
         try {
-            // step 1: parse the filename/filesize(in bytes)/ip metadata from the connection as chars
+            // step 1: read the transfer request frame with the filename/filesize(in bytes)/ip metadata,
+            // or the manifest of a batch of files, or the start of a session of several transfers
             log.debug("attempting to parse metadata");
-            final TransferRequest request = getTransferRequest();
-            if (request == null) {
-                closeConnectionsWithError();
-                return;
+            csock.setSoTimeout(timeoutMillis);
+            final ControlMessage message = frames.read();
+            csock.setSoTimeout(0);
+            return message;
+        } catch (IOException e) {
+            e.printStackTrace();
+            log.error("Could not read the first frame from the client");
+            closeConnectionsWithError();
+            return null;
+        }
+    }
+
+    /**
+     * Decides when each transfer of a session may start, so that an idle session holds no place among the running
+     * transfers.
+     */
+    interface TransferAdmission {
+        /**
+         * Serves the transfer with {@link #processSessionTransfer} once it is admitted, and waits for it.
+         *
+         * @return whether the transfer succeeded, false if the sender was turned away and the connection closed
+         */
+        boolean admit(@Nonnull ControlMessage request);
+    }
+
+    /**
+     * Serves the connection once its first frame has been read, and the transfer admitted if it had to wait.
+     * The transfers of a session start right away.
+     */
+    void processClient(@Nonnull final ControlMessage message) {
+        processClient(message, this::processSessionTransfer);
+    }
+
+    /**
+     * @param admission admits each transfer of a session, the session itself is not admitted
+     */
+    void processClient(@Nonnull final ControlMessage message, @Nonnull final TransferAdmission admission) {
+        processingStartNanos = System.nanoTime();
+        try {
+            if (message.getType() == MessageType.SESSION_START)
+                serveSession(admission);
+            else
+                processTransfer(message, false);
+        } catch (IOException e) {
+            e.printStackTrace();
+            log.error("Could not start a session with the client");
+            closeConnectionsWithError();
+        }
+    }
+
+    /**
+     * @return how many bytes the transfer will carry, -1 if its first frame does not tell, like the manifest of an
+     * older sender's batch
+     */
+    static long getAnnouncedLength(@Nonnull final ControlMessage message) throws ProtocolException {
+        if (message.getType() == MessageType.TRANSFER_REQUEST)
+            return message.getLong(ControlMessage.LENGTH, message.getLong(ControlMessage.FILESIZE, -1));
+        // The total of every file, which the manifest's entries are checked against once they are read
+        if (message.getType() == MessageType.ARCHIVE_START || message.getType() == MessageType.BATCH_MANIFEST)
+            return message.getLong(ControlMessage.FILESIZE, -1);
+        return -1;
+    }
+
+    /**
+     * Tells a sender that waits to be admitted where it stands in the queue.
+     */
+    void reportQueuePosition(final int position) throws IOException {
+        ControlMessage.queuePosition(position).writeTo(out);
+    }
+
+    /**
+     * Turns a waiting sender away, when the queue is full or the receiver shuts down.
+     */
+    void rejectBusy() {
+        try {
+            ControlMessage.response(ProtocolConstants.BUSY_RESPONSE).writeTo(out);
+        } catch (IOException e) {
+            log.error("Could not notify rejected client");
+        } finally {
+            closeAfterReply(csock);
+            closeConnections();
+        }
+    }
+
+    /**
+     * Keeps the connection open for one transfer after another, until the sender closes it or stays idle for too
+     * long. Any failed transfer ends the session, the sender opens a new one for the next file.
+     */
+    private void serveSession(@Nonnull final TransferAdmission admission) throws IOException {
+        log.debug("starting session with " + csock.getRemoteSocketAddress());
+        ControlMessage.response(ProtocolConstants.OK_RESPONSE).writeTo(out);
+        final int timeoutMillis = Settings.getIntSetting(SESSION_TIMEOUT_KEY, DEFAULT_SESSION_TIMEOUT_SECONDS) * 1000;
+        try {
+            while (true) {
+                csock.setSoTimeout(timeoutMillis);
+                in.mark(1);
+                if (in.read() < 0) {
+                    log.debug("sender has ended the session");
+                    return;
+                }
+                in.reset();
+                csock.setSoTimeout(0);
+                if (!admission.admit(frames.read()))
+                    return;
             }
-            log.debug("received valid metadata");
+        } catch (SocketTimeoutException e) {
+            log.debug("session has been idle for " + timeoutMillis + " ms, closing it");
+        } finally {
+            closeConnections();
+        }
+    }
 
-            // step 2: If valid, respond with "OK"
-            log.debug("sending OK response");
-            JDLink.writeStringToRemote(out, ProtocolConstants.OK_RESPONSE);
+    /**
+     * Serves one transfer of a session, once it has been admitted.
+     *
+     * @return whether the transfer succeeded, the connection is closed otherwise
+     */
+    boolean processSessionTransfer(@Nonnull final ControlMessage request) {
+        processingStartNanos = System.nanoTime();
+        return processTransfer(request, true);
+    }
 
-            // step 3: read the binary data, write to file stream
-            // TODO get the correct directory for where the file should be saved
-            log.debug("creating new savefile at specified directory");
-            final File saveFile = FileUtils.createUniqueFile(request.getFilename(), SAVE_DIR);
-            fileOut = new FileOutputStream(saveFile);
+    /**
+     * @param message the request that was already read
+     * @param inSession whether more transfers follow on this connection, the completion is acknowledged instead of
+     *                  waiting for the sender to close the connection
+     * @return whether the transfer succeeded, the connection is closed otherwise
+     */
+    private boolean processTransfer(@Nonnull final ControlMessage message, final boolean inSession) {
+        final TransferMetrics metrics = TransferMetrics.start(TransferMetrics.Direction.RECEIVE,
+                csock.getInetAddress().getHostAddress());
+        final Throttle throttle = Throttle.start(csock.getInetAddress().getHostAddress());
+        boolean succeeded = false;
+        // TODO unsuccessful completion of this main loop should show error dialog
+        try {
+            if (message.getType() == MessageType.BATCH_MANIFEST) {
+                final BatchManifest manifest = getBatchManifest(message);
+                if (manifest == null) {
+                    closeConnectionsWithError();
+                    return false;
+                }
+                log.debug("received valid batch manifest");
+                if (rejectIfNoSpace(manifest.getTotalSize())) {
+                    closeConnectionsWithError();
+                    return false;
+                }
 
-            log.debug("reading file bytes from remote");
-            JDLink.readRemoteToFile(in, fileOut, request.getFilesize());
+                // step 2 and 3: respond with "OK" once for the whole batch, then read the files back-to-back
+                log.debug("sending OK response");
+                ControlMessage.response(ProtocolConstants.OK_RESPONSE).writeTo(out);
+                receiveBatch(manifest);
+            } else if (message.getType() == MessageType.ARCHIVE_START) {
+                final ArchiveHeader header = getArchiveHeader(message);
+                if (header == null) {
+                    closeConnectionsWithError();
+                    return false;
+                }
+                log.debug("received valid archive header");
+                if (rejectIfNoSpace(header.getTotalSize())) {
+                    closeConnectionsWithError();
+                    return false;
+                }
 
-            // step 4: check to see that the stream is closed by the client by returning a -1
-            // if this is not the case, then it means the transfer is invalid
-            if (in.read() != -1) {
+                // step 2 and 3: respond with "OK" once for the whole archive, then unpack it as it arrives
+                log.debug("sending OK response");
+                ControlMessage.response(ProtocolConstants.OK_RESPONSE)
+                        .putString(ControlMessage.COMPRESSION, header.getCompression().name()).writeTo(out);
+                receiveArchive(header);
+            } else {
+                final TransferRequest request = getTransferRequest(message);
+                if (request == null) {
+                    closeConnectionsWithError();
+                    return false;
+                }
+                log.debug("received valid metadata");
+                // Each stream of a multi-stream transfer lands in the one save file, which takes the whole size
+                if (rejectIfNoSpace(request.isMultiStream() ? request.getFilesize() : request.getLength())) {
+                    closeConnectionsWithError();
+                    return false;
+                }
+
+                // step 2 and 3: respond with "OK" (or a resume offer), then read the binary data to file
+                if (request.isMultiStream()) {
+                    log.debug("sending OK response");
+                    okResponse(request).writeTo(out);
+                    receiveRange(request);
+                } else {
+                    // The chain is set up before we accept, so that payload can be forwarded from its first byte
+                    relay = request.isRelayed() ? Relay.open(request) : null;
+                    receiveFile(request);
+                }
+            }
+
+            if (inSession) {
+                // step 4: confirm the transfer, the sender waits for this before sending the next one
+                closeSaveFile();
+                ControlMessage.response(ProtocolConstants.DONE_RESPONSE).writeTo(out);
+            } else if (in.read() != -1) {
+                // step 4: check to see that the stream is closed by the client by returning a -1
+                // if this is not the case, then it means the transfer is invalid
                 log.error("Client has not sent over the listed amount of data");
+                metrics.fail("excess-data");
                 closeConnectionsWithError();
+                return false;
             }
             log.debug("successfully received file");
+            metrics.succeed();
+            succeeded = true;
         } catch (IOException e) {
             e.printStackTrace();
+            metrics.fail(e);
             closeConnectionsWithError();
         } finally {
-            closeConnections();
+            // Anything that escaped the outcomes above, a no-op if the transfer already finished
+            metrics.fail("aborted");
+            throttle.close();
+            if (relay != null) {
+                relay.close(succeeded);
+                relay = null;
+            }
+            if (!inSession || !succeeded)
+                closeConnections();
+        }
+        return succeeded;
+    }
+
+    private interface ChunkReceiver {
+        /**
+         * Receives {@code length} bytes at {@code position}, telling {@code progress} how far they have been written.
+         */
+        void receive(long position, long length, @Nullable ReceivePipeline.Progress progress) throws IOException;
+    }
+
+    /**
+     * Tells how many bytes it has read ahead of its reader.
+     */
+    private static class ReadAheadInputStream extends BufferedInputStream {
+        ReadAheadInputStream(@Nonnull final InputStream in) {
+            super(in);
+        }
+
+        synchronized int getBuffered() {
+            return count - pos;
         }
     }
 }
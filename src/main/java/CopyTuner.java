@@ -0,0 +1,91 @@
+import com.google.common.annotations.VisibleForTesting;
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Grows the copy buffer during the first seconds of a transfer, like TCP slow start: the buffer doubles as long
+ * as that still raises the throughput, and never stays below the bandwidth-delay product once the round trip
+ * time is known. A small buffer can otherwise cap a fast link far below line rate.
+ */
+@Log4j2
+class CopyTuner {
+    @VisibleForTesting
+    static final int MAX_BUFFER_SIZE = 4 * 1024 * 1024;
+    private static final long SAMPLE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    // Only the start of a transfer is probed, the buffer size is kept from then on
+    private static final long PROBE_NANOS = TimeUnit.SECONDS.toNanos(3);
+    // A doubling has to raise the throughput by this much to be followed by another
+    private static final double MIN_GAIN = 1.1;
+
+    private final LongSupplier clock;
+    private final long startNanos;
+    private final long rttNanos;
+    @Getter
+    private int bufferSize;
+    private boolean settled;
+    private long sampleStartNanos;
+    private long sampleBytes;
+    private double lastThroughput;
+
+    /**
+     * @param rttNanos round trip time to the peer, 0 if unknown
+     */
+    CopyTuner(final int bufferSize, final long rttNanos) {
+        this(bufferSize, rttNanos, System::nanoTime);
+    }
+
+    @VisibleForTesting
+    CopyTuner(final int bufferSize, final long rttNanos, final LongSupplier clock) {
+        this.bufferSize = bufferSize;
+        this.rttNanos = rttNanos;
+        this.clock = clock;
+        startNanos = sampleStartNanos = clock.getAsLong();
+    }
+
+    /**
+     * @return a tuner that keeps the buffer size as it is
+     */
+    static CopyTuner fixed(final int bufferSize) {
+        final CopyTuner tuner = new CopyTuner(bufferSize, 0);
+        tuner.settled = true;
+        return tuner;
+    }
+
+    /**
+     * Records copied bytes.
+     *
+     * @return whether the buffer size has changed and the copy loop should grow its buffer
+     */
+    boolean record(final long bytes) {
+        if (settled)
+            return false;
+        sampleBytes += bytes;
+        final long now = clock.getAsLong();
+        if (now - sampleStartNanos < SAMPLE_NANOS)
+            return false;
+        final double throughput = sampleBytes * (double) TimeUnit.SECONDS.toNanos(1) / (now - sampleStartNanos);
+        sampleStartNanos = now;
+        sampleBytes = 0;
+
+        long target = bufferSize;
+        if (throughput > lastThroughput * MIN_GAIN)
+            target = 2L * bufferSize;
+        else
+            settled = true;
+        if (rttNanos > 0)
+            target = Math.max(target, (long) (throughput * rttNanos / TimeUnit.SECONDS.toNanos(1)));
+        lastThroughput = throughput;
+        if (now - startNanos >= PROBE_NANOS)
+            settled = true;
+
+        target = Math.min(target, MAX_BUFFER_SIZE);
+        if (target <= bufferSize)
+            return false;
+        log.debug("growing copy buffer to " + target + " bytes at " + (long) throughput + " bytes/s");
+        bufferSize = (int) target;
+        return true;
+    }
+}
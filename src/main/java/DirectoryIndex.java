@@ -0,0 +1,168 @@
+import com.google.common.annotations.VisibleForTesting;
+import lombok.extern.log4j.Log4j2;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The lowercase names in a save directory, listed once and then kept fresh by a {@link WatchService}, so that a
+ * unique name costs a few hash lookups instead of a directory listing. Names are reserved atomically, and the
+ * highest "-n" suffix is tracked per base name so that taken suffixes are never probed one by one.
+ */
+@Log4j2
+class DirectoryIndex {
+    private static final Pattern SUFFIX = Pattern.compile("(.+)-(\\d{1,9})");
+    private static final Map<Path, DirectoryIndex> INDEXES = new ConcurrentHashMap<>();
+    @Nullable
+    private static WatchService watcher;
+
+    @Nonnull
+    private final Path directory;
+    @Nonnull
+    private final Set<String> names = ConcurrentHashMap.newKeySet();
+    // Keyed by base name and extension, e.g. "photo\0.png" for photo.png, photo-1.png, ...
+    @Nonnull
+    private final Map<String, AtomicInteger> highestSuffixes = new ConcurrentHashMap<>();
+
+    private DirectoryIndex(@Nonnull final Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @return the index of the directory, null if it cannot be watched and has to be listed every time
+     */
+    @Nullable
+    static DirectoryIndex of(@Nonnull final String directory) {
+        final Path path = Paths.get(directory).toAbsolutePath().normalize();
+        final DirectoryIndex existing = INDEXES.get(path);
+        if (existing != null)
+            return existing;
+        synchronized (INDEXES) {
+            if (INDEXES.containsKey(path))
+                return INDEXES.get(path);
+            try {
+                final DirectoryIndex index = new DirectoryIndex(path);
+                // Watch before listing, so that nothing created in between is missed
+                path.register(getWatcher(), StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.OVERFLOW);
+                index.reload();
+                INDEXES.put(path, index);
+                log.debug("indexed " + index.names.size() + " names in " + path);
+                return index;
+            } catch (IOException | UnsupportedOperationException e) {
+                e.printStackTrace();
+                log.error("Directory " + path + " could not be watched, listing it for every file instead");
+                return null;
+            }
+        }
+    }
+
+    @Nonnull
+    private static WatchService getWatcher() throws IOException {
+        if (watcher == null) {
+            watcher = FileSystems.getDefault().newWatchService();
+            final Thread thread = new Thread(DirectoryIndex::processEvents, "jd-dir-watch");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return watcher;
+    }
+
+    private static void processEvents() {
+        while (true) {
+            final WatchKey key;
+            try {
+                key = watcher.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            final DirectoryIndex index = INDEXES.get((Path) key.watchable());
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (index == null)
+                    continue;
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    index.reload();
+                } else {
+                    final String name = event.context().toString().toLowerCase();
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE)
+                        index.add(name);
+                    else
+                        index.names.remove(name);
+                }
+            }
+            if (!key.reset()) {
+                // The directory itself is gone, it is indexed again once it is used
+                INDEXES.remove((Path) key.watchable());
+            }
+        }
+    }
+
+    private void reload() {
+        try {
+            for (String name : FileUtils.getExistingFilenames(directory.toString()))
+                add(name.toLowerCase());
+        } catch (IOException e) {
+            e.printStackTrace();
+            log.error("Could not list " + directory);
+        }
+    }
+
+    private void add(@Nonnull final String name) {
+        names.add(name);
+        final String[] parts = split(name);
+        final Matcher matcher = SUFFIX.matcher(parts[0]);
+        if (matcher.matches()) {
+            highestSuffixes.computeIfAbsent(key(matcher.group(1), parts[1]), k -> new AtomicInteger())
+                    .accumulateAndGet(Integer.parseInt(matcher.group(2)), Math::max);
+        }
+    }
+
+    /**
+     * Reserves the name itself if it is free, otherwise the next suffix past the highest one in use. A reserved
+     * name is never handed out again, even if creating the file fails.
+     *
+     * @param name a lowercase name
+     */
+    @Nonnull
+    String reserve(@Nonnull final String name) {
+        if (names.add(name))
+            return name;
+        final String[] parts = split(name);
+        final AtomicInteger highest = highestSuffixes.computeIfAbsent(key(parts[0], parts[1]),
+                k -> new AtomicInteger());
+        while (true) {
+            final String candidate = parts[0] + "-" + highest.incrementAndGet() + parts[1];
+            if (names.add(candidate))
+                return candidate;
+        }
+    }
+
+    @VisibleForTesting
+    boolean contains(@Nonnull final String name) {
+        return names.contains(name);
+    }
+
+    /**
+     * Splits a name like {@link FileUtils#createIncrementedFilename(String, Set)} does, into body and extension.
+     */
+    @Nonnull
+    private static String[] split(@Nonnull final String name) {
+        int index = name.lastIndexOf(".");
+        if (index <= 0)
+            index = name.length();
+        return new String[]{name.substring(0, index), name.substring(index)};
+    }
+
+    @Nonnull
+    private static String key(@Nonnull final String body, @Nonnull final String extension) {
+        return body + "\0" + extension;
+    }
+}
@@ -0,0 +1,227 @@
+import bandwidth.Throttle;
+import metrics.TransferMetrics;
+import lombok.extern.log4j.Log4j2;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The chunks of one source file, read once and shared by every connection of a fan-out. Each connection sends the
+ * chunks in order through its own {@link Feed}. The reader waits for the slowest feed, but a feed that falls a
+ * whole ring behind while another one has nothing left to send is detached, and its connection reads the rest of
+ * the file on its own.
+ */
+@Log4j2
+class FanOutRing {
+    private final long length;
+    private final int chunkSize;
+    private final long chunkCount;
+    private final byte[][] slots;
+    // Chunks each feed is done with, chunks are taken and released in order
+    private final long[] consumed;
+    private final boolean[] detached;
+    // Chunks that have been read and may be sent
+    private long published;
+
+    FanOutRing(final long length, final int chunkSize, final int slotCount, final int feeds) {
+        this.length = length;
+        this.chunkSize = chunkSize;
+        this.chunkCount = (length + chunkSize - 1) / chunkSize;
+        // Allocated as they are first filled, small files never need the whole ring
+        this.slots = new byte[slotCount][];
+        this.consumed = new long[feeds];
+        this.detached = new boolean[feeds];
+    }
+
+    @Nonnull
+    Feed getFeed(final int index) {
+        return new Feed(index);
+    }
+
+    private int chunkLength(final long chunk) {
+        return (int) Math.min(chunkSize, length - chunk * chunkSize);
+    }
+
+    /**
+     * Reads the whole source into the ring as fast as the attached feeds take it. Stops early once no feed is
+     * attached anymore. If reading fails, every feed is detached so that their connections carry on alone.
+     */
+    void fill(@Nonnull final FileChannel source) throws IOException {
+        try {
+            for (long chunk = 0; chunk < chunkCount; chunk++) {
+                final byte[] slot = claim(chunk);
+                if (slot == null) {
+                    log.debug("no connection takes shared chunks anymore, stopping after " + chunk + " chunks");
+                    return;
+                }
+                final ByteBuffer buffer = ByteBuffer.wrap(slot, 0, chunkLength(chunk));
+                while (buffer.hasRemaining()) {
+                    if (source.read(buffer, chunk * chunkSize + buffer.position()) < 0)
+                        throw new EOFException("Source ended after " + (chunk * chunkSize + buffer.position())
+                                + " bytes");
+                }
+                publish(chunk);
+            }
+        } catch (IOException e) {
+            detachAll();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the slot to read the chunk into once no attached feed needs the chunk it held, null if no feed is
+     * attached anymore
+     */
+    @Nullable
+    private synchronized byte[] claim(final long chunk) throws InterruptedIOException {
+        final int slot = (int) (chunk % slots.length);
+        while (true) {
+            boolean attached = false, starving = false, blocked = false;
+            for (int i = 0; i < consumed.length; i++) {
+                if (detached[i])
+                    continue;
+                attached = true;
+                starving |= consumed[i] >= published;
+                blocked |= consumed[i] <= chunk - slots.length;
+            }
+            if (!attached)
+                return null;
+            if (!blocked)
+                break;
+            if (starving) {
+                detachLagging(chunk);
+                break;
+            }
+            await();
+        }
+        if (slots[slot] == null)
+            slots[slot] = new byte[chunkSize];
+        return slots[slot];
+    }
+
+    private void detachLagging(final long chunk) {
+        for (int i = 0; i < consumed.length; i++) {
+            if (!detached[i] && consumed[i] <= chunk - slots.length) {
+                log.debug("feed " + i + " has fallen " + slots.length + " chunks behind, it continues on its own");
+                detached[i] = true;
+            }
+        }
+        // A detached feed may still be sending from the slot, so it keeps the array and the ring takes a new one
+        slots[(int) (chunk % slots.length)] = null;
+        notifyAll();
+    }
+
+    private synchronized void publish(final long chunk) {
+        published = chunk + 1;
+        notifyAll();
+    }
+
+    private synchronized void detachAll() {
+        for (int i = 0; i < detached.length; i++)
+            detached[i] = true;
+        notifyAll();
+    }
+
+    /**
+     * @return the chunk once it has been read, null if the feed has been detached
+     */
+    @Nullable
+    private synchronized byte[] take(final int feed, final long chunk) throws InterruptedIOException {
+        while (!detached[feed] && chunk >= published)
+            await();
+        return detached[feed] ? null : slots[(int) (chunk % slots.length)];
+    }
+
+    private synchronized void release(final int feed, final long chunk) {
+        consumed[feed] = chunk + 1;
+        notifyAll();
+    }
+
+    private synchronized void detach(final int feed) {
+        detached[feed] = true;
+        notifyAll();
+    }
+
+    private synchronized boolean isDetached(final int feed) {
+        return detached[feed];
+    }
+
+    private void await() throws InterruptedIOException {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the shared read");
+        }
+    }
+
+    /**
+     * One connection's view of the ring.
+     */
+    class Feed {
+        private final int index;
+        // Next byte of the source this feed sends, only written by the connection's thread
+        private volatile long position;
+
+        private Feed(final int index) {
+            this.index = index;
+        }
+
+        long getPosition() {
+            return position;
+        }
+
+        boolean isDetached() {
+            return FanOutRing.this.isDetached(index);
+        }
+
+        /**
+         * Stops holding the shared read back, once the connection is done or has failed.
+         */
+        void leave() {
+            detach(index);
+        }
+
+        /**
+         * Sends as much of the range as the ring provides, the caller sends the rest from its own reader. A range
+         * that does not continue where the last one ended, such as a resumed transfer, detaches the feed.
+         *
+         * @return bytes sent from shared chunks
+         */
+        long write(@Nonnull final OutputStream out, final long start, final long byteSize) throws IOException {
+            if (start != position) {
+                log.debug("feed " + index + " skips to byte " + start + ", it continues on its own");
+                leave();
+                return 0;
+            }
+            final TransferMetrics metrics = TransferMetrics.current();
+            final Throttle throttle = Throttle.current();
+            long written = 0;
+            while (written < byteSize) {
+                final long chunk = position / chunkSize;
+                final byte[] data = take(index, chunk);
+                if (data == null)
+                    break;
+                final int from = (int) (position % chunkSize);
+                final int count = (int) Math.min(chunkLength(chunk) - from, byteSize - written);
+                final long begin = System.nanoTime();
+                out.write(data, from, count);
+                metrics.addWriteNanos(System.nanoTime() - begin);
+                metrics.addBytes(count);
+                throttle.acquire(count);
+                position += count;
+                written += count;
+                if (from + count == chunkLength(chunk))
+                    release(index, chunk);
+            }
+            out.flush();
+            return written;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.log4j.Log4j2;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Sends one file to several receivers at once while reading it only once. Every receiver gets its own connection
+ * and an ordinary {@link ServerProcessor} transfer, fed from the chunks of a shared {@link FanOutRing}. A slow
+ * receiver holds the others back by at most the ring's size, after which it reads the file on its own.
+ */
+@Log4j2
+public class FanOutSender {
+    // Configuration
+    // How far a receiver may fall behind the fastest one before it stops holding the shared read back
+    private static final String MAX_LAG_KEY = "fanOutMaxLagMiB";
+    private static final int DEFAULT_MAX_LAG_MIB = 16;
+    private static final int CHUNK_SIZE = 256 * 1024;
+    private static final long PROGRESS_INTERVAL_SECONDS = 2;
+
+    /**
+     * @return whether every receiver got the whole file
+     */
+    public static boolean send(@Nonnull final File source, @Nonnull final List<String> destinations) {
+        final int slots = (int) Math.max(2,
+                Settings.getIntSetting(MAX_LAG_KEY, DEFAULT_MAX_LAG_MIB) * 1024L * 1024L / CHUNK_SIZE);
+        final FanOutRing ring = new FanOutRing(source.length(), CHUNK_SIZE, slots, destinations.size());
+        log.debug("sending " + source.getName() + " to " + destinations.size() + " receivers through "
+                + slots + " shared chunks");
+        final ExecutorService executor = Executors.newFixedThreadPool(destinations.size() + 1,
+                new ThreadFactoryBuilder().setNameFormat("jd-fanout-%d").build());
+        final ScheduledExecutorService progress = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("jd-fanout-progress").setDaemon(true).build());
+        try {
+            executor.execute(() -> {
+                try (final FileChannel channel = FileChannel.open(source.toPath())) {
+                    ring.fill(channel);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    log.error("Shared read of " + source.getName() + " has failed, receivers read it on their own");
+                }
+            });
+            final List<FanOutRing.Feed> feeds = new ArrayList<>();
+            final List<Future<Boolean>> results = new ArrayList<>();
+            for (int i = 0; i < destinations.size(); i++) {
+                final FanOutRing.Feed feed = ring.getFeed(i);
+                final String destination = destinations.get(i);
+                feeds.add(feed);
+                results.add(executor.submit(() -> {
+                    try {
+                        return new ServerProcessor(source, destination, feed).attemptTransfer();
+                    } finally {
+                        feed.leave();
+                    }
+                }));
+            }
+            progress.scheduleAtFixedRate(() -> printProgress(source, destinations, feeds, results),
+                    PROGRESS_INTERVAL_SECONDS, PROGRESS_INTERVAL_SECONDS, TimeUnit.SECONDS);
+
+            final List<String> failed = new ArrayList<>();
+            for (int i = 0; i < results.size(); i++) {
+                if (!results.get(i).get())
+                    failed.add(destinations.get(i));
+            }
+            System.out.println("Sent " + source.getName() + " to " + (destinations.size() - failed.size()) + " of "
+                    + destinations.size() + " receivers" + (failed.isEmpty() ? "" : ", failed: " + failed));
+            return failed.isEmpty();
+        } catch (InterruptedException | ExecutionException e) {
+            e.printStackTrace();
+            log.error("Fan-out transfer was interrupted");
+            return false;
+        } finally {
+            progress.shutdownNow();
+            executor.shutdownNow();
+        }
+    }
+
+    private static void printProgress(@Nonnull final File source,
+                                      @Nonnull final List<String> destinations,
+                                      @Nonnull final List<FanOutRing.Feed> feeds,
+                                      @Nonnull final List<Future<Boolean>> results) {
+        for (int i = 0; i < destinations.size(); i++) {
+            final String state;
+            if (results.get(i).isDone())
+                state = "finished";
+            else if (feeds.get(i).isDetached())
+                state = "reading on its own";
+            else
+                state = (source.length() > 0 ? feeds.get(i).getPosition() * 100 / source.length() : 100) + "%";
+            System.out.println(destinations.get(i) + ": " + state);
+        }
+    }
+}
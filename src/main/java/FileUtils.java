@@ -10,24 +10,63 @@ import java.util.stream.Collectors;
 @Log4j2
 public class FileUtils {
 
+    // A reserved name can still be taken by someone else before the watcher reports it
+    private static final int MAX_CREATE_ATTEMPTS = 16;
+
     @Nonnull
     public static File createUniqueFile(@Nonnull final String filename,
                                         @Nonnull final String directory) throws IOException {
-        final Set<String> existingNames = Arrays
+        final File saveFile = createUnique(filename, directory, File::createNewFile);
+        log.debug("created savefile with name " + saveFile.getName());
+        return saveFile;
+    }
+
+    /**
+     * Like {@link #createUniqueFile(String, String)}, for the top-level directory of a batch transfer.
+     */
+    @Nonnull
+    public static File createUniqueDirectory(@Nonnull final String name,
+                                             @Nonnull final String directory) throws IOException {
+        final File saveDirectory = createUnique(name, directory, File::mkdir);
+        log.debug("created save directory with name " + saveDirectory.getName());
+        return saveDirectory;
+    }
+
+    @Nonnull
+    private static File createUnique(@Nonnull final String name,
+                                     @Nonnull final String directory,
+                                     @Nonnull final Creator creator) throws IOException {
+        final DirectoryIndex index = DirectoryIndex.of(directory);
+        if (index == null) {
+            final File file = new File(directory + "/"
+                    + createIncrementedFilename(name.toLowerCase(), getLowercaseExistingNames(directory)));
+            if (!creator.create(file))
+                throw new IOException("New file could not be created");
+            return file;
+        }
+        for (int attempt = 0; attempt < MAX_CREATE_ATTEMPTS; attempt++) {
+            final File file = new File(directory + "/" + index.reserve(name.toLowerCase()));
+            if (creator.create(file))
+                return file;
+        }
+        throw new IOException("New file could not be created");
+    }
+
+    @Nonnull
+    private static Set<String> getLowercaseExistingNames(@Nonnull final String directory) throws IOException {
+        return Arrays
                 .stream(getExistingFilenames(directory))
                 .map(String::toLowerCase)
                 .collect(Collectors.toSet());
-        final File saveFile = new File(directory + "/" + createIncrementedFilename(filename.toLowerCase(), existingNames));
-        log.debug("creating savefile with name " + saveFile.getName());
-        if (!saveFile.createNewFile())
-            throw new IOException("New file could not be created");
-        return saveFile;
     }
 
     @Nonnull
     public static String createIncrementedFilename(@Nonnull final String originalName,
                                                    @Nonnull final Set<String> existingNames) {
         int index = originalName.lastIndexOf(".");
+        // Directories and dotfiles have no extension, the increment goes at the end of the name
+        if (index <= 0)
+            index = originalName.length();
         final String body = originalName.substring(0, index), extension = originalName.substring(index);
         String potentialName = body + extension;
         int fileIncrement = 0;
@@ -45,4 +84,8 @@ public class FileUtils {
             throw new IOException("Specified save directory could not be located");
         return existingFilenames;
     }
+
+    private interface Creator {
+        boolean create(@Nonnull File file) throws IOException;
+    }
 }
@@ -1,30 +1,104 @@
+import com.google.common.base.Splitter;
 import com.google.common.net.InetAddresses;
 import lombok.extern.log4j.Log4j2;
 
 import javax.annotation.Nonnull;
 import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
 
 @Log4j2
 public class JDClient {
+    // Configuration
+    private static final String PARALLEL_STREAMS_KEY = "parallelStreams";
+    private static final int DEFAULT_PARALLEL_STREAMS = 1;
+    // Whether several files or a directory go as one archive stream instead of a batch, for trees of tiny files
+    private static final String ARCHIVE_MODE_KEY = "archiveMode";
+    // Runs as a daemon that keeps connections open and sends the files later invocations hand to it
+    private static final String DAEMON_FLAG = "--daemon";
+    // Sends to the first destination, which relays to the next one while receiving, and so on
+    private static final String RELAY_FLAG = "--relay";
+
     public static void main(@Nonnull String args[]) {
         // TODO basic args will be in the form: javadrop /usr/test.txt 192.168.12.54
 
-        // Sanitize user input
-        if (args.length != 2) {
-            System.out.println("Usage: javadrop filepath IP-destination");
+        if (args.length == 1 && DAEMON_FLAG.equals(args[0])) {
+            Settings.loadSettingsOrDefaults(Settings.SETTINGS_FILE_PATH);
+            JDLink.configureBandwidth();
+            SenderDaemon.run();
             return;
         }
-        final File source = new File(args[0]);
-        if (!source.isFile()) {
-            System.out.println("Source file is invalid");
+
+        final boolean relay = args.length > 0 && RELAY_FLAG.equals(args[0]);
+        if (relay)
+            args = Arrays.copyOfRange(args, 1, args.length);
+
+        // Sanitize user input
+        if (args.length < 2) {
+            System.out.println("Usage: javadrop filepath... IP-destination");
+            System.out.println("       javadrop filepath IP-destination,IP-destination...");
+            System.out.println("       javadrop " + RELAY_FLAG + " filepath IP-destination,IP-destination...");
+            System.out.println("       javadrop " + DAEMON_FLAG);
             return;
         }
-        if (!"localhost".equals(args[1]) && !InetAddresses.isInetAddress(args[1])) {
+        // Several comma-separated destinations each get the file, which is read once for all of them, or relayed
+        // from one to the next
+        final List<String> destinations = new ArrayList<>(new LinkedHashSet<>(
+                Splitter.on(',').trimResults().omitEmptyStrings().splitToList(args[args.length - 1])));
+        final List<File> sources = new ArrayList<>();
+        for (int i = 0; i < args.length - 1; i++) {
+            final File source = new File(args[i]);
+            if (!source.isFile() && !source.isDirectory()) {
+                System.out.println("Source file is invalid: " + args[i]);
+                return;
+            }
+            sources.add(source);
+        }
+        for (String destination : destinations) {
+            if (!"localhost".equals(destination) && !InetAddresses.isInetAddress(destination)) {
+                System.out.println("Destination IP is invalid: " + destination);
+                return;
+            }
+        }
+        if (destinations.isEmpty()) {
             System.out.println("Destination IP is invalid");
             return;
         }
+        if (destinations.size() > 1 && (sources.size() > 1 || sources.get(0).isDirectory())) {
+            System.out.println("Only a single file can be sent to several destinations");
+            return;
+        }
 
-        final ServerProcessor processor = new ServerProcessor(source, args[1]);
+        Settings.loadSettingsOrDefaults(Settings.SETTINGS_FILE_PATH);
+        JDLink.configureBandwidth();
+        if (relay && destinations.size() > 1) {
+            new ServerProcessor(sources.get(0), destinations).attemptTransfer();
+            return;
+        }
+        if (destinations.size() > 1) {
+            FanOutSender.send(sources.get(0), destinations);
+            return;
+        }
+        final String destination = destinations.get(0);
+        // Several files or a directory go over one connection as a batch
+        if (sources.size() > 1 || sources.get(0).isDirectory()) {
+            if (Settings.getBooleanSetting(ARCHIVE_MODE_KEY, false))
+                ArchiveSender.send(sources, destination);
+            else
+                BatchSender.send(sources, destination);
+            return;
+        }
+        final File source = sources.get(0);
+        final int streams = Settings.getIntSetting(PARALLEL_STREAMS_KEY, DEFAULT_PARALLEL_STREAMS);
+        if (streams > 1) {
+            ParallelSender.send(source, destination, streams);
+            return;
+        }
+        if (SenderDaemon.handOff(source, destination))
+            return;
+        final ServerProcessor processor = new ServerProcessor(source, destination);
         processor.attemptTransfer();
     }
 }
@@ -1,36 +1,449 @@
+import bandwidth.BandwidthManager;
+import bandwidth.Throttle;
+import compression.BlockCompressor;
+import compression.Codec;
+import metrics.TransferMetrics;
 import model.ProtocolConstants;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Splitter;
+import com.google.common.io.ByteStreams;
 import lombok.extern.log4j.Log4j2;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 @Log4j2
 public class JDLink {
     // TODO should this be an object or a static class?
-    private static final int BUFFER_SIZE = 2048;
+    // Upper bound for a single transferTo/transferFrom call, the kernel may move less per call anyway
+    private static final long MAX_TRANSFER_CHUNK = 8 * 1024 * 1024;
+    // Payload written through memory mapping is mapped this much at a time
+    private static final long MAPPED_REGION_SIZE = 64 * 1024 * 1024;
+    private static final int MAPPED_COPY_BUFFER_SIZE = 64 * 1024;
+    static final int COMPRESSION_BLOCK_SIZE = 64 * 1024;
+    private static final int COMPRESSION_SAMPLE_BLOCKS = 4;
+    // Compression is kept only if the sampled blocks shrink to less than this fraction of their size
+    private static final double COMPRESSION_MIN_SAVING = 0.9;
+    private static final int RAW_BLOCK = 0;
+    private static final int COMPRESSED_BLOCK = 1;
+    // Configuration
+    private static final String ZERO_COPY_KEY = "zeroCopy";
+    // Rate limits in KiB/s, 0 for none
+    private static final String RATE_LIMIT_KEY = "rateLimitKiB";
+    private static final String HOST_RATE_LIMIT_KEY = "hostRateLimitKiB";
+    private static final String TRANSFER_RATE_LIMIT_KEY = "transferRateLimitKiB";
+    // Shares of the global rate limit per peer, e.g. "10.0.0.5=3, 10.0.0.6=2"
+    private static final String BANDWIDTH_WEIGHTS_KEY = "bandwidthWeights";
+    // Hours in which the rate limits apply, e.g. "9-18", always if empty
+    private static final String RATE_LIMIT_HOURS_KEY = "rateLimitHours";
+    static final String RECEIVE_PIPELINE_KEY = "receivePipeline";
+
+    public static boolean isZeroCopyEnabled() {
+        return Settings.getBooleanSetting(ZERO_COPY_KEY, true);
+    }
+
+    /**
+     * @return whether uncompressed payloads are received with separate network and disk stages, instead of
+     * reading and writing on one thread
+     */
+    private static boolean isPipelineEnabled() {
+        return Settings.getBooleanSetting(RECEIVE_PIPELINE_KEY, true);
+    }
+
+    /**
+     * Applies the configured rate limits to all transfers started from now on, on either side.
+     */
+    public static void configureBandwidth() {
+        final Map<String, Integer> weights = new HashMap<>();
+        final int[] hours = {0, 0};
+        try {
+            Splitter.on(',').trimResults().omitEmptyStrings().withKeyValueSeparator('=')
+                    .split(Settings.getStringSetting(BANDWIDTH_WEIGHTS_KEY, ""))
+                    .forEach((host, weight) -> weights.put(host, Math.max(1, Integer.parseInt(weight.trim()))));
+            final List<String> window = Splitter.on('-').trimResults().omitEmptyStrings()
+                    .splitToList(Settings.getStringSetting(RATE_LIMIT_HOURS_KEY, ""));
+            if (window.size() == 2) {
+                hours[0] = Integer.parseInt(window.get(0)) % 24;
+                hours[1] = Integer.parseInt(window.get(1)) % 24;
+            }
+        } catch (IllegalArgumentException e) {
+            e.printStackTrace();
+            log.error("Bandwidth weights or hours could not be read, using equal weights at all hours");
+            weights.clear();
+            hours[0] = hours[1] = 0;
+        }
+        BandwidthManager.getInstance().configure(
+                Settings.getIntSetting(RATE_LIMIT_KEY, 0) * 1024L,
+                Settings.getIntSetting(HOST_RATE_LIMIT_KEY, 0) * 1024L,
+                Settings.getIntSetting(TRANSFER_RATE_LIMIT_KEY, 0) * 1024L,
+                weights, hours[0], hours[1]);
+    }
 
     public static void readRemoteToFile(@Nonnull final InputStream in,
                                         @Nonnull final FileOutputStream out,
                                         final long byteSize) throws IOException {
-        inputStreamToOutputStream(in, out, byteSize);
+        readRemoteToFile(in, out, byteSize, null, Codec.NONE);
+    }
+
+    /**
+     * Reads the payload straight from the socket channel into the file when one is given, falling back to
+     * copying through {@code in} otherwise. The channel must not have any bytes buffered in {@code in}.
+     * Compressed payloads are always decoded from {@code in}. Unless disabled, a {@link ReceivePipeline} reads
+     * from the network and writes to disk on separate threads.
+     */
+    public static void readRemoteToFile(@Nonnull final InputStream in,
+                                        @Nonnull final FileOutputStream out,
+                                        final long byteSize,
+                                        @Nullable final ReadableByteChannel channel,
+                                        @Nonnull final Codec codec) throws IOException {
+        readRemoteToFile(in, out, byteSize, channel, codec, null);
+    }
+
+    /**
+     * Like {@link #readRemoteToFile(InputStream, FileOutputStream, long, ReadableByteChannel, Codec)}, and reports
+     * how far the file has been written to {@code progress}: as the pipeline's disk stage goes, or once at the end.
+     */
+    public static void readRemoteToFile(@Nonnull final InputStream in,
+                                        @Nonnull final FileOutputStream out,
+                                        final long byteSize,
+                                        @Nullable final ReadableByteChannel channel,
+                                        @Nonnull final Codec codec,
+                                        @Nullable final ReceivePipeline.Progress progress) throws IOException {
+        final FileChannel fileChannel = out.getChannel();
+        final long start = fileChannel.position();
+        if (codec != Codec.NONE) {
+            readCompressed(in, out, byteSize, codec);
+        } else if (isPipelineEnabled()) {
+            log.debug("receiving through separate network and disk stages");
+            ReceivePipeline.copy(channel != null ? channel : Channels.newChannel(in), fileChannel, start, byteSize,
+                    progress);
+            fileChannel.position(start + byteSize);
+            return;
+        } else if (channel == null) {
+            inputStreamToOutputStream(in, out, byteSize);
+        } else {
+            log.debug("receiving with zero-copy transferFrom");
+            channelToFile(channel, fileChannel, start, byteSize);
+            fileChannel.position(start + byteSize);
+        }
+        if (progress != null)
+            progress.written(start + byteSize);
+    }
+
+    /**
+     * Like {@link #readRemoteToFile(InputStream, FileOutputStream, long, ReadableByteChannel, Codec)}, but writes
+     * the payload at {@code position} without touching the file channel's own position, so several connections
+     * can fill different ranges of the same file concurrently.
+     */
+    public static void readRemoteToFileAt(@Nonnull final InputStream in,
+                                          @Nonnull final FileChannel out,
+                                          final long position,
+                                          final long byteSize,
+                                          @Nullable final ReadableByteChannel channel,
+                                          @Nonnull final Codec codec) throws IOException {
+        readRemoteToFileAt(in, out, position, byteSize, channel, codec, null);
+    }
+
+    /**
+     * Like {@link #readRemoteToFileAt(InputStream, FileChannel, long, long, ReadableByteChannel, Codec)}, and
+     * reports how far the file has been written to {@code progress}, see {@link #isPipelined(Codec)}.
+     */
+    public static void readRemoteToFileAt(@Nonnull final InputStream in,
+                                          @Nonnull final FileChannel out,
+                                          final long position,
+                                          final long byteSize,
+                                          @Nullable final ReadableByteChannel channel,
+                                          @Nonnull final Codec codec,
+                                          @Nullable final ReceivePipeline.Progress progress) throws IOException {
+        if (isPipelined(codec)) {
+            ReceivePipeline.copy(channel != null ? channel : Channels.newChannel(in), out, position, byteSize,
+                    progress);
+            return;
+        }
+        if (codec != Codec.NONE)
+            readCompressed(in, new PositionalOutputStream(out, position), byteSize, codec);
+        else if (channel != null)
+            channelToFile(channel, out, position, byteSize);
+        else
+            inputStreamToOutputStream(in, new PositionalOutputStream(out, position), byteSize);
+        if (progress != null)
+            progress.written(position + byteSize);
+    }
+
+    /**
+     * Tells whether payloads in {@code codec} go through a {@link ReceivePipeline}, which reports progress as its
+     * disk stage writes. Otherwise progress is only reported once the whole read is done.
+     */
+    static boolean isPipelined(@Nonnull final Codec codec) {
+        return codec == Codec.NONE && isPipelineEnabled();
+    }
+
+    /**
+     * Like {@link #readRemoteToFileAt(InputStream, FileChannel, long, long, ReadableByteChannel, Codec)} for
+     * uncompressed payloads, but reads into memory-mapped regions of the file, straight from the socket channel
+     * when one is given.
+     */
+    public static void readRemoteToMappedFile(@Nonnull final InputStream in,
+                                              @Nonnull final FileChannel out,
+                                              final long position,
+                                              final long byteSize,
+                                              @Nullable final ReadableByteChannel channel) throws IOException {
+        final TransferMetrics metrics = TransferMetrics.current();
+        final Throttle throttle = Throttle.current();
+        final byte[] buffer = channel == null ? new byte[MAPPED_COPY_BUFFER_SIZE] : null;
+        long bytesProcessed = 0;
+        while (bytesProcessed < byteSize) {
+            final MappedByteBuffer region = out.map(FileChannel.MapMode.READ_WRITE, position + bytesProcessed,
+                    Math.min(MAPPED_REGION_SIZE, byteSize - bytesProcessed));
+            while (region.hasRemaining()) {
+                final long begin = System.nanoTime();
+                final int read = channel != null
+                        ? channel.read(region)
+                        : in.read(buffer, 0, Math.min(buffer.length, region.remaining()));
+                if (read < 0)
+                    throw new EOFException("Stream ended after " + (bytesProcessed + region.position()) + " bytes");
+                if (channel != null) {
+                    metrics.addNetworkNanos(System.nanoTime() - begin);
+                } else {
+                    final long readDone = System.nanoTime();
+                    region.put(buffer, 0, read);
+                    metrics.addReadNanos(readDone - begin);
+                    metrics.addWriteNanos(System.nanoTime() - readDone);
+                }
+                metrics.addBytes(read);
+                throttle.acquire(read);
+            }
+            bytesProcessed += region.capacity();
+        }
     }
 
     public static void writeFileToRemote(@Nonnull final FileInputStream in,
                                          @Nonnull final OutputStream out,
                                          final long byteSize) throws IOException {
-        inputStreamToOutputStream(in, out, byteSize);
+        writeFileToRemote(in, out, byteSize, null, Codec.NONE);
+    }
+
+    /**
+     * Sends the file straight to the socket channel when one is given, falling back to copying into
+     * {@code out} otherwise. Anything already written to {@code out} is flushed first. Compressed payloads
+     * are always encoded into {@code out}.
+     */
+    public static void writeFileToRemote(@Nonnull final FileInputStream in,
+                                         @Nonnull final OutputStream out,
+                                         final long byteSize,
+                                         @Nullable final WritableByteChannel channel,
+                                         @Nonnull final Codec codec) throws IOException {
+        if (codec != Codec.NONE) {
+            writeCompressed(in, out, byteSize, codec);
+            return;
+        }
+        if (channel == null) {
+            inputStreamToOutputStream(in, out, byteSize);
+            return;
+        }
+        log.debug("sending with zero-copy transferTo");
+        out.flush();
+        fileToChannel(in.getChannel(), channel, byteSize);
+    }
+
+    private static void channelToFile(@Nonnull final ReadableByteChannel in,
+                                      @Nonnull final FileChannel out,
+                                      final long start,
+                                      final long byteSize) throws IOException {
+        final TransferMetrics metrics = TransferMetrics.current();
+        final Throttle throttle = Throttle.current();
+        long bytesProcessed = 0;
+        while (bytesProcessed < byteSize) {
+            final long begin = System.nanoTime();
+            final long transferred = out.transferFrom(in, start + bytesProcessed,
+                    Math.min(throttle.limitChunk(MAX_TRANSFER_CHUNK), byteSize - bytesProcessed));
+            metrics.addNetworkNanos(System.nanoTime() - begin);
+            // A blocking socket channel only yields nothing once the remote has closed the stream
+            if (transferred <= 0)
+                throw new EOFException("Remote closed the stream after " + bytesProcessed + " bytes");
+            bytesProcessed += transferred;
+            metrics.addBytes(transferred);
+            throttle.acquire(transferred);
+        }
+    }
+
+    private static void fileToChannel(@Nonnull final FileChannel in,
+                                      @Nonnull final WritableByteChannel out,
+                                      final long byteSize) throws IOException {
+        final TransferMetrics metrics = TransferMetrics.current();
+        final Throttle throttle = Throttle.current();
+        final long start = in.position();
+        long bytesProcessed = 0;
+        while (bytesProcessed < byteSize) {
+            final long begin = System.nanoTime();
+            final long transferred = in.transferTo(start + bytesProcessed,
+                    Math.min(throttle.limitChunk(MAX_TRANSFER_CHUNK), byteSize - bytesProcessed), out);
+            metrics.addNetworkNanos(System.nanoTime() - begin);
+            if (transferred <= 0 && start + bytesProcessed >= in.size())
+                throw new EOFException("Source file ended after " + bytesProcessed + " bytes");
+            bytesProcessed += transferred;
+            metrics.addBytes(transferred);
+            throttle.acquire(transferred);
+        }
+        in.position(start + bytesProcessed);
+    }
+
+    /**
+     * Sends the payload as blocks of at most {@link #COMPRESSION_BLOCK_SIZE} bytes, each either compressed or raw.
+     * If the first {@link #COMPRESSION_SAMPLE_BLOCKS} blocks barely shrink, the content is treated as
+     * incompressible and the rest is sent raw.
+     */
+    private static void writeCompressed(@Nonnull final InputStream in,
+                                        @Nonnull final OutputStream out,
+                                        final long byteSize,
+                                        @Nonnull final Codec codec) throws IOException {
+        final TransferMetrics metrics = TransferMetrics.current();
+        final Throttle throttle = Throttle.current();
+        try (final BlockCompressor compressor = BlockCompressor.create(codec)) {
+            final DataOutputStream data = new DataOutputStream(out);
+            final byte[] raw = new byte[COMPRESSION_BLOCK_SIZE];
+            final byte[] compressed = new byte[compressor.maxCompressedLength(COMPRESSION_BLOCK_SIZE)];
+            long bytesProcessed = 0, sampledRaw = 0, sampledCompressed = 0;
+            int sampledBlocks = 0;
+            boolean compressing = true;
+            while (bytesProcessed < byteSize) {
+                final int length = (int) Math.min(raw.length, byteSize - bytesProcessed);
+                // Fill whole blocks, short reads would hurt the compression ratio
+                long begin = System.nanoTime();
+                if (ByteStreams.read(in, raw, 0, length) != length)
+                    throw new EOFException("Source ended after " + bytesProcessed + " bytes");
+                metrics.addReadNanos(System.nanoTime() - begin);
+                begin = System.nanoTime();
+                final int compressedLength = compressing ? compressor.compress(raw, length, compressed) : -1;
+                metrics.addCodecNanos(System.nanoTime() - begin);
+                if (compressing && sampledBlocks < COMPRESSION_SAMPLE_BLOCKS) {
+                    sampledRaw += length;
+                    sampledCompressed += compressedLength < 0 ? length : compressedLength;
+                    if (++sampledBlocks == COMPRESSION_SAMPLE_BLOCKS
+                            && sampledCompressed > sampledRaw * COMPRESSION_MIN_SAVING) {
+                        log.debug("payload is incompressible, sending the rest raw");
+                        compressing = false;
+                    }
+                }
+                begin = System.nanoTime();
+                if (compressedLength < 0) {
+                    data.writeByte(RAW_BLOCK);
+                    data.writeInt(length);
+                    data.write(raw, 0, length);
+                } else {
+                    data.writeByte(COMPRESSED_BLOCK);
+                    data.writeInt(length);
+                    data.writeInt(compressedLength);
+                    data.write(compressed, 0, compressedLength);
+                }
+                metrics.addWriteNanos(System.nanoTime() - begin);
+                bytesProcessed += length;
+                metrics.addBytes(length);
+                // Limits apply to what goes over the wire
+                throttle.acquire(compressedLength < 0 ? length : compressedLength);
+            }
+            data.flush();
+        }
+    }
+
+    private static void readCompressed(@Nonnull final InputStream in,
+                                       @Nonnull final OutputStream out,
+                                       final long byteSize,
+                                       @Nonnull final Codec codec) throws IOException {
+        final TransferMetrics metrics = TransferMetrics.current();
+        final Throttle throttle = Throttle.current();
+        try (final BlockCompressor compressor = BlockCompressor.create(codec)) {
+            final DataInputStream data = new DataInputStream(in);
+            final byte[] raw = new byte[COMPRESSION_BLOCK_SIZE];
+            final byte[] compressed = new byte[compressor.maxCompressedLength(COMPRESSION_BLOCK_SIZE)];
+            long bytesProcessed = 0;
+            while (bytesProcessed < byteSize) {
+                long begin = System.nanoTime();
+                final int wireLength;
+                final int type = data.readUnsignedByte();
+                final int length = data.readInt();
+                if (length <= 0 || length > raw.length || length > byteSize - bytesProcessed)
+                    throw new IOException("Invalid block length " + length);
+                if (type == RAW_BLOCK) {
+                    data.readFully(raw, 0, length);
+                    metrics.addReadNanos(System.nanoTime() - begin);
+                    wireLength = length;
+                } else if (type == COMPRESSED_BLOCK) {
+                    final int compressedLength = data.readInt();
+                    if (compressedLength <= 0 || compressedLength > compressed.length)
+                        throw new IOException("Invalid compressed block length " + compressedLength);
+                    data.readFully(compressed, 0, compressedLength);
+                    metrics.addReadNanos(System.nanoTime() - begin);
+                    wireLength = compressedLength;
+                    begin = System.nanoTime();
+                    compressor.decompress(compressed, compressedLength, raw, length);
+                    metrics.addCodecNanos(System.nanoTime() - begin);
+                } else {
+                    throw new IOException("Unknown block type " + type);
+                }
+                begin = System.nanoTime();
+                out.write(raw, 0, length);
+                metrics.addWriteNanos(System.nanoTime() - begin);
+                bytesProcessed += length;
+                metrics.addBytes(length);
+                throttle.acquire(wireLength);
+            }
+            out.flush();
+        }
     }
 
     private static void inputStreamToOutputStream(@Nonnull final InputStream in,
                                                   @Nonnull final OutputStream out,
                                                   final long byteSize) throws IOException {
-        long bytesProcessed = 0, read = 0;
-        byte[] buffer = new byte[BUFFER_SIZE];
+        inputStreamToOutputStream(in, out, byteSize, SocketTuning.newCopyTuner(TransferMetrics.current().getPeer()));
+    }
+
+    /**
+     * @param bufferSize size of the copy buffer, only varied by the benchmarks
+     */
+    @VisibleForTesting
+    static void inputStreamToOutputStream(@Nonnull final InputStream in,
+                                          @Nonnull final OutputStream out,
+                                          final long byteSize,
+                                          final int bufferSize) throws IOException {
+        inputStreamToOutputStream(in, out, byteSize, CopyTuner.fixed(bufferSize));
+    }
+
+    private static void inputStreamToOutputStream(@Nonnull final InputStream in,
+                                                  @Nonnull final OutputStream out,
+                                                  final long byteSize,
+                                                  @Nonnull final CopyTuner tuner) throws IOException {
+        final TransferMetrics metrics = TransferMetrics.current();
+        final Throttle throttle = Throttle.current();
+        long bytesProcessed = 0;
+        int read;
+        byte[] buffer = new byte[tuner.getBufferSize()];
         // TODO optimize reading and writing to the buffer
         while (bytesProcessed < byteSize) {
-            read = in.read(buffer);
-            out.write(buffer, 0, (int) read);
+            // Never read past the payload, anything after it belongs to the next message
+            final long begin = System.nanoTime();
+            read = in.read(buffer, 0, (int) Math.min(buffer.length, byteSize - bytesProcessed));
+            if (read < 0)
+                throw new EOFException("Stream ended after " + bytesProcessed + " bytes");
+            final long readDone = System.nanoTime();
+            out.write(buffer, 0, read);
+            metrics.addReadNanos(readDone - begin);
+            metrics.addWriteNanos(System.nanoTime() - readDone);
             bytesProcessed += read;
+            metrics.addBytes(read);
+            throttle.acquire(read);
+            if (tuner.record(read))
+                buffer = new byte[tuner.getBufferSize()];
         }
         out.flush();
     }
@@ -64,4 +477,30 @@ public class JDLink {
         out.write(('%') & 0xFF);
         out.flush();
     }
+
+    /**
+     * Writes at increasing positions of a shared file channel without using the channel's own position.
+     */
+    private static class PositionalOutputStream extends OutputStream {
+        @Nonnull
+        private final FileChannel channel;
+        private long position;
+
+        PositionalOutputStream(@Nonnull final FileChannel channel, final long position) {
+            this.channel = channel;
+            this.position = position;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(@Nonnull final byte[] b, final int off, final int len) throws IOException {
+            final ByteBuffer chunk = ByteBuffer.wrap(b, off, len);
+            while (chunk.hasRemaining())
+                position += channel.write(chunk, position);
+        }
+    }
 }
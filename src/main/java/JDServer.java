@@ -1,27 +1,345 @@
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import lombok.extern.log4j.Log4j2;
+import metrics.TransferStats;
+import model.ProtocolConstants;
+import protocol.ControlMessage;
+import protocol.MessageType;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.io.*;
+import java.net.ProtocolException;
 import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Comparator;
+import java.util.Set;
+import java.util.concurrent.*;
 
 @Log4j2
 public class JDServer {
     private static final int PORT = 10000;
+    // Configuration
+    private static final String MAX_CONCURRENT_TRANSFERS_KEY = "maxConcurrentTransfers";
+    private static final String MAX_QUEUED_TRANSFERS_KEY = "maxQueuedTransfers";
+    // Admission limits and priorities, see TransferScheduler
+    private static final String MAX_IN_FLIGHT_MIB_KEY = "maxInFlightMiB";
+    private static final String MAX_TRANSFERS_PER_HOST_KEY = "maxTransfersPerHost";
+    private static final String MAX_ADMISSION_WAIT_KEY = "maxAdmissionWaitSeconds";
+    private static final String PRIORITIZE_TRUSTED_KEY = "prioritizeTrustedHosts";
+    private static final String PRIORITIZE_SMALL_KEY = "prioritizeSmallTransfers";
+    private static final String SHUTDOWN_TIMEOUT_KEY = "shutdownTimeoutSeconds";
+    private static final String RECEIVER_MODE_KEY = "receiverMode";
+    private static final String SELECTOR_THREADS_KEY = "selectorThreads";
+    private static final String METRICS_DUMP_SECONDS_KEY = "metricsDumpSeconds";
+    private static final String SELECTOR_MODE = "selector";
+    private static final int DEFAULT_MAX_CONCURRENT_TRANSFERS = 8;
+    private static final int DEFAULT_MAX_QUEUED_TRANSFERS = 32;
+    private static final int DEFAULT_SHUTDOWN_TIMEOUT_SECONDS = 60;
+    private static final int DEFAULT_SELECTOR_THREADS = 2;
+    private static final int DEFAULT_METRICS_DUMP_SECONDS = 60;
+    private static final int DEFAULT_MAX_ADMISSION_WAIT_SECONDS = 60;
+    // A connection has this long to send its first frame, before it is admitted or queued
+    private static final int FIRST_FRAME_TIMEOUT_MILLIS = 10000;
+    // Senders turned away while the intake is full wait here for their answer, beyond that they are just closed
+    private static final int MAX_PENDING_REJECTIONS = 64;
+
+    private final int port;
+    @Nonnull
+    private final ThreadPoolExecutor executor;
+    // Reads each connection's first frame, which the scheduler needs to place it. It holds no more connections
+    // than could run or wait, others are turned away as busy.
+    @Nonnull
+    private final ThreadPoolExecutor intake;
+    // Answers senders the full intake turns away, which lingers so the answer is not lost to a reset
+    @Nonnull
+    private final ThreadPoolExecutor rejections;
+    // Waits for the next request of each open session, its transfers are admitted one by one
+    @Nonnull
+    private final ThreadPoolExecutor sessions;
+    @Nonnull
+    private final TransferScheduler scheduler;
+    @Nonnull
+    private final Set<String> trustedHosts;
+    @Nullable
+    private volatile ServerSocket ssock;
+    private volatile boolean running = true;
+
+    public JDServer(final int port, final int maxConcurrentTransfers, final int maxQueuedTransfers) {
+        this(port, maxConcurrentTransfers, maxQueuedTransfers, 0, 0, 0, ImmutableSet.of(),
+                TransferScheduler.priority(false, false));
+    }
+
+    /**
+     * @param maxInFlightBytes 0 for no limit on the announced bytes of running transfers
+     * @param maxPerHost       0 for no limit on the running transfers of one host
+     * @param maxWaitSeconds   0 for no limit on how long a transfer may be passed over by others
+     */
+    JDServer(final int port,
+             final int maxConcurrentTransfers,
+             final int maxQueuedTransfers,
+             final long maxInFlightBytes,
+             final int maxPerHost,
+             final long maxWaitSeconds,
+             @Nonnull final Set<String> trustedHosts,
+             @Nonnull final Comparator<TransferScheduler.Ticket> priority) {
+        this.port = port;
+        this.trustedHosts = trustedHosts;
+        // The scheduler keeps transfers within the concurrency limit, transfers beyond it wait there
+        executor = new ThreadPoolExecutor(maxConcurrentTransfers, maxConcurrentTransfers,
+                0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+                new ThreadFactoryBuilder().setNameFormat("jd-transfer-%d").build());
+        final int intakeThreads = Math.max(1, maxConcurrentTransfers) + Math.max(0, maxQueuedTransfers);
+        intake = new ThreadPoolExecutor(intakeThreads, intakeThreads, 60L, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), new ThreadFactoryBuilder().setNameFormat("jd-intake-%d").build());
+        intake.allowCoreThreadTimeOut(true);
+        rejections = new ThreadPoolExecutor(1, 1, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(MAX_PENDING_REJECTIONS),
+                new ThreadFactoryBuilder().setNameFormat("jd-intake-reject").setDaemon(true).build());
+        rejections.allowCoreThreadTimeOut(true);
+        // No more sessions than transfers could run or wait, others are turned away as busy
+        sessions = new ThreadPoolExecutor(intakeThreads, intakeThreads, 60L, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), new ThreadFactoryBuilder().setNameFormat("jd-session-%d").build());
+        sessions.allowCoreThreadTimeOut(true);
+        scheduler = new TransferScheduler(executor, maxConcurrentTransfers, maxQueuedTransfers, maxInFlightBytes,
+                maxPerHost, maxWaitSeconds, priority);
+        scheduler.start();
+    }
 
     public static void main(@Nonnull String args[]) {
-        while (true) { // server main loop
-            try {
-                final ServerSocket ssock = new ServerSocket(PORT);
-                log.debug("Listening on port + " + PORT);
-                while (true) { // create a new client processor to handle a new client
-                    ClientProcessor cp = new ClientProcessor(ssock.accept());
-                    cp.processClient();
+        Settings.loadSettingsOrDefaults(Settings.SETTINGS_FILE_PATH);
+        final int shutdownTimeout = Settings.getIntSetting(SHUTDOWN_TIMEOUT_KEY, DEFAULT_SHUTDOWN_TIMEOUT_SECONDS);
+        TransferStats.getInstance().register();
+        JDLink.configureBandwidth();
+        TransferStats.getInstance().startPeriodicDump(
+                Settings.getIntSetting(METRICS_DUMP_SECONDS_KEY, DEFAULT_METRICS_DUMP_SECONDS));
+        if (SELECTOR_MODE.equals(Settings.getStringSetting(RECEIVER_MODE_KEY, ""))) {
+            serveWithSelector(shutdownTimeout);
+            return;
+        }
+        final JDServer server = new JDServer(PORT,
+                Settings.getIntSetting(MAX_CONCURRENT_TRANSFERS_KEY, DEFAULT_MAX_CONCURRENT_TRANSFERS),
+                Settings.getIntSetting(MAX_QUEUED_TRANSFERS_KEY, DEFAULT_MAX_QUEUED_TRANSFERS),
+                Settings.getIntSetting(MAX_IN_FLIGHT_MIB_KEY, 0) * 1024L * 1024L,
+                Settings.getIntSetting(MAX_TRANSFERS_PER_HOST_KEY, 0),
+                Settings.getIntSetting(MAX_ADMISSION_WAIT_KEY, DEFAULT_MAX_ADMISSION_WAIT_SECONDS),
+                ImmutableSet.copyOf(Splitter.on(',').trimResults().omitEmptyStrings()
+                        .split(Settings.getStringSetting(ClientProcessor.TRUSTED_HOSTS_KEY, ""))),
+                TransferScheduler.priority(Settings.getBooleanSetting(PRIORITIZE_TRUSTED_KEY, true),
+                        Settings.getBooleanSetting(PRIORITIZE_SMALL_KEY, true)));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> server.shutdown(shutdownTimeout)));
+        server.serve();
+    }
+
+    private static void serveWithSelector(final int shutdownTimeout) {
+        try {
+            final SelectorReceiver receiver = new SelectorReceiver(PORT,
+                    Settings.getIntSetting(SELECTOR_THREADS_KEY, DEFAULT_SELECTOR_THREADS));
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> receiver.shutdown(shutdownTimeout)));
+            receiver.serve();
+        } catch (IOException e) {
+            e.printStackTrace();
+            log.error("Selector receiver has failed");
+        }
+    }
+
+    public void serve() {
+        while (running) { // server main loop
+            try (final ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+                // Accepted sockets are channel-backed so that receives can use zero-copy transfers
+                final ServerSocket serverSocket = serverChannel.socket();
+                SocketTuning.bind(serverSocket, port);
+                ssock = serverSocket;
+                log.debug("Listening on port + " + port);
+                while (running) { // hand each new client to a worker so the accept loop never blocks on a transfer
+                    dispatch(serverSocket.accept());
                 }
             } catch (IOException e) {
+                if (!running)
+                    break;
                 e.printStackTrace();
                 log.error("broken connection");
             }
         }
     }
 
+    @VisibleForTesting
+    boolean isListening() {
+        final ServerSocket serverSocket = ssock;
+        return serverSocket != null && !serverSocket.isClosed();
+    }
+
+    @VisibleForTesting
+    void dispatch(@Nonnull final Socket sock) {
+        try {
+            intake.execute(() -> admit(sock));
+        } catch (RejectedExecutionException e) {
+            if (intake.isShutdown()) {
+                log.error("Server is shutting down, rejecting client " + sock.getRemoteSocketAddress());
+                rejectClient(sock);
+                return;
+            }
+            log.error("Too many connections waiting to be placed, rejecting client " + sock.getRemoteSocketAddress());
+            try {
+                // Off the accept loop, which would otherwise wait for every rejected sender
+                rejections.execute(() -> rejectClient(sock));
+            } catch (RejectedExecutionException full) {
+                closeQuietly(sock);
+            }
+        }
+    }
+
+    private static void closeQuietly(@Nonnull final Socket sock) {
+        try {
+            sock.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+            log.error("There was a problem with closing the connection");
+        }
+    }
+
+    /**
+     * Reads the connection's first frame and hands it to the scheduler, which starts the transfer once the limits
+     * allow it and keeps the connection waiting until then. A session is not admitted itself, each of its transfers
+     * is.
+     */
+    private void admit(@Nonnull final Socket sock) {
+        final ClientProcessor processor = new ClientProcessor(sock);
+        final ControlMessage first = processor.readFirstFrame(FIRST_FRAME_TIMEOUT_MILLIS);
+        if (first == null)
+            return;
+        final String host = sock.getInetAddress().getHostAddress();
+        if (first.getType() == MessageType.SESSION_START) {
+            try {
+                sessions.execute(() -> processor.processClient(first,
+                        request -> admitInSession(processor, host, request)));
+            } catch (RejectedExecutionException e) {
+                log.error("Too many open sessions, rejecting client " + sock.getRemoteSocketAddress());
+                processor.rejectBusy();
+            }
+            return;
+        }
+        submit(processor, host, first, () -> processor.processClient(first), () -> { });
+    }
+
+    /**
+     * Waits on the session's thread while the transfer waits for admission and runs.
+     *
+     * @return whether the transfer succeeded, false if it was turned away
+     */
+    private boolean admitInSession(@Nonnull final ClientProcessor processor,
+                                   @Nonnull final String host,
+                                   @Nonnull final ControlMessage request) {
+        final CompletableFuture<Boolean> done = new CompletableFuture<>();
+        final Runnable run = () -> {
+            boolean succeeded = false;
+            try {
+                succeeded = processor.processSessionTransfer(request);
+            } finally {
+                done.complete(succeeded);
+            }
+        };
+        if (!submit(processor, host, request, run, () -> done.complete(false)))
+            return false;
+        return done.join();
+    }
+
+    /**
+     * @param run      serves the transfer once it is admitted
+     * @param rejected runs once the sender was turned away while waiting
+     * @return false if the sender was turned away right away
+     */
+    private boolean submit(@Nonnull final ClientProcessor processor,
+                           @Nonnull final String host,
+                           @Nonnull final ControlMessage request,
+                           @Nonnull final Runnable run,
+                           @Nonnull final Runnable rejected) {
+        final long size;
+        final boolean queueUpdates;
+        try {
+            size = ClientProcessor.getAnnouncedLength(request);
+            queueUpdates = request.getLong(ControlMessage.QUEUE_UPDATES, 0) != 0;
+        } catch (ProtocolException e) {
+            e.printStackTrace();
+            log.error("Client " + host + " has sent an invalid request");
+            processor.rejectBusy();
+            return false;
+        }
+        final TransferScheduler.Ticket ticket = new TransferScheduler.Ticket(host, size, trustedHosts.contains(host)) {
+            @Override
+            void run() {
+                run.run();
+            }
+
+            @Override
+            void reportPosition(final int position) throws IOException {
+                // Older senders would take the position for the answer to their request, they just wait
+                if (queueUpdates)
+                    processor.reportQueuePosition(position);
+            }
+
+            @Override
+            void reject() {
+                processor.rejectBusy();
+                rejected.run();
+            }
+        };
+        if (!scheduler.submit(ticket)) {
+            log.error("Too many pending transfers, rejecting client " + host);
+            processor.rejectBusy();
+            return false;
+        }
+        log.debug("Dispatched client, active transfers: " + scheduler.getRunning()
+                + ", queued: " + scheduler.getWaiting());
+        return true;
+    }
+
+    private void rejectClient(@Nonnull final Socket sock) {
+        try {
+            ControlMessage.response(ProtocolConstants.BUSY_RESPONSE).writeTo(sock.getOutputStream());
+        } catch (IOException e) {
+            log.error("Could not notify rejected client");
+        } finally {
+            ClientProcessor.closeAfterReply(sock);
+        }
+    }
+
+    /**
+     * Stops accepting new clients and waits for in-flight and queued transfers to drain.
+     * Transfers still running once the timeout elapses are interrupted, those still queued are turned away.
+     */
+    public void shutdown(final long timeoutSeconds) {
+        log.debug("Shutting down, draining " + (scheduler.getRunning() + scheduler.getWaiting()) + " transfers");
+        running = false;
+        try {
+            if (ssock != null)
+                ssock.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+            log.error("There was a problem with closing the server socket");
+        }
+        // Connections that are still sending their first frame are queued like the others
+        intake.shutdown();
+        rejections.shutdown();
+        sessions.shutdown();
+        try {
+            intake.awaitTermination(FIRST_FRAME_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            if (!scheduler.awaitIdle(timeoutSeconds)) {
+                log.error("Transfers did not finish within " + timeoutSeconds + "s, aborting them");
+                scheduler.shutdown();
+                executor.shutdownNow();
+                return;
+            }
+        } catch (InterruptedException e) {
+            scheduler.shutdown();
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            return;
+        }
+        scheduler.shutdown();
+        executor.shutdown();
+    }
 }
@@ -0,0 +1,503 @@
+import compression.Codec;
+import metrics.TransferMetrics;
+import model.ProtocolConstants;
+import model.TransferRequest;
+import protocol.ControlMessage;
+import protocol.MessageType;
+import lombok.extern.log4j.Log4j2;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.concurrent.Executor;
+
+/**
+ * Per-connection state for the {@link SelectorReceiver}. Drives the same metadata -> OK -> payload exchange as
+ * {@link ClientProcessor}, but only ever reacts to readiness events so that it never blocks the selector thread
+ * on the network. The permission check, which may wait on the user, completes asynchronously, and creating and
+ * writing the save file runs on a disk thread, handing back to the selector thread once it is done.
+ */
+@Log4j2
+class NioConnection {
+    private static final int INITIAL_METADATA_BUFFER_SIZE = 256;
+    private static final int PAYLOAD_BUFFER_SIZE = 64 * 1024;
+
+    enum State {
+        METADATA, STAGING, DISCARDING, AWAITING_PERMISSION, PREPARING, RESPONSE, PAYLOAD, AWAITING_EOF, CLOSED
+    }
+
+    @Nonnull
+    private final SocketChannel channel;
+    @Nonnull
+    private final Executor selectorTasks;
+    @Nonnull
+    private final Executor disk;
+    @Nonnull
+    private State state = State.METADATA;
+    @Nullable
+    private SelectionKey key;
+    @Nonnull
+    private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_METADATA_BUFFER_SIZE);
+    @Nullable
+    private TransferRequest request;
+    // Payload the sender streamed ahead of our answer, written to the save file once the transfer is accepted
+    @Nullable
+    private ByteBuffer staged;
+    // The payload is read into one buffer while the other is written to disk, reading pauses while both are in use
+    @Nullable
+    private ByteBuffer reading;
+    @Nullable
+    private ByteBuffer spare;
+    // Set while a disk thread works on the save file, which the connection may then not touch
+    private boolean diskBusy;
+    @Nullable
+    private FileChannel fileOut;
+    @Nullable
+    private RangeAssembler assembly;
+    private long bytesReceived;
+    // Bytes that have been handed to the disk thread, always at most bytesReceived
+    private long bytesHandedOff;
+    // Bytes sent ahead that are still to be read away, when there were more than we stage
+    private long discarding;
+    // Whether the response being written accepts the transfer, and why it turns it down otherwise
+    private boolean accepting;
+    @Nonnull
+    private String rejectionCause = "no-space";
+    @Nonnull
+    private String rejectionMessage = "";
+    // Several connections share a selector thread, so the metrics are held here instead of bound to the thread
+    @Nonnull
+    private final TransferMetrics metrics;
+    private long permissionRequestedNanos;
+
+    /**
+     * @param selectorTasks runs tasks on the selector thread that owns this connection
+     * @param disk          runs the save file's creation and writes
+     */
+    NioConnection(@Nonnull final SocketChannel channel,
+                  @Nonnull final Executor selectorTasks,
+                  @Nonnull final Executor disk) {
+        this.channel = channel;
+        this.selectorTasks = selectorTasks;
+        this.disk = disk;
+        metrics = new TransferMetrics(TransferMetrics.Direction.RECEIVE,
+                channel.socket().getInetAddress().getHostAddress());
+    }
+
+    void register(@Nonnull final Selector selector) throws IOException {
+        key = channel.register(selector, SelectionKey.OP_READ, this);
+        log.debug("Connected to client from " + channel.getRemoteAddress());
+    }
+
+    @Nonnull
+    State getState() {
+        return state;
+    }
+
+    void onReadable() throws IOException {
+        switch (state) {
+            case METADATA:
+                readMetadata();
+                break;
+            case STAGING:
+                readStaged();
+                break;
+            case DISCARDING:
+                readDiscarded();
+                break;
+            case PAYLOAD:
+                readPayload();
+                break;
+            case AWAITING_EOF:
+                awaitEof();
+                break;
+            default:
+                break;
+        }
+    }
+
+    void onWritable() throws IOException {
+        if (state != State.RESPONSE)
+            return;
+        channel.write(buffer);
+        if (buffer.hasRemaining())
+            return;
+        if (!accepting) {
+            fail(rejectionCause, rejectionMessage);
+            return;
+        }
+        log.debug("sent OK response for " + request.getFilename());
+        metrics.addHandshakeNanos(metrics.getElapsedNanos() - metrics.getPermissionNanos());
+        if (bytesHandedOff == request.getLength()) {
+            // Everything was sent ahead and is already written
+            awaitEofNext();
+        } else {
+            reading = ByteBuffer.allocateDirect(PAYLOAD_BUFFER_SIZE);
+            spare = ByteBuffer.allocateDirect(PAYLOAD_BUFFER_SIZE);
+            state = State.PAYLOAD;
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    private void readMetadata() throws IOException {
+        if (channel.read(buffer) < 0) {
+            fail("EOFException", "Client closed the connection before sending metadata");
+            return;
+        }
+        if (buffer.position() < ProtocolConstants.HEADER_SIZE)
+            return;
+        // The header tells us how large the frame is, grow the buffer to fit it exactly
+        final int frameSize = ProtocolConstants.HEADER_SIZE
+                + ControlMessage.readPayloadLength((ByteBuffer) buffer.duplicate().flip());
+        if (buffer.capacity() < frameSize) {
+            final ByteBuffer larger = ByteBuffer.allocate(frameSize);
+            buffer.flip();
+            larger.put(buffer);
+            buffer = larger;
+        }
+        if (buffer.position() < frameSize)
+            return;
+
+        buffer.flip();
+        final ControlMessage message = ControlMessage.decode(buffer);
+        buffer.position(frameSize);
+        if (message.getType() != MessageType.TRANSFER_REQUEST) {
+            fail("ProtocolException", "Expected a transfer request but received " + message.getType());
+            return;
+        }
+        request = message.toTransferRequest();
+        metrics.setFilename(request.getFilename());
+        log.debug("read metadata from remote: " + request.getFilename() + ", " + request.getFilesize() + " bytes");
+        if (!ClientProcessor.isValidTransferRequest(request)) {
+            fail("invalid-request", "Received metadata contains error");
+            return;
+        }
+        if (request.getCompression() != Codec.NONE) {
+            // Block decoding needs a blocking stream, so the sender is asked for raw payload instead
+            log.debug("asking for " + request.getFilename() + " uncompressed instead of " + request.getCompression());
+            request.setCompression(Codec.NONE);
+        }
+        if (request.isRelayed()) {
+            fail("unsupported", "Relayed transfers are not supported by the selector receiver");
+            return;
+        }
+        if (buffer.remaining() > request.getOptimisticLength()) {
+            // Unless it streams ahead, the sender has to wait for our response, so nothing may follow the metadata
+            fail("ProtocolException", "Client sent data before the transfer was accepted");
+            return;
+        }
+        if (ClientProcessor.exceedsStagingLimit(request)) {
+            // Read away rather than staged, the sender is told our limit and asks again without sending ahead
+            discarding = request.getOptimisticLength() - buffer.remaining();
+            buffer = ByteBuffer.allocate(PAYLOAD_BUFFER_SIZE);
+            state = State.DISCARDING;
+            readDiscarded();
+            return;
+        }
+        if (request.getOptimisticLength() > 0) {
+            // Stage what was sent ahead before asking, it is already on its way and the answer may take a while
+            staged = ByteBuffer.allocate((int) request.getOptimisticLength());
+            staged.put(buffer);
+            state = State.STAGING;
+            readStaged();
+            return;
+        }
+        requestPermission();
+    }
+
+    private void readStaged() throws IOException {
+        if (staged.hasRemaining() && channel.read(staged) < 0) {
+            fail("EOFException", "Client closed the connection after sending " + staged.position() + " bytes ahead");
+            return;
+        }
+        if (staged.hasRemaining())
+            return;
+        log.debug("staged " + staged.position() + " bytes sent ahead of the response");
+        requestPermission();
+    }
+
+    private void readDiscarded() throws IOException {
+        buffer.clear();
+        buffer.limit((int) Math.min(buffer.capacity(), discarding));
+        final int read = discarding > 0 ? channel.read(buffer) : 0;
+        if (read < 0) {
+            fail("EOFException", "Client closed the connection with " + discarding + " bytes still to be sent ahead");
+            return;
+        }
+        discarding -= read;
+        if (discarding > 0)
+            return;
+        respond(ClientProcessor.windowTooLargeResponse(), false, "window-too-large",
+                request.getOptimisticLength() + " bytes were sent ahead, more than the "
+                        + ClientProcessor.getOptimisticStagingLimit() + " we stage");
+    }
+
+    private void requestPermission() {
+        state = State.AWAITING_PERMISSION;
+        key.interestOps(0);
+        permissionRequestedNanos = System.nanoTime();
+        final String source = channel.socket().getInetAddress().getHostAddress();
+        ClientProcessor.requestPermission(request, source)
+                .whenComplete((granted, e) -> selectorTasks.execute(
+                        () -> onPermissionDecided(Boolean.TRUE.equals(granted))));
+    }
+
+    private void onPermissionDecided(final boolean granted) {
+        if (state != State.AWAITING_PERMISSION)
+            return;
+        metrics.addPermissionNanos(System.nanoTime() - permissionRequestedNanos);
+        if (!granted) {
+            fail("permission-denied", "User has denied permission for file transfer");
+            return;
+        }
+        state = State.PREPARING;
+        diskBusy = true;
+        disk.execute(this::prepare);
+    }
+
+    /**
+     * Runs on a disk thread: checks for space and, if there is enough, creates the save file and writes what was
+     * sent ahead.
+     */
+    private void prepare() {
+        IOException failure = null;
+        try {
+            accepting = PreallocatedFile.hasSpaceFor(new File(ClientProcessor.getSaveDir()), request.getLength());
+            if (accepting)
+                openSaveFile();
+        } catch (IOException e) {
+            failure = e;
+        }
+        final IOException failed = failure;
+        selectorTasks.execute(() -> onPrepared(failed));
+    }
+
+    private void openSaveFile() throws IOException {
+        if (request.isMultiStream()) {
+            log.debug("joining multi-stream transfer " + request.getTransferId());
+            final InetSocketAddress remote = (InetSocketAddress) channel.getRemoteAddress();
+            assembly = RangeAssembler.join(remote.getAddress().getHostAddress(), request,
+                    ClientProcessor.getSaveDir());
+            fileOut = assembly.getChannel();
+        } else {
+            log.debug("creating new savefile");
+            final File saveFile = FileUtils.createUniqueFile(request.getFilename(), ClientProcessor.getSaveDir());
+            final RandomAccessFile file = new RandomAccessFile(saveFile, "rw");
+            // Payload is written at explicit positions, so the file can be sized up front
+            if (Settings.getBooleanSetting(ClientProcessor.PREALLOCATE_KEY, true))
+                file.setLength(request.getFilesize());
+            fileOut = file.getChannel();
+        }
+        if (staged != null) {
+            staged.flip();
+            while (staged.hasRemaining())
+                fileOut.write(staged, request.getOffset() + staged.position());
+            metrics.addBytes(staged.limit());
+            bytesReceived = bytesHandedOff = staged.limit();
+            staged = null;
+        }
+        if (bytesHandedOff == request.getLength())
+            finishFile();
+    }
+
+    private void onPrepared(@Nullable final IOException failure) {
+        diskBusy = false;
+        if (state == State.CLOSED) {
+            releaseFile();
+            return;
+        }
+        if (failure != null) {
+            fail(failure);
+            return;
+        }
+        if (accepting)
+            respond(ControlMessage.response(ProtocolConstants.OK_RESPONSE)
+                    .putString(ControlMessage.COMPRESSION, Codec.NONE.name()), true, "", "");
+        else
+            respond(ControlMessage.response(ProtocolConstants.NO_SPACE_RESPONSE), false, "no-space",
+                    "Not enough space left in the save directory for " + request.getLength() + " bytes");
+    }
+
+    /**
+     * Writes the answer to the request, the connection is closed once a rejection has been written.
+     *
+     * @param cause   short name a rejection is counted under in the transfer metrics
+     * @param message logged once a rejection has been written
+     */
+    private void respond(@Nonnull final ControlMessage response,
+                         final boolean accept,
+                         @Nonnull final String cause,
+                         @Nonnull final String message) {
+        accepting = accept;
+        rejectionCause = cause;
+        rejectionMessage = message;
+        try {
+            buffer = ByteBuffer.wrap(response.encode());
+            state = State.RESPONSE;
+            key.interestOps(SelectionKey.OP_WRITE);
+            onWritable();
+        } catch (IOException | CancelledKeyException e) {
+            fail(e);
+        }
+    }
+
+    private void readPayload() throws IOException {
+        final long remaining = request.getLength() - bytesReceived;
+        reading.limit((int) Math.min(reading.capacity(), reading.position() + remaining));
+        final long begin = System.nanoTime();
+        final int read = channel.read(reading);
+        if (read < 0) {
+            fail("EOFException",
+                    "Client closed the connection after " + bytesReceived + " of " + request.getLength() + " bytes");
+            return;
+        }
+        metrics.addReadNanos(System.nanoTime() - begin);
+        metrics.addBytes(read);
+        bytesReceived += read;
+        if (!diskBusy && reading.position() > 0)
+            handOff();
+        // Stop reading once the other buffer is still being written, or the whole payload is in
+        if (!reading.hasRemaining() || bytesReceived == request.getLength())
+            key.interestOps(0);
+    }
+
+    /**
+     * Hands the bytes read so far to a disk thread and continues reading into the spare buffer.
+     */
+    private void handOff() {
+        final ByteBuffer full = reading;
+        full.flip();
+        reading = spare;
+        spare = null;
+        final long position = request.getOffset() + bytesHandedOff;
+        bytesHandedOff += full.remaining();
+        final boolean last = bytesHandedOff == request.getLength();
+        diskBusy = true;
+        disk.execute(() -> write(full, position, last));
+    }
+
+    /**
+     * Runs on a disk thread.
+     */
+    private void write(@Nonnull final ByteBuffer full, final long position, final boolean last) {
+        IOException failure = null;
+        try {
+            final long begin = System.nanoTime();
+            // Positional writes, so that ranges of a multi-stream transfer land at their own offsets
+            while (full.hasRemaining())
+                fileOut.write(full, position + full.position());
+            metrics.addWriteNanos(System.nanoTime() - begin);
+            if (last)
+                finishFile();
+        } catch (IOException e) {
+            failure = e;
+        }
+        final IOException failed = failure;
+        selectorTasks.execute(() -> onWritten(full, last, failed));
+    }
+
+    private void onWritten(@Nonnull final ByteBuffer full, final boolean last, @Nullable final IOException failure) {
+        diskBusy = false;
+        if (state == State.CLOSED) {
+            releaseFile();
+            return;
+        }
+        if (failure != null) {
+            fail(failure);
+            return;
+        }
+        if (last) {
+            awaitEofNext();
+            return;
+        }
+        full.clear();
+        spare = full;
+        if (reading.position() > 0)
+            handOff();
+        if (bytesReceived < request.getLength())
+            key.interestOps(SelectionKey.OP_READ);
+    }
+
+    /**
+     * Runs on a disk thread once the whole payload is written.
+     */
+    private void finishFile() throws IOException {
+        if (assembly != null) {
+            assembly.completeRange(request);
+            assembly = null;
+        } else {
+            fileOut.close();
+        }
+        fileOut = null;
+    }
+
+    private void awaitEofNext() {
+        reading = spare = null;
+        buffer = ByteBuffer.allocate(1);
+        state = State.AWAITING_EOF;
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    private void awaitEof() throws IOException {
+        buffer.clear();
+        final int read = channel.read(buffer);
+        if (read > 0) {
+            fail("excess-data", "Client has not sent over the listed amount of data");
+        } else if (read < 0) {
+            log.debug("successfully received file " + request.getFilename());
+            metrics.succeed();
+            close();
+        }
+    }
+
+    void fail(@Nonnull final Exception e) {
+        e.printStackTrace();
+        fail(e.getClass().getSimpleName(), e.getClass().getSimpleName() + ": " + e.getMessage());
+    }
+
+    /**
+     * @param cause short name the failure is counted under in the transfer metrics
+     */
+    private void fail(@Nonnull final String cause, @Nonnull final String message) {
+        log.error(message);
+        metrics.fail(cause);
+        close();
+    }
+
+    void close() {
+        state = State.CLOSED;
+        // A no-op if the transfer already succeeded or failed, otherwise the receiver is shutting down
+        metrics.fail("aborted");
+        if (key != null)
+            key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+            log.error("There was a problem with closing connections");
+        }
+        // Otherwise the disk thread still holds the save file, it is released once the disk thread hands back
+        if (!diskBusy)
+            releaseFile();
+    }
+
+    private void releaseFile() {
+        if (assembly != null) {
+            // The shared channel belongs to the assembly, which discards the whole file
+            assembly.fail();
+            assembly = null;
+            fileOut = null;
+        }
+        try {
+            if (fileOut != null)
+                fileOut.close();
+            fileOut = null;
+        } catch (IOException e) {
+            e.printStackTrace();
+            log.error("There was a problem with closing the save file");
+        }
+    }
+}
@@ -0,0 +1,70 @@
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.log4j.Log4j2;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.*;
+
+/**
+ * Sends a single file as several byte ranges over parallel connections, so that throughput is not capped by the
+ * window of one TCP stream. Each range is an ordinary {@link ServerProcessor} transfer tagged with a shared
+ * transfer id, which the receiver uses to write all ranges into the same file.
+ */
+@Log4j2
+public class ParallelSender {
+    // Ranges smaller than this are not worth the extra handshakes
+    private static final long MIN_RANGE_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * @return whether every range was sent successfully
+     */
+    public static boolean send(@Nonnull final File source, @Nonnull final String destination, final int streams) {
+        final long[][] ranges = splitRanges(source.length(), streams);
+        if (ranges.length == 1)
+            return new ServerProcessor(source, destination).attemptTransfer();
+
+        final String transferId = UUID.randomUUID().toString();
+        log.debug("sending " + source.getName() + " as " + ranges.length + " streams, transfer " + transferId);
+        final ExecutorService executor = Executors.newFixedThreadPool(ranges.length,
+                new ThreadFactoryBuilder().setNameFormat("jd-stream-%d").build());
+        try {
+            final List<Future<Boolean>> results = new ArrayList<>();
+            for (long[] range : ranges) {
+                results.add(executor.submit(() -> new ServerProcessor(source, destination, ranges.length,
+                        transferId, range[0], range[1]).attemptTransfer()));
+            }
+            boolean success = true;
+            for (Future<Boolean> result : results) {
+                success &= result.get();
+            }
+            return success;
+        } catch (InterruptedException | ExecutionException e) {
+            e.printStackTrace();
+            log.error("Parallel transfer was interrupted");
+            return false;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return {offset, length} pairs covering the whole file, at most {@code streams} of them
+     */
+    @Nonnull
+    @VisibleForTesting
+    static long[][] splitRanges(final long filesize, final int streams) {
+        final int count = (int) Math.max(1, Math.min(streams, filesize / MIN_RANGE_SIZE));
+        final long[][] ranges = new long[count][];
+        final long rangeSize = filesize / count;
+        for (int i = 0; i < count; i++) {
+            final long offset = i * rangeSize;
+            // The last range picks up the remainder of the division
+            ranges[i] = new long[]{offset, i == count - 1 ? filesize - offset : rangeSize};
+        }
+        return ranges;
+    }
+}
@@ -0,0 +1,167 @@
+import model.TransferRequest;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.hash.Hashing;
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+import java.util.zip.CRC32;
+
+/**
+ * Sidecar record for a file that was only partly received, kept next to the partial file so that a later attempt
+ * of the same transfer can pick up where the previous one stopped. The record is keyed by filename, size and
+ * sending host, and holds a checksum of the last bytes before the committed offset so that both ends can verify
+ * they are looking at the same prefix before resuming.
+ */
+@Log4j2
+public class PartialTransfer {
+    // Only the tail of the committed prefix is compared, rereading a 50 GB prefix would defeat the purpose
+    @VisibleForTesting
+    static final int CHECKSUM_WINDOW = 1024 * 1024;
+    private static final String SIDECAR_EXTENSION = ".jdpart";
+    private static final String NAME_KEY = "name";
+    private static final String SIZE_KEY = "size";
+    private static final String SOURCE_KEY = "source";
+    private static final String SAVED_AS_KEY = "savedAs";
+    private static final String COMMITTED_KEY = "committed";
+    private static final String CHECKSUM_KEY = "checksum";
+
+    @Nonnull
+    private final File sidecar;
+    @Getter
+    @Nonnull
+    private final File saveFile;
+    @Getter
+    private long committed;
+    @Getter
+    private long checksum;
+
+    private PartialTransfer(@Nonnull final File sidecar,
+                            @Nonnull final File saveFile,
+                            final long committed,
+                            final long checksum) {
+        this.sidecar = sidecar;
+        this.saveFile = saveFile;
+        this.committed = committed;
+        this.checksum = checksum;
+    }
+
+    /**
+     * @return the partial transfer of this request from this source, if one exists and its prefix is still intact
+     */
+    @Nullable
+    public static PartialTransfer find(@Nonnull final String directory,
+                                       @Nonnull final TransferRequest request,
+                                       @Nonnull final String source) {
+        final File sidecar = getSidecarFile(directory, request, source);
+        if (!sidecar.isFile())
+            return null;
+        final Properties record = new Properties();
+        try (final InputStream in = new FileInputStream(sidecar)) {
+            record.load(in);
+            final File saveFile = new File(directory, record.getProperty(SAVED_AS_KEY));
+            final long committed = Long.parseLong(record.getProperty(COMMITTED_KEY));
+            final long checksum = Long.parseLong(record.getProperty(CHECKSUM_KEY));
+            if (!request.getFilename().equals(record.getProperty(NAME_KEY))
+                    || request.getFilesize() != Long.parseLong(record.getProperty(SIZE_KEY))
+                    || !source.equals(record.getProperty(SOURCE_KEY))
+                    || !saveFile.isFile()) {
+                log.error("Discarding stale partial transfer record " + sidecar.getName());
+                sidecar.delete();
+                return null;
+            }
+            if (saveFile.length() < committed || checksum(saveFile, committed) != checksum) {
+                log.error("Partial file " + saveFile.getName() + " has changed, it will be received from the start");
+                return new PartialTransfer(sidecar, saveFile, 0, 0);
+            }
+            return new PartialTransfer(sidecar, saveFile, committed, checksum);
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            log.error("Partial transfer record " + sidecar.getName() + " could not be read");
+            return null;
+        }
+    }
+
+    @Nonnull
+    public static PartialTransfer create(@Nonnull final String directory,
+                                         @Nonnull final TransferRequest request,
+                                         @Nonnull final String source,
+                                         @Nonnull final File saveFile) throws IOException {
+        final PartialTransfer partial = new PartialTransfer(
+                getSidecarFile(directory, request, source), saveFile, 0, 0);
+        partial.write(request, source);
+        return partial;
+    }
+
+    /**
+     * Records how many bytes of the save file are known to be good, after a transfer broke off. The bytes are
+     * forced to disk before the record claims them, so that a crash cannot leave a record ahead of the data.
+     */
+    public void commit(@Nonnull final TransferRequest request,
+                       @Nonnull final String source,
+                       final long bytesCommitted) throws IOException {
+        try (final RandomAccessFile data = new RandomAccessFile(saveFile, "rw")) {
+            data.getChannel().force(false);
+        }
+        committed = bytesCommitted;
+        checksum = checksum(saveFile, bytesCommitted);
+        write(request, source);
+        log.debug("kept " + committed + " bytes of " + saveFile.getName() + " for resuming");
+    }
+
+    /**
+     * The transfer has finished, so the record is no longer needed.
+     */
+    public void complete() {
+        if (sidecar.exists() && !sidecar.delete())
+            log.error("Could not delete partial transfer record " + sidecar.getName());
+    }
+
+    private void write(@Nonnull final TransferRequest request, @Nonnull final String source) throws IOException {
+        final Properties record = new Properties();
+        record.setProperty(NAME_KEY, request.getFilename());
+        record.setProperty(SIZE_KEY, String.valueOf(request.getFilesize()));
+        record.setProperty(SOURCE_KEY, source);
+        record.setProperty(SAVED_AS_KEY, saveFile.getName());
+        record.setProperty(COMMITTED_KEY, String.valueOf(committed));
+        record.setProperty(CHECKSUM_KEY, String.valueOf(checksum));
+        // Written aside and moved into place, so that the record is either the old or the new one in full
+        final File written = new File(sidecar.getParentFile(), sidecar.getName() + ".tmp");
+        try (final FileOutputStream out = new FileOutputStream(written)) {
+            record.store(out, "JavaDrop partial transfer");
+            out.getFD().sync();
+        }
+        Files.move(written.toPath(), sidecar.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Nonnull
+    private static File getSidecarFile(@Nonnull final String directory,
+                                       @Nonnull final TransferRequest request,
+                                       @Nonnull final String source) {
+        final String key = request.getFilename() + "|" + request.getFilesize() + "|" + source;
+        return new File(directory, "." + Hashing.sha256().hashString(key, StandardCharsets.UTF_8) + SIDECAR_EXTENSION);
+    }
+
+    /**
+     * CRC32 of the {@link #CHECKSUM_WINDOW} bytes that end at {@code end}, used by both sender and receiver to
+     * check that they agree on the prefix before resuming.
+     */
+    public static long checksum(@Nonnull final File file, final long end) throws IOException {
+        final CRC32 crc = new CRC32();
+        final long start = Math.max(0, end - CHECKSUM_WINDOW);
+        final byte[] buffer = new byte[(int) (end - start)];
+        try (final RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            in.seek(start);
+            in.readFully(buffer);
+        }
+        crc.update(buffer);
+        return crc.getValue();
+    }
+}
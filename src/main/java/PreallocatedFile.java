@@ -0,0 +1,165 @@
+import compression.Codec;
+import metrics.TransferMetrics;
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * A save file that is sized to the whole payload before the first byte arrives, so the file system can lay it out
+ * in one go instead of growing it write by write. Payload is written at explicit positions, through positional
+ * channel writes or mapped regions, which also lets chunks land out of order.
+ */
+@Log4j2
+class PreallocatedFile implements Closeable {
+    // Payload that does not go through the receive pipeline is received in segments of this size, a multiple of
+    // the compression block size so that compressed payloads split cleanly. Progress is tracked and syncs happen at
+    // segment boundaries, the pipeline instead reports progress as its disk stage writes.
+    private static final long SEGMENT_SIZE = 1024 * 1024;
+
+    enum WriteMode {
+        POSITIONAL, MAPPED
+    }
+
+    enum SyncPolicy {
+        // Leave flushing to the operating system
+        NONE,
+        // Force everything to disk once the payload is complete
+        END,
+        // Also force after every sync interval of payload
+        PERIODIC
+    }
+
+    @Nonnull
+    private final RandomAccessFile file;
+    @Getter
+    @Nonnull
+    private final FileChannel channel;
+    @Nonnull
+    private final WriteMode writeMode;
+    @Nonnull
+    private final SyncPolicy syncPolicy;
+    private final long syncInterval;
+    // Updated by the pipeline's disk thread while a receive is running
+    private volatile long unsyncedBytes;
+    // End of the payload that has been received and written completely
+    @Getter
+    private volatile long receivedEnd;
+    // The running receive's metrics, syncs may happen on the pipeline's disk thread
+    @Nonnull
+    private TransferMetrics metrics = TransferMetrics.current();
+
+    private PreallocatedFile(@Nonnull final RandomAccessFile file,
+                             @Nonnull final WriteMode writeMode,
+                             @Nonnull final SyncPolicy syncPolicy,
+                             final long syncInterval) {
+        this.file = file;
+        this.channel = file.getChannel();
+        this.writeMode = writeMode;
+        this.syncPolicy = syncPolicy;
+        this.syncInterval = syncInterval;
+    }
+
+    /**
+     * @param syncInterval how much payload may go unsynced under {@link SyncPolicy#PERIODIC}, rounded up to
+     *                     whole segments or pipeline buffers
+     */
+    @Nonnull
+    static PreallocatedFile open(@Nonnull final File saveFile,
+                                 final long size,
+                                 @Nonnull final WriteMode writeMode,
+                                 @Nonnull final SyncPolicy syncPolicy,
+                                 final long syncInterval) throws IOException {
+        if (!hasSpaceFor(saveFile.getAbsoluteFile().getParentFile(), size - Math.min(size, saveFile.length())))
+            throw new IOException("Not enough space left for " + saveFile.getName());
+        final RandomAccessFile file = new RandomAccessFile(saveFile, "rw");
+        try {
+            file.setLength(size);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        log.debug("preallocated " + size + " bytes for " + saveFile.getName());
+        return new PreallocatedFile(file, writeMode, syncPolicy, syncInterval);
+    }
+
+    /**
+     * Checked before a transfer is accepted, so that a full disk fails the transfer before any payload is sent.
+     */
+    static boolean hasSpaceFor(@Nonnull final File directory, final long bytes) {
+        return bytes <= 0 || directory.getUsableSpace() >= bytes;
+    }
+
+    /**
+     * Receives {@code length} bytes of payload into the file at {@code position}, see
+     * {@link JDLink#readRemoteToFileAt(InputStream, FileChannel, long, long, ReadableByteChannel, Codec)}.
+     */
+    void receive(@Nonnull final InputStream in,
+                 final long position,
+                 final long length,
+                 @Nullable final ReadableByteChannel socket,
+                 @Nonnull final Codec codec) throws IOException {
+        receive(in, position, length, socket, codec, null);
+    }
+
+    /**
+     * Like {@link #receive(InputStream, long, long, ReadableByteChannel, Codec)}, and passes on how far the payload
+     * has been written to {@code progress}, possibly from the pipeline's disk thread.
+     */
+    void receive(@Nonnull final InputStream in,
+                 long position,
+                 long length,
+                 @Nullable final ReadableByteChannel socket,
+                 @Nonnull final Codec codec,
+                 @Nullable final ReceivePipeline.Progress progress) throws IOException {
+        receivedEnd = position;
+        metrics = TransferMetrics.current();
+        final ReceivePipeline.Progress written = end -> onWritten(end, progress);
+        // A single pipeline runs over the whole payload, rather than one per segment
+        final boolean pipelined = writeMode == WriteMode.POSITIONAL && JDLink.isPipelined(codec);
+        while (length > 0) {
+            final long segment = pipelined ? length : Math.min(length, SEGMENT_SIZE);
+            if (writeMode == WriteMode.MAPPED && codec == Codec.NONE) {
+                JDLink.readRemoteToMappedFile(in, channel, position, segment, socket);
+                written.written(position + segment);
+            } else {
+                JDLink.readRemoteToFileAt(in, channel, position, segment, socket, codec, written);
+            }
+            position += segment;
+            length -= segment;
+        }
+    }
+
+    private void onWritten(final long end, @Nullable final ReceivePipeline.Progress progress) throws IOException {
+        unsyncedBytes += end - receivedEnd;
+        receivedEnd = end;
+        if (syncPolicy == SyncPolicy.PERIODIC && unsyncedBytes >= syncInterval)
+            sync();
+        if (progress != null)
+            progress.written(end);
+    }
+
+    /**
+     * The payload is complete, forces it to disk unless the sync policy leaves that to the operating system.
+     */
+    void finish() throws IOException {
+        if (syncPolicy != SyncPolicy.NONE && unsyncedBytes > 0)
+            sync();
+    }
+
+    private void sync() throws IOException {
+        final long begin = System.nanoTime();
+        channel.force(false);
+        metrics.addWriteNanos(System.nanoTime() - begin);
+        unsyncedBytes = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
@@ -0,0 +1,186 @@
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import model.TransferRequest;
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+
+/**
+ * Reassembles a file that a sender split into byte ranges over several connections. The first range to arrive
+ * creates and preallocates the save file, every range then writes at its own offset through the shared channel,
+ * and the file is closed once the last range has completed. A transfer whose remaining ranges stop arriving is
+ * discarded once it has been idle for {@code rangeIdleTimeoutSeconds}.
+ */
+@Log4j2
+public class RangeAssembler {
+    // Configuration
+    private static final String IDLE_TIMEOUT_KEY = "rangeIdleTimeoutSeconds";
+    private static final int DEFAULT_IDLE_TIMEOUT_SECONDS = 300;
+    private static final long SWEEP_INTERVAL_SECONDS = 10;
+
+    private static final Map<String, RangeAssembler> assemblies = new ConcurrentHashMap<>();
+    // The first range of a transfer asks for permission, the other ranges share its answer
+    private static final Map<String, Permission> permissions = new ConcurrentHashMap<>();
+
+    static {
+        Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("jd-range-sweeper").setDaemon(true).build())
+                .scheduleWithFixedDelay(() -> expireIdle(TimeUnit.SECONDS.toNanos(
+                                Settings.getIntSetting(IDLE_TIMEOUT_KEY, DEFAULT_IDLE_TIMEOUT_SECONDS))),
+                        SWEEP_INTERVAL_SECONDS, SWEEP_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    @Nonnull
+    private final String key;
+    @Nonnull
+    private final File saveFile;
+    @Getter
+    @Nonnull
+    private final FileChannel channel;
+    private final int streams;
+    private int completedRanges;
+    // Ranges that have joined but not completed yet, the assembly is only idle while there are none
+    private int activeRanges;
+    private long idleSinceNanos = System.nanoTime();
+    private boolean failed;
+
+    private RangeAssembler(@Nonnull final String key,
+                           @Nonnull final TransferRequest request,
+                           @Nonnull final String directory) throws IOException {
+        this.key = key;
+        this.streams = request.getStreams();
+        saveFile = FileUtils.createUniqueFile(request.getFilename(), directory);
+        final RandomAccessFile file = new RandomAccessFile(saveFile, "rw");
+        file.setLength(request.getFilesize());
+        channel = file.getChannel();
+        log.debug("preallocated " + saveFile.getName() + " for " + streams + " streams");
+    }
+
+    /**
+     * @param sender the address of the sending host, transfer ids are only unique per sender
+     */
+    @Nonnull
+    public static RangeAssembler join(@Nonnull final String sender,
+                                      @Nonnull final TransferRequest request,
+                                      @Nonnull final String directory) throws IOException {
+        final RangeAssembler assembly;
+        try {
+            assembly = assemblies.computeIfAbsent(getKey(sender, request), k -> {
+                try {
+                    return new RangeAssembler(k, request, directory);
+                } catch (IOException e) {
+                    throw new AssemblyException(e);
+                }
+            });
+        } catch (AssemblyException e) {
+            throw (IOException) e.getCause();
+        }
+        assembly.attach();
+        return assembly;
+    }
+
+    /**
+     * Every range of a transfer carries the same file, so only the first range to arrive asks for permission.
+     *
+     * @param sender the address of the sending host
+     * @param ask    asks for permission to receive the whole file
+     */
+    @Nonnull
+    public static CompletableFuture<Boolean> requestPermission(@Nonnull final String sender,
+                                                               @Nonnull final TransferRequest request,
+                                                               @Nonnull final Supplier<CompletableFuture<Boolean>> ask) {
+        return permissions.computeIfAbsent(getKey(sender, request), k -> new Permission(ask.get())).decision;
+    }
+
+    @Nonnull
+    private static String getKey(@Nonnull final String sender, @Nonnull final TransferRequest request) {
+        return sender + "#" + request.getTransferId();
+    }
+
+    private synchronized void attach() throws IOException {
+        if (failed)
+            throw new IOException("Transfer of " + saveFile.getName() + " has already failed");
+        activeRanges++;
+    }
+
+    public synchronized void completeRange(@Nonnull final TransferRequest request) throws IOException {
+        if (failed)
+            throw new IOException("Transfer of " + saveFile.getName() + " has already failed");
+        completedRanges++;
+        activeRanges--;
+        idleSinceNanos = System.nanoTime();
+        log.debug("completed range at " + request.getOffset() + " (" + completedRanges + "/" + streams + ")");
+        if (completedRanges == streams) {
+            assemblies.remove(key);
+            permissions.remove(key);
+            channel.close();
+            log.debug("successfully reassembled " + saveFile.getName());
+        }
+    }
+
+    /**
+     * A single failed range invalidates the whole file, so the remaining ranges are aborted as well.
+     */
+    public synchronized void fail() {
+        if (failed)
+            return;
+        failed = true;
+        assemblies.remove(key);
+        permissions.remove(key);
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (!saveFile.delete())
+            log.error("Could not delete incomplete file " + saveFile.getName());
+    }
+
+    /**
+     * Discards transfers that no range has been working on for longer than {@code idleNanos}, and forgets
+     * permissions for transfers whose ranges never arrived.
+     */
+    @VisibleForTesting
+    static void expireIdle(final long idleNanos) {
+        final long now = System.nanoTime();
+        for (RangeAssembler assembly : assemblies.values()) {
+            assembly.expireIfIdle(now, idleNanos);
+        }
+        permissions.entrySet().removeIf(entry -> !assemblies.containsKey(entry.getKey())
+                && now - entry.getValue().askedNanos > idleNanos);
+    }
+
+    private synchronized void expireIfIdle(final long now, final long idleNanos) {
+        if (activeRanges > 0 || now - idleSinceNanos <= idleNanos)
+            return;
+        log.error("No range of " + saveFile.getName() + " has arrived for "
+                + TimeUnit.NANOSECONDS.toSeconds(idleNanos) + "s, discarding it");
+        fail();
+    }
+
+    private static class Permission {
+        @Nonnull
+        private final CompletableFuture<Boolean> decision;
+        private final long askedNanos = System.nanoTime();
+
+        Permission(@Nonnull final CompletableFuture<Boolean> decision) {
+            this.decision = decision;
+        }
+    }
+
+    private static class AssemblyException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        AssemblyException(@Nonnull final IOException cause) {
+            super(cause);
+        }
+    }
+}
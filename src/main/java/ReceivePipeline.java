@@ -0,0 +1,191 @@
+import bandwidth.Throttle;
+import metrics.TransferMetrics;
+import com.google.common.annotations.VisibleForTesting;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.*;
+
+/**
+ * Receives a payload in two stages, so that a slow disk does not stall the socket and vice versa. The calling
+ * thread fills buffers from the network into a bounded ring, while a disk thread drains the ring into the file.
+ * Once the ring is full the network stage waits, which lets TCP push back on the sender.
+ */
+class ReceivePipeline {
+    @VisibleForTesting
+    static final int BUFFER_SIZE = 256 * 1024;
+    private static final int RING_SIZE = 8;
+    // Direct buffers are expensive to allocate, so they are kept around for the next transfer
+    private static final int MAX_POOLED_BUFFERS = 4 * RING_SIZE;
+    private static final Queue<ByteBuffer> POOL = new ConcurrentLinkedQueue<>();
+    private static final ExecutorService DISK_STAGE = Executors.newCachedThreadPool(runnable -> {
+        final Thread thread = new Thread(runnable, "jd-disk-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Tells the disk stage that no more buffers follow
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+    // How often the network stage looks whether the disk stage failed while it waits for a free buffer
+    private static final long DISK_CHECK_MILLIS = 100;
+
+    /**
+     * Told by the disk stage how far the payload has been written, so that callers can track progress within a
+     * single copy instead of splitting the payload into several.
+     */
+    interface Progress {
+        /**
+         * @param end the file position up to which every byte has been written, called on the disk thread
+         */
+        void written(long end) throws IOException;
+    }
+
+    private ReceivePipeline() {
+    }
+
+    /**
+     * Copies exactly {@code byteSize} bytes from {@code in} to {@code out} starting at {@code position}, without
+     * touching the file channel's own position. If either stage fails, the disk stage's failure is thrown.
+     */
+    static void copy(@Nonnull final ReadableByteChannel in,
+                     @Nonnull final FileChannel out,
+                     final long position,
+                     final long byteSize) throws IOException {
+        copy(in, out, position, byteSize, null);
+    }
+
+    /**
+     * Like {@link #copy(ReadableByteChannel, FileChannel, long, long)}, and reports to {@code progress} after every
+     * buffer that reaches the file. A failure in {@code progress} stops the copy like a failed write.
+     */
+    static void copy(@Nonnull final ReadableByteChannel in,
+                     @Nonnull final FileChannel out,
+                     final long position,
+                     final long byteSize,
+                     @Nullable final Progress progress) throws IOException {
+        final TransferMetrics metrics = TransferMetrics.current();
+        final BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<>(RING_SIZE);
+        // Room for every buffer plus the end marker, so handing over never blocks
+        final BlockingQueue<ByteBuffer> filled = new ArrayBlockingQueue<>(RING_SIZE + 1);
+        for (int i = 0; i < RING_SIZE; i++)
+            free.add(acquireBuffer());
+        final Future<Long> disk = DISK_STAGE.submit(() -> drain(filled, free, out, position, progress));
+
+        IOException failure = null;
+        try {
+            fill(in, byteSize, free, filled, disk, metrics);
+        } catch (IOException e) {
+            failure = e;
+        }
+        filled.add(END);
+        try {
+            metrics.addWriteNanos(disk.get());
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            failure = cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            if (failure == null)
+                failure = new InterruptedIOException("Interrupted while waiting for the disk stage");
+        }
+
+        final List<ByteBuffer> remaining = new ArrayList<>();
+        free.drainTo(remaining);
+        filled.drainTo(remaining);
+        remaining.stream().filter(buffer -> buffer != END).forEach(ReceivePipeline::releaseBuffer);
+        if (failure != null)
+            throw failure;
+    }
+
+    private static void fill(@Nonnull final ReadableByteChannel in,
+                             final long byteSize,
+                             @Nonnull final BlockingQueue<ByteBuffer> free,
+                             @Nonnull final BlockingQueue<ByteBuffer> filled,
+                             @Nonnull final Future<Long> disk,
+                             @Nonnull final TransferMetrics metrics) throws IOException {
+        final Throttle throttle = Throttle.current();
+        long bytesProcessed = 0;
+        while (bytesProcessed < byteSize) {
+            final ByteBuffer buffer = takeFree(free, disk);
+            buffer.limit((int) Math.min(buffer.capacity(), byteSize - bytesProcessed));
+            final long begin = System.nanoTime();
+            // Fill the whole buffer, so that the disk stage writes in large blocks
+            boolean ended = false;
+            while (buffer.hasRemaining() && !ended)
+                ended = in.read(buffer) < 0;
+            metrics.addReadNanos(System.nanoTime() - begin);
+            buffer.flip();
+            metrics.addBytes(buffer.remaining());
+            if (ended) {
+                // What did arrive is still written, so that a resumed transfer can build on it
+                filled.add(buffer);
+                throw new EOFException("Stream ended after " + (bytesProcessed + buffer.remaining()) + " bytes");
+            }
+            bytesProcessed += buffer.remaining();
+            throttle.acquire(buffer.remaining());
+            filled.add(buffer);
+        }
+    }
+
+    @Nonnull
+    private static ByteBuffer takeFree(@Nonnull final BlockingQueue<ByteBuffer> free,
+                                       @Nonnull final Future<Long> disk) throws IOException {
+        try {
+            while (true) {
+                final ByteBuffer buffer = free.poll(DISK_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+                if (buffer != null)
+                    return buffer;
+                if (disk.isDone())
+                    throw new IOException("Disk stage stopped before the payload was written");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a free buffer");
+        }
+    }
+
+    /**
+     * @return nanoseconds spent writing
+     */
+    private static long drain(@Nonnull final BlockingQueue<ByteBuffer> filled,
+                              @Nonnull final BlockingQueue<ByteBuffer> free,
+                              @Nonnull final FileChannel out,
+                              final long start,
+                              @Nullable final Progress progress) throws IOException, InterruptedException {
+        long position = start, writeNanos = 0;
+        while (true) {
+            final ByteBuffer buffer = filled.take();
+            if (buffer == END)
+                return writeNanos;
+            final long begin = System.nanoTime();
+            while (buffer.hasRemaining())
+                position += out.write(buffer, position);
+            writeNanos += System.nanoTime() - begin;
+            buffer.clear();
+            free.add(buffer);
+            if (progress != null)
+                progress.written(position);
+        }
+    }
+
+    @Nonnull
+    private static ByteBuffer acquireBuffer() {
+        final ByteBuffer buffer = POOL.poll();
+        return buffer != null ? buffer : ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+
+    private static void releaseBuffer(@Nonnull final ByteBuffer buffer) {
+        buffer.clear();
+        // Not exact under contention, the bound only keeps the pool from growing without limit
+        if (POOL.size() < MAX_POOLED_BUFFERS)
+            POOL.offer(buffer);
+    }
+}
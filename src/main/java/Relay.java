@@ -0,0 +1,166 @@
+import metrics.TransferMetrics;
+import model.ProtocolConstants;
+import model.TransferRequest;
+import protocol.ControlMessage;
+import protocol.FrameReader;
+import protocol.MessageType;
+import lombok.extern.log4j.Log4j2;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.*;
+import java.net.Socket;
+
+/**
+ * Passes a transfer on to the next receiver of a chain while it is still being received here, so that the file
+ * reaches every receiver of the chain in about the time of a single transfer. Payload is forwarded exactly as it
+ * arrives, compressed or not, as it is read for the local copy. A next hop that fails only ends the chain there,
+ * the local copy is received either way.
+ */
+@Log4j2
+class Relay {
+    @Nonnull
+    private final String nextHop;
+    @Nonnull
+    private final Socket sock;
+    @Nonnull
+    private final DataOutputStream out;
+    // Not bound to the thread, which already records the incoming transfer
+    @Nonnull
+    private final TransferMetrics metrics;
+    private boolean failed;
+
+    private Relay(@Nonnull final String nextHop,
+                  @Nonnull final Socket sock,
+                  @Nonnull final DataOutputStream out,
+                  @Nonnull final TransferMetrics metrics) {
+        this.nextHop = nextHop;
+        this.sock = sock;
+        this.out = out;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Asks the next hop to take the file, passing on the rest of the chain.
+     *
+     * @return the open relay once the next hop accepted, null if it could not be reached or declined
+     */
+    @Nullable
+    static Relay open(@Nonnull final TransferRequest request) {
+        final String nextHop = request.getRelayHops().get(0);
+        final TransferRequest forwarded = new TransferRequest(request.getFilesize(), request.getFilename(), nextHop,
+                1, "", 0, request.getFilesize(), request.getCompression(), 0, false, 0,
+                request.getRelayHops().subList(1, request.getRelayHops().size()));
+        final TransferMetrics metrics = new TransferMetrics(TransferMetrics.Direction.SEND, nextHop);
+        metrics.setFilename(request.getFilename());
+        Socket sock = null;
+        try {
+            final long handshakeStart = System.nanoTime();
+            sock = SocketTuning.connect(nextHop, ProtocolConstants.PORT, false);
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(sock.getOutputStream()));
+            ControlMessage.fromTransferRequest(forwarded).writeTo(out);
+            final ControlMessage response = new FrameReader(in).read(MessageType.RESPONSE);
+            final String status = response.getString(ControlMessage.STATUS);
+            if (!ProtocolConstants.OK_RESPONSE.equals(status))
+                throw new IOException("Next hop answered " + status);
+            // Payload is forwarded as it arrives, so the next hop has to decode it with the same codec
+            if (response.has(ControlMessage.COMPRESSION)
+                    && !forwarded.getCompression().name().equals(response.getString(ControlMessage.COMPRESSION)))
+                throw new IOException("Next hop does not decode " + forwarded.getCompression());
+            // Payload is forwarded from its first byte, so a partial copy at the next hop cannot be resumed
+            if (response.has(ControlMessage.RESUME_OFFSET))
+                new ControlMessage(MessageType.RESUME_CONFIRMATION).putLong(ControlMessage.OFFSET, 0).writeTo(out);
+            metrics.addHandshakeNanos(System.nanoTime() - handshakeStart);
+            log.debug("relaying " + request.getFilename() + " to " + nextHop + ", "
+                    + forwarded.getRelayHops().size() + " hops after it");
+            return new Relay(nextHop, sock, out, metrics);
+        } catch (IOException e) {
+            e.printStackTrace();
+            log.error("Could not relay " + request.getFilename() + " to " + nextHop + ", receiving it here only");
+            metrics.fail(e);
+            if (sock != null) {
+                try {
+                    sock.close();
+                } catch (IOException closeException) {
+                    closeException.printStackTrace();
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * @return a stream that forwards everything read from {@code in} before handing it out
+     */
+    @Nonnull
+    InputStream tee(@Nonnull final InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                final int b = super.read();
+                if (b >= 0)
+                    forward(new byte[]{(byte) b}, 0, 1);
+                return b;
+            }
+
+            @Override
+            public int read(@Nonnull final byte[] b, final int off, final int len) throws IOException {
+                final int read = super.read(b, off, len);
+                if (read > 0)
+                    forward(b, off, read);
+                return read;
+            }
+
+            @Override
+            public long skip(final long n) throws IOException {
+                // Skipped bytes still have to reach the next hop
+                final byte[] skipped = new byte[(int) Math.min(n, 8192)];
+                return Math.max(0, read(skipped, 0, skipped.length));
+            }
+        };
+    }
+
+    private void forward(@Nonnull final byte[] b, final int off, final int len) {
+        if (failed)
+            return;
+        try {
+            final long begin = System.nanoTime();
+            out.write(b, off, len);
+            metrics.addWriteNanos(System.nanoTime() - begin);
+            metrics.addBytes(len);
+        } catch (IOException e) {
+            e.printStackTrace();
+            log.error("Relaying to " + nextHop + " has failed after " + metrics.getBytes() + " bytes");
+            failed = true;
+            metrics.fail(e);
+        }
+    }
+
+    /**
+     * Ends the forwarded transfer. The next hop checks that it got every byte once the connection closes, so a
+     * transfer that broke off here breaks off there too.
+     *
+     * @param received whether the whole payload arrived here
+     */
+    void close(final boolean received) {
+        try {
+            if (!failed)
+                out.flush();
+            if (received && !failed)
+                metrics.succeed();
+            else
+                metrics.fail(failed ? "relay-failed" : "incomplete");
+        } catch (IOException e) {
+            e.printStackTrace();
+            metrics.fail(e);
+        } finally {
+            try {
+                sock.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+                log.error("There was a problem with closing the relay connection");
+            }
+        }
+    }
+}
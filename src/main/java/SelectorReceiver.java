@@ -0,0 +1,216 @@
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.log4j.Log4j2;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.*;
+
+/**
+ * Event-driven alternative to the thread-per-connection {@link JDServer}. Accepted connections are spread over a
+ * small, fixed number of selector threads, so idle or slow senders cost a registered key rather than a blocked
+ * thread. Creating and writing save files runs on a separate pool of disk threads, so that a slow disk does not
+ * hold up the other connections of a selector thread.
+ */
+@Log4j2
+public class SelectorReceiver {
+    private static final long DRAIN_SELECT_TIMEOUT_MS = 500;
+    private static final int DISK_THREADS_PER_SELECTOR = 2;
+    // How long to back off after accept() has failed, e.g. when running out of file descriptors
+    private static final long ACCEPT_RETRY_MS = 100;
+    // How long a selector thread gets to close its connections once the drain timeout has elapsed
+    private static final long CLOSE_TIMEOUT_MS = 5000;
+
+    @Nonnull
+    private final Worker[] workers;
+    @Nonnull
+    private final ServerSocketChannel serverChannel;
+    @Nonnull
+    private final ExecutorService disk;
+    private volatile boolean accepting = true;
+
+    public SelectorReceiver(final int port, final int selectorThreads) throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        SocketTuning.bind(serverChannel.socket(), port);
+        disk = Executors.newFixedThreadPool(selectorThreads * DISK_THREADS_PER_SELECTOR,
+                new ThreadFactoryBuilder().setNameFormat("jd-selector-disk-%d").build());
+        workers = new Worker[selectorThreads];
+        for (int i = 0; i < selectorThreads; i++) {
+            workers[i] = new Worker(Selector.open());
+        }
+    }
+
+    @VisibleForTesting
+    int getLocalPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    public void serve() throws IOException {
+        log.debug("Listening on port " + getLocalPort() + " with " + workers.length + " selector threads");
+        for (int i = 0; i < workers.length; i++) {
+            new Thread(workers[i], "jd-selector-" + i).start();
+        }
+        int next = 0;
+        while (accepting) {
+            final SocketChannel client;
+            try {
+                client = serverChannel.accept();
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                // Such as running out of file descriptors, which connections finishing meanwhile may resolve
+                e.printStackTrace();
+                log.error("Could not accept a connection");
+                pause(ACCEPT_RETRY_MS);
+                continue;
+            }
+            try {
+                client.configureBlocking(false);
+                SocketTuning.configure(client.socket());
+            } catch (IOException e) {
+                e.printStackTrace();
+                log.error("Could not set up the connection from " + client.socket().getInetAddress());
+                client.close();
+                continue;
+            }
+            final Worker worker = workers[next++ % workers.length];
+            final NioConnection connection = new NioConnection(client, worker, disk);
+            worker.execute(() -> {
+                try {
+                    connection.register(worker.selector);
+                } catch (IOException e) {
+                    connection.fail(e);
+                }
+            });
+        }
+    }
+
+    private static void pause(final long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stops accepting new connections and lets the selector threads finish the transfers they hold.
+     * Connections that are still open once the timeout elapses are closed by their selector threads.
+     */
+    public void shutdown(final long timeoutSeconds) {
+        accepting = false;
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+            log.error("There was a problem with closing the server socket");
+        }
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+        for (Worker worker : workers) {
+            worker.selector.wakeup();
+        }
+        try {
+            for (Worker worker : workers) {
+                worker.done.await(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            }
+            // Connection state belongs to the selector threads, so they close whatever is left themselves
+            for (Worker worker : workers) {
+                worker.stop();
+            }
+            for (Worker worker : workers) {
+                if (!worker.done.await(CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS))
+                    log.error("Selector thread did not stop within " + CLOSE_TIMEOUT_MS + "ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // Lets writes that are under way finish, their connections are already closed
+        disk.shutdown();
+    }
+
+    private final class Worker implements Runnable, Executor {
+        @Nonnull
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final CountDownLatch done = new CountDownLatch(1);
+        // Set once the drain timeout has elapsed, the thread then closes the connections it still holds
+        private volatile boolean stopped;
+
+        Worker(@Nonnull final Selector selector) {
+            this.selector = selector;
+        }
+
+        /**
+         * Runs the task on this worker's selector thread, all connection state is only touched from there.
+         */
+        @Override
+        public void execute(@Nonnull final Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                // Once we stop accepting, keep serving until every registered connection has finished
+                while (!stopped && (accepting || !selector.keys().isEmpty() || !tasks.isEmpty())) {
+                    // While draining, wake up periodically since no new registrations will do it for us
+                    if (accepting)
+                        selector.select();
+                    else
+                        selector.select(DRAIN_SELECT_TIMEOUT_MS);
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    final Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                    while (selected.hasNext()) {
+                        final SelectionKey key = selected.next();
+                        selected.remove();
+                        handle(key);
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                if (accepting) {
+                    e.printStackTrace();
+                    log.error("Selector thread has failed");
+                }
+            } finally {
+                closeAll();
+                done.countDown();
+            }
+        }
+
+        void stop() {
+            stopped = true;
+            selector.wakeup();
+        }
+
+        private void handle(@Nonnull final SelectionKey key) {
+            final NioConnection connection = (NioConnection) key.attachment();
+            try {
+                if (key.isValid() && key.isReadable())
+                    connection.onReadable();
+                if (key.isValid() && key.isWritable())
+                    connection.onWritable();
+            } catch (IOException | CancelledKeyException e) {
+                connection.fail(e);
+            }
+        }
+
+        private void closeAll() {
+            try {
+                for (SelectionKey key : new ArrayList<>(selector.keys())) {
+                    ((NioConnection) key.attachment()).close();
+                }
+                selector.close();
+            } catch (IOException | ClosedSelectorException e) {
+                log.error("There was a problem with closing the selector");
+            }
+        }
+    }
+}
@@ -0,0 +1,338 @@
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Splitter;
+import com.google.common.io.BaseEncoding;
+import com.google.common.net.InetAddresses;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.log4j.Log4j2;
+import model.ProtocolConstants;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A long-running sender that keeps sessions to recently used receivers open, so that scripts sending many files
+ * to the same hosts pay for neither a JVM start nor a connection per file. Files are handed to it over a text
+ * API on the loopback interface, one command per line:
+ * <pre>
+ *     AUTH &lt;token&gt;
+ *     SEND &lt;destination&gt; &lt;path&gt;
+ * </pre>
+ * Other local users can reach the loopback port too, so every connection has to start with the token the daemon
+ * writes to a file only this user can read. Each command is answered with a line of "OK" or
+ * "FAILED &lt;reason&gt;", a wrong token closes the connection. JDClient hands its files to a running daemon on
+ * its own.
+ */
+@Log4j2
+public class SenderDaemon {
+    // Configuration
+    private static final String DAEMON_PORT_KEY = "senderDaemonPort";
+    private static final int DEFAULT_DAEMON_PORT = ProtocolConstants.PORT + 1;
+    // Idle sessions are closed after this long, before the receiver times them out on its end
+    private static final String SESSION_IDLE_KEY = "sessionIdleSeconds";
+    private static final int DEFAULT_SESSION_IDLE_SECONDS = 30;
+    private static final String MAX_SESSIONS_KEY = "sessionMaxHosts";
+    private static final int DEFAULT_MAX_SESSIONS = 8;
+    // How long the CLI waits for a daemon to accept its connection before sending on its own
+    private static final int HAND_OFF_CONNECT_TIMEOUT_MILLIS = 200;
+    private static final int TOKEN_BYTES = 32;
+
+    static final String AUTH_COMMAND = "AUTH";
+    static final String SEND_COMMAND = "SEND";
+    static final String OK_REPLY = "OK";
+    static final String FAILED_REPLY = "FAILED";
+
+    // In access order, so that the least recently used session is evicted first
+    private final Map<String, SenderSession> sessions = new LinkedHashMap<>(16, 0.75f, true);
+    // Receivers that could not open a session, files are sent to them over one-off connections for a while
+    private final Map<String, Long> declinedNanos = new ConcurrentHashMap<>();
+    private final ExecutorService clients = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat("jd-daemon-client-%d").setDaemon(true).build());
+    private final ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("jd-session-reaper").setDaemon(true).build());
+    private final long idleNanos;
+    private final int maxSessions;
+    @Nonnull
+    private final File tokenFile;
+    // Written to the token file once the daemon listens
+    @Nullable
+    private volatile String token;
+
+    @VisibleForTesting
+    SenderDaemon(final int idleSeconds, final int maxSessions, @Nonnull final File tokenFile) {
+        this.idleNanos = TimeUnit.SECONDS.toNanos(idleSeconds);
+        this.maxSessions = maxSessions;
+        this.tokenFile = tokenFile;
+    }
+
+    /**
+     * Serves the local API until the process is stopped.
+     */
+    static void run() {
+        final SenderDaemon daemon = new SenderDaemon(
+                Settings.getIntSetting(SESSION_IDLE_KEY, DEFAULT_SESSION_IDLE_SECONDS),
+                Settings.getIntSetting(MAX_SESSIONS_KEY, DEFAULT_MAX_SESSIONS), new File(Settings.DAEMON_TOKEN_PATH));
+        Runtime.getRuntime().addShutdownHook(new Thread(daemon::stop));
+        try (final ServerSocket serverSocket = bind(Settings.getIntSetting(DAEMON_PORT_KEY, DEFAULT_DAEMON_PORT))) {
+            daemon.serve(serverSocket);
+        } catch (IOException e) {
+            e.printStackTrace();
+            log.error("Sender daemon has failed");
+        }
+    }
+
+    @Nonnull
+    @VisibleForTesting
+    static ServerSocket bind(final int port) throws IOException {
+        // Loopback only, and even there only clients that know the token are served
+        return new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+    }
+
+    /**
+     * Publishes a fresh token, then serves the local API until the socket is closed.
+     */
+    @VisibleForTesting
+    void serve(@Nonnull final ServerSocket serverSocket) throws IOException {
+        token = writeToken(tokenFile);
+        reaper.scheduleWithFixedDelay(this::closeIdleSessions, 1, 1, TimeUnit.SECONDS);
+        log.debug("Sender daemon listening on " + serverSocket.getLocalSocketAddress());
+        while (!serverSocket.isClosed()) {
+            final Socket client;
+            try {
+                client = serverSocket.accept();
+            } catch (SocketException e) {
+                if (serverSocket.isClosed())
+                    return;
+                throw e;
+            }
+            clients.execute(() -> handle(client));
+        }
+    }
+
+    /**
+     * Writes a new random token to a file that only this user may read, replacing the previous daemon's.
+     */
+    @Nonnull
+    private static String writeToken(@Nonnull final File tokenFile) throws IOException {
+        final byte[] secret = new byte[TOKEN_BYTES];
+        new SecureRandom().nextBytes(secret);
+        final String token = BaseEncoding.base16().lowerCase().encode(secret);
+        final File directory = tokenFile.getAbsoluteFile().getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Could not create " + directory);
+        // Created with its permissions rather than restricted afterwards, so that it is never readable by others
+        final Path staged = Files.createTempFile(directory.toPath(), tokenFile.getName(), ".tmp",
+                PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        try {
+            Files.write(staged, token.getBytes(StandardCharsets.US_ASCII));
+            Files.move(staged, tokenFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(staged);
+        }
+        return token;
+    }
+
+    /**
+     * Closes every session and withdraws the token, so that no client mistakes a stale one for a running daemon.
+     */
+    @VisibleForTesting
+    void stop() {
+        closeAllSessions();
+        if (token != null && tokenFile.exists() && !tokenFile.delete())
+            log.error("Could not delete " + tokenFile);
+    }
+
+    private void handle(@Nonnull final Socket client) {
+        try (final Socket socket = client;
+             final BufferedReader reader = new BufferedReader(
+                     new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             final Writer writer = new BufferedWriter(
+                     new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
+            final String auth = reader.readLine();
+            if (auth == null)
+                return;
+            if (!isAuthorized(auth)) {
+                log.error("Local client on port " + socket.getPort() + " has not presented the daemon's token");
+                writer.write(FAILED_REPLY + " unauthorized\n");
+                writer.flush();
+                return;
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty())
+                    continue;
+                writer.write(execute(line) + "\n");
+                writer.flush();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            log.error("Lost connection to a local client");
+        }
+    }
+
+    private boolean isAuthorized(@Nonnull final String line) {
+        final String expected = token;
+        final List<String> parts = Splitter.on(' ').limit(2).splitToList(line.trim());
+        // Compared in constant time, so that the token cannot be guessed byte by byte
+        return expected != null && parts.size() == 2 && AUTH_COMMAND.equals(parts.get(0))
+                && MessageDigest.isEqual(expected.getBytes(StandardCharsets.US_ASCII),
+                parts.get(1).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    @Nonnull
+    @VisibleForTesting
+    String execute(@Nonnull final String command) {
+        // The path is last, so that it may contain spaces
+        final List<String> parts = Splitter.on(' ').limit(3).splitToList(command.trim());
+        if (parts.size() < 3 || !SEND_COMMAND.equals(parts.get(0)))
+            return FAILED_REPLY + " usage: " + SEND_COMMAND + " <destination> <path>";
+        final String destination = parts.get(1);
+        if (!"localhost".equals(destination) && !InetAddresses.isInetAddress(destination))
+            return FAILED_REPLY + " invalid destination " + destination;
+        final File source = new File(parts.get(2));
+        if (!source.isFile())
+            return FAILED_REPLY + " not a file: " + source;
+        return send(source, destination) ? OK_REPLY : FAILED_REPLY + " transfer of " + source.getName() + " failed";
+    }
+
+    private boolean send(@Nonnull final File source, @Nonnull final String destination) {
+        // A reused session may have been closed by the receiver in the meantime, which only shows once it is used
+        for (int attempt = 0; attempt < 2; attempt++) {
+            final SenderSession session = getSession(destination);
+            if (session == null)
+                return new ServerProcessor(source, destination).attemptTransfer();
+            final SenderSession.Outcome outcome = session.send(source);
+            if (outcome != SenderSession.Outcome.UNANSWERED)
+                return outcome == SenderSession.Outcome.SENT;
+            log.debug("session with " + destination + " was closed by the receiver, reconnecting");
+        }
+        return false;
+    }
+
+    /**
+     * @return an open session with the destination, null if the receiver does not take sessions
+     */
+    @Nullable
+    private SenderSession getSession(@Nonnull final String destination) {
+        synchronized (sessions) {
+            final SenderSession existing = sessions.get(destination);
+            if (existing != null && !existing.isClosed())
+                return existing;
+        }
+        final Long declined = declinedNanos.get(destination);
+        if (declined != null && System.nanoTime() - declined < idleNanos)
+            return null;
+
+        final SenderSession opened;
+        try {
+            opened = SenderSession.open(destination);
+        } catch (IOException e) {
+            log.debug("could not open a session with " + destination + ", using one-off connections: "
+                    + e.getMessage());
+            declinedNanos.put(destination, System.nanoTime());
+            return null;
+        }
+        declinedNanos.remove(destination);
+        final List<SenderSession> evicted = new ArrayList<>();
+        final SenderSession session;
+        synchronized (sessions) {
+            final SenderSession raced = sessions.get(destination);
+            if (raced != null && !raced.isClosed()) {
+                evicted.add(opened);
+                session = raced;
+            } else {
+                sessions.put(destination, opened);
+                session = opened;
+                final Iterator<SenderSession> eldest = sessions.values().iterator();
+                while (sessions.size() > maxSessions) {
+                    evicted.add(eldest.next());
+                    eldest.remove();
+                }
+            }
+        }
+        // Closing waits for a transfer in progress, so it happens outside the lock
+        evicted.forEach(SenderSession::close);
+        return session;
+    }
+
+    @VisibleForTesting
+    void closeIdleSessions() {
+        final List<SenderSession> idle = new ArrayList<>();
+        synchronized (sessions) {
+            final Iterator<SenderSession> iterator = sessions.values().iterator();
+            while (iterator.hasNext()) {
+                final SenderSession session = iterator.next();
+                if (session.isClosed() || (!session.isBusy()
+                        && System.nanoTime() - session.getLastUsedNanos() >= idleNanos)) {
+                    idle.add(session);
+                    iterator.remove();
+                }
+            }
+        }
+        idle.forEach(session -> {
+            log.debug("closing idle session with " + session.getDestination());
+            session.close();
+        });
+    }
+
+    private void closeAllSessions() {
+        final List<SenderSession> open;
+        synchronized (sessions) {
+            open = new ArrayList<>(sessions.values());
+            sessions.clear();
+        }
+        open.forEach(SenderSession::close);
+    }
+
+    /**
+     * Hands a file to a daemon running on this machine, if there is one.
+     *
+     * @return whether a daemon took the file, the outcome has been printed then
+     */
+    static boolean handOff(@Nonnull final File source, @Nonnull final String destination) {
+        return handOff(source, destination, Settings.getIntSetting(DAEMON_PORT_KEY, DEFAULT_DAEMON_PORT),
+                new File(Settings.DAEMON_TOKEN_PATH));
+    }
+
+    @VisibleForTesting
+    static boolean handOff(@Nonnull final File source,
+                           @Nonnull final String destination,
+                           final int port,
+                           @Nonnull final File tokenFile) {
+        if (!tokenFile.isFile())
+            return false;
+        try (final Socket socket = new Socket()) {
+            final String token = new String(Files.readAllBytes(tokenFile.toPath()), StandardCharsets.US_ASCII).trim();
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port),
+                    HAND_OFF_CONNECT_TIMEOUT_MILLIS);
+            final Writer writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+            writer.write(AUTH_COMMAND + " " + token + "\n");
+            writer.write(SEND_COMMAND + " " + destination + " " + source.getAbsolutePath() + "\n");
+            writer.flush();
+            final String reply = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8)).readLine();
+            if (reply == null)
+                System.out.println("Sender daemon has closed the connection");
+            else
+                System.out.println(OK_REPLY.equals(reply) ? "File data has been sent" : "Sender daemon: " + reply);
+            return true;
+        } catch (IOException e) {
+            log.debug("no sender daemon running, sending directly");
+            return false;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+import model.ProtocolConstants;
+import protocol.ControlMessage;
+import protocol.FrameReader;
+import protocol.MessageType;
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+
+import javax.annotation.Nonnull;
+import java.io.*;
+import java.net.Socket;
+
+/**
+ * An open connection to one receiver that carries one transfer after another, so that successive files skip the
+ * TCP handshake. Transfers over a session run one at a time. Any failed transfer closes the session.
+ */
+@Log4j2
+class SenderSession implements Closeable {
+    @Getter
+    @Nonnull
+    private final String destination;
+    @Getter
+    @Nonnull
+    private final Socket socket;
+    @Getter
+    @Nonnull
+    private final DataInputStream in;
+    @Getter
+    @Nonnull
+    private final DataOutputStream out;
+    @Getter
+    private volatile long lastUsedNanos = System.nanoTime();
+    @Getter
+    private volatile boolean busy;
+    // Read without the monitor, which send holds for the whole transfer
+    private volatile boolean closed;
+
+    private SenderSession(@Nonnull final String destination, @Nonnull final Socket socket) throws IOException {
+        this.destination = destination;
+        this.socket = socket;
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    }
+
+    /**
+     * Connects and asks the receiver to keep the connection open between transfers.
+     *
+     * @throws IOException if the receiver cannot be reached or does not support sessions
+     */
+    @Nonnull
+    static SenderSession open(@Nonnull final String destination) throws IOException {
+        final Socket socket = SocketTuning.connect(destination, ProtocolConstants.PORT, JDLink.isZeroCopyEnabled());
+        try {
+            final SenderSession session = new SenderSession(destination, socket);
+            ControlMessage.sessionStart().writeTo(session.out);
+            session.out.flush();
+            final String status = new FrameReader(session.in).read(MessageType.RESPONSE)
+                    .getString(ControlMessage.STATUS);
+            if (!ProtocolConstants.OK_RESPONSE.equals(status))
+                throw new IOException("Receiver has declined the session: " + status);
+            log.debug("opened session with " + destination);
+            return session;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    enum Outcome {
+        SENT,
+        FAILED,
+        // The receiver never answered the request, most likely it had already closed the idle connection, or it
+        // turned down the window sent ahead. Either way the file can be sent again over a new session.
+        UNANSWERED
+    }
+
+    /**
+     * Sends a file, closing the session unless it was sent.
+     */
+    @Nonnull
+    synchronized Outcome send(@Nonnull final File source) {
+        busy = true;
+        final ServerProcessor processor = new ServerProcessor(source, this);
+        final boolean sent;
+        try {
+            sent = processor.attemptTransfer();
+        } finally {
+            lastUsedNanos = System.nanoTime();
+            busy = false;
+        }
+        if (sent)
+            return Outcome.SENT;
+        close();
+        return processor.isAnswered() && !processor.isWindowRejected() ? Outcome.FAILED : Outcome.UNANSWERED;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed)
+            return;
+        closed = true;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+            log.error("There was a problem with closing the session with " + destination);
+        }
+    }
+}
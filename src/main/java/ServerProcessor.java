@@ -1,13 +1,44 @@
+import bandwidth.Throttle;
+import compression.Codec;
+import delta.BlockSignature;
+import delta.DeltaEncoder;
+import integrity.ChunkHasher;
+import metrics.TransferMetrics;
 import model.ProtocolConstants;
+import model.TransferRequest;
+import protocol.ControlMessage;
+import protocol.FrameReader;
+import protocol.MessageType;
 import com.google.common.annotations.VisibleForTesting;
+import lombok.Getter;
 import lombok.extern.log4j.Log4j2;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.io.*;
+import java.net.ProtocolException;
 import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 @Log4j2
 public class ServerProcessor {
+    // Configuration
+    static final String COMPRESSION_KEY = "compression";
+    private static final String INTEGRITY_CHECK_KEY = "integrityCheck";
+    private static final String DELTA_SYNC_KEY = "deltaSync";
+    // Whether payload is streamed right after the request instead of after the receiver's answer, saving a round
+    // trip per file. Receivers stage at most optimisticStagingKiB of it while they decide, and turn a larger window
+    // down with their limit, the file is then sent again without one.
+    static final String OPTIMISTIC_SEND_KEY = "optimisticSend";
+    static final String OPTIMISTIC_WINDOW_KEY = "optimisticWindowKiB";
+    private static final int DEFAULT_OPTIMISTIC_WINDOW_KIB = 256;
+    // What receivers that turned a window down said they stage, later windows to them stay within it
+    private static final Map<String, Long> stagingLimits = new ConcurrentHashMap<>();
+
     private Socket sock;
     private DataOutputStream out;
     private DataInputStream in;
@@ -15,18 +46,109 @@ public class ServerProcessor {
 
     private final File source;
     private final String destination;
+    // The byte range of the source this connection sends, the whole file unless it is one of several streams
+    private final int streams;
+    private final String transferId;
+    private final long offset, length;
+    // Switched to the codec the receiver answers with
+    private Codec compression;
+    private final int integrityChunkSize;
+    private final boolean deltaSync;
+    // Bytes sent ahead of the receiver's answer, 0 if the payload waits for it
+    private long optimisticLength;
+    // The connection belongs to the session if there is one, and is only closed by it
+    @Nullable
+    private final SenderSession session;
+    // Provides the payload from a read of the source shared with other connections, when the file is fanned out
+    @Nullable
+    private final FanOutRing.Feed feed;
+    // Receivers after the destination that the file is relayed to in turn
+    private final List<String> relayHops;
+    // Whether the receiver has answered the request, a request that was never answered can safely be sent again
+    @Getter
+    private boolean answered;
+    // Whether the receiver turned the request down for sending more ahead than it stages, which is safe to send
+    // again without the window
+    @Getter
+    private boolean windowRejected;
 
     public ServerProcessor(@Nonnull final File source, @Nonnull final String destination) {
+        this(source, destination, 1, "", 0, source.length());
+    }
+
+    public ServerProcessor(@Nonnull final File source,
+                           @Nonnull final String destination,
+                           final int streams,
+                           @Nonnull final String transferId,
+                           final long offset,
+                           final long length) {
+        this(source, destination, streams, transferId, offset, length, null, null, Collections.emptyList());
+    }
+
+    /**
+     * Sends the whole file to the first receiver of the chain, which relays it to the next one while receiving it,
+     * and so on down the chain.
+     */
+    public ServerProcessor(@Nonnull final File source, @Nonnull final List<String> chain) {
+        this(source, chain.get(0), 1, "", 0, source.length(), null, null, chain.subList(1, chain.size()));
+    }
+
+    /**
+     * Sends the whole file over the session's connection, which is left open for the next transfer.
+     */
+    ServerProcessor(@Nonnull final File source, @Nonnull final SenderSession session) {
+        this(source, session.getDestination(), 1, "", 0, source.length(), session, null, Collections.emptyList());
+    }
+
+    /**
+     * Sends the whole file from the chunks the feed shares with the other destinations of a fan-out. Compression,
+     * verification and delta sync would each work through the whole file once per destination, so they are off.
+     */
+    ServerProcessor(@Nonnull final File source,
+                    @Nonnull final String destination,
+                    @Nonnull final FanOutRing.Feed feed) {
+        this(source, destination, 1, "", 0, source.length(), null, feed, Collections.emptyList());
+    }
+
+    private ServerProcessor(@Nonnull final File source,
+                            @Nonnull final String destination,
+                            final int streams,
+                            @Nonnull final String transferId,
+                            final long offset,
+                            final long length,
+                            @Nullable final SenderSession session,
+                            @Nullable final FanOutRing.Feed feed,
+                            @Nonnull final List<String> relayHops) {
         this.source = source;
         this.destination = destination;
+        this.streams = streams;
+        this.transferId = transferId;
+        this.offset = offset;
+        this.length = length;
+        this.compression = feed == null ? chooseCompression(source) : Codec.NONE;
+        this.integrityChunkSize = feed == null && Settings.getBooleanSetting(INTEGRITY_CHECK_KEY, true)
+                ? ChunkHasher.DEFAULT_CHUNK_SIZE : 0;
+        // Opt-in, and only whole files can be matched against the receiver's older copy, never relayed ones
+        this.deltaSync = feed == null && streams == 1 && relayHops.isEmpty()
+                && Settings.getBooleanSetting(DELTA_SYNC_KEY, false);
+        this.optimisticLength = chooseOptimisticLength();
+        this.session = session;
+        this.feed = feed;
+        this.relayHops = relayHops;
         setupConnections();
     }
 
     private void setupConnections() {
         try {
-            sock = new Socket(destination, ProtocolConstants.PORT); // This should block
-            in = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
-            out = new DataOutputStream(new BufferedOutputStream(sock.getOutputStream()));
+            if (session != null) {
+                sock = session.getSocket();
+                in = session.getIn();
+                out = session.getOut();
+            } else {
+                sock = openSocket(); // This should block
+                in = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+                out = new DataOutputStream(new BufferedOutputStream(sock.getOutputStream()));
+            }
             fileIn = new FileInputStream(source);
         } catch (IOException e) {
             e.printStackTrace();
@@ -35,6 +157,44 @@ public class ServerProcessor {
         }
     }
 
+    @VisibleForTesting
+    static void forgetStagingLimits() {
+        stagingLimits.clear();
+    }
+
+    @Nonnull
+    private static Codec chooseCompression(@Nonnull final File source) {
+        final Codec configured = Codec.fromName(Settings.getStringSetting(COMPRESSION_KEY, Codec.NONE.name()));
+        if (configured == null || configured == Codec.NONE)
+            return Codec.NONE;
+        if (Codec.isLikelyCompressed(source.getName())) {
+            log.debug(source.getName() + " is already compressed, sending it raw");
+            return Codec.NONE;
+        }
+        return configured;
+    }
+
+    /**
+     * Only a whole, raw file can be sent ahead, anything else depends on the receiver's answer to know what to send.
+     */
+    private long chooseOptimisticLength() {
+        if (!Settings.getBooleanSetting(OPTIMISTIC_SEND_KEY, false) || streams > 1 || compression != Codec.NONE
+                || deltaSync)
+            return 0;
+        final long window = Settings.getIntSetting(OPTIMISTIC_WINDOW_KEY, DEFAULT_OPTIMISTIC_WINDOW_KIB) * 1024L;
+        return Math.min(length, Math.min(window, stagingLimits.getOrDefault(destination, Long.MAX_VALUE)));
+    }
+
+    @Nonnull
+    private Socket openSocket() throws IOException {
+        // Sockets opened through a channel expose getChannel(), which the zero-copy send path needs
+        return SocketTuning.connect(destination, ProtocolConstants.PORT, JDLink.isZeroCopyEnabled());
+    }
+
+    static void printQueuePosition(final long position) {
+        System.out.println("Receiver is busy, waiting at position " + position + " of its queue");
+    }
+
     private void closeConnectionsWithMessage(@Nonnull final String message) {
         System.out.println(message);
         closeConnections();
@@ -42,6 +202,11 @@ public class ServerProcessor {
 
     private void closeConnections() {
         try {
+            if (session != null) {
+                if (fileIn != null)
+                    fileIn.close();
+                return;
+            }
             if (sock != null)
                 sock.close();
             if (in != null)
@@ -58,44 +223,213 @@ public class ServerProcessor {
 
     @Nonnull
     @VisibleForTesting
-    String generateRequestString(@Nonnull final String filename,
-                                 @Nonnull final String host,
-                                 long filesize) {
-        return new StringBuilder()
-                .append(filename)
-                .append(ProtocolConstants.DELIMITER)
-                .append(filesize)
-                .append(ProtocolConstants.DELIMITER)
-                .append(host)
-                .toString();
-    }
-
-    public void attemptTransfer() {
+    TransferRequest generateRequest(@Nonnull final String filename,
+                                    @Nonnull final String host,
+                                    long filesize) {
+        return new TransferRequest(filesize, filename, host, streams, transferId, offset, length, compression,
+                integrityChunkSize, deltaSync, optimisticLength, relayHops);
+    }
+
+    /**
+     * @return the codec the receiver has agreed to decode, receivers that do not name one decode the requested one
+     */
+    @Nonnull
+    static Codec getAcceptedCompression(@Nonnull final ControlMessage response,
+                                        @Nonnull final Codec compression) throws ProtocolException {
+        if (!response.has(ControlMessage.COMPRESSION))
+            return compression;
+        final String name = response.getString(ControlMessage.COMPRESSION);
+        final Codec accepted = Codec.fromName(name);
+        if (accepted != compression && accepted != Codec.NONE)
+            throw new ProtocolException("Receiver answered with codec " + name + " instead of " + compression);
+        if (accepted != compression)
+            log.debug("receiver asked for the payload uncompressed");
+        return accepted;
+    }
+
+    /**
+     * The receiver holds a partial copy and offered to resume from its end, which we accept if the bytes just
+     * before that offset match our source.
+     *
+     * @return the offset the rest of the file will be sent from
+     */
+    private long negotiateResume(@Nonnull final ControlMessage response) throws IOException {
+        final long offered = response.getLong(ControlMessage.RESUME_OFFSET, 0);
+        final long checksum = response.getLong(ControlMessage.RESUME_CHECKSUM, -1);
+        final long resumeOffset = streams == 1 && offered > 0 && offered <= length
+                && PartialTransfer.checksum(source, offered) == checksum ? offered : 0;
+        log.debug(resumeOffset > 0 ? "resuming at byte " + resumeOffset : "receiver's partial copy does not match");
+        new ControlMessage(MessageType.RESUME_CONFIRMATION)
+                .putLong(ControlMessage.OFFSET, resumeOffset)
+                .writeTo(out);
+        return resumeOffset;
+    }
+
+    /**
+     * Sends the hashes of the payload's chunks, then sends chunks again until the receiver has verified them all.
+     */
+    private void completeVerification(@Nonnull final ChunkHasher hasher) throws IOException {
+        final List<byte[]> hashes = hasher.getHashes();
+        for (ControlMessage frame : ControlMessage.fromChunkHashes(hashes, ChunkHasher.merkleRoot(hashes)))
+            frame.writeTo(out);
+        final FrameReader frames = new FrameReader(in);
+        while (true) {
+            final List<Integer> corrupt = frames.read(MessageType.RETRANSMIT_REQUEST).getChunks();
+            if (corrupt.isEmpty())
+                return;
+            log.debug("receiver requested " + corrupt.size() + " chunks again");
+            for (int i : corrupt) {
+                if (i < 0 || i >= hasher.getChunkCount())
+                    throw new ProtocolException("Receiver requested nonexistent chunk " + i);
+                fileIn.getChannel().position(hasher.getChunkPosition(i));
+                JDLink.writeFileToRemote(fileIn, out, hasher.getChunkLength(i));
+            }
+        }
+    }
+
+    /**
+     * Writes a range of the source to the receiver, as much of it as possible from the feed of a fan-out.
+     */
+    private void sendPayload(final long position, final long byteSize) throws IOException {
+        final long shared = feed != null ? feed.write(out, position, byteSize) : 0;
+        fileIn.getChannel().position(position + shared);
+        JDLink.writeFileToRemote(fileIn, out, byteSize - shared, sock.getChannel(), compression);
+    }
+
+    /**
+     * Sends only what the receiver's older copy lacks, then waits for the receiver to confirm that the rebuilt
+     * file matches.
+     */
+    private void sendDelta(@Nonnull final FrameReader frames) throws IOException {
+        final BlockSignature signature = frames.readBlockSignature(frames.read(MessageType.BLOCK_SIGNATURE));
+        log.debug("sending delta against the receiver's copy of " + signature.getBlockCount() + " blocks");
+        new DeltaEncoder(signature, out).encode(fileIn, length);
+        final String status = frames.read(MessageType.RESPONSE).getString(ControlMessage.STATUS);
+        if (!ProtocolConstants.OK_RESPONSE.equals(status))
+            throw new IOException("Receiver could not rebuild the file from the delta");
+    }
+
+    /**
+     * Within a session, the receiver confirms each file before the connection carries the next one.
+     */
+    private void awaitCompletion(@Nonnull final FrameReader frames) throws IOException {
+        if (session == null)
+            return;
+        out.flush();
+        final String status = frames.read(MessageType.RESPONSE).getString(ControlMessage.STATUS);
+        if (!ProtocolConstants.DONE_RESPONSE.equals(status))
+            throw new ProtocolException("Expected the receiver to confirm the transfer but received " + status);
+    }
+
+    /**
+     * @return whether every byte of this processor's range was handed to the receiver
+     */
+    public boolean attemptTransfer() {
+        final boolean sent = attempt();
+        if (sent || !windowRejected || session != null)
+            return sent;
+        // A session's connection is gone with the rejection, the session sends the file again on a new one
+        log.debug("receiver stages less than " + optimisticLength + " bytes, sending again without the window");
+        optimisticLength = 0;
+        answered = windowRejected = false;
+        setupConnections();
+        return attempt();
+    }
+
+    private boolean attempt() {
+        final TransferMetrics metrics = TransferMetrics.start(TransferMetrics.Direction.SEND, destination);
+        metrics.setFilename(source.getName());
         if (in == null || out == null || fileIn == null) {
+            metrics.fail("connection-failed");
             closeConnectionsWithMessage("Invalid IO Streams");
-            return;
+            return false;
         }
+        final Throttle throttle = Throttle.start(destination);
         try {
             log.debug("attempting transfer");
+            final long handshakeStart = System.nanoTime();
             // Step 1: Send transfer request
-            JDLink.writeStringToRemote(out, generateRequestString(source.getName(), destination, source.length()));
+            ControlMessage.fromTransferRequest(generateRequest(source.getName(), destination, source.length()))
+                    .writeTo(out);
+            if (optimisticLength > 0) {
+                // The receiver stages these while it decides, and drops them if it turns the file down
+                log.debug("sending " + optimisticLength + " bytes ahead of the response");
+                sendPayload(offset, optimisticLength);
+                out.flush();
+            }
             log.debug("sent file metadata to remote, waiting for response");
 
             // Step 2: Wait for OK
-            final String response = JDLink.readStringFromRemote(in);
-            log.debug("received response");
-            if (!ProtocolConstants.OK_RESPONSE.equals(response)) {
+            final FrameReader frames = new FrameReader(in);
+            frames.setQueueListener(ServerProcessor::printQueuePosition);
+            final ControlMessage response = frames.read(MessageType.RESPONSE);
+            final String status = response.getString(ControlMessage.STATUS);
+            answered = true;
+            log.debug("received response " + status);
+            if (ProtocolConstants.NO_SPACE_RESPONSE.equals(status)) {
+                metrics.fail("no-space");
+                closeConnectionsWithMessage("Receiver does not have enough space for this file");
+                return false;
+            }
+            if (ProtocolConstants.WINDOW_TOO_LARGE_RESPONSE.equals(status)) {
+                stagingLimits.put(destination, response.getLong(ControlMessage.OPTIMISTIC_LENGTH, 0));
+                windowRejected = true;
+                metrics.fail("window-too-large");
+                closeConnections();
+                return false;
+            }
+            if (ProtocolConstants.BUSY_RESPONSE.equals(status)) {
+                metrics.fail("busy");
+                closeConnectionsWithMessage("Receiver is busy, try again later");
+                return false;
+            }
+            if (!ProtocolConstants.OK_RESPONSE.equals(status)) {
+                metrics.fail("denied");
                 closeConnectionsWithMessage("Receiver has denied transfer request");
-                return;
+                return false;
             }
+            compression = getAcceptedCompression(response, compression);
+            // The receiver attaches a resume offer to its OK if it holds part of this file already
+            final long resumeOffset = response.has(ControlMessage.RESUME_OFFSET) ? negotiateResume(response) : 0;
+            // Includes the time the receiving user took to accept, which only the receiver can tell apart
+            metrics.addHandshakeNanos(System.nanoTime() - handshakeStart);
 
-            // Step 3: Write bytes to stream
-            log.debug("writing bytes to remote");
-            JDLink.writeFileToRemote(fileIn, out, source.length());
-            closeConnectionsWithMessage("File data has been sent");
+            // The receiver has an older copy and sends its signature after the OK, only differences are sent
+            if (response.getLong(ControlMessage.DELTA_SYNC, 0) != 0) {
+                sendDelta(frames);
+                awaitCompletion(frames);
+                metrics.succeed();
+                closeConnectionsWithMessage("File delta has been sent");
+                return true;
+            }
+
+            // Step 3: Write bytes to stream, hashing them alongside if the receiver verifies the payload. Bytes sent
+            // ahead are part of the payload the receiver verifies, so they are hashed but not sent again.
+            final long sendFrom = resumeOffset + optimisticLength;
+            log.debug("writing bytes " + (offset + sendFrom) + "+" + (length - sendFrom) + " to remote");
+            final int chunkSize = (int) response.getLong(ControlMessage.INTEGRITY_CHUNK_SIZE, 0);
+            try (final FileChannel hashedFile = chunkSize > 0 ? FileChannel.open(source.toPath()) : null) {
+                final ChunkHasher hasher = chunkSize > 0
+                        ? new ChunkHasher(hashedFile, offset + resumeOffset, length - resumeOffset, chunkSize) : null;
+                if (hasher != null)
+                    hasher.submitAll();
+                sendPayload(offset + sendFrom, length - sendFrom);
+
+                // Step 4: Exchange chunk hashes and resend what arrived corrupt
+                if (hasher != null)
+                    completeVerification(hasher);
+            }
+            awaitCompletion(frames);
+            metrics.succeed();
+            closeConnectionsWithMessage(streams > 1 ? "File range has been sent" : "File data has been sent");
+            return true;
         } catch (IOException e) {
             e.printStackTrace();
+            metrics.fail(e);
             closeConnectionsWithMessage("Transfer attempt has failed due to exception");
+            return false;
+        } finally {
+            throttle.close();
         }
     }
 }
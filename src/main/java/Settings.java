@@ -4,20 +4,25 @@ import lombok.extern.log4j.Log4j2;
 import org.apache.commons.lang3.SystemUtils;
 import org.yaml.snakeyaml.DumperOptions;
 import org.yaml.snakeyaml.Yaml;
+import org.yaml.snakeyaml.error.YAMLException;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.io.*;
+import java.util.HashMap;
 import java.util.Map;
 
 @Log4j2
 public class Settings {
     // Configuration
     private static final String DIVIDER = SystemUtils.IS_OS_WINDOWS ? "\\" : "/";
-    private static final String DOWNLOAD_DIR_KEY = "downloadPath";
+    // Where received files are saved
+    static final String DOWNLOAD_DIR_KEY = "downloadPath";
     private static final String SETTINGS_DIR = System.getProperty("user.home") + DIVIDER + "JavaDrop";
     public static final String SETTINGS_FILE_PATH = SETTINGS_DIR + DIVIDER + "settings.yaml";
-    private static final String DOWNLOADS_DIR = SETTINGS_DIR + DIVIDER + "Downloads";
+    static final String DOWNLOADS_DIR = SETTINGS_DIR + DIVIDER + "Downloads";
+    // Holds the secret that local clients present to the sender daemon, readable by this user only
+    static final String DAEMON_TOKEN_PATH = SETTINGS_DIR + DIVIDER + "daemon.token";
 
     @VisibleForTesting
     protected static Map<String, String> settings;
@@ -73,9 +78,60 @@ public class Settings {
         settings = (Map<String, String>) new Yaml().load(inputStream);
     }
 
+    /**
+     * Loads the settings file if possible, and otherwise leaves every setting at its default.
+     */
+    public static void loadSettingsOrDefaults(@Nonnull String settingsPath) {
+        try {
+            loadSettings(settingsPath);
+        } catch (FileNotFoundException | YAMLException | ClassCastException e) {
+            log.error("Settings could not be loaded, using defaults: " + e.getMessage());
+            settings = null;
+        }
+    }
+
+    /**
+     * Overrides a setting for the rest of this run, without touching the settings file.
+     */
+    public static void overrideSetting(@Nonnull String key, @Nonnull String value) {
+        if (settings == null)
+            settings = new HashMap<>();
+        settings.put(key, value);
+    }
+
     @Nullable
     public static String getSetting(@Nonnull String key) {
-        return settings.get(key);
+        return getRawSetting(key);
+    }
+
+    @Nonnull
+    public static String getStringSetting(@Nonnull String key, @Nonnull String defaultValue) {
+        final String value = getRawSetting(key);
+        return value == null ? defaultValue : value;
+    }
+
+    public static int getIntSetting(@Nonnull String key, int defaultValue) {
+        final String value = getRawSetting(key);
+        try {
+            return value == null ? defaultValue : Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            log.error("Setting " + key + " is not a valid integer: " + value);
+            return defaultValue;
+        }
+    }
+
+    public static boolean getBooleanSetting(@Nonnull String key, boolean defaultValue) {
+        final String value = getRawSetting(key);
+        return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
+
+    // Settings are read as a raw YAML map, so numeric values may not actually be Strings
+    @Nullable
+    private static String getRawSetting(@Nonnull String key) {
+        if (settings == null)
+            return null;
+        final Object value = ((Map<String, ?>) settings).get(key);
+        return value == null ? null : String.valueOf(value);
     }
 
     @VisibleForTesting
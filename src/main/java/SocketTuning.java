@@ -0,0 +1,99 @@
+import com.google.common.annotations.VisibleForTesting;
+import lombok.extern.log4j.Log4j2;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Socket options and copy buffer sizes from the settings. Socket buffers are left to the OS unless configured,
+ * since setting them turns off the kernel's own tuning. The round trip time measured while connecting is kept
+ * per peer, so that {@link CopyTuner} can size buffers to the bandwidth-delay product.
+ */
+@Log4j2
+class SocketTuning {
+    // Configuration, buffer sizes of 0 leave the OS default
+    private static final String SEND_BUFFER_KEY = "socketSendBufferKiB";
+    private static final String RECEIVE_BUFFER_KEY = "socketReceiveBufferKiB";
+    private static final String NO_DELAY_KEY = "tcpNoDelay";
+    private static final String BACKLOG_KEY = "listenBacklog";
+    private static final String COPY_BUFFER_KEY = "copyBufferKiB";
+    private static final String AUTO_TUNE_KEY = "autoTune";
+    private static final int DEFAULT_BACKLOG = 50;
+    private static final int DEFAULT_COPY_BUFFER_KIB = 64;
+
+    private static final Map<String, Long> RTT_NANOS = new ConcurrentHashMap<>();
+
+    private SocketTuning() {
+    }
+
+    /**
+     * Connects with the configured options applied up front, as the receive buffer decides the TCP window scale
+     * during the handshake.
+     *
+     * @param channelBacked whether the socket has to expose {@link Socket#getChannel()}, for zero-copy sends
+     */
+    @Nonnull
+    static Socket connect(@Nonnull final String destination,
+                          final int port,
+                          final boolean channelBacked) throws IOException {
+        final InetSocketAddress address = new InetSocketAddress(destination, port);
+        if (address.isUnresolved())
+            throw new UnknownHostException(destination);
+        final Socket socket = channelBacked ? SocketChannel.open().socket() : new Socket();
+        try {
+            configure(socket);
+            final long begin = System.nanoTime();
+            socket.connect(address);
+            // The TCP handshake takes one round trip
+            recordRtt(destination, System.nanoTime() - begin);
+            return socket;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    static void configure(@Nonnull final Socket socket) throws IOException {
+        final int sendBuffer = Settings.getIntSetting(SEND_BUFFER_KEY, 0);
+        if (sendBuffer > 0)
+            socket.setSendBufferSize(sendBuffer * 1024);
+        final int receiveBuffer = Settings.getIntSetting(RECEIVE_BUFFER_KEY, 0);
+        if (receiveBuffer > 0)
+            socket.setReceiveBufferSize(receiveBuffer * 1024);
+        socket.setTcpNoDelay(Settings.getBooleanSetting(NO_DELAY_KEY, true));
+    }
+
+    /**
+     * Binds with the configured backlog. The receive buffer is set before binding, so that accepted sockets
+     * inherit it before their handshake.
+     */
+    static void bind(@Nonnull final ServerSocket serverSocket, final int port) throws IOException {
+        final int receiveBuffer = Settings.getIntSetting(RECEIVE_BUFFER_KEY, 0);
+        if (receiveBuffer > 0)
+            serverSocket.setReceiveBufferSize(receiveBuffer * 1024);
+        serverSocket.bind(new InetSocketAddress(port), Settings.getIntSetting(BACKLOG_KEY, DEFAULT_BACKLOG));
+    }
+
+    @VisibleForTesting
+    static void recordRtt(@Nonnull final String peer, final long nanos) {
+        RTT_NANOS.put(peer, nanos);
+    }
+
+    /**
+     * @return a tuner for a copy loop with the given peer, which grows its buffer only if auto-tuning is enabled
+     */
+    @Nonnull
+    static CopyTuner newCopyTuner(@Nonnull final String peer) {
+        final int bufferSize = Math.max(1, Settings.getIntSetting(COPY_BUFFER_KEY, DEFAULT_COPY_BUFFER_KIB)) * 1024;
+        if (!Settings.getBooleanSetting(AUTO_TUNE_KEY, true))
+            return CopyTuner.fixed(bufferSize);
+        return new CopyTuner(bufferSize, RTT_NANOS.getOrDefault(peer, 0L));
+    }
+}
@@ -0,0 +1,384 @@
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Decides which connections may start their transfer, so that a burst of senders does not split the disk and the
+ * link between all of them. A transfer is admitted once its request has told its size, as long as the number of
+ * running transfers, their announced bytes and the transfers of its host stay within the limits. Each transfer of
+ * a session is admitted on its own. Connections that have to wait are parked here without a thread and admitted
+ * in priority order, but one that has waited too long goes ahead of all others. Waiting senders are told their
+ * position in the queue.
+ * <p>
+ * Decisions are made under the scheduler's lock, but the positions and rejections they lead to are written to the
+ * senders once it is released, so that one slow connection does not hold up admission for all others.
+ */
+@Log4j2
+class TransferScheduler {
+    // Admission is rechecked and positions are reported this often
+    private static final long TICK_MILLIS = 1000;
+    // A position is sent again after this long even if it did not change, so that the sender knows we are alive
+    private static final long REPORT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    @Nonnull
+    private final Executor executor;
+    private final int maxConcurrent;
+    private final int maxQueued;
+    // 0 for no limit on the bytes of running transfers
+    private final long maxInFlightBytes;
+    // 0 for no limit on the running transfers of one host
+    private final int maxPerHost;
+    private final long maxWaitNanos;
+    @Nonnull
+    private final Comparator<Ticket> priority;
+    @Nonnull
+    private final LongSupplier clock;
+    private final List<Ticket> waiting = new ArrayList<>();
+    private final Map<String, Integer> runningPerHost = new HashMap<>();
+    private int running;
+    private long inFlightBytes;
+    private long sequence;
+    @Nullable
+    private ScheduledExecutorService ticker;
+
+    /**
+     * @param priority orders waiting transfers, the one that comes first is admitted first
+     */
+    TransferScheduler(@Nonnull final Executor executor,
+                      final int maxConcurrent,
+                      final int maxQueued,
+                      final long maxInFlightBytes,
+                      final int maxPerHost,
+                      final long maxWaitSeconds,
+                      @Nonnull final Comparator<Ticket> priority) {
+        this(executor, maxConcurrent, maxQueued, maxInFlightBytes, maxPerHost, maxWaitSeconds, priority,
+                System::nanoTime);
+    }
+
+    @VisibleForTesting
+    TransferScheduler(@Nonnull final Executor executor,
+                      final int maxConcurrent,
+                      final int maxQueued,
+                      final long maxInFlightBytes,
+                      final int maxPerHost,
+                      final long maxWaitSeconds,
+                      @Nonnull final Comparator<Ticket> priority,
+                      @Nonnull final LongSupplier clock) {
+        this.executor = executor;
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+        this.maxQueued = Math.max(0, maxQueued);
+        this.maxInFlightBytes = maxInFlightBytes;
+        this.maxPerHost = maxPerHost;
+        this.maxWaitNanos = TimeUnit.SECONDS.toNanos(maxWaitSeconds);
+        this.priority = priority;
+        this.clock = clock;
+    }
+
+    /**
+     * @param trustedFirst whether transfers from trusted hosts go first
+     * @param smallFirst   whether smaller transfers go first, transfers of unknown size come after all others
+     * @return the order of waiting transfers, arrival order among equals
+     */
+    @Nonnull
+    static Comparator<Ticket> priority(final boolean trustedFirst, final boolean smallFirst) {
+        Comparator<Ticket> order = (a, b) -> 0;
+        if (trustedFirst)
+            order = order.thenComparing(ticket -> !ticket.isTrusted());
+        if (smallFirst)
+            order = order.thenComparingLong(ticket -> ticket.getSize() < 0 ? Long.MAX_VALUE : ticket.getSize());
+        return order;
+    }
+
+    /**
+     * Reports positions and admits transfers whose wait has run out, until {@link #shutdown()}.
+     */
+    synchronized void start() {
+        ticker = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("jd-admission").setDaemon(true).build());
+        ticker.scheduleWithFixedDelay(this::tick, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts the transfer right away if the limits allow it, otherwise it waits its turn.
+     *
+     * @return false if the queue is full, the ticket is neither started nor kept then
+     */
+    boolean submit(@Nonnull final Ticket ticket) {
+        final List<Runnable> notices = new ArrayList<>();
+        try {
+            synchronized (this) {
+                ticket.sequence = sequence++;
+                ticket.arrivalNanos = clock.getAsLong();
+                waiting.add(ticket);
+                admit(notices);
+                if (!waiting.contains(ticket))
+                    return true;
+                if (waiting.size() > maxQueued) {
+                    waiting.remove(ticket);
+                    return false;
+                }
+                log.debug("queued transfer of " + ticket.getSize() + " bytes from " + ticket.getHost() + ", "
+                        + waiting.size() + " waiting, " + running + " running");
+                report(clock.getAsLong(), notices);
+                return true;
+            }
+        } finally {
+            notices.forEach(Runnable::run);
+        }
+    }
+
+    private void finish(@Nonnull final Ticket ticket) {
+        final List<Runnable> notices = new ArrayList<>();
+        synchronized (this) {
+            release(ticket);
+            admit(notices);
+            report(clock.getAsLong(), notices);
+            notifyAll();
+        }
+        notices.forEach(Runnable::run);
+    }
+
+    private void release(@Nonnull final Ticket ticket) {
+        running--;
+        inFlightBytes -= ticket.getAnnouncedBytes();
+        runningPerHost.merge(ticket.getHost(), -1, (count, change) -> count + change == 0 ? null : count + change);
+    }
+
+    /**
+     * @param notices collects the rejections of transfers that could not be started
+     */
+    private void admit(@Nonnull final List<Runnable> notices) {
+        Ticket next;
+        while ((next = next(clock.getAsLong())) != null) {
+            waiting.remove(next);
+            running++;
+            inFlightBytes += next.getAnnouncedBytes();
+            runningPerHost.merge(next.getHost(), 1, Integer::sum);
+            final Ticket admitted = next;
+            try {
+                executor.execute(() -> {
+                    try {
+                        if (admitted.begin())
+                            admitted.run();
+                    } finally {
+                        finish(admitted);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                log.error("Transfer from " + admitted.getHost() + " could not be started");
+                release(admitted);
+                notices.add(admitted::turnAway);
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the waiting transfer to admit now, null if none may start
+     */
+    @Nullable
+    private Ticket next(final long now) {
+        if (running >= maxConcurrent)
+            return null;
+        for (Ticket ticket : order(now)) {
+            if (maxPerHost > 0 && runningPerHost.getOrDefault(ticket.getHost(), 0) >= maxPerHost)
+                continue;
+            // A transfer larger than the whole limit still runs, alone
+            if (maxInFlightBytes <= 0 || running == 0
+                    || inFlightBytes + ticket.getAnnouncedBytes() <= maxInFlightBytes)
+                return ticket;
+            // Smaller transfers must not keep taking the room an overdue one waits for
+            if (isOverdue(ticket, now))
+                return null;
+        }
+        return null;
+    }
+
+    /**
+     * @return the waiting transfers in the order they are admitted in, the overdue ones first in arrival order
+     */
+    @Nonnull
+    private List<Ticket> order(final long now) {
+        final List<Ticket> order = new ArrayList<>(waiting);
+        order.sort((a, b) -> {
+            final boolean aOverdue = isOverdue(a, now), bOverdue = isOverdue(b, now);
+            if (aOverdue != bOverdue)
+                return aOverdue ? -1 : 1;
+            final int compared = aOverdue ? 0 : priority.compare(a, b);
+            return compared != 0 ? compared : Long.compare(a.sequence, b.sequence);
+        });
+        return order;
+    }
+
+    private boolean isOverdue(@Nonnull final Ticket ticket, final long now) {
+        return maxWaitNanos > 0 && now - ticket.arrivalNanos >= maxWaitNanos;
+    }
+
+    @VisibleForTesting
+    void tick() {
+        final List<Runnable> notices = new ArrayList<>();
+        synchronized (this) {
+            final long now = clock.getAsLong();
+            admit(notices);
+            report(now, notices);
+        }
+        notices.forEach(Runnable::run);
+    }
+
+    /**
+     * Decides which waiting senders are told their position.
+     *
+     * @param notices collects the reports, which are sent once the lock is released
+     */
+    private void report(final long now, @Nonnull final List<Runnable> notices) {
+        final List<Ticket> order = order(now);
+        for (int i = 0; i < order.size(); i++) {
+            final Ticket ticket = order.get(i);
+            final int position = i + 1;
+            if (position == ticket.reportedPosition && now - ticket.reportedNanos < REPORT_INTERVAL_NANOS)
+                continue;
+            ticket.reportedPosition = position;
+            ticket.reportedNanos = now;
+            notices.add(() -> sendPosition(ticket, position));
+        }
+    }
+
+    /**
+     * A sender that cannot be reached anymore leaves the queue.
+     */
+    private void sendPosition(@Nonnull final Ticket ticket, final int position) {
+        try {
+            ticket.notifyPosition(position);
+        } catch (IOException e) {
+            log.debug("sender " + ticket.getHost() + " has left the queue: " + e.getMessage());
+            final boolean left;
+            synchronized (this) {
+                left = waiting.remove(ticket);
+                notifyAll();
+            }
+            // Admitted in the meantime, the transfer finds out about the connection on its own
+            if (left)
+                ticket.turnAway();
+        }
+    }
+
+    synchronized int getRunning() {
+        return running;
+    }
+
+    synchronized int getWaiting() {
+        return waiting.size();
+    }
+
+    /**
+     * Waits until every running and waiting transfer has finished.
+     *
+     * @return false if some were still left once the timeout elapsed
+     */
+    synchronized boolean awaitIdle(final long timeoutSeconds) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+        while (running > 0 || !waiting.isEmpty()) {
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0)
+                return false;
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return true;
+    }
+
+    /**
+     * Stops reporting and turns away every transfer that is still waiting.
+     */
+    void shutdown() {
+        final List<Ticket> turnedAway;
+        synchronized (this) {
+            if (ticker != null)
+                ticker.shutdownNow();
+            turnedAway = new ArrayList<>(waiting);
+            waiting.clear();
+            notifyAll();
+        }
+        turnedAway.forEach(Ticket::turnAway);
+    }
+
+    /**
+     * A connection waiting for admission, described by its first frame.
+     */
+    abstract static class Ticket {
+        @Getter
+        @Nonnull
+        private final String host;
+        // Bytes the transfer announced, -1 if its first frame did not tell
+        @Getter
+        private final long size;
+        @Getter
+        private final boolean trusted;
+        private long sequence;
+        private long arrivalNanos;
+        private int reportedPosition;
+        private long reportedNanos;
+        // Guarded by the ticket, so that no notice is written to the connection once the transfer has it
+        private boolean started;
+        private boolean turnedAway;
+
+        Ticket(@Nonnull final String host, final long size, final boolean trusted) {
+            this.host = host;
+            this.size = size;
+            this.trusted = trusted;
+        }
+
+        private long getAnnouncedBytes() {
+            return Math.max(0, size);
+        }
+
+        /**
+         * Hands the connection to the transfer, unless the sender was turned away already.
+         */
+        private synchronized boolean begin() {
+            if (turnedAway)
+                return false;
+            started = true;
+            return true;
+        }
+
+        private synchronized void notifyPosition(final int position) throws IOException {
+            if (!started && !turnedAway)
+                reportPosition(position);
+        }
+
+        private synchronized void turnAway() {
+            if (started || turnedAway)
+                return;
+            turnedAway = true;
+            reject();
+        }
+
+        /**
+         * Serves the connection on a transfer thread, once admitted.
+         */
+        abstract void run();
+
+        abstract void reportPosition(int position) throws IOException;
+
+        /**
+         * Turns the sender away and closes the connection.
+         */
+        abstract void reject();
+    }
+}
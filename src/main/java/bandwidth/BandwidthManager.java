@@ -0,0 +1,129 @@
+package bandwidth;
+
+import com.google.common.annotations.VisibleForTesting;
+import lombok.extern.log4j.Log4j2;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.time.LocalTime;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands out {@link Throttle}s and shares the global rate limit between the transfers running at once, in
+ * proportion to their peers' weights. Shares are rebalanced whenever a transfer starts or ends, so one large
+ * drop cannot starve the others. Limits can be restricted to certain hours of the day, such as office hours.
+ */
+@Log4j2
+public class BandwidthManager {
+    private static final BandwidthManager INSTANCE = new BandwidthManager();
+    private static final long SCHEDULE_CHECK_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    // Bytes per second, 0 for no limit
+    private long globalRate, hostRate, transferRate;
+    @Nonnull
+    private Map<String, Integer> weights = Collections.emptyMap();
+    // Hours of the day [start, end) in which limits apply, limits always apply if they are equal
+    private int startHour, endHour;
+
+    private final Set<Throttle> active = new LinkedHashSet<>();
+    private final Map<String, TokenBucket> hosts = new HashMap<>();
+    private volatile boolean limiting;
+    private volatile long nextScheduleCheckNanos;
+
+    @VisibleForTesting
+    BandwidthManager() {
+    }
+
+    @Nonnull
+    public static BandwidthManager getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param globalRate   bytes per second for all transfers together, 0 for no limit
+     * @param hostRate     bytes per second for all transfers with one peer
+     * @param transferRate bytes per second for a single transfer
+     * @param weights      relative share of the global rate per peer address, 1 for peers not listed
+     */
+    public synchronized void configure(final long globalRate,
+                                       final long hostRate,
+                                       final long transferRate,
+                                       @Nonnull final Map<String, Integer> weights,
+                                       final int startHour,
+                                       final int endHour) {
+        this.globalRate = globalRate;
+        this.hostRate = hostRate;
+        this.transferRate = transferRate;
+        this.weights = weights;
+        this.startHour = startHour;
+        this.endHour = endHour;
+        for (TokenBucket host : hosts.values())
+            host.setRate(hostRate);
+        rebalance();
+        nextScheduleCheckNanos = 0;
+        if (isConfigured())
+            log.debug("bandwidth limits: global " + globalRate + ", per host " + hostRate + ", per transfer "
+                    + transferRate + " bytes/s");
+    }
+
+    private boolean isConfigured() {
+        return globalRate > 0 || hostRate > 0 || transferRate > 0;
+    }
+
+    /**
+     * @return null if no limits are configured, so that unlimited transfers skip all bookkeeping
+     */
+    @Nullable
+    synchronized Throttle open(@Nonnull final String peer) {
+        if (!isConfigured())
+            return null;
+        final TokenBucket host = hostRate > 0 ? hosts.computeIfAbsent(peer, p -> new TokenBucket(hostRate)) : null;
+        final Throttle throttle = new Throttle(this, peer, weights.getOrDefault(peer, 1), host);
+        active.add(throttle);
+        rebalance();
+        return throttle;
+    }
+
+    synchronized void close(@Nonnull final Throttle throttle) {
+        if (!active.remove(throttle))
+            return;
+        if (active.stream().noneMatch(other -> other.getPeer().equals(throttle.getPeer())))
+            hosts.remove(throttle.getPeer());
+        rebalance();
+    }
+
+    private void rebalance() {
+        final int totalWeight = active.stream().mapToInt(Throttle::getWeight).sum();
+        for (Throttle throttle : active) {
+            long rate = globalRate > 0 ? Math.max(1, globalRate * throttle.getWeight() / totalWeight) : 0;
+            if (transferRate > 0)
+                rate = rate > 0 ? Math.min(rate, transferRate) : transferRate;
+            throttle.own.setRate(rate);
+        }
+    }
+
+    /**
+     * @return whether limits apply right now, the schedule is looked at no more than once a second
+     */
+    boolean isLimiting() {
+        final long now = System.nanoTime();
+        if (now - nextScheduleCheckNanos >= 0) {
+            limiting = isWithinSchedule(LocalTime.now().getHour());
+            nextScheduleCheckNanos = now + SCHEDULE_CHECK_NANOS;
+        }
+        return limiting;
+    }
+
+    @VisibleForTesting
+    synchronized boolean isWithinSchedule(final int hour) {
+        if (startHour == endHour)
+            return true;
+        // A window like 22-6 wraps around midnight
+        return startHour < endHour ? hour >= startHour && hour < endHour : hour >= startHour || hour < endHour;
+    }
+}
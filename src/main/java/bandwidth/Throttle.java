@@ -0,0 +1,103 @@
+package bandwidth;
+
+import lombok.Getter;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The rate limits that apply to one transfer: its share of the global limit, its own limit and its peer's limit.
+ * A transfer started with {@link #start(String)} is bound to its thread, so that JDLink's copy loops can find it
+ * through {@link #current()} like they find the transfer's metrics.
+ */
+public class Throttle implements Closeable {
+    // Applies no limit, for copies outside of any tracked transfer or when no limits are configured
+    private static final Throttle UNLIMITED = new Throttle(null, "", 0, null);
+    private static final ThreadLocal<Throttle> CURRENT = new ThreadLocal<>();
+
+    @Nullable
+    private final BandwidthManager manager;
+    @Getter
+    @Nonnull
+    private final String peer;
+    @Getter
+    private final int weight;
+    // Rate is this transfer's fair share of the global limit, capped by the per-transfer limit
+    @Nonnull
+    final TokenBucket own = new TokenBucket(0);
+    @Nullable
+    private final TokenBucket host;
+
+    Throttle(@Nullable final BandwidthManager manager,
+             @Nonnull final String peer,
+             final int weight,
+             @Nullable final TokenBucket host) {
+        this.manager = manager;
+        this.peer = peer;
+        this.weight = weight;
+        this.host = host;
+    }
+
+    /**
+     * Starts limiting a transfer with the given peer and binds it to the current thread until it is closed.
+     */
+    @Nonnull
+    public static Throttle start(@Nonnull final String peer) {
+        final Throttle throttle = BandwidthManager.getInstance().open(peer);
+        if (throttle != null)
+            CURRENT.set(throttle);
+        return throttle != null ? throttle : UNLIMITED;
+    }
+
+    /**
+     * @return the throttle bound to this thread, or one without any limit if there is none
+     */
+    @Nonnull
+    public static Throttle current() {
+        final Throttle throttle = CURRENT.get();
+        return throttle != null ? throttle : UNLIMITED;
+    }
+
+    /**
+     * Blocks until the given number of bytes may be sent or received.
+     */
+    public void acquire(final long bytes) throws InterruptedIOException {
+        if (manager == null || !manager.isLimiting())
+            return;
+        long waitNanos = own.reserve(bytes);
+        if (host != null)
+            waitNanos = Math.max(waitNanos, host.reserve(bytes));
+        if (waitNanos <= 0)
+            return;
+        try {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+        }
+    }
+
+    /**
+     * @return how much of a chunk of {@code max} bytes should be moved at once, so that zero-copy transfers
+     * spread out instead of going out in bursts
+     */
+    public long limitChunk(final long max) {
+        if (manager == null || !manager.isLimiting())
+            return max;
+        long chunk = own.getRate() > 0 ? Math.min(max, own.getBurst()) : max;
+        if (host != null && host.getRate() > 0)
+            chunk = Math.min(chunk, host.getBurst());
+        return chunk;
+    }
+
+    @Override
+    public void close() {
+        if (CURRENT.get() == this)
+            CURRENT.remove();
+        if (manager != null)
+            manager.close(this);
+    }
+}
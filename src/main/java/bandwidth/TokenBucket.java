@@ -0,0 +1,69 @@
+package bandwidth;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Token bucket rate limiter. Callers reserve tokens up front, even past zero, and are told how long to wait until
+ * the debt is paid off, so concurrent callers queue up in order without holding the lock while they wait.
+ */
+public class TokenBucket {
+    // At least this much may be sent at once, and at most a tenth of a second worth of the rate
+    private static final long MIN_BURST = 64 * 1024;
+    private static final long BURST_DIVISOR = 10;
+
+    private final LongSupplier clock;
+    // Bytes per second, unlimited if 0
+    private long rate;
+    private double tokens;
+    private long lastRefillNanos;
+
+    public TokenBucket(final long rate) {
+        this(rate, System::nanoTime);
+    }
+
+    @VisibleForTesting
+    TokenBucket(final long rate, final LongSupplier clock) {
+        this.clock = clock;
+        this.rate = rate;
+        this.tokens = getBurst();
+        this.lastRefillNanos = clock.getAsLong();
+    }
+
+    public synchronized long getRate() {
+        return rate;
+    }
+
+    public synchronized void setRate(final long rate) {
+        refill();
+        this.rate = rate;
+        tokens = Math.min(tokens, getBurst());
+    }
+
+    /**
+     * @return nanoseconds to wait before the bytes may go out, 0 if they may go right away
+     */
+    public synchronized long reserve(final long bytes) {
+        if (rate <= 0)
+            return 0;
+        refill();
+        tokens -= bytes;
+        return tokens >= 0 ? 0 : (long) (-tokens * TimeUnit.SECONDS.toNanos(1) / rate);
+    }
+
+    /**
+     * @return the most bytes that should be reserved at once, so that a large chunk does not go out as one burst
+     */
+    public synchronized long getBurst() {
+        return Math.max(MIN_BURST, rate / BURST_DIVISOR);
+    }
+
+    private void refill() {
+        final long now = clock.getAsLong();
+        if (rate > 0)
+            tokens = Math.min(getBurst(), tokens + (double) (now - lastRefillNanos) * rate / TimeUnit.SECONDS.toNanos(1));
+        lastRefillNanos = now;
+    }
+}
@@ -0,0 +1,41 @@
+package compression;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+
+/**
+ * Compresses independent blocks of the payload. Implementations keep their native state between blocks,
+ * so an instance must only be used by one transfer at a time, and closed once the transfer is done with it.
+ */
+public interface BlockCompressor extends AutoCloseable {
+    /**
+     * @return the size of the buffer that {@link #compress(byte[], int, byte[])} needs for {@code length} bytes
+     */
+    int maxCompressedLength(int length);
+
+    /**
+     * @return the number of bytes written to {@code dst}, or -1 if the block did not get any smaller
+     */
+    int compress(@Nonnull byte[] src, int length, @Nonnull byte[] dst);
+
+    void decompress(@Nonnull byte[] src, int length, @Nonnull byte[] dst, int originalLength) throws IOException;
+
+    /**
+     * Releases the native state, if the implementation holds any.
+     */
+    @Override
+    default void close() {
+    }
+
+    @Nonnull
+    static BlockCompressor create(@Nonnull final Codec codec) {
+        switch (codec) {
+            case DEFLATE:
+                return new DeflateBlockCompressor();
+            case LZ4:
+                return new Lz4BlockCompressor();
+            default:
+                throw new IllegalArgumentException("No block compressor for " + codec);
+        }
+    }
+}
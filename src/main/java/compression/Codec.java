@@ -0,0 +1,30 @@
+package compression;
+
+import com.google.common.collect.ImmutableSet;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Locale;
+
+public enum Codec {
+    NONE, DEFLATE, LZ4;
+
+    // Formats that are already compressed, recompressing them only burns CPU
+    private static final ImmutableSet<String> COMPRESSED_EXTENSIONS = ImmutableSet.of(
+            "jpg", "jpeg", "png", "gif", "webp", "heic", "zip", "gz", "tgz", "bz2", "xz", "7z", "rar", "zst",
+            "mp3", "aac", "ogg", "flac", "mp4", "m4v", "mkv", "mov", "avi", "webm", "jar", "apk", "docx", "xlsx");
+
+    @Nullable
+    public static Codec fromName(@Nonnull final String name) {
+        for (Codec codec : values()) {
+            if (codec.name().equalsIgnoreCase(name))
+                return codec;
+        }
+        return null;
+    }
+
+    public static boolean isLikelyCompressed(@Nonnull final String filename) {
+        final int index = filename.lastIndexOf('.');
+        return index >= 0 && COMPRESSED_EXTENSIONS.contains(filename.substring(index + 1).toLowerCase(Locale.ROOT));
+    }
+}
@@ -0,0 +1,69 @@
+package compression;
+
+import net.jpountz.lz4.LZ4BlockOutputStream;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compresses a stream as a whole, for payloads like archives whose many small parts compress poorly one by one.
+ * Unlike {@link BlockCompressor}, the compressed stream marks its own end, so closing the output is what ends it.
+ */
+public class CompressedStreams {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private CompressedStreams() {
+    }
+
+    @Nonnull
+    public static OutputStream compress(@Nonnull final Codec codec, @Nonnull final OutputStream out) {
+        switch (codec) {
+            case DEFLATE:
+                // Favour speed, like the block compressor
+                final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+                return new DeflaterOutputStream(out, deflater, BUFFER_SIZE) {
+                    // A deflater passed in is not ended by the stream, and holds native memory until it is
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        } finally {
+                            deflater.end();
+                        }
+                    }
+                };
+            case LZ4:
+                return new LZ4BlockOutputStream(out, BUFFER_SIZE);
+            default:
+                return out;
+        }
+    }
+
+    @Nonnull
+    public static InputStream decompress(@Nonnull final Codec codec, @Nonnull final InputStream in) {
+        switch (codec) {
+            case DEFLATE:
+                final Inflater inflater = new Inflater();
+                return new InflaterInputStream(in, inflater, BUFFER_SIZE) {
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        } finally {
+                            inflater.end();
+                        }
+                    }
+                };
+            case LZ4:
+                return new SafeLz4BlockInputStream(in);
+            default:
+                return in;
+        }
+    }
+}
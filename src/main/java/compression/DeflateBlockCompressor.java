@@ -0,0 +1,61 @@
+package compression;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+public class DeflateBlockCompressor implements BlockCompressor {
+    // Favour speed, the link is usually faster than the higher levels can compress
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+    private final Inflater inflater = new Inflater(true);
+
+    @Override
+    public int maxCompressedLength(final int length) {
+        return length;
+    }
+
+    @Override
+    public int compress(@Nonnull final byte[] src, final int length, @Nonnull final byte[] dst) {
+        deflater.reset();
+        deflater.setInput(src, 0, length);
+        deflater.finish();
+        int written = 0;
+        while (!deflater.finished()) {
+            if (written == dst.length)
+                return -1;
+            written += deflater.deflate(dst, written, dst.length - written);
+        }
+        return written < length ? written : -1;
+    }
+
+    @Override
+    public void decompress(@Nonnull final byte[] src,
+                           final int length,
+                           @Nonnull final byte[] dst,
+                           final int originalLength) throws IOException {
+        inflater.reset();
+        inflater.setInput(src, 0, length);
+        try {
+            int read = 0;
+            while (read < originalLength && !inflater.finished()) {
+                final int inflated = inflater.inflate(dst, read, originalLength - read);
+                if (inflated == 0 && inflater.needsInput())
+                    break;
+                read += inflated;
+            }
+            if (read != originalLength)
+                throw new IOException("Deflate block expanded to " + read + " instead of " + originalLength + " bytes");
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt deflate block", e);
+        }
+    }
+
+    // The native zlib state is not released before the objects are collected otherwise
+    @Override
+    public void close() {
+        deflater.end();
+        inflater.end();
+    }
+}
@@ -0,0 +1,42 @@
+package compression;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Exception;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4SafeDecompressor;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+
+public class Lz4BlockCompressor implements BlockCompressor {
+    private static final LZ4Factory factory = LZ4Factory.fastestInstance();
+
+    private final LZ4Compressor compressor = factory.fastCompressor();
+    // The safe decompressor never reads or writes out of bounds, even on corrupt input from the remote
+    private final LZ4SafeDecompressor decompressor = factory.safeDecompressor();
+
+    @Override
+    public int maxCompressedLength(final int length) {
+        return compressor.maxCompressedLength(length);
+    }
+
+    @Override
+    public int compress(@Nonnull final byte[] src, final int length, @Nonnull final byte[] dst) {
+        final int written = compressor.compress(src, 0, length, dst, 0, dst.length);
+        return written < length ? written : -1;
+    }
+
+    @Override
+    public void decompress(@Nonnull final byte[] src,
+                           final int length,
+                           @Nonnull final byte[] dst,
+                           final int originalLength) throws IOException {
+        try {
+            final int read = decompressor.decompress(src, 0, length, dst, 0, originalLength);
+            if (read != originalLength)
+                throw new IOException("LZ4 block expanded to " + read + " instead of " + originalLength + " bytes");
+        } catch (LZ4Exception e) {
+            throw new IOException("Corrupt LZ4 block", e);
+        }
+    }
+}
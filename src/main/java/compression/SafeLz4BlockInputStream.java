@@ -0,0 +1,169 @@
+package compression;
+
+import net.jpountz.lz4.LZ4Exception;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4SafeDecompressor;
+import net.jpountz.xxhash.XXHash32;
+import net.jpountz.xxhash.XXHashFactory;
+
+import javax.annotation.Nonnull;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads what {@link net.jpountz.lz4.LZ4BlockOutputStream} writes, like {@link net.jpountz.lz4.LZ4BlockInputStream}
+ * but with the safe decompressor. This lz4-java only lets the block input stream use the fast one, which trusts the
+ * lengths in its input and may read out of bounds on a corrupt stream from the remote.
+ */
+class SafeLz4BlockInputStream extends FilterInputStream {
+    private static final byte[] MAGIC = "LZ4Block".getBytes(StandardCharsets.US_ASCII);
+    private static final int HEADER_LENGTH = MAGIC.length + 1 + 4 + 4 + 4;
+    private static final int METHOD_RAW = 0x10;
+    private static final int METHOD_LZ4 = 0x20;
+    // The output stream only compresses a block when that makes it smaller, and its blocks are at most 32 MiB
+    private static final int MAX_LEVEL = 15;
+    private static final int LEVEL_BASE = 10;
+    // The output stream's checksum, XXHash32 with its seed and the top nibble masked away
+    private static final int CHECKSUM_SEED = 0x9747b28c;
+    private static final int CHECKSUM_MASK = 0xFFFFFFF;
+
+    private static final LZ4SafeDecompressor decompressor = LZ4Factory.fastestInstance().safeDecompressor();
+    private static final XXHash32 hash = XXHashFactory.fastestInstance().hash32();
+
+    private final DataInputStream data;
+    private final byte[] header = new byte[HEADER_LENGTH];
+    private byte[] compressed = new byte[0];
+    private byte[] block = new byte[0];
+    private int blockLength;
+    private int position;
+    private boolean finished;
+
+    SafeLz4BlockInputStream(@Nonnull final InputStream in) {
+        super(in);
+        data = new DataInputStream(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill())
+            return -1;
+        return block[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(@Nonnull final byte[] b, final int off, final int len) throws IOException {
+        if (len == 0)
+            return 0;
+        if (!fill())
+            return -1;
+        final int count = Math.min(len, blockLength - position);
+        System.arraycopy(block, position, b, off, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public long skip(final long n) throws IOException {
+        if (n <= 0 || !fill())
+            return 0;
+        final int count = (int) Math.min(n, blockLength - position);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return blockLength - position;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark(final int readlimit) {
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+    /**
+     * @return whether there is something left to read in the current block, after reading the next one if needed
+     */
+    private boolean fill() throws IOException {
+        while (position == blockLength) {
+            if (finished || !readBlock())
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return false at the empty block that ends the stream
+     */
+    private boolean readBlock() throws IOException {
+        try {
+            data.readFully(header);
+        } catch (EOFException e) {
+            throw new IOException("LZ4 stream ended without its end mark", e);
+        }
+        for (int i = 0; i < MAGIC.length; i++)
+            if (header[i] != MAGIC[i])
+                throw new IOException("Corrupt LZ4 stream, bad block magic");
+        final int token = header[MAGIC.length] & 0xFF;
+        final int method = token & 0xF0;
+        final int level = token & 0x0F;
+        final int compressedLength = readIntLE(MAGIC.length + 1);
+        final int originalLength = readIntLE(MAGIC.length + 5);
+        final int checksum = readIntLE(MAGIC.length + 9);
+        if ((method != METHOD_RAW && method != METHOD_LZ4)
+                || level > MAX_LEVEL
+                || originalLength < 0 || originalLength > 1 << (level + LEVEL_BASE)
+                || compressedLength < 0 || compressedLength > originalLength
+                || (originalLength == 0) != (compressedLength == 0)
+                || (method == METHOD_RAW && originalLength != compressedLength))
+            throw new IOException("Corrupt LZ4 stream, bad block header");
+        if (originalLength == 0) {
+            if (checksum != 0)
+                throw new IOException("Corrupt LZ4 stream, bad end mark");
+            finished = true;
+            return false;
+        }
+
+        if (block.length < originalLength)
+            block = new byte[originalLength];
+        if (method == METHOD_RAW) {
+            data.readFully(block, 0, originalLength);
+        } else {
+            if (compressed.length < compressedLength)
+                compressed = new byte[compressedLength];
+            data.readFully(compressed, 0, compressedLength);
+            try {
+                final int read = decompressor.decompress(compressed, 0, compressedLength, block, 0, originalLength);
+                if (read != originalLength)
+                    throw new IOException("LZ4 block expanded to " + read + " instead of " + originalLength + " bytes");
+            } catch (LZ4Exception e) {
+                throw new IOException("Corrupt LZ4 block", e);
+            }
+        }
+        if ((hash.hash(block, 0, originalLength, CHECKSUM_SEED) & CHECKSUM_MASK) != checksum)
+            throw new IOException("Corrupt LZ4 stream, checksum mismatch");
+        blockLength = originalLength;
+        position = 0;
+        return true;
+    }
+
+    private int readIntLE(final int offset) {
+        return (header[offset] & 0xFF)
+                | (header[offset + 1] & 0xFF) << 8
+                | (header[offset + 2] & 0xFF) << 16
+                | (header[offset + 3] & 0xFF) << 24;
+    }
+}
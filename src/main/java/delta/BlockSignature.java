@@ -0,0 +1,79 @@
+package delta;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import lombok.Getter;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Weak and strong checksums of every full block of the receiver's existing copy of a file. A trailing partial
+ * block is left out, its bytes are simply sent as literal data if they are still needed.
+ */
+@Getter
+public class BlockSignature {
+    public static final int STRONG_HASH_LENGTH = 16;
+    // Bytes per block on the wire: weak checksum and strong hash
+    public static final int ENTRY_LENGTH = Integer.BYTES + STRONG_HASH_LENGTH;
+    private static final int MIN_BLOCK_SIZE = 2 * 1024;
+    private static final int PREFERRED_MAX_BLOCK_SIZE = 64 * 1024;
+    // Bounds the signature of very large files, blocks grow past the preferred maximum instead
+    public static final int MAX_BLOCK_COUNT = 1 << 20;
+    public static final int MAX_BLOCK_SIZE = 16 * 1024 * 1024;
+    // Only speed matters for the strong hash, the whole reconstructed file is checked with SHA-256 at the end
+    private static final HashFunction STRONG_HASH = Hashing.murmur3_128();
+
+    private final int blockSize;
+    @Nonnull
+    private final int[] weak;
+    @Nonnull
+    private final byte[][] strong;
+
+    public BlockSignature(final int blockSize, @Nonnull final int[] weak, @Nonnull final byte[][] strong) {
+        this.blockSize = blockSize;
+        this.weak = weak;
+        this.strong = strong;
+    }
+
+    public int getBlockCount() {
+        return weak.length;
+    }
+
+    /**
+     * Roughly the square root of the file size like rsync, which balances signature size against how finely
+     * changes are located.
+     */
+    public static int chooseBlockSize(final long fileSize) {
+        final int root = Integer.highestOneBit((int) Math.min(Integer.MAX_VALUE, (long) Math.sqrt(fileSize)));
+        int blockSize = Math.max(MIN_BLOCK_SIZE, Math.min(PREFERRED_MAX_BLOCK_SIZE, root));
+        while (fileSize / blockSize > MAX_BLOCK_COUNT && blockSize < MAX_BLOCK_SIZE)
+            blockSize *= 2;
+        return blockSize;
+    }
+
+    @Nonnull
+    public static BlockSignature compute(@Nonnull final FileChannel file, final int blockSize) throws IOException {
+        final int count = (int) (file.size() / blockSize);
+        final int[] weak = new int[count];
+        final byte[][] strong = new byte[count][];
+        final byte[] block = new byte[blockSize];
+        for (int i = 0; i < count; i++) {
+            final ByteBuffer buffer = ByteBuffer.wrap(block);
+            while (buffer.hasRemaining()) {
+                if (file.read(buffer, (long) i * blockSize + buffer.position()) < 0)
+                    throw new IOException("File shrank while its signature was computed");
+            }
+            weak[i] = RollingChecksum.of(block, 0, blockSize);
+            strong[i] = strongHash(block, 0, blockSize);
+        }
+        return new BlockSignature(blockSize, weak, strong);
+    }
+
+    @Nonnull
+    static byte[] strongHash(@Nonnull final byte[] buffer, final int offset, final int length) {
+        return STRONG_HASH.hashBytes(buffer, offset, length).asBytes();
+    }
+}
@@ -0,0 +1,105 @@
+package delta;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import metrics.TransferMetrics;
+
+import javax.annotation.Nonnull;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Rebuilds the sender's file from a stream written by {@link DeltaEncoder}, copying referenced blocks out of the
+ * receiver's older copy. The result is checked against the sender's SHA-256 of the whole file.
+ */
+public class DeltaDecoder {
+    private static final int COPY_BUFFER_SIZE = 1024 * 1024;
+
+    private DeltaDecoder() {
+    }
+
+    /**
+     * @param basis  the older copy the signature was computed from
+     * @param size   the size the new file must end up with
+     * @param target receives the new file from its current position
+     * @return how many bytes arrived as literal data
+     */
+    public static long decode(@Nonnull final DataInputStream in,
+                              @Nonnull final FileChannel basis,
+                              @Nonnull final BlockSignature signature,
+                              final long size,
+                              @Nonnull final FileChannel target) throws IOException {
+        final TransferMetrics metrics = TransferMetrics.current();
+        final Hasher fileHash = Hashing.sha256().newHasher();
+        final int blockSize = signature.getBlockSize();
+        final byte[] literal = new byte[DeltaEncoder.MAX_LITERAL_LENGTH];
+        final ByteBuffer copyBuffer = ByteBuffer.allocate(Math.max(blockSize, COPY_BUFFER_SIZE));
+        long written = 0, literalBytes = 0;
+
+        while (true) {
+            final int op = in.readUnsignedByte();
+            if (op == DeltaEncoder.END)
+                break;
+            if (op == DeltaEncoder.LITERAL) {
+                final int length = in.readInt();
+                if (length <= 0 || length > literal.length || written + length > size)
+                    throw new ProtocolException("Invalid literal of " + length + " bytes at " + written);
+                in.readFully(literal, 0, length);
+                fileHash.putBytes(literal, 0, length);
+                writeFully(target, ByteBuffer.wrap(literal, 0, length));
+                metrics.addBytes(length);
+                written += length;
+                literalBytes += length;
+            } else if (op == DeltaEncoder.COPY) {
+                final int first = in.readInt(), count = in.readInt();
+                final long length = (long) count * blockSize;
+                if (first < 0 || count <= 0 || (long) first + count > signature.getBlockCount()
+                        || written + length > size)
+                    throw new ProtocolException("Invalid reference to blocks " + first + "+" + count);
+                copyBlocks(basis, (long) first * blockSize, length, copyBuffer, fileHash, target);
+                written += length;
+            } else {
+                throw new ProtocolException("Unknown delta operation " + op);
+            }
+        }
+
+        final byte[] expected = new byte[32];
+        in.readFully(expected);
+        if (written != size)
+            throw new ProtocolException("Delta produced " + written + " bytes instead of " + size);
+        if (!Arrays.equals(expected, fileHash.hash().asBytes()))
+            throw new IOException("Reconstructed file does not match the sender's hash");
+        return literalBytes;
+    }
+
+    private static void copyBlocks(@Nonnull final FileChannel basis,
+                                   long position,
+                                   long length,
+                                   @Nonnull final ByteBuffer buffer,
+                                   @Nonnull final Hasher fileHash,
+                                   @Nonnull final FileChannel target) throws IOException {
+        while (length > 0) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), length));
+            while (buffer.hasRemaining()) {
+                if (basis.read(buffer, position + buffer.position()) < 0)
+                    throw new IOException("Existing file shrank during delta sync");
+            }
+            buffer.flip();
+            fileHash.putBytes(buffer.array(), 0, buffer.limit());
+            writeFully(target, buffer);
+            position += buffer.limit();
+            length -= buffer.limit();
+        }
+    }
+
+    private static void writeFully(@Nonnull final FileChannel target, @Nonnull final ByteBuffer buffer)
+            throws IOException {
+        while (buffer.hasRemaining())
+            target.write(buffer);
+    }
+}
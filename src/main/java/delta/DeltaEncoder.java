@@ -0,0 +1,144 @@
+package delta;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import metrics.TransferMetrics;
+
+import javax.annotation.Nonnull;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+
+/**
+ * Encodes a file against the signature of the receiver's older copy, as literal data for the parts the receiver
+ * does not have and references to its blocks for the parts it does. Matching works like rsync: the weak checksum
+ * is rolled over every offset, and only weak matches are checked with the strong hash.
+ * <p>
+ * The stream is a sequence of operations, each starting with its type:
+ * {@link #LITERAL} (length, bytes), {@link #COPY} (first block, block count) and finally {@link #END} (SHA-256 of
+ * the whole new file).
+ */
+public class DeltaEncoder {
+    static final int END = 0;
+    static final int LITERAL = 1;
+    static final int COPY = 2;
+    static final int MAX_LITERAL_LENGTH = 64 * 1024;
+
+    @Nonnull
+    private final BlockSignature signature;
+    @Nonnull
+    private final Map<Integer, List<Integer>> blocksByWeak = new HashMap<>();
+    @Nonnull
+    private final DataOutputStream out;
+    private final TransferMetrics metrics = TransferMetrics.current();
+    // A run of consecutive block references waiting to be written as one operation
+    private int copyStart = -1, copyCount;
+
+    public DeltaEncoder(@Nonnull final BlockSignature signature, @Nonnull final DataOutputStream out) {
+        this.signature = signature;
+        this.out = out;
+        for (int i = 0; i < signature.getBlockCount(); i++)
+            blocksByWeak.computeIfAbsent(signature.getWeak()[i], w -> new ArrayList<>(1)).add(i);
+    }
+
+    public void encode(@Nonnull final InputStream in, final long size) throws IOException {
+        final int blockSize = signature.getBlockSize();
+        final Hasher fileHash = Hashing.sha256().newHasher();
+        // Holds the pending literal, the current window and some lookahead
+        final byte[] buffer = new byte[blockSize + 4 * MAX_LITERAL_LENGTH];
+        int literalStart = 0, position = 0, end = 0;
+        long bytesRead = 0;
+        RollingChecksum checksum = null;
+
+        while (true) {
+            // Keep a full window plus the byte that rolls into it, unless the file has no more bytes
+            if (end - position <= blockSize && bytesRead < size) {
+                if (literalStart > 0) {
+                    System.arraycopy(buffer, literalStart, buffer, 0, end - literalStart);
+                    position -= literalStart;
+                    end -= literalStart;
+                    literalStart = 0;
+                }
+                final int read = in.read(buffer, end, (int) Math.min(buffer.length - end, size - bytesRead));
+                if (read < 0)
+                    throw new EOFException("Source ended after " + bytesRead + " bytes");
+                fileHash.putBytes(buffer, end, read);
+                end += read;
+                bytesRead += read;
+                continue;
+            }
+            if (end - position < blockSize)
+                break;
+            if (checksum == null)
+                checksum = new RollingChecksum(buffer, position, blockSize);
+
+            final int block = findBlock(checksum.getValue(), buffer, position);
+            if (block >= 0) {
+                writeLiteral(buffer, literalStart, position - literalStart);
+                writeCopy(block);
+                position += blockSize;
+                literalStart = position;
+                checksum = null;
+                continue;
+            }
+            if (position - literalStart + 1 >= MAX_LITERAL_LENGTH) {
+                writeLiteral(buffer, literalStart, position + 1 - literalStart);
+                literalStart = position + 1;
+            }
+            if (end - position == blockSize)
+                break;
+            checksum.roll(buffer[position], buffer[position + blockSize]);
+            position++;
+        }
+        // Whatever is left never matched a full block
+        for (int offset = literalStart; offset < end; offset += MAX_LITERAL_LENGTH)
+            writeLiteral(buffer, offset, Math.min(MAX_LITERAL_LENGTH, end - offset));
+        flushCopy();
+        out.writeByte(END);
+        out.write(fileHash.hash().asBytes());
+        out.flush();
+    }
+
+    private int findBlock(final int weak, @Nonnull final byte[] buffer, final int position) {
+        final List<Integer> candidates = blocksByWeak.get(weak);
+        if (candidates == null)
+            return -1;
+        final byte[] strong = BlockSignature.strongHash(buffer, position, signature.getBlockSize());
+        for (int candidate : candidates) {
+            if (Arrays.equals(strong, signature.getStrong()[candidate]))
+                return candidate;
+        }
+        return -1;
+    }
+
+    private void writeLiteral(@Nonnull final byte[] buffer, final int offset, final int length) throws IOException {
+        if (length == 0)
+            return;
+        flushCopy();
+        out.writeByte(LITERAL);
+        out.writeInt(length);
+        out.write(buffer, offset, length);
+        metrics.addBytes(length);
+    }
+
+    private void writeCopy(final int block) throws IOException {
+        if (copyStart >= 0 && block == copyStart + copyCount) {
+            copyCount++;
+            return;
+        }
+        flushCopy();
+        copyStart = block;
+        copyCount = 1;
+    }
+
+    private void flushCopy() throws IOException {
+        if (copyStart < 0)
+            return;
+        out.writeByte(COPY);
+        out.writeInt(copyStart);
+        out.writeInt(copyCount);
+        copyStart = -1;
+    }
+}
@@ -0,0 +1,41 @@
+package delta;
+
+import javax.annotation.Nonnull;
+
+/**
+ * The rsync weak checksum of a fixed-size window, which can be moved forward by one byte in constant time. Cheap
+ * enough to compute at every offset of a file, and only windows that match it are checked with the strong hash.
+ */
+public class RollingChecksum {
+    private final int length;
+    private int a, b;
+
+    public RollingChecksum(@Nonnull final byte[] buffer, final int offset, final int length) {
+        this.length = length;
+        for (int i = 0; i < length; i++) {
+            final int x = buffer[offset + i] & 0xFF;
+            a += x;
+            b += (length - i) * x;
+        }
+    }
+
+    /**
+     * Moves the window one byte forward.
+     *
+     * @param out the first byte of the current window
+     * @param in  the byte just past the current window
+     */
+    public void roll(final byte out, final byte in) {
+        final int x = out & 0xFF;
+        a += (in & 0xFF) - x;
+        b += a - length * x;
+    }
+
+    public int getValue() {
+        return (a & 0xFFFF) | (b << 16);
+    }
+
+    public static int of(@Nonnull final byte[] buffer, final int offset, final int length) {
+        return new RollingChecksum(buffer, offset, length).getValue();
+    }
+}
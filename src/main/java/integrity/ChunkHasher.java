@@ -0,0 +1,140 @@
+package integrity;
+
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Hashes a payload in fixed-size chunks on a shared pool, one task per chunk, so that large files are hashed on
+ * every core while the transfer itself keeps going. Chunks are read back through positional reads, which works
+ * the same whether the bytes went through a stream or a zero-copy transfer, and usually hits the page cache
+ * because the transfer has just touched them.
+ */
+public class ChunkHasher {
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+    public static final int HASH_LENGTH = 32;
+    private static final ExecutorService executor = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(),
+            new ThreadFactoryBuilder().setNameFormat("jd-hash-%d").setDaemon(true).build());
+    // Chunk buffers are reused per pool thread, allocating a chunk-sized array per task would churn the heap
+    private static final ThreadLocal<byte[]> buffers = ThreadLocal.withInitial(() -> new byte[DEFAULT_CHUNK_SIZE]);
+
+    @Nonnull
+    private final FileChannel file;
+    private final long start, length;
+    private final int chunkSize;
+    @Nonnull
+    private final List<Future<byte[]>> hashes;
+
+    /**
+     * @param file   read through positional reads only, its position is left alone
+     * @param start  file position of the payload's first byte, chunks are counted from here
+     * @param length length of the payload
+     */
+    public ChunkHasher(@Nonnull final FileChannel file, final long start, final long length, final int chunkSize) {
+        this.file = file;
+        this.start = start;
+        this.length = length;
+        this.chunkSize = chunkSize;
+        final int count = (int) ((length + chunkSize - 1) / chunkSize);
+        hashes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            hashes.add(null);
+    }
+
+    public int getChunkCount() {
+        return hashes.size();
+    }
+
+    public long getChunkPosition(final int index) {
+        return start + (long) index * chunkSize;
+    }
+
+    public int getChunkLength(final int index) {
+        return (int) Math.min(chunkSize, length - (long) index * chunkSize);
+    }
+
+    /**
+     * Hashes the chunk in the background, replacing any earlier hash of it. The chunk must be fully written.
+     */
+    public void submit(final int index) {
+        final long position = getChunkPosition(index);
+        final int chunkLength = getChunkLength(index);
+        hashes.set(index, executor.submit(() -> hashChunk(position, chunkLength)));
+    }
+
+    public void submitAll() {
+        for (int i = 0; i < hashes.size(); i++)
+            submit(i);
+    }
+
+    /**
+     * Waits for every chunk to be hashed, all of them must have been submitted.
+     */
+    @Nonnull
+    public List<byte[]> getHashes() throws IOException {
+        final List<byte[]> result = new ArrayList<>(hashes.size());
+        for (int i = 0; i < hashes.size(); i++)
+            result.add(getHash(i));
+        return result;
+    }
+
+    @Nonnull
+    public byte[] getHash(final int index) throws IOException {
+        try {
+            return hashes.get(index).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while hashing chunk " + index, e);
+        } catch (ExecutionException e) {
+            throw new IOException("Chunk " + index + " could not be hashed", e.getCause());
+        }
+    }
+
+    @Nonnull
+    private byte[] hashChunk(final long position, final int chunkLength) throws IOException {
+        byte[] buffer = buffers.get();
+        if (buffer.length < chunkLength) {
+            buffer = new byte[chunkLength];
+            buffers.set(buffer);
+        }
+        final ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, chunkLength);
+        while (chunk.hasRemaining()) {
+            if (file.read(chunk, position + chunk.position()) < 0)
+                throw new IOException("File ended inside the chunk at " + position);
+        }
+        return Hashing.sha256().hashBytes(buffer, 0, chunkLength).asBytes();
+    }
+
+    /**
+     * Root of the binary hash tree over the chunk hashes, an odd hash at the end of a level is carried up as-is.
+     */
+    @Nonnull
+    public static byte[] merkleRoot(@Nonnull final List<byte[]> chunkHashes) {
+        if (chunkHashes.isEmpty())
+            return Hashing.sha256().hashBytes(new byte[0]).asBytes();
+        List<byte[]> level = chunkHashes;
+        while (level.size() > 1) {
+            final List<byte[]> parents = new ArrayList<>((level.size() + 1) / 2);
+            for (int i = 0; i < level.size(); i += 2) {
+                parents.add(i + 1 == level.size() ? level.get(i) : Hashing.sha256().newHasher()
+                        .putBytes(level.get(i))
+                        .putBytes(level.get(i + 1))
+                        .hash()
+                        .asBytes());
+            }
+            level = parents;
+        }
+        return level.get(0);
+    }
+}
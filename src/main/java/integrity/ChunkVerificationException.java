@@ -0,0 +1,24 @@
+package integrity;
+
+import java.io.IOException;
+
+/**
+ * A payload still had corrupt chunks after the last retransmit round.
+ */
+public class ChunkVerificationException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final long firstCorruptPosition;
+
+    public ChunkVerificationException(final String message, final long firstCorruptPosition) {
+        super(message);
+        this.firstCorruptPosition = firstCorruptPosition;
+    }
+
+    /**
+     * @return file position of the first corrupt chunk, everything before it was verified
+     */
+    public long getFirstCorruptPosition() {
+        return firstCorruptPosition;
+    }
+}
@@ -0,0 +1,179 @@
+package metrics;
+
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timings and byte counts of a single transfer, owned by the thread that drives it. A transfer started with
+ * {@link #start(Direction, String)} is also bound to its thread, so that JDLink's copy loops can record into it
+ * through {@link #current()} without the metrics being passed down every call.
+ * <p>
+ * Reads and writes are attributed to the network or the disk by the transfer's direction. Zero-copy transfers
+ * move bytes between socket and file in one call, their time is counted as network time.
+ */
+@Log4j2
+public class TransferMetrics {
+    public enum Direction {
+        SEND, RECEIVE
+    }
+
+    // Recorded into by copy loops that run outside of any tracked transfer, never reported
+    private static final TransferMetrics DETACHED = new TransferMetrics(Direction.RECEIVE, "", false);
+    private static final ThreadLocal<TransferMetrics> CURRENT = new ThreadLocal<>();
+
+    @Getter
+    @Nonnull
+    private final Direction direction;
+    @Getter
+    @Nonnull
+    private final String peer;
+    private final boolean reported;
+    private final long startNanos = System.nanoTime();
+    @Getter
+    @Nullable
+    private String filename;
+    @Getter
+    private long bytes;
+    @Getter
+    private long handshakeNanos;
+    @Getter
+    private long permissionNanos;
+    @Getter
+    private long networkNanos;
+    @Getter
+    private long diskNanos;
+    @Getter
+    private long codecNanos;
+    private boolean finished;
+
+    private TransferMetrics(@Nonnull final Direction direction, @Nonnull final String peer, final boolean reported) {
+        this.direction = direction;
+        this.peer = peer;
+        this.reported = reported;
+        if (reported)
+            TransferStats.getInstance().onStart();
+    }
+
+    /**
+     * Starts tracking a transfer that is driven by some other means than the current thread, such as a selector.
+     */
+    public TransferMetrics(@Nonnull final Direction direction, @Nonnull final String peer) {
+        this(direction, peer, true);
+    }
+
+    /**
+     * Starts tracking a transfer and binds it to the current thread until it finishes.
+     */
+    @Nonnull
+    public static TransferMetrics start(@Nonnull final Direction direction, @Nonnull final String peer) {
+        final TransferMetrics metrics = new TransferMetrics(direction, peer);
+        CURRENT.set(metrics);
+        return metrics;
+    }
+
+    /**
+     * @return the transfer bound to this thread, or a sink that is never reported if there is none
+     */
+    @Nonnull
+    public static TransferMetrics current() {
+        final TransferMetrics metrics = CURRENT.get();
+        return metrics != null ? metrics : DETACHED;
+    }
+
+    public void setFilename(@Nonnull final String filename) {
+        this.filename = filename;
+    }
+
+    public void addBytes(final long count) {
+        bytes += count;
+    }
+
+    public void addHandshakeNanos(final long nanos) {
+        handshakeNanos += nanos;
+    }
+
+    public void addPermissionNanos(final long nanos) {
+        permissionNanos += nanos;
+    }
+
+    /**
+     * Time spent reading the payload's source, the socket when receiving and the file when sending.
+     */
+    public void addReadNanos(final long nanos) {
+        if (direction == Direction.RECEIVE)
+            networkNanos += nanos;
+        else
+            diskNanos += nanos;
+    }
+
+    /**
+     * Time spent writing the payload to its destination, the file when receiving and the socket when sending.
+     */
+    public void addWriteNanos(final long nanos) {
+        if (direction == Direction.RECEIVE)
+            diskNanos += nanos;
+        else
+            networkNanos += nanos;
+    }
+
+    public void addNetworkNanos(final long nanos) {
+        networkNanos += nanos;
+    }
+
+    public void addCodecNanos(final long nanos) {
+        codecNanos += nanos;
+    }
+
+    public long getElapsedNanos() {
+        return System.nanoTime() - startNanos;
+    }
+
+    public long getBytesPerSecond() {
+        final long elapsed = getElapsedNanos();
+        return elapsed > 0 ? bytes * TimeUnit.SECONDS.toNanos(1) / elapsed : 0;
+    }
+
+    public void succeed() {
+        if (finish())
+            TransferStats.getInstance().onSuccess(this);
+    }
+
+    /**
+     * @param cause short, stable name of what went wrong, failures are counted per cause
+     */
+    public void fail(@Nonnull final String cause) {
+        if (finish())
+            TransferStats.getInstance().onFailure(this, cause);
+    }
+
+    public void fail(@Nonnull final Throwable cause) {
+        fail(cause.getClass().getSimpleName());
+    }
+
+    /**
+     * @return whether this call finished the transfer, only the first outcome of a transfer counts
+     */
+    private boolean finish() {
+        if (CURRENT.get() == this)
+            CURRENT.remove();
+        if (finished || !reported)
+            return false;
+        finished = true;
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return direction + " " + filename + " " + (direction == Direction.SEND ? "to " : "from ") + peer
+                + ": " + bytes + " bytes in " + TimeUnit.NANOSECONDS.toMillis(getElapsedNanos()) + " ms ("
+                + getBytesPerSecond() / 1024 + " KiB/s), handshake " + TimeUnit.NANOSECONDS.toMillis(handshakeNanos)
+                + " ms, permission " + TimeUnit.NANOSECONDS.toMillis(permissionNanos)
+                + " ms, network " + TimeUnit.NANOSECONDS.toMillis(networkNanos)
+                + " ms, disk " + TimeUnit.NANOSECONDS.toMillis(diskNanos)
+                + " ms, compression " + TimeUnit.NANOSECONDS.toMillis(codecNanos) + " ms";
+    }
+}
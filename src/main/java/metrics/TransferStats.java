@@ -0,0 +1,191 @@
+package metrics;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.log4j.Log4j2;
+
+import javax.annotation.Nonnull;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Aggregates the metrics of every finished transfer. Counters are {@link LongAdder}s, so transfer threads
+ * recording at the same time do not contend on a shared field.
+ */
+@Log4j2
+public class TransferStats implements TransferStatsMXBean {
+    static final String OBJECT_NAME = "javadrop:type=TransferStats";
+    private static final TransferStats INSTANCE = new TransferStats();
+
+    private final LongAdder activeTransfers = new LongAdder();
+    private final LongAdder completedTransfers = new LongAdder();
+    private final LongAdder failedTransfers = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder transferNanos = new LongAdder();
+    private final LongAdder handshakeNanos = new LongAdder();
+    private final LongAdder permissionNanos = new LongAdder();
+    private final LongAdder networkNanos = new LongAdder();
+    private final LongAdder diskNanos = new LongAdder();
+    private final LongAdder codecNanos = new LongAdder();
+    private final Map<String, LongAdder> failuresByCause = new ConcurrentHashMap<>();
+    private final List<Consumer<TransferMetrics>> listeners = new CopyOnWriteArrayList<>();
+
+    @Nonnull
+    public static TransferStats getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Makes the statistics visible to JMX clients such as jconsole, failures only cost visibility.
+     */
+    public void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            e.printStackTrace();
+            log.error("Transfer statistics could not be registered with JMX");
+        }
+    }
+
+    /**
+     * Logs a {@link #snapshot()} every {@code periodSeconds} on a daemon thread, nothing if the period is not
+     * positive.
+     */
+    public void startPeriodicDump(final int periodSeconds) {
+        if (periodSeconds <= 0)
+            return;
+        final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("jd-metrics").setDaemon(true).build());
+        scheduler.scheduleAtFixedRate(() -> log.info(snapshot()), periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @param listener called with the metrics of every transfer that finishes from now on, on its thread
+     */
+    public void addListener(@Nonnull final Consumer<TransferMetrics> listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(@Nonnull final Consumer<TransferMetrics> listener) {
+        listeners.remove(listener);
+    }
+
+    void onStart() {
+        activeTransfers.increment();
+    }
+
+    void onSuccess(@Nonnull final TransferMetrics metrics) {
+        completedTransfers.increment();
+        record(metrics);
+        log.info("completed " + metrics);
+    }
+
+    void onFailure(@Nonnull final TransferMetrics metrics, @Nonnull final String cause) {
+        failedTransfers.increment();
+        failuresByCause.computeIfAbsent(cause, c -> new LongAdder()).increment();
+        record(metrics);
+        log.info("failed (" + cause + ") " + metrics);
+    }
+
+    private void record(@Nonnull final TransferMetrics metrics) {
+        activeTransfers.decrement();
+        (metrics.getDirection() == TransferMetrics.Direction.SEND ? bytesSent : bytesReceived).add(metrics.getBytes());
+        transferNanos.add(metrics.getElapsedNanos());
+        handshakeNanos.add(metrics.getHandshakeNanos());
+        permissionNanos.add(metrics.getPermissionNanos());
+        networkNanos.add(metrics.getNetworkNanos());
+        diskNanos.add(metrics.getDiskNanos());
+        codecNanos.add(metrics.getCodecNanos());
+        listeners.forEach(listener -> listener.accept(metrics));
+    }
+
+    @Nonnull
+    public String snapshot() {
+        return "transfers: " + getActiveTransfers() + " active, " + getCompletedTransfers() + " completed, "
+                + getFailedTransfers() + " failed " + getFailuresByCause() + "; received " + getBytesReceived()
+                + " bytes, sent " + getBytesSent() + " bytes, " + getAverageBytesPerSecond() / 1024 + " KiB/s"
+                + "; handshake " + getAverageHandshakeMillis() + " ms avg; totals: permission "
+                + getTotalPermissionWaitMillis() + " ms, network " + getTotalNetworkMillis() + " ms, disk "
+                + getTotalDiskMillis() + " ms, compression " + getTotalCompressionMillis() + " ms";
+    }
+
+    @Override
+    public long getActiveTransfers() {
+        return activeTransfers.sum();
+    }
+
+    @Override
+    public long getCompletedTransfers() {
+        return completedTransfers.sum();
+    }
+
+    @Override
+    public long getFailedTransfers() {
+        return failedTransfers.sum();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public long getAverageBytesPerSecond() {
+        final long nanos = transferNanos.sum();
+        return nanos > 0 ? (getBytesReceived() + getBytesSent()) * TimeUnit.SECONDS.toNanos(1) / nanos : 0;
+    }
+
+    @Override
+    public long getAverageHandshakeMillis() {
+        final long transfers = getCompletedTransfers() + getFailedTransfers();
+        return transfers > 0 ? TimeUnit.NANOSECONDS.toMillis(handshakeNanos.sum() / transfers) : 0;
+    }
+
+    @Override
+    public long getTotalHandshakeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(handshakeNanos.sum());
+    }
+
+    @Override
+    public long getTotalPermissionWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(permissionNanos.sum());
+    }
+
+    @Override
+    public long getTotalNetworkMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(networkNanos.sum());
+    }
+
+    @Override
+    public long getTotalDiskMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(diskNanos.sum());
+    }
+
+    @Override
+    public long getTotalCompressionMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(codecNanos.sum());
+    }
+
+    @Override
+    public Map<String, Long> getFailuresByCause() {
+        final Map<String, Long> failures = new TreeMap<>();
+        failuresByCause.forEach((cause, count) -> failures.put(cause, count.sum()));
+        return failures;
+    }
+}
@@ -0,0 +1,37 @@
+package metrics;
+
+import java.util.Map;
+
+/**
+ * Aggregate transfer statistics since the process started, registered as {@value TransferStats#OBJECT_NAME}.
+ */
+public interface TransferStatsMXBean {
+    long getActiveTransfers();
+
+    long getCompletedTransfers();
+
+    long getFailedTransfers();
+
+    long getBytesReceived();
+
+    long getBytesSent();
+
+    /**
+     * Bytes per second over the time transfers were actually running, so idle time does not drag it down.
+     */
+    long getAverageBytesPerSecond();
+
+    long getAverageHandshakeMillis();
+
+    long getTotalHandshakeMillis();
+
+    long getTotalPermissionWaitMillis();
+
+    long getTotalNetworkMillis();
+
+    long getTotalDiskMillis();
+
+    long getTotalCompressionMillis();
+
+    Map<String, Long> getFailuresByCause();
+}
@@ -0,0 +1,22 @@
+package model;
+
+import compression.Codec;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Opens an archive transfer, where a whole tree of files follows as one stream of records instead of a manifest
+ * and back-to-back payloads. Only the totals are known up front, the paths arrive with the records.
+ */
+@Getter
+@AllArgsConstructor
+public class ArchiveHeader {
+    private String host;
+    // First file or directory the user picked, used to describe the transfer
+    private String name;
+    private long fileCount, totalSize;
+    // Applies to the record stream as a whole rather than to each file
+    @Setter
+    private Codec compression;
+}
@@ -0,0 +1,31 @@
+package model;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.List;
+
+/**
+ * The files of a batch transfer, in the order their bytes follow each other on the connection. Paths are
+ * relative and always use '/' as the separator, the first segment is the file or directory the user picked.
+ */
+@Getter
+@AllArgsConstructor
+public class BatchManifest {
+    private String host;
+    private List<Entry> entries;
+
+    public long getTotalSize() {
+        long total = 0;
+        for (Entry entry : entries)
+            total += entry.getSize();
+        return total;
+    }
+
+    @Getter
+    @AllArgsConstructor
+    public static class Entry {
+        private String path;
+        private long size;
+    }
+}
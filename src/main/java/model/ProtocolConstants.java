@@ -1,8 +1,19 @@
 package model;
 
 public class ProtocolConstants {
-    public static final String DELIMITER = "/";
+    // Control frame header: magic (2 bytes), version (1), message type (1), payload length (4)
+    public static final short MAGIC = 0x4A44;
+    public static final byte VERSION = 1;
+    public static final int HEADER_SIZE = 8;
+    public static final int MAX_FRAME_LENGTH = 64 * 1024;
+    public static final int MAX_BATCH_FILES = 1000000;
     public static final String OK_RESPONSE = "OK";
+    public static final String BUSY_RESPONSE = "BUSY";
+    public static final String NO_SPACE_RESPONSE = "NO_SPACE";
+    // Confirms a transfer within a session, once the file is complete on the receiver
+    public static final String DONE_RESPONSE = "DONE";
+    // Turns down a request whose optimistic window is larger than the receiver stages, naming the receiver's limit
+    public static final String WINDOW_TOO_LARGE_RESPONSE = "WINDOW_TOO_LARGE";
     public static final char EOF = '%';
     public static final int PORT = 10000;
 }
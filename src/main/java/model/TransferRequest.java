@@ -1,13 +1,65 @@
 package model;
 
+import compression.Codec;
 import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.Setter;
 
+import java.util.Collections;
+import java.util.List;
+
 @Getter
 @Setter
 @AllArgsConstructor
 public class TransferRequest {
     private long filesize;
     private String filename, host;
+    // A file sent over several connections arrives as one request per byte range, grouped by transferId
+    private int streams;
+    private String transferId;
+    private long offset, length;
+    private Codec compression;
+    // Size of the chunks the payload is verified in, 0 if it is not verified
+    private int integrityChunkSize;
+    // Whether the sender can send only the differences to an older copy the receiver already has
+    private boolean deltaSync;
+    // Payload bytes the sender streams right after the request, before the receiver has answered it
+    private long optimisticLength;
+    // Receivers the file is passed on to in turn, each one forwarding it while receiving it, empty if none
+    private List<String> relayHops;
+
+    public TransferRequest(long filesize, String filename, String host) {
+        this(filesize, filename, host, 1, "", 0, filesize, Codec.NONE);
+    }
+
+    public TransferRequest(long filesize, String filename, String host, int streams, String transferId,
+                           long offset, long length, Codec compression) {
+        this(filesize, filename, host, streams, transferId, offset, length, compression, 0);
+    }
+
+    public TransferRequest(long filesize, String filename, String host, int streams, String transferId,
+                           long offset, long length, Codec compression, int integrityChunkSize) {
+        this(filesize, filename, host, streams, transferId, offset, length, compression, integrityChunkSize, false);
+    }
+
+    public TransferRequest(long filesize, String filename, String host, int streams, String transferId,
+                           long offset, long length, Codec compression, int integrityChunkSize, boolean deltaSync) {
+        this(filesize, filename, host, streams, transferId, offset, length, compression, integrityChunkSize,
+                deltaSync, 0);
+    }
+
+    public TransferRequest(long filesize, String filename, String host, int streams, String transferId,
+                           long offset, long length, Codec compression, int integrityChunkSize, boolean deltaSync,
+                           long optimisticLength) {
+        this(filesize, filename, host, streams, transferId, offset, length, compression, integrityChunkSize,
+                deltaSync, optimisticLength, Collections.emptyList());
+    }
+
+    public boolean isMultiStream() {
+        return streams > 1;
+    }
+
+    public boolean isRelayed() {
+        return !relayHops.isEmpty();
+    }
 }
@@ -5,40 +5,35 @@ import javafx.stage.Stage;
 import lombok.extern.log4j.Log4j2;
 
 import javax.annotation.Nonnull;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CompletableFuture;
 
 @Log4j2
 public class DialogArbiter implements Permissions.Arbiter {
+    static {
+        // Dialogs close their own stage, the toolkit has to outlive them for the next prompt
+        Platform.setImplicitExit(false);
+    }
+
+    @Nonnull
     @Override
-    public boolean requestPermission(@Nonnull final String filename,
-                                     @Nonnull final String source,
-                                     final long filesize,
-                                     @Nonnull final Permissions.Requester requester) {
-        final CountDownLatch latch = new CountDownLatch(1);
-        final boolean[] permission = new boolean[1];
-        try {
-            new Thread(() -> {
-                log.debug("Spawned UI thread on: " + Thread.currentThread().getId());
-                Platform.runLater(() -> {
-                    new JavaFxDialog(filename, source, filesize, new JavaFxDialog.Callback() {
-                        @Override
-                        public void success() {
-                            permission[0] = true;
-                            latch.countDown();
-                        }
+    public CompletableFuture<Boolean> requestPermission(@Nonnull final String filename,
+                                                       @Nonnull final String source,
+                                                       final long filesize) {
+        final CompletableFuture<Boolean> permission = new CompletableFuture<>();
+        Platform.runLater(() -> {
+            log.debug("Showing permission dialog on thread: " + Thread.currentThread().getId());
+            new JavaFxDialog(filename, source, filesize, new JavaFxDialog.Callback() {
+                @Override
+                public void success() {
+                    permission.complete(true);
+                }
 
-                        @Override
-                        public void failure() {
-                            permission[0] = false;
-                            latch.countDown();
-                        }
-                    }).start(new Stage());
-                });
-            }).start();
-            latch.await();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
-        return permission[0];
+                @Override
+                public void failure() {
+                    permission.complete(false);
+                }
+            }).start(new Stage());
+        });
+        return permission;
     }
 }
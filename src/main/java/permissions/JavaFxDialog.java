@@ -1,7 +1,6 @@
 package permissions;
 
 import javafx.application.Application;
-import javafx.application.Platform;
 import javafx.geometry.Pos;
 import javafx.scene.Scene;
 import javafx.scene.control.Button;
@@ -48,19 +47,13 @@ public class JavaFxDialog extends Application {
     public static void main(String[] args) {
         DialogArbiter d = new DialogArbiter();
         System.out.println("Main thread id: " + Thread.currentThread().getId());
-        boolean permission = d.requestPermission("test.png", "192.12.31.1", 123123, new Permissions.Requester() {
-            @Override
-            public void onPermissionGranted() {
-                System.out.println("GRANTED");
-                System.out.println("Permission granted on thread id: " + Thread.currentThread().getId());
-            }
-
-            @Override
-            public void onPermissionRejected() {
-                System.out.println("REJECTED");
-                System.out.println("Permission rejected on thread id: " + Thread.currentThread().getId());
-            }
-        });
+        boolean permission = d.requestPermission("test.png", "192.12.31.1", 123123)
+                .thenApply(granted -> {
+                    System.out.println(granted ? "GRANTED" : "REJECTED");
+                    System.out.println("Permission decided on thread id: " + Thread.currentThread().getId());
+                    return granted;
+                })
+                .join();
         log.debug("Is permission granted: " + permission);
     }
 
@@ -73,7 +66,7 @@ public class JavaFxDialog extends Application {
         reject.setMaxWidth(BUTTON_WIDTH);
         reject.setOnAction(e -> {
             callback.failure();
-            Platform.exit();
+            stage.close();
         });
 
         final Button accept = new Button(ACCEPT_BUTTON_TEXT);
@@ -81,7 +74,7 @@ public class JavaFxDialog extends Application {
         accept.setMaxWidth(BUTTON_WIDTH);
         accept.setOnAction(e -> {
             callback.success();
-            Platform.exit();
+            stage.close();
         });
 
         final HBox buttonLayout = new HBox();
@@ -97,6 +90,8 @@ public class JavaFxDialog extends Application {
         final Scene scene = new Scene(layout, DIALOG_WIDTH, DIALOG_HEIGHT);
         stage.setScene(scene);
         stage.setTitle(TITLE);
+        // Closing the window is an answer too, otherwise the request would never be decided
+        stage.setOnCloseRequest(e -> callback.failure());
         stage.show();
         System.out.println("Dialog thread id: " + Thread.currentThread().getId());
     }
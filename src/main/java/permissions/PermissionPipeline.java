@@ -0,0 +1,84 @@
+package permissions;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.log4j.Log4j2;
+
+import javax.annotation.Nonnull;
+import java.util.concurrent.*;
+
+/**
+ * Decides transfer requests without blocking the connections that make them. The {@link PermissionPolicy} answers
+ * right away where it can, and the remaining requests queue up for a single dispatch thread that puts them to the
+ * {@link Permissions.Arbiter} one at a time. A prompt that stays unanswered for too long is taken as a denial, so
+ * that it does not hold up the requests queued behind it.
+ */
+@Log4j2
+public class PermissionPipeline {
+    public static final int DEFAULT_PROMPT_TIMEOUT_SECONDS = 300;
+
+    @Nonnull
+    private final PermissionPolicy policy;
+    @Nonnull
+    private final Permissions.Arbiter arbiter;
+    @Nonnull
+    private final ExecutorService dispatcher = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setNameFormat("jd-permission-ui").setDaemon(true).build());
+
+    private final long promptTimeoutMillis;
+
+    public PermissionPipeline(@Nonnull final PermissionPolicy policy, @Nonnull final Permissions.Arbiter arbiter) {
+        this(policy, arbiter, TimeUnit.SECONDS.toMillis(DEFAULT_PROMPT_TIMEOUT_SECONDS));
+    }
+
+    /**
+     * @param promptTimeoutMillis how long a prompt may stay unanswered before the request is denied
+     */
+    public PermissionPipeline(@Nonnull final PermissionPolicy policy,
+                              @Nonnull final Permissions.Arbiter arbiter,
+                              final long promptTimeoutMillis) {
+        this.policy = policy;
+        this.arbiter = arbiter;
+        this.promptTimeoutMillis = promptTimeoutMillis;
+    }
+
+    /**
+     * @param source address of the sending peer
+     */
+    @Nonnull
+    public CompletableFuture<Boolean> request(@Nonnull final String filename,
+                                              @Nonnull final String source,
+                                              final long filesize) {
+        final PermissionPolicy.Decision decision = policy.evaluate(filename, source, filesize);
+        if (decision != PermissionPolicy.Decision.ASK)
+            return CompletableFuture.completedFuture(decision == PermissionPolicy.Decision.ALLOW);
+
+        final CompletableFuture<Boolean> permission = new CompletableFuture<>();
+        dispatcher.execute(() -> {
+            // The answer to a prompt that was queued earlier may cover this request as well
+            final PermissionPolicy.Decision queued = policy.evaluate(filename, source, filesize);
+            if (queued != PermissionPolicy.Decision.ASK) {
+                permission.complete(queued == PermissionPolicy.Decision.ALLOW);
+                return;
+            }
+            final CompletableFuture<Boolean> prompt = arbiter.requestPermission(filename, source, filesize);
+            try {
+                final boolean granted = prompt.get(promptTimeoutMillis, TimeUnit.MILLISECONDS);
+                policy.remember(source, granted);
+                permission.complete(granted);
+            } catch (TimeoutException e) {
+                // Nobody answered, which is not remembered as a decision about the source
+                log.error("Permission prompt for " + filename + " was not answered in time, denying transfer");
+                prompt.cancel(true);
+                permission.complete(false);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                permission.complete(false);
+            } catch (ExecutionException e) {
+                e.printStackTrace();
+                log.error("Permission could not be requested, denying transfer of " + filename);
+                permission.complete(false);
+            }
+        });
+        return permission;
+    }
+}
@@ -0,0 +1,95 @@
+package permissions;
+
+import com.google.common.annotations.VisibleForTesting;
+import lombok.AllArgsConstructor;
+
+import javax.annotation.Nonnull;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Rules that decide a transfer request without asking the user: size and file type limits, trusted hosts, and
+ * the user's recent answers to requests from the same host.
+ */
+public class PermissionPolicy {
+    public enum Decision {
+        ALLOW, DENY, ASK
+    }
+
+    @Nonnull
+    private final Set<String> trustedHosts;
+    @Nonnull
+    private final Set<String> blockedExtensions;
+    // Larger files are denied, unlimited if negative
+    private final long maxFilesize;
+    // How long an answer is applied to further requests from the same host, not at all if 0
+    private final long rememberNanos;
+    @Nonnull
+    private final LongSupplier clock;
+    @Nonnull
+    private final Map<String, Remembered> remembered = new ConcurrentHashMap<>();
+
+    /**
+     * @param trustedHosts      addresses whose transfers are always accepted
+     * @param blockedExtensions lowercase extensions, without the dot, that are always denied
+     */
+    public PermissionPolicy(@Nonnull final Set<String> trustedHosts,
+                            @Nonnull final Set<String> blockedExtensions,
+                            final long maxFilesize,
+                            final long rememberSeconds) {
+        this(trustedHosts, blockedExtensions, maxFilesize, rememberSeconds, System::nanoTime);
+    }
+
+    @VisibleForTesting
+    PermissionPolicy(@Nonnull final Set<String> trustedHosts,
+                     @Nonnull final Set<String> blockedExtensions,
+                     final long maxFilesize,
+                     final long rememberSeconds,
+                     @Nonnull final LongSupplier clock) {
+        this.trustedHosts = trustedHosts;
+        this.blockedExtensions = blockedExtensions;
+        this.maxFilesize = maxFilesize;
+        this.rememberNanos = TimeUnit.SECONDS.toNanos(rememberSeconds);
+        this.clock = clock;
+    }
+
+    /**
+     * Limits come first, so that they hold for trusted hosts as well.
+     *
+     * @param source address of the sending peer
+     */
+    @Nonnull
+    public Decision evaluate(@Nonnull final String filename, @Nonnull final String source, final long filesize) {
+        if ((maxFilesize >= 0 && filesize > maxFilesize) || blockedExtensions.contains(getExtension(filename)))
+            return Decision.DENY;
+        if (trustedHosts.contains(source))
+            return Decision.ALLOW;
+        final Remembered answer = remembered.get(source);
+        if (answer != null) {
+            if (clock.getAsLong() - answer.decidedNanos < rememberNanos)
+                return answer.granted ? Decision.ALLOW : Decision.DENY;
+            remembered.remove(source, answer);
+        }
+        return Decision.ASK;
+    }
+
+    public void remember(@Nonnull final String source, final boolean granted) {
+        if (rememberNanos > 0)
+            remembered.put(source, new Remembered(granted, clock.getAsLong()));
+    }
+
+    @Nonnull
+    private static String getExtension(@Nonnull final String filename) {
+        final int index = filename.lastIndexOf('.');
+        return index <= 0 ? "" : filename.substring(index + 1).toLowerCase();
+    }
+
+    @AllArgsConstructor
+    private static class Remembered {
+        private final boolean granted;
+        private final long decidedNanos;
+    }
+}
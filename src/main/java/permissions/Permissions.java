@@ -1,18 +1,19 @@
 package permissions;
 
 import javax.annotation.Nonnull;
+import java.util.concurrent.CompletableFuture;
 
 public class Permissions {
-    interface Arbiter {
-        boolean requestPermission(@Nonnull final String filename,
-                               @Nonnull final String source,
-                               final long filesize,
-                               @Nonnull final Requester requester);
+    public interface Arbiter {
+        /**
+         * Asks for permission without blocking the caller, the future completes once the request is decided.
+         */
+        @Nonnull
+        CompletableFuture<Boolean> requestPermission(@Nonnull final String filename,
+                                                     @Nonnull final String source,
+                                                     final long filesize);
     }
 
-    interface Requester {
-        void onPermissionGranted();
-
-        void onPermissionRejected();
-    }
+    // Grants every request, for receivers without a UI
+    public static final Arbiter ACCEPT_ALL = (filename, source, filesize) -> CompletableFuture.completedFuture(true);
 }
@@ -0,0 +1,425 @@
+package protocol;
+
+import compression.Codec;
+import delta.BlockSignature;
+import integrity.ChunkHasher;
+import model.ArchiveHeader;
+import model.BatchManifest;
+import model.ProtocolConstants;
+import model.TransferRequest;
+import com.google.common.base.Splitter;
+import lombok.Getter;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A control message of the binary protocol. A frame is a fixed header (magic, version, message type, payload
+ * length) followed by tagged, length-prefixed fields. Readers skip tags they do not know, so fields can be added
+ * without breaking older peers.
+ */
+public class ControlMessage {
+    // Field tags
+    public static final int FILENAME = 1;
+    public static final int FILESIZE = 2;
+    public static final int HOST = 3;
+    public static final int STREAMS = 4;
+    public static final int TRANSFER_ID = 5;
+    public static final int OFFSET = 6;
+    public static final int LENGTH = 7;
+    public static final int COMPRESSION = 8;
+    public static final int FILE_COUNT = 9;
+    public static final int ENTRIES = 10;
+    public static final int INTEGRITY_CHUNK_SIZE = 11;
+    public static final int CHUNK_COUNT = 12;
+    public static final int ROOT_HASH = 13;
+    public static final int HASHES = 14;
+    public static final int CHUNKS = 15;
+    public static final int DELTA_SYNC = 16;
+    public static final int BLOCK_SIZE = 17;
+    public static final int BLOCK_COUNT = 18;
+    public static final int SIGNATURES = 19;
+    public static final int OPTIMISTIC_LENGTH = 20;
+    public static final int RELAY_HOPS = 21;
+    public static final int QUEUE_POSITION = 22;
+    // Set by senders that wait through QUEUE_POSITION frames, older ones would take them for an answer
+    public static final int QUEUE_UPDATES = 23;
+    public static final int STATUS = 32;
+    public static final int RESUME_OFFSET = 33;
+    public static final int RESUME_CHECKSUM = 34;
+
+    // tag (2 bytes) + value length (4 bytes)
+    private static final int FIELD_HEADER_SIZE = 6;
+    // path length (4 bytes) + size (8 bytes)
+    private static final int ENTRY_OVERHEAD = 12;
+
+    @Getter
+    @Nonnull
+    private final MessageType type;
+    private final Map<Integer, byte[]> fields = new LinkedHashMap<>();
+
+    public ControlMessage(@Nonnull final MessageType type) {
+        this.type = type;
+    }
+
+    @Nonnull
+    public static ControlMessage response(@Nonnull final String status) {
+        return new ControlMessage(MessageType.RESPONSE).putString(STATUS, status);
+    }
+
+    @Nonnull
+    public static ControlMessage sessionStart() {
+        return new ControlMessage(MessageType.SESSION_START).putLong(QUEUE_UPDATES, 1);
+    }
+
+    @Nonnull
+    public static ControlMessage queuePosition(final int position) {
+        return new ControlMessage(MessageType.QUEUE_POSITION).putLong(QUEUE_POSITION, position);
+    }
+
+    @Nonnull
+    public static ControlMessage fromTransferRequest(@Nonnull final TransferRequest request) {
+        return new ControlMessage(MessageType.TRANSFER_REQUEST)
+                .putString(FILENAME, request.getFilename())
+                .putLong(FILESIZE, request.getFilesize())
+                .putString(HOST, request.getHost())
+                .putLong(STREAMS, request.getStreams())
+                .putString(TRANSFER_ID, request.getTransferId())
+                .putLong(OFFSET, request.getOffset())
+                .putLong(LENGTH, request.getLength())
+                .putString(COMPRESSION, request.getCompression().name())
+                .putLong(INTEGRITY_CHUNK_SIZE, request.getIntegrityChunkSize())
+                .putLong(DELTA_SYNC, request.isDeltaSync() ? 1 : 0)
+                .putLong(OPTIMISTIC_LENGTH, request.getOptimisticLength())
+                .putString(RELAY_HOPS, String.join(",", request.getRelayHops()))
+                .putLong(QUEUE_UPDATES, 1);
+    }
+
+    /**
+     * Only the filename, size and host are required, every other field falls back to a single stream
+     * carrying the whole file uncompressed.
+     */
+    @Nonnull
+    public TransferRequest toTransferRequest() throws ProtocolException {
+        final String filename = getString(FILENAME), host = getString(HOST);
+        if (filename == null || host == null || !has(FILESIZE))
+            throw new ProtocolException("Transfer request is missing required fields");
+        final long filesize = getLong(FILESIZE, 0);
+        final String transferId = getString(TRANSFER_ID), compression = getString(COMPRESSION);
+        final String relayHops = getString(RELAY_HOPS);
+        final List<String> hops = relayHops == null
+                ? Collections.emptyList() : Splitter.on(',').omitEmptyStrings().splitToList(relayHops);
+        final Codec codec = compression == null ? Codec.NONE : Codec.fromName(compression);
+        if (codec == null)
+            throw new ProtocolException("Unknown compression " + compression);
+        return new TransferRequest(filesize, filename, host, (int) getLong(STREAMS, 1),
+                transferId == null ? "" : transferId, getLong(OFFSET, 0), getLong(LENGTH, filesize), codec,
+                (int) getLong(INTEGRITY_CHUNK_SIZE, 0), getLong(DELTA_SYNC, 0) != 0, getLong(OPTIMISTIC_LENGTH, 0),
+                hops);
+    }
+
+    @Nonnull
+    public static ControlMessage fromArchiveHeader(@Nonnull final ArchiveHeader header) {
+        return new ControlMessage(MessageType.ARCHIVE_START)
+                .putString(HOST, header.getHost())
+                .putString(FILENAME, header.getName())
+                .putLong(FILE_COUNT, header.getFileCount())
+                .putLong(FILESIZE, header.getTotalSize())
+                .putString(COMPRESSION, header.getCompression().name())
+                .putLong(QUEUE_UPDATES, 1);
+    }
+
+    @Nonnull
+    public ArchiveHeader toArchiveHeader() throws ProtocolException {
+        final String host = getString(HOST), name = getString(FILENAME), compression = getString(COMPRESSION);
+        if (host == null || name == null || !has(FILE_COUNT) || !has(FILESIZE))
+            throw new ProtocolException("Archive header is missing required fields");
+        final Codec codec = compression == null ? Codec.NONE : Codec.fromName(compression);
+        if (codec == null)
+            throw new ProtocolException("Unknown compression " + compression);
+        return new ArchiveHeader(host, name, getLong(FILE_COUNT, 0), getLong(FILESIZE, 0), codec);
+    }
+
+    /**
+     * @return the manifest frame followed by entry frames, each packed as full as the frame limit allows
+     */
+    @Nonnull
+    public static List<ControlMessage> fromBatchManifest(@Nonnull final BatchManifest manifest) {
+        final List<ControlMessage> frames = new ArrayList<>();
+        frames.add(new ControlMessage(MessageType.BATCH_MANIFEST)
+                .putString(HOST, manifest.getHost())
+                .putLong(FILE_COUNT, manifest.getEntries().size())
+                // The total lets the receiver place the batch in its queue before the entries are read
+                .putLong(FILESIZE, manifest.getTotalSize())
+                .putLong(QUEUE_UPDATES, 1));
+        final ByteBuffer entries = ByteBuffer.allocate(ProtocolConstants.MAX_FRAME_LENGTH - FIELD_HEADER_SIZE);
+        for (BatchManifest.Entry entry : manifest.getEntries()) {
+            final byte[] path = entry.getPath().getBytes(StandardCharsets.UTF_8);
+            if (entries.remaining() < ENTRY_OVERHEAD + path.length && entries.position() > 0) {
+                frames.add(entriesFrame(entries));
+                entries.clear();
+            }
+            // A single path too long for a frame overflows here, paths are far below the frame limit in practice
+            entries.putInt(path.length).put(path).putLong(entry.getSize());
+        }
+        if (entries.position() > 0)
+            frames.add(entriesFrame(entries));
+        return frames;
+    }
+
+    /**
+     * @return the header frame with the count and root hash, followed by frames packed with the chunk hashes
+     */
+    @Nonnull
+    public static List<ControlMessage> fromChunkHashes(@Nonnull final List<byte[]> hashes, @Nonnull final byte[] root) {
+        final List<ControlMessage> frames = new ArrayList<>();
+        frames.add(new ControlMessage(MessageType.CHUNK_HASHES)
+                .putLong(CHUNK_COUNT, hashes.size())
+                .putBytes(ROOT_HASH, root));
+        final int hashesPerFrame = (ProtocolConstants.MAX_FRAME_LENGTH - FIELD_HEADER_SIZE) / ChunkHasher.HASH_LENGTH;
+        for (int i = 0; i < hashes.size(); i += hashesPerFrame) {
+            final ByteBuffer packed = ByteBuffer.allocate(
+                    Math.min(hashesPerFrame, hashes.size() - i) * ChunkHasher.HASH_LENGTH);
+            for (byte[] hash : hashes.subList(i, Math.min(hashes.size(), i + hashesPerFrame)))
+                packed.put(hash);
+            frames.add(new ControlMessage(MessageType.CHUNK_HASH_LIST).putBytes(HASHES, packed.array()));
+        }
+        return frames;
+    }
+
+    /**
+     * Appends the hashes carried by a {@link MessageType#CHUNK_HASH_LIST} frame.
+     */
+    public void readHashes(@Nonnull final List<byte[]> hashes) throws ProtocolException {
+        final byte[] value = fields.get(HASHES);
+        if (value == null || value.length % ChunkHasher.HASH_LENGTH != 0)
+            throw new ProtocolException("Invalid chunk hash list");
+        for (int i = 0; i < value.length; i += ChunkHasher.HASH_LENGTH)
+            hashes.add(Arrays.copyOfRange(value, i, i + ChunkHasher.HASH_LENGTH));
+    }
+
+    /**
+     * @return the header frame with the block size and count, followed by frames packed with each block's weak
+     * checksum and strong hash
+     */
+    @Nonnull
+    public static List<ControlMessage> fromBlockSignature(@Nonnull final BlockSignature signature) {
+        final List<ControlMessage> frames = new ArrayList<>();
+        frames.add(new ControlMessage(MessageType.BLOCK_SIGNATURE)
+                .putLong(BLOCK_SIZE, signature.getBlockSize())
+                .putLong(BLOCK_COUNT, signature.getBlockCount()));
+        final int blocksPerFrame = (ProtocolConstants.MAX_FRAME_LENGTH - FIELD_HEADER_SIZE) / BlockSignature.ENTRY_LENGTH;
+        for (int i = 0; i < signature.getBlockCount(); i += blocksPerFrame) {
+            final int end = Math.min(signature.getBlockCount(), i + blocksPerFrame);
+            final ByteBuffer packed = ByteBuffer.allocate((end - i) * BlockSignature.ENTRY_LENGTH);
+            for (int block = i; block < end; block++)
+                packed.putInt(signature.getWeak()[block]).put(signature.getStrong()[block]);
+            frames.add(new ControlMessage(MessageType.BLOCK_SIGNATURE_LIST).putBytes(SIGNATURES, packed.array()));
+        }
+        return frames;
+    }
+
+    /**
+     * Fills in the blocks carried by a {@link MessageType#BLOCK_SIGNATURE_LIST} frame.
+     *
+     * @param first index of the first block in this frame
+     * @return index of the block after the last one in this frame
+     */
+    public int readSignatures(@Nonnull final int[] weak, @Nonnull final byte[][] strong, final int first)
+            throws ProtocolException {
+        final byte[] value = fields.get(SIGNATURES);
+        if (value == null || value.length % BlockSignature.ENTRY_LENGTH != 0
+                || first + value.length / BlockSignature.ENTRY_LENGTH > weak.length)
+            throw new ProtocolException("Invalid block signature list");
+        final ByteBuffer packed = ByteBuffer.wrap(value);
+        int block = first;
+        while (packed.hasRemaining()) {
+            weak[block] = packed.getInt();
+            strong[block] = new byte[BlockSignature.STRONG_HASH_LENGTH];
+            packed.get(strong[block]);
+            block++;
+        }
+        return block;
+    }
+
+    /**
+     * @param chunks indices of the chunks to send again, none once the payload is verified
+     */
+    @Nonnull
+    public static ControlMessage retransmitRequest(@Nonnull final List<Integer> chunks) {
+        final ByteBuffer packed = ByteBuffer.allocate(chunks.size() * Integer.BYTES);
+        for (int chunk : chunks)
+            packed.putInt(chunk);
+        return new ControlMessage(MessageType.RETRANSMIT_REQUEST).putBytes(CHUNKS, packed.array());
+    }
+
+    @Nonnull
+    public List<Integer> getChunks() throws ProtocolException {
+        final byte[] value = fields.get(CHUNKS);
+        if (value == null || value.length % Integer.BYTES != 0)
+            throw new ProtocolException("Invalid retransmit request");
+        final ByteBuffer packed = ByteBuffer.wrap(value);
+        final List<Integer> chunks = new ArrayList<>(value.length / Integer.BYTES);
+        while (packed.hasRemaining())
+            chunks.add(packed.getInt());
+        return chunks;
+    }
+
+    @Nonnull
+    private static ControlMessage entriesFrame(@Nonnull final ByteBuffer entries) {
+        final ControlMessage frame = new ControlMessage(MessageType.BATCH_ENTRIES);
+        frame.fields.put(ENTRIES, Arrays.copyOf(entries.array(), entries.position()));
+        return frame;
+    }
+
+    /**
+     * Appends the entries carried by a {@link MessageType#BATCH_ENTRIES} frame.
+     */
+    public void readEntries(@Nonnull final List<BatchManifest.Entry> entries) throws ProtocolException {
+        final byte[] value = fields.get(ENTRIES);
+        if (value == null)
+            throw new ProtocolException("Batch entries frame carries no entries");
+        final ByteBuffer buffer = ByteBuffer.wrap(value);
+        try {
+            while (buffer.hasRemaining()) {
+                final int pathLength = buffer.getInt();
+                if (pathLength < 0 || pathLength > buffer.remaining())
+                    throw new ProtocolException("Batch entry overruns the frame");
+                final byte[] path = new byte[pathLength];
+                buffer.get(path);
+                entries.add(new BatchManifest.Entry(new String(path, StandardCharsets.UTF_8), buffer.getLong()));
+            }
+        } catch (BufferUnderflowException e) {
+            throw new ProtocolException("Truncated batch entry");
+        }
+    }
+
+    @Nonnull
+    public ControlMessage putString(final int tag, @Nonnull final String value) {
+        fields.put(tag, value.getBytes(StandardCharsets.UTF_8));
+        return this;
+    }
+
+    @Nonnull
+    public ControlMessage putLong(final int tag, final long value) {
+        fields.put(tag, ByteBuffer.allocate(Long.BYTES).putLong(value).array());
+        return this;
+    }
+
+    @Nonnull
+    public ControlMessage putBytes(final int tag, @Nonnull final byte[] value) {
+        fields.put(tag, value.clone());
+        return this;
+    }
+
+    public boolean has(final int tag) {
+        return fields.containsKey(tag);
+    }
+
+    @Nullable
+    public String getString(final int tag) {
+        final byte[] value = fields.get(tag);
+        return value == null ? null : new String(value, StandardCharsets.UTF_8);
+    }
+
+    @Nullable
+    public byte[] getBytes(final int tag) {
+        final byte[] value = fields.get(tag);
+        return value == null ? null : value.clone();
+    }
+
+    public long getLong(final int tag, final long defaultValue) throws ProtocolException {
+        final byte[] value = fields.get(tag);
+        if (value == null)
+            return defaultValue;
+        if (value.length != Long.BYTES)
+            throw new ProtocolException("Field " + tag + " is not a long");
+        return ByteBuffer.wrap(value).getLong();
+    }
+
+    @Nonnull
+    public byte[] encode() throws ProtocolException {
+        int length = 0;
+        for (byte[] value : fields.values()) {
+            length += FIELD_HEADER_SIZE + value.length;
+        }
+        if (length > ProtocolConstants.MAX_FRAME_LENGTH)
+            throw new ProtocolException("Message of " + length + " bytes exceeds the frame limit");
+        final ByteBuffer frame = ByteBuffer.allocate(ProtocolConstants.HEADER_SIZE + length)
+                .putShort(ProtocolConstants.MAGIC)
+                .put(ProtocolConstants.VERSION)
+                .put((byte) type.getId())
+                .putInt(length);
+        for (Map.Entry<Integer, byte[]> field : fields.entrySet()) {
+            frame.putShort((short) (int) field.getKey())
+                    .putInt(field.getValue().length)
+                    .put(field.getValue());
+        }
+        return frame.array();
+    }
+
+    /**
+     * Writes the whole frame with a single write and flushes it.
+     */
+    public void writeTo(@Nonnull final OutputStream out) throws IOException {
+        out.write(encode());
+        out.flush();
+    }
+
+    /**
+     * Validates a frame header and returns the length of the payload that follows it. The header's type is
+     * checked later by {@link #decode(ByteBuffer)}.
+     */
+    public static int readPayloadLength(@Nonnull final ByteBuffer header) throws ProtocolException {
+        if (header.getShort(header.position()) != ProtocolConstants.MAGIC)
+            throw new ProtocolException("Frame does not start with the protocol magic");
+        final byte version = header.get(header.position() + 2);
+        if (version != ProtocolConstants.VERSION)
+            throw new ProtocolException("Unsupported protocol version " + version);
+        final int length = header.getInt(header.position() + 4);
+        if (length < 0 || length > ProtocolConstants.MAX_FRAME_LENGTH)
+            throw new ProtocolException("Invalid frame length " + length);
+        return length;
+    }
+
+    /**
+     * @param frame a complete frame, header included
+     */
+    @Nonnull
+    public static ControlMessage decode(@Nonnull final ByteBuffer frame) throws ProtocolException {
+        final int length = readPayloadLength(frame);
+        final MessageType type = MessageType.fromId(frame.get(frame.position() + 3) & 0xFF);
+        if (type == null)
+            throw new ProtocolException("Unknown message type " + frame.get(frame.position() + 3));
+        final ControlMessage message = new ControlMessage(type);
+        final ByteBuffer payload = frame.duplicate();
+        payload.position(frame.position() + ProtocolConstants.HEADER_SIZE);
+        payload.limit(payload.position() + length);
+        try {
+            while (payload.hasRemaining()) {
+                final int tag = payload.getShort() & 0xFFFF;
+                final int valueLength = payload.getInt();
+                if (valueLength < 0 || valueLength > payload.remaining())
+                    throw new ProtocolException("Field " + tag + " overruns the frame");
+                final byte[] value = new byte[valueLength];
+                payload.get(value);
+                message.fields.put(tag, value);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new ProtocolException("Truncated field in frame");
+        }
+        return message;
+    }
+}
@@ -0,0 +1,137 @@
+package protocol;
+
+import com.google.common.io.ByteStreams;
+import delta.BlockSignature;
+import model.BatchManifest;
+import model.ProtocolConstants;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.LongConsumer;
+
+/**
+ * Reads control frames off a stream with two bulk reads per frame, one for the fixed header and one for the
+ * payload, into a buffer that is kept for the lifetime of the connection.
+ */
+public class FrameReader {
+    private static final int INITIAL_BUFFER_SIZE = 512;
+
+    @Nonnull
+    private final InputStream in;
+    @Nonnull
+    private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+    // Told whenever the receiver reports a new position in its queue
+    @Nullable
+    private LongConsumer queueListener;
+    private long queuePosition = -1;
+
+    public FrameReader(@Nonnull final InputStream in) {
+        this.in = in;
+    }
+
+    @Nonnull
+    public ControlMessage read() throws IOException {
+        ByteStreams.readFully(in, buffer, 0, ProtocolConstants.HEADER_SIZE);
+        final int length = ControlMessage.readPayloadLength(ByteBuffer.wrap(buffer, 0, ProtocolConstants.HEADER_SIZE));
+        final int frameSize = ProtocolConstants.HEADER_SIZE + length;
+        if (buffer.length < frameSize) {
+            final byte[] larger = new byte[Math.max(frameSize, buffer.length * 2)];
+            System.arraycopy(buffer, 0, larger, 0, ProtocolConstants.HEADER_SIZE);
+            buffer = larger;
+        }
+        ByteStreams.readFully(in, buffer, ProtocolConstants.HEADER_SIZE, length);
+        return ControlMessage.decode(ByteBuffer.wrap(buffer, 0, frameSize));
+    }
+
+    public void setQueueListener(@Nullable final LongConsumer queueListener) {
+        this.queueListener = queueListener;
+    }
+
+    /**
+     * Reads the next frame and checks that it has the expected type. Queue positions a receiver reports while
+     * the transfer waits to be admitted are passed to the queue listener on the way.
+     */
+    @Nonnull
+    public ControlMessage read(@Nonnull final MessageType expected) throws IOException {
+        ControlMessage message = read();
+        while (message.getType() == MessageType.QUEUE_POSITION && expected != MessageType.QUEUE_POSITION) {
+            final long position = message.getLong(ControlMessage.QUEUE_POSITION, 0);
+            if (queueListener != null && position != queuePosition)
+                queueListener.accept(position);
+            queuePosition = position;
+            message = read();
+        }
+        if (message.getType() != expected)
+            throw new ProtocolException("Expected " + expected + " but received " + message.getType());
+        return message;
+    }
+
+    /**
+     * Reads the entry frames that follow a {@link MessageType#BATCH_MANIFEST} frame.
+     *
+     * @param header the manifest frame that was already read
+     */
+    @Nonnull
+    public BatchManifest readBatchManifest(@Nonnull final ControlMessage header) throws IOException {
+        final String host = header.getString(ControlMessage.HOST);
+        final long count = header.getLong(ControlMessage.FILE_COUNT, -1);
+        if (host == null || count < 0 || count > ProtocolConstants.MAX_BATCH_FILES)
+            throw new ProtocolException("Invalid batch manifest of " + count + " files");
+        final List<BatchManifest.Entry> entries = new ArrayList<>((int) count);
+        while (entries.size() < count)
+            read(MessageType.BATCH_ENTRIES).readEntries(entries);
+        if (entries.size() != count)
+            throw new ProtocolException("Batch manifest lists " + entries.size() + " files instead of " + count);
+        final BatchManifest manifest = new BatchManifest(host, entries);
+        // Older senders do not announce the total
+        final long totalSize = header.getLong(ControlMessage.FILESIZE, -1);
+        if (totalSize >= 0 && totalSize != manifest.getTotalSize())
+            throw new ProtocolException("Batch manifest lists " + manifest.getTotalSize() + " bytes instead of "
+                    + totalSize);
+        return manifest;
+    }
+
+    /**
+     * Reads the hash list frames that follow a {@link MessageType#CHUNK_HASHES} frame.
+     *
+     * @param header the header frame that was already read, it also carries the root hash
+     */
+    @Nonnull
+    public List<byte[]> readChunkHashes(@Nonnull final ControlMessage header) throws IOException {
+        final long count = header.getLong(ControlMessage.CHUNK_COUNT, -1);
+        if (count < 0 || count > Integer.MAX_VALUE)
+            throw new ProtocolException("Invalid chunk count " + count);
+        final List<byte[]> hashes = new ArrayList<>((int) Math.min(count, 4096));
+        while (hashes.size() < count)
+            read(MessageType.CHUNK_HASH_LIST).readHashes(hashes);
+        if (hashes.size() != count)
+            throw new ProtocolException("Received " + hashes.size() + " chunk hashes instead of " + count);
+        return hashes;
+    }
+
+    /**
+     * Reads the signature list frames that follow a {@link MessageType#BLOCK_SIGNATURE} frame.
+     *
+     * @param header the header frame that was already read
+     */
+    @Nonnull
+    public BlockSignature readBlockSignature(@Nonnull final ControlMessage header) throws IOException {
+        final long blockSize = header.getLong(ControlMessage.BLOCK_SIZE, -1);
+        final long count = header.getLong(ControlMessage.BLOCK_COUNT, -1);
+        if (blockSize <= 0 || blockSize > BlockSignature.MAX_BLOCK_SIZE
+                || count < 0 || count > BlockSignature.MAX_BLOCK_COUNT)
+            throw new ProtocolException("Invalid signature of " + count + " blocks of " + blockSize + " bytes");
+        final int[] weak = new int[(int) count];
+        final byte[][] strong = new byte[(int) count][];
+        int blocks = 0;
+        while (blocks < count)
+            blocks = read(MessageType.BLOCK_SIGNATURE_LIST).readSignatures(weak, strong, blocks);
+        return new BlockSignature((int) blockSize, weak, strong);
+    }
+}
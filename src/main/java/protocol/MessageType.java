@@ -0,0 +1,41 @@
+package protocol;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import javax.annotation.Nullable;
+
+@Getter
+@AllArgsConstructor
+public enum MessageType {
+    TRANSFER_REQUEST(1),
+    RESPONSE(2),
+    RESUME_CONFIRMATION(3),
+    // A batch manifest is split over a BATCH_MANIFEST frame and as many BATCH_ENTRIES frames as its entries need
+    BATCH_MANIFEST(4),
+    BATCH_ENTRIES(5),
+    // Chunk hashes follow a verified payload, again a header frame and as many frames as the hashes need
+    CHUNK_HASHES(6),
+    CHUNK_HASH_LIST(7),
+    RETRANSMIT_REQUEST(8),
+    // The signature of the receiver's older copy for delta sync, a header frame and as many frames as blocks need
+    BLOCK_SIGNATURE(9),
+    BLOCK_SIGNATURE_LIST(10),
+    // Opens a session, after which the connection carries one transfer after another
+    SESSION_START(11),
+    // Opens an archive, after which a whole tree of files follows as one stream of records
+    ARCHIVE_START(12),
+    // Sent while a receiver keeps the connection waiting before it admits the transfer, only to senders that ask
+    QUEUE_POSITION(13);
+
+    private final int id;
+
+    @Nullable
+    public static MessageType fromId(final int id) {
+        for (MessageType type : values()) {
+            if (type.id == id)
+                return type;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,160 @@
+import compression.Codec;
+import compression.CompressedStreams;
+import model.ArchiveHeader;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class ArchiveTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ExecutorService readers;
+
+    @Before
+    public void init() {
+        readers = Executors.newFixedThreadPool(2);
+    }
+
+    @After
+    public void cleanup() {
+        readers.shutdownNow();
+    }
+
+    private static byte[] content(final int length, final int seed) {
+        final byte[] content = new byte[length];
+        new Random(seed).nextBytes(content);
+        return content;
+    }
+
+    private byte[] pack(final List<ArchiveSender.Item> items, final Codec codec) throws IOException {
+        final ByteArrayOutputStream packed = new ByteArrayOutputStream();
+        try (final OutputStream archive = CompressedStreams.compress(codec, packed)) {
+            final DataOutputStream records = new DataOutputStream(archive);
+            ArchiveSender.writeRecords(items, records, readers);
+            records.writeInt(ArchiveUnpacker.END_OF_ARCHIVE);
+        }
+        return packed.toByteArray();
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        final File photos = folder.newFolder("photos");
+        new File(photos, "2020/06").mkdirs();
+        new File(photos, "empty").mkdir();
+        for (int i = 0; i < 50; i++)
+            Files.write(new File(photos, "2020/06/" + i + ".png").toPath(), content(i * 100, i));
+        // Larger than what is read ahead or handed off whole
+        final byte[] large = content(3 * 1024 * 1024 + 17, 99);
+        Files.write(new File(photos, "large.raw").toPath(), large);
+        final File notes = folder.newFile("notes.txt");
+        Files.write(notes.toPath(), content(10, 7));
+
+        final List<ArchiveSender.Item> items = ArchiveSender.collectItems(Arrays.asList(photos, notes), 3);
+        assertEquals(52, items.size());
+        assertEquals("photos/2020/06/0.png", items.get(0).path);
+        assertEquals("notes.txt", items.get(51).path);
+        long totalSize = 0;
+        for (ArchiveSender.Item item : items)
+            totalSize += item.size;
+
+        final File saveDir = folder.newFolder("save");
+        final ArchiveHeader header = new ArchiveHeader("localhost", "photos", items.size(), totalSize, Codec.LZ4);
+        final InputStream archive = CompressedStreams.decompress(Codec.LZ4,
+                new ByteArrayInputStream(pack(items, Codec.LZ4)));
+        new ArchiveUnpacker(saveDir.getPath(), header).unpack(archive);
+        assertEquals(-1, archive.read());
+
+        for (int i = 0; i < 50; i++) {
+            assertArrayEquals(content(i * 100, i),
+                    Files.readAllBytes(new File(saveDir, "photos/2020/06/" + i + ".png").toPath()));
+        }
+        assertArrayEquals(large, Files.readAllBytes(new File(saveDir, "photos/large.raw").toPath()));
+        assertArrayEquals(content(10, 7), Files.readAllBytes(new File(saveDir, "notes.txt").toPath()));
+    }
+
+    @Test
+    public void testRejectsCorruptLz4Stream() throws IOException {
+        // Compressible, so that the block is sent compressed
+        final byte[] content = new byte[100 * 1024];
+        Arrays.fill(content, (byte) 'a');
+        final ByteArrayOutputStream packed = new ByteArrayOutputStream();
+        try (final OutputStream archive = CompressedStreams.compress(Codec.LZ4, packed)) {
+            archive.write(content);
+        }
+        final byte[] stream = packed.toByteArray();
+        final InputStream intact = CompressedStreams.decompress(Codec.LZ4, new ByteArrayInputStream(stream));
+        final byte[] read = new byte[content.length];
+        new DataInputStream(intact).readFully(read);
+        assertArrayEquals(content, read);
+        assertEquals(-1, intact.read());
+
+        // Claims a larger block than the stream's own block size, then flips a byte of the compressed data
+        for (int offset : new int[]{16, 30}) {
+            final byte[] corrupt = stream.clone();
+            corrupt[offset] ^= 0x7F;
+            final InputStream archive = CompressedStreams.decompress(Codec.LZ4, new ByteArrayInputStream(corrupt));
+            try {
+                while (archive.read(read) != -1) {
+                    // keep reading
+                }
+                fail("Corrupt stream was decoded");
+            } catch (IOException e) {
+                // expected
+            }
+        }
+    }
+
+    private static byte[] record(final String path, final byte[] content) throws IOException {
+        final ByteArrayOutputStream record = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(record);
+        final byte[] pathBytes = path.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(pathBytes.length);
+        out.write(pathBytes);
+        out.writeLong(content.length);
+        out.write(content);
+        return record.toByteArray();
+    }
+
+    @Test
+    public void testRejectsPathOutsideArchive() throws IOException {
+        final File saveDir = folder.newFolder("save");
+        final ArchiveHeader header = new ArchiveHeader("localhost", "photos", 1, 3, Codec.NONE);
+        try {
+            new ArchiveUnpacker(saveDir.getPath(), header)
+                    .unpack(new ByteArrayInputStream(record("photos/../../a.png", new byte[3])));
+            fail("Path outside of the archive was accepted");
+        } catch (ProtocolException e) {
+            assertFalse(new File(folder.getRoot(), "a.png").exists());
+        }
+    }
+
+    @Test
+    public void testRejectsMissingFiles() throws IOException {
+        final File saveDir = folder.newFolder("save");
+        final ArchiveHeader header = new ArchiveHeader("localhost", "a.png", 2, 6, Codec.NONE);
+        final ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        archive.write(record("a.png", new byte[3]));
+        new DataOutputStream(archive).writeInt(ArchiveUnpacker.END_OF_ARCHIVE);
+        try {
+            new ArchiveUnpacker(saveDir.getPath(), header).unpack(new ByteArrayInputStream(archive.toByteArray()));
+            fail("Archive with fewer files than announced was accepted");
+        } catch (EOFException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,40 @@
+import model.BatchManifest;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class BatchSenderTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testCollectEntries() throws IOException {
+        final File photos = folder.newFolder("photos");
+        Files.write(new File(photos, "a.png").toPath(), new byte[3]);
+        new File(photos, "2020").mkdir();
+        Files.write(new File(photos, "2020/b.png").toPath(), new byte[5]);
+        new File(photos, "empty").mkdir();
+        final File notes = folder.newFile("notes.txt");
+
+        final List<File> files = new ArrayList<>();
+        final List<BatchManifest.Entry> entries = BatchSender.collectEntries(Arrays.asList(photos, notes), files);
+
+        assertEquals(3, entries.size());
+        assertEquals(3, files.size());
+        assertEquals("photos/2020/b.png", entries.get(0).getPath());
+        assertEquals(5, entries.get(0).getSize());
+        assertEquals("photos/a.png", entries.get(1).getPath());
+        assertEquals(3, entries.get(1).getSize());
+        assertEquals("notes.txt", entries.get(2).getPath());
+        assertEquals(notes, files.get(2));
+    }
+}
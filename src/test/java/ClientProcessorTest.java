@@ -1,18 +1,41 @@
+import compression.Codec;
+import model.ArchiveHeader;
+import model.BatchManifest;
+import model.ProtocolConstants;
+import model.TransferRequest;
 import org.junit.After;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
 
+import org.junit.rules.TemporaryFolder;
+import protocol.ControlMessage;
+import protocol.FrameReader;
+import protocol.MessageType;
+
+import javax.annotation.Nonnull;
 import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketAddress;
-import java.nio.charset.StandardCharsets;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 import static org.junit.Assert.*;
 
 public class ClientProcessorTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     public Socket mockSocket;
     public ServerSocket mockServerSocket;
     public DataInputStream inputStream;
@@ -37,51 +60,235 @@ public class ClientProcessorTest {
     public void cleanup() throws IOException {
         if (inputStream != null)
             inputStream.close();
+        Settings.reset();
+    }
+
+    @Nonnull
+    private InputStream encodeRequest(@Nonnull final TransferRequest request) throws IOException {
+        return new ByteArrayInputStream(ControlMessage.fromTransferRequest(request).encode());
     }
 
     @Test
-    public void testValidTransferMetadata() {
-        final String[] validTest1 = {"test.png", "12345", "192.42.123.24"};
-        final String[] validTest2 = {"test.png", "12345", "2001:db8:1234:0000:0000:0000:0000:0000"};
-        final String[] validTest3 = {"test.png", "12345", "localhost"};
-        final String[] invalidTest1 = {"test.png", "12345f", "2001:db8:1234:0000:0000:0000:0000:0000"};
-        final String[] invalidTest2 = {"test.png", "12345", "999.12.32.43"};
-        assertTrue(processor.isValidTransferMetadata(validTest1));
-        assertTrue(processor.isValidTransferMetadata(validTest2));
-        assertTrue(processor.isValidTransferMetadata(validTest3));
-        assertFalse(processor.isValidTransferMetadata(invalidTest1));
-        assertFalse(processor.isValidTransferMetadata(invalidTest2));
+    public void testValidTransferRequest() {
+        final TransferRequest validTest1 = new TransferRequest(12345, "test.png", "192.42.123.24");
+        final TransferRequest validTest2 = new TransferRequest(12345, "test.png", "2001:db8:1234:0000:0000:0000:0000:0000");
+        final TransferRequest validTest3 = new TransferRequest(12345, "100%/done?.png".replace("/", "_"), "localhost");
+        final TransferRequest invalidTest1 = new TransferRequest(-1, "test.png", "localhost");
+        final TransferRequest invalidTest2 = new TransferRequest(12345, "test.png", "999.12.32.43");
+        final TransferRequest invalidTest3 = new TransferRequest(12345, "../test.png", "localhost");
+        assertTrue(ClientProcessor.isValidTransferRequest(validTest1));
+        assertTrue(ClientProcessor.isValidTransferRequest(validTest2));
+        assertTrue(ClientProcessor.isValidTransferRequest(validTest3));
+        assertFalse(ClientProcessor.isValidTransferRequest(invalidTest1));
+        assertFalse(ClientProcessor.isValidTransferRequest(invalidTest2));
+        assertFalse(ClientProcessor.isValidTransferRequest(invalidTest3));
     }
 
     @Test
-    public void testObtainMetadataSuccess() throws IOException {
-        final String testMetadata = "filename.png/12345/192.142.23.12%";
-        final String[] expected = {"filename.png", "12345", "192.142.23.12"};
+    public void testValidRangeTransferRequest() {
+        final TransferRequest validTest = new TransferRequest(12345, "test.png", "localhost", 4, "abc", 1000, 2000, Codec.LZ4);
+        final TransferRequest invalidTest1 = new TransferRequest(12345, "test.png", "localhost", 0, "abc", 1000, 2000, Codec.NONE);
+        final TransferRequest invalidTest2 = new TransferRequest(12345, "test.png", "localhost", 4, "abc", 12000, 2000, Codec.NONE);
+        final TransferRequest invalidTest3 = new TransferRequest(12345, "test.png", "localhost", 4, "", 1000, 2000, Codec.NONE);
+        final TransferRequest invalidTest4 = new TransferRequest(12345, "test.png", "localhost", 1, "", 1000, 2000, Codec.NONE);
+        // Offset and length whose sum overflows past the file size
+        final TransferRequest invalidTest5 = new TransferRequest(12345, "test.png", "localhost", 4, "abc",
+                Long.MAX_VALUE, 2000, Codec.NONE);
+        assertTrue(ClientProcessor.isValidTransferRequest(validTest));
+        assertFalse(ClientProcessor.isValidTransferRequest(invalidTest1));
+        assertFalse(ClientProcessor.isValidTransferRequest(invalidTest2));
+        assertFalse(ClientProcessor.isValidTransferRequest(invalidTest3));
+        assertFalse(ClientProcessor.isValidTransferRequest(invalidTest4));
+        assertFalse(ClientProcessor.isValidTransferRequest(invalidTest5));
+    }
 
-        // Java is Big Endian, so using 'regular' UTF-16 will include a BOM at beginning
-        final InputStream is = new ByteArrayInputStream(StandardCharsets.UTF_16BE.encode(testMetadata).array());
-        inputStream = new DataInputStream(is);
+    @Test
+    public void testValidOptimisticTransferRequest() {
+        final TransferRequest valid = new TransferRequest(12345, "test.png", "localhost", 1, "", 0, 12345,
+                Codec.NONE, 0, false, 4096);
+        assertTrue(ClientProcessor.isValidTransferRequest(valid));
+
+        // More than the file cannot be sent ahead, more than we stage is turned down with our limit
+        valid.setOptimisticLength(12346);
+        assertFalse(ClientProcessor.isValidTransferRequest(valid));
+        final TransferRequest large = new TransferRequest(1L << 30, "test.png", "localhost", 1, "", 0, 1L << 30,
+                Codec.NONE, 0, false, ClientProcessor.getOptimisticStagingLimit() + 1);
+        assertTrue(ClientProcessor.isValidTransferRequest(large));
+        assertTrue(ClientProcessor.exceedsStagingLimit(large));
+        large.setOptimisticLength(ClientProcessor.getOptimisticStagingLimit());
+        assertFalse(ClientProcessor.exceedsStagingLimit(large));
+
+        // Ranges, compressed payloads and deltas depend on the answer, so they are never sent ahead
+        final TransferRequest range = new TransferRequest(12345, "test.png", "localhost", 4, "abc", 1000, 2000,
+                Codec.NONE, 0, false, 1000);
+        final TransferRequest compressed = new TransferRequest(12345, "test.png", "localhost", 1, "", 0, 12345,
+                Codec.LZ4, 0, false, 4096);
+        final TransferRequest delta = new TransferRequest(12345, "test.png", "localhost", 1, "", 0, 12345,
+                Codec.NONE, 0, true, 4096);
+        assertFalse(ClientProcessor.isValidTransferRequest(range));
+        assertFalse(ClientProcessor.isValidTransferRequest(compressed));
+        assertFalse(ClientProcessor.isValidTransferRequest(delta));
+    }
+
+    @Test
+    public void testValidRelayedTransferRequest() {
+        final TransferRequest valid = new TransferRequest(12345, "test.png", "localhost", 1, "", 0, 12345,
+                Codec.LZ4, 0, false, 0, Arrays.asList("10.0.0.2", "10.0.0.3"));
+        assertTrue(ClientProcessor.isValidTransferRequest(valid));
+        // Relayed payloads are forwarded as they arrive, so they are never verified
+        valid.setIntegrityChunkSize(1024 * 1024);
+        assertEquals(0, ClientProcessor.getAcceptedChunkSize(valid));
+
+        final TransferRequest badHop = new TransferRequest(12345, "test.png", "localhost", 1, "", 0, 12345,
+                Codec.NONE, 0, false, 0, Collections.singletonList("not a host"));
+        final TransferRequest range = new TransferRequest(12345, "test.png", "localhost", 4, "abc", 1000, 2000,
+                Codec.NONE, 0, false, 0, Collections.singletonList("10.0.0.2"));
+        final TransferRequest delta = new TransferRequest(12345, "test.png", "localhost", 1, "", 0, 12345,
+                Codec.NONE, 0, true, 0, Collections.singletonList("10.0.0.2"));
+        assertFalse(ClientProcessor.isValidTransferRequest(badHop));
+        assertFalse(ClientProcessor.isValidTransferRequest(range));
+        assertFalse(ClientProcessor.isValidTransferRequest(delta));
+    }
+
+    @Test
+    public void testObtainMetadataSuccess() throws IOException {
+        // Delimiter and sentinel characters of the old text protocol are ordinary characters now
+        final TransferRequest sent = new TransferRequest(12345, "100% done/final.png", "192.142.23.12",
+                4, "abc", 1000, 2000, Codec.DEFLATE);
+        inputStream = new DataInputStream(encodeRequest(sent));
 
         // The following block will break if moved to @Before section, the socket's inputStream will be null
         when(mockSocket.getInputStream()).thenReturn(inputStream);
         processor = new ClientProcessor(mockServerSocket.accept());
 
-        assertArrayEquals(expected, processor.readMetadataPartsFromStream());
+        final TransferRequest received = ClientProcessor.toTransferRequest(processor.frames.read());
+        assertEquals("100% done/final.png", received.getFilename());
+        assertEquals(12345, received.getFilesize());
+        assertEquals("192.142.23.12", received.getHost());
+        assertEquals(4, received.getStreams());
+        assertEquals("abc", received.getTransferId());
+        assertEquals(1000, received.getOffset());
+        assertEquals(2000, received.getLength());
+        assertEquals(Codec.DEFLATE, received.getCompression());
     }
 
     @Test(expected = EOFException.class)
-    public void testObtainMetadataNoEOF() throws IOException {
-        final String testMetadata = "filename.png/12345/192.142.23.12";
-
-        // Java is Big Endian, so using 'regular' UTF-16 will include a BOM at beginning
-        final InputStream is = new ByteArrayInputStream(StandardCharsets.UTF_16BE.encode(testMetadata).array());
-        inputStream = new DataInputStream(is);
+    public void testObtainMetadataTruncated() throws IOException {
+        final byte[] frame = ControlMessage.fromTransferRequest(
+                new TransferRequest(12345, "filename.png", "192.142.23.12")).encode();
+        inputStream = new DataInputStream(new ByteArrayInputStream(frame, 0, frame.length - 1));
 
         // The following block will break if moved to @Before section, the socket's inputStream will be null
         when(mockSocket.getInputStream()).thenReturn(inputStream);
         processor = new ClientProcessor(mockServerSocket.accept());
 
         // Trigger exception
-        processor.readMetadataPartsFromStream();
+        processor.frames.read();
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void testObtainMetadataWrongType() throws IOException {
+        ClientProcessor.toTransferRequest(ControlMessage.response(ProtocolConstants.OK_RESPONSE));
+    }
+
+    @Test
+    public void testValidBatchManifest() {
+        final BatchManifest valid = new BatchManifest("localhost", Arrays.asList(
+                new BatchManifest.Entry("photos/2020/a.png", 10),
+                new BatchManifest.Entry("photos/b.png", 0),
+                new BatchManifest.Entry("notes.txt", 5)));
+        assertTrue(ClientProcessor.isValidBatchManifest(valid));
+
+        for (String path : new String[]{"/etc/passwd", "photos/../../a.png", "photos//a.png", "photos/", "a\\b.png", ""}) {
+            final BatchManifest invalid = new BatchManifest("localhost",
+                    Collections.singletonList(new BatchManifest.Entry(path, 10)));
+            assertFalse(path, ClientProcessor.isValidBatchManifest(invalid));
+        }
+        final BatchManifest duplicate = new BatchManifest("localhost", Arrays.asList(
+                new BatchManifest.Entry("a.png", 10), new BatchManifest.Entry("a.png", 10)));
+        assertFalse(ClientProcessor.isValidBatchManifest(duplicate));
+        assertFalse(ClientProcessor.isValidBatchManifest(new BatchManifest("localhost", Collections.emptyList())));
+    }
+
+    @Test
+    public void testAcceptedChunkSize() {
+        final TransferRequest request = new TransferRequest(12345, "test.png", "localhost", 1, "", 0, 12345,
+                Codec.NONE, 1024 * 1024);
+        assertEquals(1024 * 1024, ClientProcessor.getAcceptedChunkSize(request));
+
+        // Chunks that do not line up with compression blocks, or are not asked for, are not verified
+        request.setIntegrityChunkSize(1000);
+        assertEquals(0, ClientProcessor.getAcceptedChunkSize(request));
+        request.setIntegrityChunkSize(0);
+        assertEquals(0, ClientProcessor.getAcceptedChunkSize(request));
+    }
+
+    @Test
+    public void testValidArchiveHeader() {
+        assertTrue(ClientProcessor.isValidArchiveHeader(new ArchiveHeader("localhost", "photos", 3, 0, Codec.LZ4)));
+        assertFalse(ClientProcessor.isValidArchiveHeader(new ArchiveHeader("localhost", "photos", 0, 0, Codec.NONE)));
+        assertFalse(ClientProcessor.isValidArchiveHeader(new ArchiveHeader("localhost", "..", 3, 10, Codec.NONE)));
+        assertFalse(ClientProcessor.isValidArchiveHeader(new ArchiveHeader("nowhere", "photos", 3, 10, Codec.NONE)));
+    }
+
+    /**
+     * The sender sends the rest of the file right behind its resume confirmation, so the receiver reads part of
+     * the payload along with the confirmation and has to take it from there instead of the socket.
+     */
+    @Test
+    public void testResumeOverSocket() throws Exception {
+        Settings.overrideSetting(Settings.DOWNLOAD_DIR_KEY, folder.getRoot().getPath());
+        final byte[] contents = new byte[3 * 1024 * 1024 + 5];
+        new Random(7).nextBytes(contents);
+        final int committed = 1024 * 1024 + 3;
+        final TransferRequest request = new TransferRequest(contents.length, "resume.bin", "localhost");
+        final File saveFile = new File(folder.getRoot(), "resume.bin");
+        Files.write(saveFile.toPath(), Arrays.copyOf(contents, committed));
+        PartialTransfer.create(folder.getRoot().getPath(), request, "127.0.0.1", saveFile)
+                .commit(request, "127.0.0.1", committed);
+
+        // Accepted like JDServer does, so that the receiver's socket has a channel
+        try (final ServerSocketChannel listener = ServerSocketChannel.open().bind(new InetSocketAddress(0));
+             final Socket sender = new Socket("localhost", listener.socket().getLocalPort())) {
+            sender.setSoTimeout(5000);
+            final Socket accepted = listener.accept().socket();
+            final CompletableFuture<Void> receiving =
+                    CompletableFuture.runAsync(() -> new ClientProcessor(accepted).processClient());
+            ControlMessage.fromTransferRequest(request).writeTo(sender.getOutputStream());
+            final ControlMessage response = new FrameReader(new DataInputStream(sender.getInputStream()))
+                    .read(MessageType.RESPONSE);
+            assertEquals(ProtocolConstants.OK_RESPONSE, response.getString(ControlMessage.STATUS));
+            assertEquals(committed, response.getLong(ControlMessage.RESUME_OFFSET, 0));
+
+            final ByteArrayOutputStream rest = new ByteArrayOutputStream();
+            new ControlMessage(MessageType.RESUME_CONFIRMATION).putLong(ControlMessage.OFFSET, committed)
+                    .writeTo(rest);
+            rest.write(contents, committed, contents.length - committed);
+            sender.getOutputStream().write(rest.toByteArray());
+            sender.shutdownOutput();
+            assertEquals(-1, sender.getInputStream().read());
+            receiving.get(5, TimeUnit.SECONDS);
+        }
+        assertArrayEquals(contents, Files.readAllBytes(saveFile.toPath()));
+        assertNull(PartialTransfer.find(folder.getRoot().getPath(), request, "127.0.0.1"));
+    }
+
+    @Test
+    public void testAcceptedCompression() {
+        final TransferRequest request = new TransferRequest(12345, "test.txt", "localhost", 1, "", 0, 12345, Codec.LZ4);
+        assertEquals(Codec.LZ4, ClientProcessor.getAcceptedCompression(request));
+        Settings.overrideSetting("acceptCompression", "false");
+        assertEquals(Codec.NONE, ClientProcessor.getAcceptedCompression(request));
+    }
+
+    @Test
+    public void testDeltaSyncIsOptIn() throws IOException {
+        final File older = folder.newFile("report.txt");
+        Files.write(older.toPath(), new byte[]{1, 2, 3});
+        final TransferRequest request = new TransferRequest(3, "report.txt", "localhost", 1, "", 0, 3, Codec.NONE,
+                0, true);
+        assertNull(ClientProcessor.getDeltaBasis(request, folder.getRoot().getPath()));
+        Settings.overrideSetting("deltaSync", "true");
+        assertEquals(older, ClientProcessor.getDeltaBasis(request, folder.getRoot().getPath()));
     }
 }
@@ -0,0 +1,55 @@
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CopyTunerTest {
+    private static final long SAMPLE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private long now;
+
+    @Test
+    public void testGrowsWhileThroughputRises() {
+        final CopyTuner tuner = new CopyTuner(64 * 1024, 0, () -> now);
+        assertFalse(tuner.record(1024));
+
+        // Each sample that beats the one before doubles the buffer
+        now += SAMPLE_NANOS;
+        assertTrue(tuner.record(1024 * 1024));
+        assertEquals(128 * 1024, tuner.getBufferSize());
+        now += SAMPLE_NANOS;
+        assertTrue(tuner.record(2 * 1024 * 1024));
+        assertEquals(256 * 1024, tuner.getBufferSize());
+
+        // Once throughput levels off, the size is kept
+        now += SAMPLE_NANOS;
+        assertFalse(tuner.record(2 * 1024 * 1024));
+        now += SAMPLE_NANOS;
+        assertFalse(tuner.record(100 * 1024 * 1024));
+        assertEquals(256 * 1024, tuner.getBufferSize());
+    }
+
+    @Test
+    public void testCoversBandwidthDelayProduct() {
+        // 10 MB in 100 ms is 100 MB/s, which over a 20 ms round trip keeps 2 MB in flight
+        final CopyTuner tuner = new CopyTuner(64 * 1024, TimeUnit.MILLISECONDS.toNanos(20), () -> now);
+        now += SAMPLE_NANOS;
+        assertTrue(tuner.record(10_000_000));
+        assertEquals(2_000_000, tuner.getBufferSize());
+
+        now += SAMPLE_NANOS;
+        tuner.record(1_000_000_000);
+        assertEquals(CopyTuner.MAX_BUFFER_SIZE, tuner.getBufferSize());
+    }
+
+    @Test
+    public void testFixedNeverGrows() {
+        final CopyTuner tuner = CopyTuner.fixed(2048);
+        now += TimeUnit.SECONDS.toNanos(1);
+        assertFalse(tuner.record(1024 * 1024 * 1024));
+        assertEquals(2048, tuner.getBufferSize());
+    }
+}
@@ -0,0 +1,76 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+public class DirectoryIndexTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testReserveContinuesPastHighestSuffix() throws IOException {
+        folder.newFile("Report.pdf");
+        folder.newFile("report-7.pdf");
+        folder.newFile("notes");
+        final DirectoryIndex index = DirectoryIndex.of(folder.getRoot().getPath());
+        assertNotNull(index);
+
+        assertEquals("report-8.pdf", index.reserve("report.pdf"));
+        assertEquals("report-9.pdf", index.reserve("report.pdf"));
+        assertEquals("report.txt", index.reserve("report.txt"));
+        assertEquals("notes-1", index.reserve("notes"));
+        assertEquals("photo.png", index.reserve("photo.png"));
+        assertEquals("photo-1.png", index.reserve("photo.png"));
+    }
+
+    @Test
+    public void testConcurrentReservationsAreUnique() throws Exception {
+        final DirectoryIndex index = DirectoryIndex.of(folder.getRoot().getPath());
+        final ExecutorService pool = Executors.newFixedThreadPool(8);
+        final Set<String> reserved = ConcurrentHashMap.newKeySet();
+        final CountDownLatch done = new CountDownLatch(8 * 500);
+        for (int i = 0; i < 8 * 500; i++) {
+            pool.execute(() -> {
+                reserved.add(index.reserve("same.bin"));
+                done.countDown();
+            });
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        pool.shutdown();
+        assertEquals(8 * 500, reserved.size());
+    }
+
+    @Test
+    public void testWatcherSeesExternalChanges() throws Exception {
+        final File existing = folder.newFile("old.txt");
+        final DirectoryIndex index = DirectoryIndex.of(folder.getRoot().getPath());
+        assertTrue(new File(folder.getRoot(), "New.txt").createNewFile());
+        assertTrue(existing.delete());
+
+        final long deadline = System.currentTimeMillis() + 10_000;
+        while ((!index.contains("new.txt") || index.contains("old.txt")) && System.currentTimeMillis() < deadline)
+            Thread.sleep(20);
+        assertTrue(index.contains("new.txt"));
+        assertEquals("old.txt", index.reserve("old.txt"));
+    }
+
+    @Test
+    public void testCreateUniqueFileSkipsNamesTheIndexHasNotSeen() throws IOException {
+        final String directory = folder.getRoot().getPath();
+        assertEquals("a.txt", FileUtils.createUniqueFile("A.txt", directory).getName());
+        assertEquals("a-1.txt", FileUtils.createUniqueFile("a.txt", directory).getName());
+        // Created behind the index's back, before the watcher can report it
+        assertTrue(new File(folder.getRoot(), "a-2.txt").createNewFile());
+        assertTrue(new File(folder.getRoot(), "a-3.txt").createNewFile());
+        final String name = FileUtils.createUniqueFile("a.txt", directory).getName();
+        assertTrue(name, name.matches("a-[4-9]\\.txt"));
+        assertEquals("dir", FileUtils.createUniqueDirectory("dir", directory).getName());
+        assertEquals("dir-1", FileUtils.createUniqueDirectory("Dir", directory).getName());
+    }
+}
@@ -0,0 +1,125 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+public class FanOutRingTest {
+    private static final int CHUNK_SIZE = 1024;
+
+    private File source;
+    private byte[] content;
+    private ExecutorService executor;
+
+    @Before
+    public void init() throws IOException {
+        content = new byte[10 * CHUNK_SIZE + 100];
+        new Random(7).nextBytes(content);
+        source = File.createTempFile("fanout", ".bin");
+        Files.write(source.toPath(), content);
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void cleanup() {
+        executor.shutdownNow();
+        source.delete();
+    }
+
+    private Future<?> fill(final FanOutRing ring) {
+        return executor.submit(() -> {
+            try (final FileChannel channel = FileChannel.open(source.toPath())) {
+                ring.fill(channel);
+            }
+            return null;
+        });
+    }
+
+    @Test
+    public void testEveryFeedGetsTheWholeFile() throws Exception {
+        // Room for the whole file, so that no feed can fall far enough behind to be detached
+        final FanOutRing ring = new FanOutRing(content.length, CHUNK_SIZE, 16, 3);
+        final Future<?> reader = fill(ring);
+        final ByteArrayOutputStream[] outs = new ByteArrayOutputStream[3];
+        final Future<?>[] feeds = new Future<?>[3];
+        for (int i = 0; i < 3; i++) {
+            final FanOutRing.Feed feed = ring.getFeed(i);
+            final ByteArrayOutputStream out = outs[i] = new ByteArrayOutputStream();
+            // Ranges that do not line up with chunks, like the window of an optimistic send
+            feeds[i] = executor.submit(() -> {
+                assertEquals(1500, feed.write(out, 0, 1500));
+                assertEquals(content.length - 1500, feed.write(out, 1500, content.length - 1500));
+                return null;
+            });
+        }
+        for (int i = 0; i < 3; i++) {
+            feeds[i].get(5, TimeUnit.SECONDS);
+            assertArrayEquals(content, outs[i].toByteArray());
+        }
+        reader.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testLaggingFeedIsDetached() throws Exception {
+        final FanOutRing ring = new FanOutRing(content.length, CHUNK_SIZE, 2, 2);
+        final Future<?> reader = fill(ring);
+        final FanOutRing.Feed fast = ring.getFeed(0), stalled = ring.getFeed(1);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        // The stalled feed never takes a chunk, which must not hold the other one back for longer than the ring
+        assertEquals(content.length, fast.write(out, 0, content.length));
+        assertArrayEquals(content, out.toByteArray());
+        assertTrue(stalled.isDetached());
+        assertFalse(fast.isDetached());
+        assertEquals(0, stalled.write(new ByteArrayOutputStream(), 0, content.length));
+        reader.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testDetachedFeedKeepsItsChunk() throws Exception {
+        final FanOutRing ring = new FanOutRing(content.length, CHUNK_SIZE, 2, 2);
+        final Future<?> reader = fill(ring);
+        final FanOutRing.Feed fast = ring.getFeed(0), slow = ring.getFeed(1);
+        final CountDownLatch writing = new CountDownLatch(1), detached = new CountDownLatch(1);
+        final ByteArrayOutputStream slowOut = new ByteArrayOutputStream() {
+            @Override
+            public synchronized void write(byte[] b, int off, int len) {
+                // Stuck sending the first chunk until the other feed has moved past the ring
+                writing.countDown();
+                try {
+                    detached.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.write(b, off, len);
+            }
+        };
+        final Future<Long> slowSent = executor.submit(() -> slow.write(slowOut, 0, content.length));
+        writing.await(5, TimeUnit.SECONDS);
+        final ByteArrayOutputStream fastOut = new ByteArrayOutputStream();
+        assertEquals(content.length, fast.write(fastOut, 0, content.length));
+        detached.countDown();
+
+        assertEquals(CHUNK_SIZE, (long) slowSent.get(5, TimeUnit.SECONDS));
+        assertArrayEquals(Arrays.copyOf(content, CHUNK_SIZE), slowOut.toByteArray());
+        assertArrayEquals(content, fastOut.toByteArray());
+        reader.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testSkippingAheadDetaches() throws IOException {
+        final FanOutRing ring = new FanOutRing(content.length, CHUNK_SIZE, 2, 1);
+        final FanOutRing.Feed feed = ring.getFeed(0);
+        assertEquals(0, feed.write(new ByteArrayOutputStream(), 4096, 100));
+        assertTrue(feed.isDetached());
+    }
+}
@@ -43,4 +43,13 @@ public class FileUtilsTest {
         // Same body, but different file extension
         assertEquals("tst.png", FileUtils.createIncrementedFilename("tst.png", filenames));
     }
+
+    @Test
+    public void testCreateSimilarFilenameWithoutExtension() {
+        final Set<String> filenames = ImmutableSet.of("photos", "photos-1", ".bashrc");
+
+        assertEquals("photos-2", FileUtils.createIncrementedFilename("photos", filenames));
+        assertEquals(".bashrc-1", FileUtils.createIncrementedFilename(".bashrc", filenames));
+        assertEquals("music", FileUtils.createIncrementedFilename("music", filenames));
+    }
 }
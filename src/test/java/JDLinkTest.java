@@ -1,10 +1,19 @@
 import com.google.common.io.Files;
+import compression.Codec;
 import org.junit.After;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import javax.annotation.Nonnull;
 import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
 import static org.junit.Assert.assertTrue;
@@ -15,6 +24,9 @@ public class JDLinkTest {
     private static final String SOURCE_FILE = "source.jpg";
     private static final String NEW_FILE = "new.jpg";
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     // We should reserve `in` and `out` to be used as arguments for InputStream and OutputStream,
     // even if they are implemented as FileInputStreams/FileOutputStreams
     public InputStream in;
@@ -32,6 +44,7 @@ public class JDLinkTest {
             fileIn.close();
         if (fileOut != null)
             fileOut.close();
+        Settings.reset();
     }
 
     @Nonnull
@@ -76,6 +89,150 @@ public class JDLinkTest {
         assertTrue(Files.equal(source, testSave));
     }
 
+    @Test
+    public void testReadRemoteToFileZeroCopy() throws IOException {
+        final File[] temp = createFileComparisonTest(READ_REMOTE_TO_FILE_TEST_DIR);
+        final File source = temp[0], testSave = temp[1];
+
+        fileIn = new FileInputStream(source);
+        fileOut = new FileOutputStream(testSave);
+        JDLink.readRemoteToFile(fileIn, fileOut, source.length(), fileIn.getChannel(), Codec.NONE);
+
+        assertEquals(source.length(), testSave.length());
+        assertTrue(Files.equal(source, testSave));
+    }
+
+    @Test
+    public void testWriteFileToRemoteZeroCopy() throws IOException {
+        final File[] temp = createFileComparisonTest(WRITE_FILE_TO_REMOTE_TEST_DIR);
+        final File source = temp[0], testSave = temp[1];
+
+        fileIn = new FileInputStream(source);
+        fileOut = new FileOutputStream(testSave);
+        JDLink.writeFileToRemote(fileIn, fileOut, source.length(), fileOut.getChannel(), Codec.NONE);
+
+        assertEquals(source.length(), testSave.length());
+        assertTrue(Files.equal(source, testSave));
+    }
+
+    /**
+     * Sends a file over a loopback socket with transferTo and receives it with transferFrom. The socket buffers are
+     * far smaller than the file, so both calls keep moving less than they were asked to.
+     */
+    @Test
+    public void testZeroCopyOverLoopbackSocket() throws Exception {
+        // The pipeline would read the socket into buffers instead of calling transferFrom
+        Settings.overrideSetting(JDLink.RECEIVE_PIPELINE_KEY, "false");
+        final File source = folder.newFile("source.bin");
+        final byte[] contents = new byte[20 * 1024 * 1024 + 123];
+        new Random(5).nextBytes(contents);
+        Files.write(contents, source);
+        final File testSave = folder.newFile("save.bin");
+
+        try (final ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress("localhost", 0));
+            final CompletableFuture<Void> sent = CompletableFuture.runAsync(() -> {
+                try (final SocketChannel sender = SocketChannel.open()) {
+                    sender.socket().setSendBufferSize(16 * 1024);
+                    sender.connect(server.getLocalAddress());
+                    try (final FileInputStream sourceIn = new FileInputStream(source)) {
+                        JDLink.writeFileToRemote(sourceIn, sender.socket().getOutputStream(), contents.length,
+                                sender, Codec.NONE);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            try (final SocketChannel receiver = server.accept()) {
+                receiver.socket().setReceiveBufferSize(16 * 1024);
+                fileOut = new FileOutputStream(testSave);
+                JDLink.readRemoteToFile(receiver.socket().getInputStream(), fileOut, contents.length, receiver,
+                        Codec.NONE);
+                // The sender wrote exactly the payload
+                assertEquals(-1, receiver.socket().getInputStream().read());
+            }
+            sent.get(10, TimeUnit.SECONDS);
+        }
+        assertTrue(Files.equal(source, testSave));
+    }
+
+    @Test(expected = EOFException.class)
+    public void testZeroCopyOverLoopbackSocketTruncated() throws IOException {
+        Settings.overrideSetting(JDLink.RECEIVE_PIPELINE_KEY, "false");
+        try (final ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress("localhost", 0));
+            try (final SocketChannel sender = SocketChannel.open(server.getLocalAddress());
+                 final SocketChannel receiver = server.accept()) {
+                sender.socket().getOutputStream().write(new byte[1000]);
+                sender.shutdownOutput();
+                fileOut = new FileOutputStream(folder.newFile());
+                JDLink.readRemoteToFile(receiver.socket().getInputStream(), fileOut, 5000, receiver, Codec.NONE);
+            }
+        }
+    }
+
+    private void assertCompressedRoundTrip(@Nonnull final File source, @Nonnull final Codec codec) throws IOException {
+        final File testSave = createFileComparisonTest(READ_REMOTE_TO_FILE_TEST_DIR)[1];
+        fileIn = new FileInputStream(source);
+        out = new ByteArrayOutputStream();
+        JDLink.writeFileToRemote(fileIn, out, source.length(), null, codec);
+
+        in = new ByteArrayInputStream(((ByteArrayOutputStream) out).toByteArray());
+        fileOut = new FileOutputStream(testSave);
+        JDLink.readRemoteToFile(in, fileOut, source.length(), null, codec);
+
+        assertTrue(Files.equal(source, testSave));
+        assertEquals(-1, in.read());
+    }
+
+    @Test
+    public void testCompressedRoundTrip() throws IOException {
+        final File compressible = File.createTempFile("compressible", ".csv");
+        compressible.deleteOnExit();
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 50000; i++) {
+            sb.append(i).append(",javadrop,").append(i % 7).append('\n');
+        }
+        Files.write(sb.toString().getBytes(StandardCharsets.UTF_8), compressible);
+
+        for (Codec codec : new Codec[]{Codec.DEFLATE, Codec.LZ4}) {
+            assertCompressedRoundTrip(compressible, codec);
+            assertTrue(((ByteArrayOutputStream) out).size() < compressible.length() / 2);
+            cleanup();
+        }
+    }
+
+    @Test
+    public void testCompressedRoundTripIncompressible() throws IOException {
+        final File source = createFileComparisonTest(WRITE_FILE_TO_REMOTE_TEST_DIR)[0];
+        for (Codec codec : new Codec[]{Codec.DEFLATE, Codec.LZ4}) {
+            assertCompressedRoundTrip(source, codec);
+            cleanup();
+        }
+    }
+
+    @Test
+    public void testReadRemoteToFileStopsAtByteSize() throws IOException {
+        final File[] temp = createFileComparisonTest(READ_REMOTE_TO_FILE_TEST_DIR);
+        final File testSave = temp[1];
+
+        in = new ByteArrayInputStream(new byte[]{1, 2, 3, 4, 5});
+        fileOut = new FileOutputStream(testSave);
+        JDLink.readRemoteToFile(in, fileOut, 3);
+
+        assertEquals(3, testSave.length());
+        assertEquals(4, in.read());
+    }
+
+    @Test(expected = EOFException.class)
+    public void testReadRemoteToFileTruncated() throws IOException {
+        final File[] temp = createFileComparisonTest(READ_REMOTE_TO_FILE_TEST_DIR);
+
+        in = new ByteArrayInputStream(new byte[]{1, 2, 3});
+        fileOut = new FileOutputStream(temp[1]);
+        JDLink.readRemoteToFile(in, fileOut, 5);
+    }
+
     @Test
     public void testReadStringFromRemote() throws IOException {
         final String expected = "Hello World";
@@ -0,0 +1,192 @@
+import model.ProtocolConstants;
+import model.TransferRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import protocol.ControlMessage;
+import protocol.FrameReader;
+import protocol.MessageType;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class JDServerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // Connections are accepted here and handed to the server, as its accept loop would
+    private ServerSocket listener;
+    private JDServer server;
+    private final List<Socket> senders = new ArrayList<>();
+
+    @Before
+    public void init() throws IOException {
+        Settings.overrideSetting(Settings.DOWNLOAD_DIR_KEY, folder.getRoot().getPath());
+        listener = new ServerSocket(0);
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        for (Socket sender : senders)
+            sender.close();
+        if (server != null)
+            server.shutdown(0);
+        listener.close();
+        Settings.reset();
+    }
+
+    private Socket connect() throws IOException {
+        final Socket sender = new Socket("localhost", listener.getLocalPort());
+        senders.add(sender);
+        sender.setSoTimeout(5000);
+        server.dispatch(listener.accept());
+        return sender;
+    }
+
+    private static void request(final Socket sender, final String filename, final int size) throws IOException {
+        ControlMessage.fromTransferRequest(new TransferRequest(size, filename, "localhost"))
+                .writeTo(sender.getOutputStream());
+    }
+
+    private static ControlMessage readFrame(final Socket sender) throws IOException {
+        return new FrameReader(new DataInputStream(sender.getInputStream())).read();
+    }
+
+    private static String readStatus(final Socket sender) throws IOException {
+        return new FrameReader(new DataInputStream(sender.getInputStream())).read(MessageType.RESPONSE)
+                .getString(ControlMessage.STATUS);
+    }
+
+    private void sendPayload(final Socket sender, final String filename, final int size) throws IOException {
+        sender.getOutputStream().write(new byte[size]);
+        sender.shutdownOutput();
+        // The receiver closes once it has checked that nothing follows the payload
+        assertEquals(-1, sender.getInputStream().read());
+        assertEquals(size, new File(folder.getRoot(), filename).length());
+    }
+
+    @Test
+    public void testConcurrentDispatch() throws IOException {
+        server = new JDServer(0, 2, 4);
+        final Socket first = connect(), second = connect(), third = connect();
+        request(first, "first.bin", 1000);
+        request(second, "second.bin", 1000);
+        assertEquals(ProtocolConstants.OK_RESPONSE, readStatus(first));
+        assertEquals(ProtocolConstants.OK_RESPONSE, readStatus(second));
+
+        // Both transfers are running, the third one waits for either of them
+        request(third, "third.bin", 1000);
+        final ControlMessage position = readFrame(third);
+        assertEquals(MessageType.QUEUE_POSITION, position.getType());
+        assertEquals(1, position.getLong(ControlMessage.QUEUE_POSITION, 0));
+
+        sendPayload(second, "second.bin", 1000);
+        assertEquals(ProtocolConstants.OK_RESPONSE, readStatus(third));
+        sendPayload(first, "first.bin", 1000);
+        sendPayload(third, "third.bin", 1000);
+    }
+
+    @Test
+    public void testBusyWhenQueueIsFull() throws IOException {
+        server = new JDServer(0, 1, 0);
+        final Socket running = connect();
+        request(running, "running.bin", 1000);
+        assertEquals(ProtocolConstants.OK_RESPONSE, readStatus(running));
+
+        // The rejected sender keeps sending, the receiver reads that away so that closing does not reset the
+        // connection before the answer is read
+        final Socket rejected = connect();
+        request(rejected, "rejected.bin", 1000000);
+        rejected.getOutputStream().write(new byte[32 * 1024]);
+        assertEquals(ProtocolConstants.BUSY_RESPONSE, readStatus(rejected));
+        assertEquals(-1, rejected.getInputStream().read());
+        assertFalse(new File(folder.getRoot(), "rejected.bin").exists());
+
+        sendPayload(running, "running.bin", 1000);
+    }
+
+    @Test
+    public void testBusyWhenIntakeIsFull() throws IOException {
+        server = new JDServer(0, 1, 0);
+        // Holds the only intake thread, it has not sent its first frame yet
+        final Socket silent = connect();
+
+        final long begin = System.nanoTime();
+        final Socket rejected = connect();
+        request(rejected, "rejected.bin", 1000);
+        assertEquals(ProtocolConstants.BUSY_RESPONSE, readStatus(rejected));
+        assertEquals(-1, rejected.getInputStream().read());
+        // Answered right away, not once the silent connection's first frame timed out
+        assertTrue(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - begin) < 5);
+        assertFalse(new File(folder.getRoot(), "rejected.bin").exists());
+
+        request(silent, "silent.bin", 1000);
+        assertEquals(ProtocolConstants.OK_RESPONSE, readStatus(silent));
+        sendPayload(silent, "silent.bin", 1000);
+    }
+
+    @Test
+    public void testAdmitsEachTransferOfSession() throws IOException {
+        server = new JDServer(0, 1, 4);
+        final Socket session = connect();
+        ControlMessage.sessionStart().writeTo(session.getOutputStream());
+        assertEquals(ProtocolConstants.OK_RESPONSE, readStatus(session));
+
+        // The idle session holds no place, so another sender starts right away
+        final Socket single = connect();
+        request(single, "single.bin", 1000);
+        assertEquals(ProtocolConstants.OK_RESPONSE, readStatus(single));
+
+        // The session's transfer waits for the running one like any other
+        request(session, "first.bin", 1000);
+        final ControlMessage position = readFrame(session);
+        assertEquals(MessageType.QUEUE_POSITION, position.getType());
+        assertEquals(1, position.getLong(ControlMessage.QUEUE_POSITION, 0));
+        sendPayload(single, "single.bin", 1000);
+        assertEquals(ProtocolConstants.OK_RESPONSE, readStatus(session));
+        session.getOutputStream().write(new byte[1000]);
+        assertEquals(ProtocolConstants.DONE_RESPONSE, readStatus(session));
+
+        // And the next one is admitted again
+        request(session, "second.bin", 2000);
+        assertEquals(ProtocolConstants.OK_RESPONSE, readStatus(session));
+        session.getOutputStream().write(new byte[2000]);
+        assertEquals(ProtocolConstants.DONE_RESPONSE, readStatus(session));
+        assertEquals(1000, new File(folder.getRoot(), "first.bin").length());
+        assertEquals(2000, new File(folder.getRoot(), "second.bin").length());
+    }
+
+    @Test
+    public void testShutdownDrainsRunningAndQueuedTransfers() throws Exception {
+        server = new JDServer(0, 1, 4);
+        final Socket running = connect(), queued = connect();
+        request(running, "running.bin", 1000);
+        assertEquals(ProtocolConstants.OK_RESPONSE, readStatus(running));
+        request(queued, "queued.bin", 1000);
+        assertEquals(MessageType.QUEUE_POSITION, readFrame(queued).getType());
+
+        final CompletableFuture<Void> shutdown = CompletableFuture.runAsync(() -> server.shutdown(30));
+        // New clients are turned away while the others drain
+        Thread.sleep(500);
+        final Socket late = connect();
+        request(late, "late.bin", 1000);
+        assertEquals(ProtocolConstants.BUSY_RESPONSE, readStatus(late));
+        assertFalse(shutdown.isDone());
+
+        sendPayload(running, "running.bin", 1000);
+        assertEquals(ProtocolConstants.OK_RESPONSE, readStatus(queued));
+        sendPayload(queued, "queued.bin", 1000);
+        shutdown.get(10, TimeUnit.SECONDS);
+        assertArrayEquals(new byte[1000], Files.readAllBytes(new File(folder.getRoot(), "queued.bin").toPath()));
+    }
+}
@@ -0,0 +1,165 @@
+import metrics.TransferMetrics;
+import metrics.TransferStats;
+import model.ProtocolConstants;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Sends files ahead of the receiver's answer to both receivers, within and beyond what they stage.
+ */
+public class OptimisticSendTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File saveDir;
+    private Runnable stopReceiver;
+    private Consumer<TransferMetrics> listener;
+    // Counts down for every file the receiver has completed
+    private CountDownLatch received;
+
+    @Before
+    public void init() throws IOException {
+        saveDir = folder.newFolder("received");
+        Settings.overrideSetting(Settings.DOWNLOAD_DIR_KEY, saveDir.getPath());
+        Settings.overrideSetting(ServerProcessor.OPTIMISTIC_SEND_KEY, "true");
+        ServerProcessor.forgetStagingLimits();
+    }
+
+    @After
+    public void cleanup() {
+        if (stopReceiver != null)
+            stopReceiver.run();
+        if (listener != null)
+            TransferStats.getInstance().removeListener(listener);
+        ServerProcessor.forgetStagingLimits();
+        Settings.reset();
+    }
+
+    private void startBlockingReceiver() throws InterruptedException {
+        final JDServer server = new JDServer(ProtocolConstants.PORT, 2, 4);
+        final CompletableFuture<Void> serving = CompletableFuture.runAsync(server::serve);
+        stopReceiver = () -> {
+            server.shutdown(0);
+            serving.join();
+        };
+        // It binds on its own thread, a sender that comes first would be refused
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (!server.isListening() && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertTrue(server.isListening());
+    }
+
+    private void startSelectorReceiver() throws IOException {
+        final SelectorReceiver receiver = new SelectorReceiver(ProtocolConstants.PORT, 1);
+        final CompletableFuture<Void> serving = CompletableFuture.runAsync(() -> {
+            try {
+                receiver.serve();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        stopReceiver = () -> {
+            receiver.shutdown(0);
+            serving.join();
+        };
+    }
+
+    private void expectReceived(final int files) {
+        received = new CountDownLatch(files);
+        listener = metrics -> {
+            // Files that were turned down never get to write a byte
+            if (metrics.getDirection() == TransferMetrics.Direction.RECEIVE && metrics.getBytes() > 0)
+                received.countDown();
+        };
+        TransferStats.getInstance().addListener(listener);
+    }
+
+    private File source(final String name, final int size) throws IOException {
+        final byte[] contents = new byte[size];
+        new Random(size).nextBytes(contents);
+        final File source = new File(folder.getRoot(), name);
+        Files.write(source.toPath(), contents);
+        return source;
+    }
+
+    private void assertSent(final File source) throws Exception {
+        assertTrue(new ServerProcessor(source, "localhost").attemptTransfer());
+    }
+
+    private void assertReceived(final File... sources) throws Exception {
+        assertTrue(received.await(10, TimeUnit.SECONDS));
+        for (File source : sources)
+            assertArrayEquals(Files.readAllBytes(source.toPath()),
+                    Files.readAllBytes(new File(saveDir, source.getName()).toPath()));
+    }
+
+    private void sendWithinStagingLimit() throws Exception {
+        Settings.overrideSetting(ServerProcessor.OPTIMISTIC_WINDOW_KEY, "64");
+        expectReceived(2);
+        final File small = source("small.bin", 10000), large = source("large.bin", 300 * 1024);
+        final long failed = TransferStats.getInstance().getFailedTransfers();
+        // Sent ahead in full, and only partly
+        assertSent(small);
+        assertSent(large);
+        assertReceived(small, large);
+        assertEquals(failed, TransferStats.getInstance().getFailedTransfers());
+    }
+
+    private void sendBeyondStagingLimit() throws Exception {
+        Settings.overrideSetting(ServerProcessor.OPTIMISTIC_WINDOW_KEY, "256");
+        Settings.overrideSetting(ClientProcessor.OPTIMISTIC_STAGING_KEY, "64");
+        expectReceived(2);
+        final File first = source("first.bin", 1024 * 1024), second = source("second.bin", 512 * 1024);
+        final long rejected = getRejectedWindows();
+        // The receiver turns the window down, the sender asks again without one. Later files stay within the
+        // receiver's limit from the start.
+        assertSent(first);
+        assertSent(second);
+        assertReceived(first, second);
+        // Each side counts the one turned down window
+        assertEquals(rejected + 2, getRejectedWindows());
+    }
+
+    private static long getRejectedWindows() {
+        return TransferStats.getInstance().getFailuresByCause().getOrDefault("window-too-large", 0L);
+    }
+
+    @Test
+    public void testStagedAcceptByBlockingReceiver() throws Exception {
+        startBlockingReceiver();
+        sendWithinStagingLimit();
+    }
+
+    @Test
+    public void testStagedRejectByBlockingReceiver() throws Exception {
+        startBlockingReceiver();
+        sendBeyondStagingLimit();
+    }
+
+    @Test
+    public void testStagedAcceptBySelectorReceiver() throws Exception {
+        startSelectorReceiver();
+        sendWithinStagingLimit();
+    }
+
+    @Test
+    public void testStagedRejectBySelectorReceiver() throws Exception {
+        startSelectorReceiver();
+        sendBeyondStagingLimit();
+    }
+}
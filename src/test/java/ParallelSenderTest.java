@@ -0,0 +1,17 @@
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ParallelSenderTest {
+    @Test
+    public void testSplitRanges() {
+        final long mb = 1024 * 1024;
+        final long[][] ranges = ParallelSender.splitRanges(10 * mb + 3, 2);
+        assertEquals(2, ranges.length);
+        assertArrayEquals(new long[]{0, 5 * mb + 1}, ranges[0]);
+        assertArrayEquals(new long[]{5 * mb + 1, 5 * mb + 2}, ranges[1]);
+
+        // Small files are never split
+        assertEquals(1, ParallelSender.splitRanges(1000, 8).length);
+    }
+}
@@ -0,0 +1,67 @@
+import com.google.common.io.Files;
+import model.TransferRequest;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.*;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PartialTransferTest {
+    private static final String SOURCE = "192.168.1.20";
+
+    public File directory;
+    public File saveFile;
+    public TransferRequest request;
+
+    @Before
+    public void init() throws IOException {
+        directory = Files.createTempDir();
+        saveFile = new File(directory, "image.iso");
+        final byte[] contents = new byte[PartialTransfer.CHECKSUM_WINDOW + 4096];
+        new Random(42).nextBytes(contents);
+        Files.write(contents, saveFile);
+        request = new TransferRequest(contents.length * 2L, "image.iso", "localhost");
+    }
+
+    @Test
+    public void testFindCommittedTransfer() throws IOException {
+        final PartialTransfer partial = PartialTransfer.create(directory.getPath(), request, SOURCE, saveFile);
+        partial.commit(request, SOURCE, saveFile.length());
+
+        final PartialTransfer found = PartialTransfer.find(directory.getPath(), request, SOURCE);
+        assertNotNull(found);
+        assertEquals(saveFile, found.getSaveFile());
+        assertEquals(saveFile.length(), found.getCommitted());
+        assertEquals(PartialTransfer.checksum(saveFile, saveFile.length()), found.getChecksum());
+    }
+
+    @Test
+    public void testFindOtherSource() throws IOException {
+        PartialTransfer.create(directory.getPath(), request, SOURCE, saveFile).commit(request, SOURCE, 100);
+        assertNull(PartialTransfer.find(directory.getPath(), request, "192.168.1.21"));
+    }
+
+    @Test
+    public void testFindChangedPrefix() throws IOException {
+        PartialTransfer.create(directory.getPath(), request, SOURCE, saveFile).commit(request, SOURCE, 100);
+        try (final RandomAccessFile file = new RandomAccessFile(saveFile, "rw")) {
+            file.seek(50);
+            final int original = file.read();
+            file.seek(50);
+            file.write(~original);
+        }
+
+        // The partial file is reused, but has to be received from the start
+        final PartialTransfer found = PartialTransfer.find(directory.getPath(), request, SOURCE);
+        assertNotNull(found);
+        assertEquals(0, found.getCommitted());
+    }
+
+    @Test
+    public void testComplete() throws IOException {
+        PartialTransfer.create(directory.getPath(), request, SOURCE, saveFile).complete();
+        assertNull(PartialTransfer.find(directory.getPath(), request, SOURCE));
+    }
+}
@@ -0,0 +1,119 @@
+import compression.Codec;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PreallocatedFileTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final byte[] contents = new byte[3 * 1024 * 1024 + 123];
+
+    {
+        new Random(17).nextBytes(contents);
+    }
+
+    @Test
+    public void testOutOfOrderPositionalWrites() throws IOException {
+        assertArrayEquals(contents, receiveInTwoHalves(PreallocatedFile.WriteMode.POSITIONAL,
+                PreallocatedFile.SyncPolicy.NONE));
+    }
+
+    @Test
+    public void testMappedWritesWithPeriodicSync() throws IOException {
+        assertArrayEquals(contents, receiveInTwoHalves(PreallocatedFile.WriteMode.MAPPED,
+                PreallocatedFile.SyncPolicy.PERIODIC));
+    }
+
+    @After
+    public void cleanup() {
+        Settings.reset();
+    }
+
+    @Test
+    public void testReceivedEndStopsAtBrokenSegment() throws IOException {
+        Settings.overrideSetting(JDLink.RECEIVE_PIPELINE_KEY, "false");
+        final File saveFile = folder.newFile();
+        try (final PreallocatedFile file = PreallocatedFile.open(saveFile, contents.length,
+                PreallocatedFile.WriteMode.POSITIONAL, PreallocatedFile.SyncPolicy.END, 1024)) {
+            assertEquals(contents.length, saveFile.length());
+            try {
+                file.receive(new ByteArrayInputStream(contents, 0, contents.length / 2), 1000,
+                        contents.length - 1000, null, Codec.NONE);
+                fail("Expected the stream to end early");
+            } catch (EOFException e) {
+                // The stream broke off halfway through the second segment, which does not count as received
+                assertEquals(1000 + 1024 * 1024, file.getReceivedEnd());
+            }
+        }
+    }
+
+    @Test
+    public void testPipelineReportsProgressInOnePass() throws IOException {
+        final File saveFile = folder.newFile();
+        final List<Long> reported = new ArrayList<>();
+        try (final PreallocatedFile file = PreallocatedFile.open(saveFile, contents.length,
+                PreallocatedFile.WriteMode.POSITIONAL, PreallocatedFile.SyncPolicy.PERIODIC, 1024)) {
+            try {
+                file.receive(new ByteArrayInputStream(contents, 0, contents.length / 2), 1000,
+                        contents.length - 1000, null, Codec.NONE, reported::add);
+                fail("Expected the stream to end early");
+            } catch (EOFException e) {
+                // Whatever the pipeline wrote before the stream broke off counts as received
+                assertEquals(1000 + contents.length / 2, file.getReceivedEnd());
+            }
+        }
+        // One report per pipeline buffer rather than per segment
+        assertEquals((contents.length / 2 + ReceivePipeline.BUFFER_SIZE - 1) / ReceivePipeline.BUFFER_SIZE,
+                reported.size());
+        assertEquals(1000 + ReceivePipeline.BUFFER_SIZE, (long) reported.get(0));
+        assertEquals(1000 + contents.length / 2, (long) reported.get(reported.size() - 1));
+        assertArrayEquals(Arrays.copyOf(contents, contents.length / 2),
+                Arrays.copyOfRange(Files.readAllBytes(saveFile.toPath()), 1000, 1000 + contents.length / 2));
+    }
+
+    @Test
+    public void testHasSpaceFor() throws IOException {
+        assertTrue(PreallocatedFile.hasSpaceFor(folder.getRoot(), 1024));
+        assertFalse(PreallocatedFile.hasSpaceFor(folder.getRoot(), Long.MAX_VALUE));
+    }
+
+    @Test(expected = IOException.class)
+    public void testOpenFailsWithoutSpace() throws IOException {
+        PreallocatedFile.open(folder.newFile(), Long.MAX_VALUE / 2, PreallocatedFile.WriteMode.POSITIONAL,
+                PreallocatedFile.SyncPolicy.NONE, 1024);
+    }
+
+    private byte[] receiveInTwoHalves(final PreallocatedFile.WriteMode writeMode,
+                                      final PreallocatedFile.SyncPolicy syncPolicy) throws IOException {
+        final File saveFile = folder.newFile();
+        final int half = contents.length / 2;
+        try (final PreallocatedFile file = PreallocatedFile.open(saveFile, contents.length, writeMode, syncPolicy,
+                1024 * 1024)) {
+            assertEquals(contents.length, saveFile.length());
+            file.receive(new ByteArrayInputStream(contents, half, contents.length - half), half,
+                    contents.length - half, null, Codec.NONE);
+            assertEquals(contents.length, file.getReceivedEnd());
+            file.receive(new ByteArrayInputStream(contents, 0, half), 0, half, null, Codec.NONE);
+            assertEquals(half, file.getReceivedEnd());
+            file.finish();
+        }
+        final byte[] received = Files.readAllBytes(saveFile.toPath());
+        assertEquals(contents.length, received.length);
+        assertTrue(Arrays.equals(contents, received));
+        return received;
+    }
+}
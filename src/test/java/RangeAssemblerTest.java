@@ -0,0 +1,113 @@
+import compression.Codec;
+import model.TransferRequest;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class RangeAssemblerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // Assemblies are kept across tests, so every test uses its own transfer id
+    private final String transferId = UUID.randomUUID().toString();
+
+    private TransferRequest range(final long offset, final long length) {
+        return new TransferRequest(4, "ranges.bin", "localhost", 2, transferId, offset, length, Codec.NONE);
+    }
+
+    private RangeAssembler join(final TransferRequest request) throws IOException {
+        return RangeAssembler.join("127.0.0.1", request, folder.getRoot().getPath());
+    }
+
+    @Test
+    public void testRangesShareOneFile() throws IOException {
+        final TransferRequest first = range(0, 2), second = range(2, 2);
+        final RangeAssembler assembly = join(first);
+        assertSame(assembly, join(second));
+        assembly.getChannel().write(ByteBuffer.wrap(new byte[]{3, 4}), 2);
+        assembly.getChannel().write(ByteBuffer.wrap(new byte[]{1, 2}), 0);
+        assembly.completeRange(second);
+        assembly.completeRange(first);
+        assertArrayEquals(new byte[]{1, 2, 3, 4},
+                Files.readAllBytes(new File(folder.getRoot(), "ranges.bin").toPath()));
+    }
+
+    @Test
+    public void testPermissionIsAskedOncePerTransfer() {
+        final AtomicInteger asked = new AtomicInteger();
+        final CompletableFuture<Boolean> decision = new CompletableFuture<>();
+        final CompletableFuture<Boolean> first = RangeAssembler.requestPermission("127.0.0.1", range(0, 2), () -> {
+            asked.incrementAndGet();
+            return decision;
+        });
+        final CompletableFuture<Boolean> second = RangeAssembler.requestPermission("127.0.0.1", range(2, 2), () -> {
+            asked.incrementAndGet();
+            return CompletableFuture.completedFuture(false);
+        });
+        decision.complete(true);
+        assertEquals(1, asked.get());
+        assertTrue(first.join());
+        assertTrue(second.join());
+
+        // Another sender's transfer with the same id is a different transfer
+        RangeAssembler.requestPermission("10.0.0.1", range(0, 2), () -> {
+            asked.incrementAndGet();
+            return decision;
+        });
+        assertEquals(2, asked.get());
+    }
+
+    @Test
+    public void testIdleAssemblyIsDiscarded() throws Exception {
+        final TransferRequest first = range(0, 2);
+        final RangeAssembler assembly = join(first);
+        RangeAssembler.requestPermission("127.0.0.1", first, () -> CompletableFuture.completedFuture(true));
+        assembly.completeRange(first);
+        final File saveFile = new File(folder.getRoot(), "ranges.bin");
+        assertTrue(saveFile.exists());
+
+        // The second range never arrives
+        Thread.sleep(20);
+        RangeAssembler.expireIdle(TimeUnit.MILLISECONDS.toNanos(10));
+        assertFalse(saveFile.exists());
+        assertFalse(assembly.getChannel().isOpen());
+        try {
+            assembly.completeRange(range(2, 2));
+            fail("expected the discarded assembly to reject further ranges");
+        } catch (IOException e) {
+            // expected
+        }
+
+        // A late range starts over, and asks for permission again
+        final AtomicInteger asked = new AtomicInteger();
+        RangeAssembler.requestPermission("127.0.0.1", first, () -> {
+            asked.incrementAndGet();
+            return CompletableFuture.completedFuture(true);
+        });
+        assertEquals(1, asked.get());
+        final RangeAssembler restarted = join(range(2, 2));
+        assertNotSame(assembly, restarted);
+        restarted.fail();
+    }
+
+    @Test
+    public void testActiveRangeIsNotDiscarded() throws Exception {
+        final RangeAssembler assembly = join(range(0, 2));
+        Thread.sleep(20);
+        RangeAssembler.expireIdle(TimeUnit.MILLISECONDS.toNanos(10));
+        assertTrue(assembly.getChannel().isOpen());
+        assertSame(assembly, join(range(2, 2)));
+        assembly.fail();
+    }
+}
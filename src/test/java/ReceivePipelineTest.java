@@ -0,0 +1,91 @@
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class ReceivePipelineTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final byte[] contents = new byte[20 * ReceivePipeline.BUFFER_SIZE + 321];
+
+    public ReceivePipelineTest() {
+        new Random(7).nextBytes(contents);
+    }
+
+    @Test
+    public void testCopyAtPosition() throws IOException {
+        final File saveFile = folder.newFile();
+        try (final FileChannel out = new RandomAccessFile(saveFile, "rw").getChannel()) {
+            ReceivePipeline.copy(Channels.newChannel(new ByteArrayInputStream(contents)), out, 100, contents.length);
+            // The channel's own position is left alone
+            assertEquals(0, out.position());
+        }
+        final byte[] saved = Files.readAllBytes(saveFile.toPath());
+        assertEquals(100 + contents.length, saved.length);
+        assertArrayEquals(contents, Arrays.copyOfRange(saved, 100, saved.length));
+    }
+
+    @Test
+    public void testReportsProgressPerBuffer() throws IOException {
+        final File saveFile = folder.newFile();
+        final List<Long> reported = new ArrayList<>();
+        try (final FileChannel out = new RandomAccessFile(saveFile, "rw").getChannel()) {
+            ReceivePipeline.copy(Channels.newChannel(new ByteArrayInputStream(contents)), out, 100, contents.length,
+                    reported::add);
+        }
+        assertEquals(21, reported.size());
+        for (int i = 0; i < 20; i++)
+            assertEquals(100 + (i + 1) * (long) ReceivePipeline.BUFFER_SIZE, (long) reported.get(i));
+        assertEquals(100 + contents.length, (long) reported.get(20));
+    }
+
+    @Test(expected = IOException.class)
+    public void testProgressFailureStopsCopy() throws IOException {
+        try (final FileChannel out = new RandomAccessFile(folder.newFile(), "rw").getChannel()) {
+            ReceivePipeline.copy(Channels.newChannel(new ByteArrayInputStream(contents)), out, 0, contents.length,
+                    end -> {
+                        throw new IOException("Progress could not be recorded");
+                    });
+        }
+    }
+
+    @Test
+    public void testStreamEndingEarlyKeepsWhatArrived() throws IOException {
+        final File saveFile = folder.newFile();
+        try (final FileChannel out = new RandomAccessFile(saveFile, "rw").getChannel()) {
+            ReceivePipeline.copy(Channels.newChannel(new ByteArrayInputStream(contents, 0, 1000)), out, 0,
+                    contents.length);
+            fail("Expected the stream to end early");
+        } catch (EOFException e) {
+            // What did arrive is written all the same
+            assertArrayEquals(Arrays.copyOf(contents, 1000), Files.readAllBytes(saveFile.toPath()));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testDiskFailureStopsNetworkStage() throws IOException {
+        final File saveFile = folder.newFile();
+        // A channel opened for reading only fails every write
+        try (final FileChannel out = FileChannel.open(saveFile.toPath(), StandardOpenOption.READ)) {
+            ReceivePipeline.copy(Channels.newChannel(new ByteArrayInputStream(contents)), out, 0, contents.length);
+        }
+    }
+}
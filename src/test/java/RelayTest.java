@@ -0,0 +1,90 @@
+import compression.Codec;
+import model.ProtocolConstants;
+import model.TransferRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import protocol.ControlMessage;
+import protocol.FrameReader;
+import protocol.MessageType;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class RelayTest {
+    private ServerSocket nextHop;
+    private ExecutorService executor;
+
+    @Before
+    public void init() throws IOException {
+        nextHop = new ServerSocket(ProtocolConstants.PORT);
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        executor.shutdownNow();
+        nextHop.close();
+    }
+
+    @Test
+    public void testForwardsWhatIsRead() throws Exception {
+        final byte[] payload = new byte[100000];
+        new Random(3).nextBytes(payload);
+        final Future<TransferRequest> forwarded = executor.submit(() -> {
+            try (final Socket sock = nextHop.accept()) {
+                final DataInputStream in = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+                final TransferRequest request = new FrameReader(in).read(MessageType.TRANSFER_REQUEST)
+                        .toTransferRequest();
+                ControlMessage.response(ProtocolConstants.OK_RESPONSE).writeTo(sock.getOutputStream());
+                final byte[] received = new byte[payload.length];
+                in.readFully(received);
+                assertArrayEquals(payload, received);
+                assertEquals(-1, in.read());
+                return request;
+            }
+        });
+
+        final TransferRequest request = new TransferRequest(payload.length, "image.iso", "localhost", 1, "", 0,
+                payload.length, Codec.NONE, 1024 * 1024, false, 0, Arrays.asList("localhost", "10.0.0.3"));
+        final Relay relay = Relay.open(request);
+        assertNotNull(relay);
+        final InputStream in = relay.tee(new ByteArrayInputStream(payload));
+        final ByteArrayOutputStream local = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[7000];
+        int read;
+        while ((read = in.read(buffer)) > 0)
+            local.write(buffer, 0, read);
+        relay.close(true);
+
+        assertArrayEquals(payload, local.toByteArray());
+        // The next hop gets the rest of the chain, and no verification since chunks could not be resent to it
+        final TransferRequest received = forwarded.get(5, TimeUnit.SECONDS);
+        assertEquals("image.iso", received.getFilename());
+        assertEquals(Arrays.asList("10.0.0.3"), received.getRelayHops());
+        assertEquals(0, received.getIntegrityChunkSize());
+    }
+
+    @Test
+    public void testDeclinedByNextHop() throws Exception {
+        executor.submit(() -> {
+            try (final Socket sock = nextHop.accept()) {
+                new FrameReader(sock.getInputStream()).read(MessageType.TRANSFER_REQUEST);
+                ControlMessage.response(ProtocolConstants.NO_SPACE_RESPONSE).writeTo(sock.getOutputStream());
+            }
+            return null;
+        });
+        final TransferRequest request = new TransferRequest(100, "image.iso", "localhost", 1, "", 0, 100,
+                Codec.NONE, 0, false, 0, Arrays.asList("localhost"));
+        assertNull(Relay.open(request));
+    }
+}
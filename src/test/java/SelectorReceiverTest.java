@@ -0,0 +1,208 @@
+import compression.Codec;
+import metrics.TransferMetrics;
+import metrics.TransferStats;
+import model.ProtocolConstants;
+import model.TransferRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import protocol.ControlMessage;
+import protocol.FrameReader;
+import protocol.MessageType;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.*;
+
+public class SelectorReceiverTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SelectorReceiver receiver;
+    private CompletableFuture<Void> serving;
+    private final List<Socket> senders = new ArrayList<>();
+    private Consumer<TransferMetrics> listener;
+
+    @Before
+    public void init() throws IOException {
+        Settings.overrideSetting(Settings.DOWNLOAD_DIR_KEY, folder.getRoot().getPath());
+        receiver = new SelectorReceiver(0, 2);
+        serving = CompletableFuture.runAsync(() -> {
+            try {
+                receiver.serve();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        for (Socket sender : senders)
+            sender.close();
+        receiver.shutdown(0);
+        if (listener != null)
+            TransferStats.getInstance().removeListener(listener);
+        Settings.reset();
+    }
+
+    private Socket connect() throws IOException {
+        final Socket sender = new Socket("localhost", receiver.getLocalPort());
+        senders.add(sender);
+        sender.setSoTimeout(5000);
+        return sender;
+    }
+
+    private static void request(final Socket sender, final String filename, final long size) throws IOException {
+        ControlMessage.fromTransferRequest(new TransferRequest(size, filename, "localhost"))
+                .writeTo(sender.getOutputStream());
+    }
+
+    private static String readStatus(final Socket sender) throws IOException {
+        return new FrameReader(new DataInputStream(sender.getInputStream())).read(MessageType.RESPONSE)
+                .getString(ControlMessage.STATUS);
+    }
+
+    private static byte[] randomBytes(final int size) {
+        final byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+
+    private void transfer(final Socket sender, final String filename, final byte[] payload) throws IOException {
+        request(sender, filename, payload.length);
+        assertEquals(ProtocolConstants.OK_RESPONSE, readStatus(sender));
+        sender.getOutputStream().write(payload);
+        sender.shutdownOutput();
+        // The receiver closes once it has checked that nothing follows the payload
+        assertEquals(-1, sender.getInputStream().read());
+        assertArrayEquals(payload, Files.readAllBytes(new File(folder.getRoot(), filename).toPath()));
+    }
+
+    @Test
+    public void testFullTransfer() throws IOException {
+        // Several times the payload buffers, so that reads overlap with the disk writes
+        transfer(connect(), "full.bin", randomBytes(5 * 1024 * 1024 + 17));
+    }
+
+    @Test
+    public void testAcceptsConnectionsAcrossSelectorThreads() throws IOException {
+        final Socket first = connect(), second = connect(), third = connect();
+        // The connections are all accepted up front and served while the others are still open
+        request(third, "third.bin", 3);
+        assertEquals(ProtocolConstants.OK_RESPONSE, readStatus(third));
+        transfer(first, "first.bin", randomBytes(1000));
+        transfer(second, "second.bin", randomBytes(2000));
+        third.getOutputStream().write(new byte[]{1, 2, 3});
+        third.shutdownOutput();
+        assertEquals(-1, third.getInputStream().read());
+        assertArrayEquals(new byte[]{1, 2, 3}, Files.readAllBytes(new File(folder.getRoot(), "third.bin").toPath()));
+    }
+
+    @Test
+    public void testRejectsTransferWithoutSpace() throws IOException {
+        final Socket sender = connect();
+        request(sender, "huge.bin", Long.MAX_VALUE / 2);
+        assertEquals(ProtocolConstants.NO_SPACE_RESPONSE, readStatus(sender));
+        assertEquals(-1, sender.getInputStream().read());
+        assertFalse(new File(folder.getRoot(), "huge.bin").exists());
+    }
+
+    @Test
+    public void testClosesOnInvalidRequest() throws IOException {
+        final Socket sender = connect();
+        request(sender, "../escape.bin", 10);
+        assertEquals(-1, sender.getInputStream().read());
+        assertEquals(0, folder.getRoot().list().length);
+    }
+
+    @Test
+    public void testEarlyDisconnectDoesNotAffectOthers() throws Exception {
+        final long failed = TransferStats.getInstance().getFailedTransfers();
+        final Socket dropped = connect();
+        request(dropped, "dropped.bin", 1024 * 1024);
+        assertEquals(ProtocolConstants.OK_RESPONSE, readStatus(dropped));
+        dropped.getOutputStream().write(new byte[1000]);
+        dropped.close();
+
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (TransferStats.getInstance().getFailedTransfers() == failed && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(failed + 1, TransferStats.getInstance().getFailedTransfers());
+        transfer(connect(), "after.bin", randomBytes(4096));
+    }
+
+    @Test
+    public void testShutdownClosesStalledConnections() throws Exception {
+        final Socket stalled = connect();
+        request(stalled, "stalled.bin", 1000);
+        assertEquals(ProtocolConstants.OK_RESPONSE, readStatus(stalled));
+        stalled.getOutputStream().write(new byte[10]);
+
+        CompletableFuture.runAsync(() -> receiver.shutdown(1)).get(10, TimeUnit.SECONDS);
+        assertEquals(-1, stalled.getInputStream().read());
+        serving.get(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testAsksForCompressedPayloadRaw() throws IOException {
+        final Socket sender = connect();
+        ControlMessage.fromTransferRequest(new TransferRequest(3, "packed.txt", "localhost", 1, "", 0, 3, Codec.LZ4))
+                .writeTo(sender.getOutputStream());
+        final ControlMessage response = new FrameReader(new DataInputStream(sender.getInputStream()))
+                .read(MessageType.RESPONSE);
+        assertEquals(ProtocolConstants.OK_RESPONSE, response.getString(ControlMessage.STATUS));
+        assertEquals(Codec.NONE.name(), response.getString(ControlMessage.COMPRESSION));
+        sender.getOutputStream().write(new byte[]{1, 2, 3});
+        sender.shutdownOutput();
+        assertEquals(-1, sender.getInputStream().read());
+        assertArrayEquals(new byte[]{1, 2, 3}, Files.readAllBytes(new File(folder.getRoot(), "packed.txt").toPath()));
+    }
+
+    @Test
+    public void testSenderFollowsDowngradedCodec() throws Exception {
+        final SelectorReceiver standard = new SelectorReceiver(ProtocolConstants.PORT, 1);
+        final CompletableFuture<Void> standardServing = CompletableFuture.runAsync(() -> {
+            try {
+                standard.serve();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        try {
+            Settings.overrideSetting(ServerProcessor.COMPRESSION_KEY, Codec.LZ4.name());
+            final StringBuilder text = new StringBuilder();
+            for (int i = 0; i < 20000; i++)
+                text.append("line ").append(i).append('\n');
+            final File source = new File(folder.newFolder("outgoing"), "notes.txt");
+            Files.write(source.toPath(), text.toString().getBytes(StandardCharsets.UTF_8));
+
+            // The sender is done once it has handed over the payload, the receiver finishes after it
+            final CountDownLatch received = new CountDownLatch(1);
+            listener = metrics -> {
+                if (metrics.getDirection() == TransferMetrics.Direction.RECEIVE)
+                    received.countDown();
+            };
+            TransferStats.getInstance().addListener(listener);
+            assertTrue(new ServerProcessor(source, "localhost").attemptTransfer());
+            assertTrue(received.await(5, TimeUnit.SECONDS));
+            assertArrayEquals(Files.readAllBytes(source.toPath()),
+                    Files.readAllBytes(new File(folder.getRoot(), "notes.txt").toPath()));
+        } finally {
+            standard.shutdown(0);
+            standardServing.get(5, TimeUnit.SECONDS);
+        }
+    }
+}
@@ -0,0 +1,222 @@
+import model.ProtocolConstants;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import protocol.ControlMessage;
+import protocol.FrameReader;
+import protocol.MessageType;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SenderDaemonTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SenderDaemon daemon;
+    private File tokenFile;
+    // Stands in for a receiver, serving each connection with the next script in turn
+    private ServerSocket receiver;
+    private CompletableFuture<Void> receiving;
+    private final List<Socket> accepted = Collections.synchronizedList(new ArrayList<>());
+    private final List<byte[]> received = Collections.synchronizedList(new ArrayList<>());
+
+    private interface Script {
+        void serve(FrameReader frames, DataInputStream in, OutputStream out) throws IOException;
+    }
+
+    @Before
+    public void init() {
+        tokenFile = new File(folder.getRoot(), "daemon.token");
+        daemon = new SenderDaemon(30, 8, tokenFile);
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        daemon.stop();
+        if (receiver != null)
+            receiver.close();
+        for (Socket socket : accepted)
+            socket.close();
+    }
+
+    private void startReceiver(final Script... scripts) throws IOException {
+        receiver = new ServerSocket();
+        receiver.setReuseAddress(true);
+        receiver.bind(new InetSocketAddress(ProtocolConstants.PORT));
+        receiving = CompletableFuture.runAsync(() -> {
+            try {
+                for (Script script : scripts) {
+                    final Socket socket = receiver.accept();
+                    accepted.add(socket);
+                    final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                    script.serve(new FrameReader(in), in, socket.getOutputStream());
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    private static void startSession(final FrameReader frames, final OutputStream out) throws IOException {
+        frames.read(MessageType.SESSION_START);
+        ControlMessage.response(ProtocolConstants.OK_RESPONSE).writeTo(out);
+    }
+
+    private void receiveFile(final FrameReader frames, final DataInputStream in, final OutputStream out,
+                             final String status) throws IOException {
+        final ControlMessage request = frames.read(MessageType.TRANSFER_REQUEST);
+        ControlMessage.response(ProtocolConstants.OK_RESPONSE).writeTo(out);
+        final byte[] payload = new byte[(int) request.getLong(ControlMessage.FILESIZE, 0)];
+        in.readFully(payload);
+        received.add(payload);
+        ControlMessage.response(status).writeTo(out);
+    }
+
+    private File source(final String name, final int size) throws IOException {
+        final byte[] contents = new byte[size];
+        Arrays.fill(contents, (byte) size);
+        final File source = folder.newFile(name);
+        Files.write(source.toPath(), contents);
+        return source;
+    }
+
+    private String send(final File source) {
+        return daemon.execute(SenderDaemon.SEND_COMMAND + " localhost " + source.getPath());
+    }
+
+    @Test
+    public void testRejectsMalformedCommands() throws IOException {
+        final String usage = SenderDaemon.FAILED_REPLY + " usage: SEND <destination> <path>";
+        assertEquals(usage, daemon.execute("SEND localhost"));
+        assertEquals(usage, daemon.execute("RECEIVE localhost /tmp/a.txt"));
+
+        final String path = folder.newFile("a b.txt").getPath();
+        assertEquals(SenderDaemon.FAILED_REPLY + " invalid destination example.com",
+                daemon.execute("SEND example.com " + path));
+        assertTrue(daemon.execute("SEND localhost " + folder.getRoot().getPath())
+                .startsWith(SenderDaemon.FAILED_REPLY + " not a file"));
+    }
+
+    @Test
+    public void testReusesSessionAcrossSends() throws Exception {
+        startReceiver((frames, in, out) -> {
+            startSession(frames, out);
+            receiveFile(frames, in, out, ProtocolConstants.DONE_RESPONSE);
+            receiveFile(frames, in, out, ProtocolConstants.DONE_RESPONSE);
+        });
+        assertEquals(SenderDaemon.OK_REPLY, send(source("first.bin", 1000)));
+        assertEquals(SenderDaemon.OK_REPLY, send(source("second.bin", 2000)));
+        receiving.get(5, TimeUnit.SECONDS);
+        assertEquals(1, accepted.size());
+        assertEquals(2000, received.get(1).length);
+    }
+
+    @Test
+    public void testMissingDoneFailsTransferAndSession() throws Exception {
+        startReceiver((frames, in, out) -> {
+            startSession(frames, out);
+            receiveFile(frames, in, out, ProtocolConstants.OK_RESPONSE);
+        }, (frames, in, out) -> {
+            startSession(frames, out);
+            receiveFile(frames, in, out, ProtocolConstants.DONE_RESPONSE);
+        });
+        // The receiver answered, so the file is not sent again, but the session is not used any more
+        assertTrue(send(source("first.bin", 1000)).startsWith(SenderDaemon.FAILED_REPLY));
+        assertEquals(SenderDaemon.OK_REPLY, send(source("second.bin", 2000)));
+        receiving.get(5, TimeUnit.SECONDS);
+        assertEquals(2, accepted.size());
+        assertEquals(2, received.size());
+    }
+
+    @Test
+    public void testResendsUnansweredRequestOverNewSession() throws Exception {
+        startReceiver((frames, in, out) -> {
+            startSession(frames, out);
+            receiveFile(frames, in, out, ProtocolConstants.DONE_RESPONSE);
+            // Drops the idle connection just as the next request arrives
+            frames.read(MessageType.TRANSFER_REQUEST);
+            accepted.get(0).close();
+        }, (frames, in, out) -> {
+            startSession(frames, out);
+            receiveFile(frames, in, out, ProtocolConstants.DONE_RESPONSE);
+        });
+        assertEquals(SenderDaemon.OK_REPLY, send(source("first.bin", 1000)));
+        assertEquals(SenderDaemon.OK_REPLY, send(source("second.bin", 2000)));
+        receiving.get(5, TimeUnit.SECONDS);
+        assertEquals(2, accepted.size());
+        assertEquals(2, received.size());
+        assertEquals(2000, received.get(1).length);
+    }
+
+    @Test
+    public void testRequiresToken() throws Exception {
+        final ServerSocket api = SenderDaemon.bind(0);
+        final CompletableFuture<Void> serving = CompletableFuture.runAsync(() -> {
+            try {
+                daemon.serve(api);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        try {
+            // The token is published before the daemon accepts its first client
+            final long deadline = System.currentTimeMillis() + 5000;
+            while (!tokenFile.isFile() && System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+            assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(tokenFile.toPath())));
+            final String token = new String(Files.readAllBytes(tokenFile.toPath()), StandardCharsets.US_ASCII);
+
+            final String command = SenderDaemon.SEND_COMMAND + " localhost " + folder.getRoot().getPath();
+            assertEquals(Arrays.asList(SenderDaemon.FAILED_REPLY + " unauthorized"),
+                    talk(api, SenderDaemon.AUTH_COMMAND + " " + token.substring(1), command));
+            assertEquals(Arrays.asList(SenderDaemon.FAILED_REPLY + " unauthorized"), talk(api, command));
+            final List<String> replies = talk(api, SenderDaemon.AUTH_COMMAND + " " + token, command);
+            assertEquals(1, replies.size());
+            assertTrue(replies.get(0).startsWith(SenderDaemon.FAILED_REPLY + " not a file"));
+        } finally {
+            api.close();
+            serving.get(5, TimeUnit.SECONDS);
+        }
+        // A stopped daemon withdraws its token, so clients send on their own
+        daemon.stop();
+        assertFalse(tokenFile.exists());
+        assertFalse(SenderDaemon.handOff(source("a.bin", 10), "localhost", api.getLocalPort(), tokenFile));
+    }
+
+    /**
+     * @return every reply until the daemon closes the connection
+     */
+    private static List<String> talk(final ServerSocket api, final String... lines) throws IOException {
+        try (final Socket socket = new Socket("localhost", api.getLocalPort())) {
+            socket.setSoTimeout(5000);
+            final Writer writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+            for (String line : lines)
+                writer.write(line + "\n");
+            writer.flush();
+            socket.shutdownOutput();
+            final BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            final List<String> replies = new ArrayList<>();
+            String reply;
+            while ((reply = reader.readLine()) != null)
+                replies.add(reply);
+            return replies;
+        }
+    }
+}
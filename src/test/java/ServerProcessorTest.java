@@ -1,3 +1,5 @@
+import compression.Codec;
+import model.TransferRequest;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -15,12 +17,20 @@ public class ServerProcessorTest {
     }
 
     @Test
-    public void testGenerateRequestStringSuccess() {
-        final String expected = "test.png/123456/192.241.41.16";
+    public void testGenerateRequestSuccess() {
         final String filename = "test.png", host = "192.241.41.16";
         long filesize = 123456;
+        processor = new ServerProcessor(mock(File.class), "testIP", 4, "abc", 1000, 2000);
 
-        assertEquals(expected, processor.generateRequestString(filename, host, filesize));
+        final TransferRequest request = processor.generateRequest(filename, host, filesize);
+        assertEquals(filename, request.getFilename());
+        assertEquals(host, request.getHost());
+        assertEquals(filesize, request.getFilesize());
+        assertEquals(4, request.getStreams());
+        assertEquals("abc", request.getTransferId());
+        assertEquals(1000, request.getOffset());
+        assertEquals(2000, request.getLength());
+        assertEquals(Codec.NONE, request.getCompression());
     }
 
 }
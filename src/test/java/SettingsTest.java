@@ -3,6 +3,7 @@ import org.apache.commons.io.FileUtils;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
 
 import static org.junit.Assert.*;
 
@@ -95,4 +96,28 @@ public class SettingsTest {
         Settings.reset();
     }
 
+    @Test
+    public void getIntSettingTest_Default() {
+        // Given
+        Settings.reset();
+
+        // Then
+        assertEquals(8, Settings.getIntSetting("missingKey", 8));
+    }
+
+    @Test
+    public void getIntSettingTest_Parsed() {
+        // Given
+        Settings.settings = new HashMap<>();
+        Settings.settings.put("validKey", "16");
+        Settings.settings.put("invalidKey", "sixteen");
+
+        // Then
+        assertEquals(16, Settings.getIntSetting("validKey", 8));
+        assertEquals(8, Settings.getIntSetting("invalidKey", 8));
+
+        // Cleanup
+        Settings.reset();
+    }
+
 }
@@ -0,0 +1,221 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TransferSchedulerTest {
+    // Admitted transfers in the order they were started, each one runs and finishes when the test calls it
+    private final List<Runnable> started = new ArrayList<>();
+    private final List<String> finished = new ArrayList<>();
+    private long now;
+
+    private class TestTicket extends TransferScheduler.Ticket {
+        private final String name;
+        private final List<Integer> positions = new ArrayList<>();
+        private boolean rejected;
+
+        TestTicket(final String name, final String host, final long size, final boolean trusted) {
+            super(host, size, trusted);
+            this.name = name;
+        }
+
+        @Override
+        void run() {
+            finished.add(name);
+        }
+
+        @Override
+        void reportPosition(final int position) throws IOException {
+            positions.add(position);
+        }
+
+        @Override
+        void reject() {
+            rejected = true;
+        }
+    }
+
+    @Before
+    public void init() {
+        now = 0;
+    }
+
+    private TransferScheduler scheduler(final int maxConcurrent, final int maxQueued, final long maxInFlightBytes,
+                                        final int maxPerHost, final boolean trustedFirst, final boolean smallFirst) {
+        return new TransferScheduler(started::add, maxConcurrent, maxQueued, maxInFlightBytes, maxPerHost, 60,
+                TransferScheduler.priority(trustedFirst, smallFirst), () -> now);
+    }
+
+    private void finishNext() {
+        started.remove(0).run();
+    }
+
+    @Test
+    public void testSmallTransfersFirst() {
+        final TransferScheduler scheduler = scheduler(1, 8, 0, 0, false, true);
+        assertTrue(scheduler.submit(new TestTicket("first", "10.0.0.1", 1000, false)));
+        assertTrue(scheduler.submit(new TestTicket("batch", "10.0.0.2", -1, false)));
+        assertTrue(scheduler.submit(new TestTicket("large", "10.0.0.3", 500, false)));
+        assertTrue(scheduler.submit(new TestTicket("small", "10.0.0.4", 10, false)));
+        assertEquals(1, scheduler.getRunning());
+        assertEquals(3, scheduler.getWaiting());
+
+        for (int i = 0; i < 4; i++)
+            finishNext();
+        // Unknown sizes come last
+        assertEquals(Arrays.asList("first", "small", "large", "batch"), finished);
+        assertEquals(0, scheduler.getRunning());
+    }
+
+    @Test
+    public void testTrustedHostsFirst() {
+        final TransferScheduler scheduler = scheduler(1, 8, 0, 0, true, true);
+        scheduler.submit(new TestTicket("first", "10.0.0.1", 1000, false));
+        scheduler.submit(new TestTicket("small", "10.0.0.2", 10, false));
+        scheduler.submit(new TestTicket("trusted", "10.0.0.3", 500, true));
+        for (int i = 0; i < 3; i++)
+            finishNext();
+        assertEquals(Arrays.asList("first", "trusted", "small"), finished);
+    }
+
+    @Test
+    public void testInFlightBytesAndPerHostLimits() {
+        final TransferScheduler scheduler = scheduler(4, 8, 100, 1, false, false);
+        scheduler.submit(new TestTicket("a", "10.0.0.1", 60, false));
+        // Does not fit next to a
+        scheduler.submit(new TestTicket("b", "10.0.0.2", 50, false));
+        // Fits, but its host already has a transfer running
+        scheduler.submit(new TestTicket("c", "10.0.0.1", 10, false));
+        // Fits and passes the others
+        scheduler.submit(new TestTicket("d", "10.0.0.3", 40, false));
+        assertEquals(2, started.size());
+        assertEquals(2, scheduler.getWaiting());
+
+        // Finishing a lets both b and c in
+        finishNext();
+        assertEquals(3, scheduler.getRunning());
+        assertEquals(0, scheduler.getWaiting());
+        for (int i = 0; i < 3; i++)
+            finishNext();
+        assertEquals(Arrays.asList("a", "d", "b", "c"), finished);
+    }
+
+    @Test
+    public void testLargerThanLimitRunsAlone() {
+        final TransferScheduler scheduler = scheduler(4, 8, 100, 0, false, false);
+        scheduler.submit(new TestTicket("huge", "10.0.0.1", 1000, false));
+        scheduler.submit(new TestTicket("small", "10.0.0.2", 10, false));
+        assertEquals(1, scheduler.getRunning());
+        finishNext();
+        finishNext();
+        assertEquals(Arrays.asList("huge", "small"), finished);
+    }
+
+    @Test
+    public void testOverdueTransferGoesFirst() {
+        final TransferScheduler scheduler = scheduler(4, 8, 100, 0, false, true);
+        scheduler.submit(new TestTicket("a", "10.0.0.1", 60, false));
+        scheduler.submit(new TestTicket("large", "10.0.0.2", 90, false));
+        now += TimeUnit.SECONDS.toNanos(61);
+        scheduler.submit(new TestTicket("small", "10.0.0.3", 30, false));
+        // Small would fit next to a, but the room is kept for the overdue one
+        assertEquals(1, scheduler.getRunning());
+        finishNext();
+        assertEquals(1, scheduler.getRunning());
+        assertEquals(1, scheduler.getWaiting());
+        finishNext();
+        finishNext();
+        assertEquals(Arrays.asList("a", "large", "small"), finished);
+    }
+
+    @Test
+    public void testQueueLimitAndPositions() {
+        final TransferScheduler scheduler = scheduler(1, 2, 0, 0, false, true);
+        scheduler.submit(new TestTicket("first", "10.0.0.1", 100, false));
+        final TestTicket large = new TestTicket("large", "10.0.0.2", 50, false);
+        final TestTicket small = new TestTicket("small", "10.0.0.3", 10, false);
+        assertTrue(scheduler.submit(large));
+        assertTrue(scheduler.submit(small));
+        assertFalse(scheduler.submit(new TestTicket("full", "10.0.0.4", 1, false)));
+        // The small transfer passed the large one, which learns that it moved back
+        assertEquals(Arrays.asList(1, 2), large.positions);
+        assertEquals(Arrays.asList(1), small.positions);
+
+        // Unchanged positions are only repeated once the report interval has passed
+        scheduler.tick();
+        assertEquals(Arrays.asList(1), small.positions);
+        now += TimeUnit.SECONDS.toNanos(5);
+        scheduler.tick();
+        assertEquals(Arrays.asList(1, 1), small.positions);
+
+        finishNext();
+        assertEquals(Arrays.asList(1, 2, 2, 1), large.positions);
+        scheduler.shutdown();
+        assertTrue(large.rejected);
+        assertFalse(small.rejected);
+    }
+
+    @Test
+    public void testUnreachableSenderLeavesQueue() {
+        final TransferScheduler scheduler = scheduler(1, 8, 0, 0, false, false);
+        scheduler.submit(new TestTicket("first", "10.0.0.1", 100, false));
+        final TestTicket gone = new TestTicket("gone", "10.0.0.2", 10, false) {
+            @Override
+            void reportPosition(final int position) throws IOException {
+                throw new IOException("Connection reset");
+            }
+        };
+        scheduler.submit(gone);
+        assertTrue(gone.rejected);
+        assertEquals(0, scheduler.getWaiting());
+    }
+
+    @Test
+    public void testNoticesAreSentOutsideTheLock() {
+        final TransferScheduler scheduler = scheduler(1, 8, 0, 0, false, false);
+        final List<Boolean> locked = new ArrayList<>();
+        final TestTicket first = new TestTicket("first", "10.0.0.1", 100, false);
+        final TestTicket waiting = new TestTicket("waiting", "10.0.0.2", 10, false) {
+            @Override
+            void reportPosition(final int position) throws IOException {
+                locked.add(Thread.holdsLock(scheduler));
+                super.reportPosition(position);
+            }
+
+            @Override
+            void reject() {
+                locked.add(Thread.holdsLock(scheduler));
+                super.reject();
+            }
+        };
+        scheduler.submit(first);
+        scheduler.submit(waiting);
+        now += TimeUnit.SECONDS.toNanos(5);
+        scheduler.tick();
+        scheduler.shutdown();
+        assertEquals(Arrays.asList(1, 1), waiting.positions);
+        assertTrue(waiting.rejected);
+        assertEquals(Arrays.asList(false, false, false), locked);
+    }
+
+    @Test
+    public void testNoPositionOnceAdmitted() {
+        final TransferScheduler scheduler = scheduler(1, 8, 0, 0, false, false);
+        scheduler.submit(new TestTicket("first", "10.0.0.1", 100, false));
+        final TestTicket second = new TestTicket("second", "10.0.0.2", 10, false);
+        scheduler.submit(second);
+        finishNext();
+        // The transfer owns the connection once it has started, later notices and rejections leave it alone
+        started.get(0).run();
+        scheduler.shutdown();
+        assertEquals(Arrays.asList(1), second.positions);
+        assertFalse(second.rejected);
+        assertEquals(Arrays.asList("first", "second"), finished);
+    }
+}
@@ -0,0 +1,57 @@
+package bandwidth;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BandwidthManagerTest {
+    @Test
+    public void testWeightedFairShare() {
+        final BandwidthManager manager = new BandwidthManager();
+        manager.configure(4000, 0, 0, ImmutableMap.of("10.0.0.5", 3), 0, 0);
+        final Throttle heavy = manager.open("10.0.0.5");
+        assertEquals(4000, heavy.own.getRate());
+
+        final Throttle light = manager.open("10.0.0.6");
+        assertEquals(3000, heavy.own.getRate());
+        assertEquals(1000, light.own.getRate());
+
+        // The share of a finished transfer goes back to the others
+        heavy.close();
+        assertEquals(4000, light.own.getRate());
+    }
+
+    @Test
+    public void testTransferLimitCapsShare() {
+        final BandwidthManager manager = new BandwidthManager();
+        manager.configure(0, 0, 0, Collections.emptyMap(), 0, 0);
+        assertNull(manager.open("10.0.0.5"));
+
+        manager.configure(4000, 0, 1500, Collections.emptyMap(), 0, 0);
+        final Throttle first = manager.open("10.0.0.5");
+        assertEquals(1500, first.own.getRate());
+        final Throttle second = manager.open("10.0.0.6");
+        final Throttle third = manager.open("10.0.0.6");
+        assertEquals(1333, second.own.getRate());
+        assertEquals(1333, third.own.getRate());
+    }
+
+    @Test
+    public void testScheduleWrapsAroundMidnight() {
+        final BandwidthManager manager = new BandwidthManager();
+        manager.configure(1000, 0, 0, Collections.emptyMap(), 9, 18);
+        assertTrue(manager.isWithinSchedule(9));
+        assertFalse(manager.isWithinSchedule(18));
+
+        manager.configure(1000, 0, 0, Collections.emptyMap(), 22, 6);
+        assertTrue(manager.isWithinSchedule(23));
+        assertTrue(manager.isWithinSchedule(5));
+        assertFalse(manager.isWithinSchedule(12));
+    }
+}
@@ -0,0 +1,37 @@
+package bandwidth;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class TokenBucketTest {
+    private long now;
+
+    @Test
+    public void testBurstThenWait() {
+        // 512 KiB/s, bursts of 64 KiB
+        final TokenBucket bucket = new TokenBucket(512 * 1024, () -> now);
+        assertEquals(0, bucket.reserve(64 * 1024));
+        // Another 64 KiB takes 1/8 s to earn
+        assertEquals(TimeUnit.SECONDS.toNanos(1) / 8, bucket.reserve(64 * 1024));
+
+        // Time that passes pays off the debt, but never saves up more than one burst
+        now += TimeUnit.SECONDS.toNanos(10);
+        assertEquals(0, bucket.reserve(64 * 1024));
+        assertEquals(TimeUnit.SECONDS.toNanos(1) / 8, bucket.reserve(64 * 1024));
+    }
+
+    @Test
+    public void testUnlimitedAndRateChange() {
+        final TokenBucket bucket = new TokenBucket(0, () -> now);
+        assertEquals(0, bucket.reserve(Long.MAX_VALUE / 2));
+
+        bucket.setRate(10 * 1024 * 1024);
+        assertEquals(1024 * 1024, bucket.getBurst());
+        now += TimeUnit.SECONDS.toNanos(1);
+        assertEquals(0, bucket.reserve(1024 * 1024));
+        assertEquals(TimeUnit.SECONDS.toNanos(1) / 10, bucket.reserve(1024 * 1024));
+    }
+}
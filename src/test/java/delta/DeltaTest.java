@@ -0,0 +1,127 @@
+package delta;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class DeltaTest {
+    private static final int BLOCK_SIZE = 2048;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRollingChecksumMatchesRecomputed() {
+        final byte[] data = new byte[5000];
+        new Random(3).nextBytes(data);
+        final RollingChecksum checksum = new RollingChecksum(data, 0, 700);
+        for (int i = 1; i + 700 <= data.length; i++) {
+            checksum.roll(data[i - 1], data[i + 699]);
+            assertEquals(RollingChecksum.of(data, i, 700), checksum.getValue());
+        }
+    }
+
+    @Test
+    public void testChooseBlockSize() {
+        assertEquals(2048, BlockSignature.chooseBlockSize(1000));
+        assertEquals(8192, BlockSignature.chooseBlockSize(100_000_000L));
+        assertEquals(64 * 1024, BlockSignature.chooseBlockSize(10L << 30));
+        // Very large files get larger blocks rather than an unbounded signature
+        assertTrue((1L << 40) / BlockSignature.chooseBlockSize(1L << 40) <= BlockSignature.MAX_BLOCK_COUNT);
+    }
+
+    @Test
+    public void testRebuildsModifiedFile() throws IOException {
+        final Random random = new Random(11);
+        final byte[] old = new byte[300_000];
+        random.nextBytes(old);
+        final byte[] inserted = new byte[1000];
+        random.nextBytes(inserted);
+        // Insert near the start, overwrite in the middle, cut a range and append at the end
+        final ByteArrayOutputStream modified = new ByteArrayOutputStream();
+        modified.write(old, 0, 10_000);
+        modified.write(inserted, 0, inserted.length);
+        modified.write(old, 10_000, 90_000);
+        modified.write(inserted, 0, 500);
+        modified.write(old, 100_500, 100_000);
+        modified.write(old, 250_000, 50_000);
+        modified.write(inserted, 0, 777);
+        final byte[] current = modified.toByteArray();
+
+        final ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        final long literalBytes = rebuild(old, current, delta);
+        assertTrue("sent " + literalBytes + " literal bytes", literalBytes < 8 * BLOCK_SIZE);
+        assertTrue(delta.size() < current.length / 10);
+    }
+
+    @Test
+    public void testRebuildsUnrelatedFile() throws IOException {
+        final Random random = new Random(5);
+        final byte[] old = new byte[20_000], current = new byte[33_333];
+        random.nextBytes(old);
+        random.nextBytes(current);
+        assertEquals(current.length, rebuild(old, current, new ByteArrayOutputStream()));
+        assertEquals(0, rebuild(old, new byte[0], new ByteArrayOutputStream()));
+    }
+
+    @Test(expected = IOException.class)
+    public void testCorruptDeltaIsRejected() throws IOException {
+        final byte[] old = new byte[20_000], current = old.clone();
+        new Random(9).nextBytes(old);
+        current[15_000] ^= 1;
+        final File basis = write(old);
+        try (final FileChannel channel = FileChannel.open(basis.toPath())) {
+            final BlockSignature signature = BlockSignature.compute(channel, BLOCK_SIZE);
+            final ByteArrayOutputStream delta = new ByteArrayOutputStream();
+            new DeltaEncoder(signature, new DataOutputStream(delta)).encode(new ByteArrayInputStream(current), current.length);
+            final byte[] bytes = delta.toByteArray();
+            // The literal carrying the changed block starts after one copy operation and its own header
+            bytes[9 + 5 + 1] ^= 1;
+            decode(channel, signature, bytes, current.length);
+        }
+    }
+
+    /**
+     * @return how many bytes the delta carried as literal data
+     */
+    private long rebuild(final byte[] old, final byte[] current, final ByteArrayOutputStream delta)
+            throws IOException {
+        final File basis = write(old);
+        try (final FileChannel channel = FileChannel.open(basis.toPath())) {
+            final BlockSignature signature = BlockSignature.compute(channel, BLOCK_SIZE);
+            assertEquals(old.length / BLOCK_SIZE, signature.getBlockCount());
+            new DeltaEncoder(signature, new DataOutputStream(delta))
+                    .encode(new ByteArrayInputStream(current), current.length);
+            final File rebuilt = folder.newFile();
+            final long literalBytes;
+            try (final FileChannel target = FileChannel.open(rebuilt.toPath(), StandardOpenOption.WRITE)) {
+                literalBytes = DeltaDecoder.decode(new DataInputStream(new ByteArrayInputStream(delta.toByteArray())),
+                        channel, signature, current.length, target);
+            }
+            assertTrue(Arrays.equals(current, Files.readAllBytes(rebuilt.toPath())));
+            return literalBytes;
+        }
+    }
+
+    private void decode(final FileChannel basis, final BlockSignature signature, final byte[] delta, final long size)
+            throws IOException {
+        try (final FileChannel target = FileChannel.open(folder.newFile().toPath(), StandardOpenOption.WRITE)) {
+            DeltaDecoder.decode(new DataInputStream(new ByteArrayInputStream(delta)), basis, signature, size, target);
+        }
+    }
+
+    private File write(final byte[] contents) throws IOException {
+        final File file = folder.newFile();
+        Files.write(file.toPath(), contents);
+        return file;
+    }
+}
@@ -0,0 +1,62 @@
+package integrity;
+
+import com.google.common.hash.Hashing;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ChunkHasherTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testChunkGeometry() {
+        final ChunkHasher hasher = new ChunkHasher(null, 100, 2500, 1000);
+        assertEquals(3, hasher.getChunkCount());
+        assertEquals(1100, hasher.getChunkPosition(1));
+        assertEquals(1000, hasher.getChunkLength(1));
+        assertEquals(500, hasher.getChunkLength(2));
+        assertEquals(0, new ChunkHasher(null, 0, 0, 1000).getChunkCount());
+    }
+
+    @Test
+    public void testHashesMatchChunks() throws IOException {
+        final byte[] data = new byte[10000];
+        new Random(7).nextBytes(data);
+        final File file = folder.newFile();
+        Files.write(file.toPath(), data);
+
+        try (final FileChannel channel = FileChannel.open(file.toPath())) {
+            final ChunkHasher hasher = new ChunkHasher(channel, 1000, 9000, 4096);
+            hasher.submitAll();
+            final List<byte[]> hashes = hasher.getHashes();
+            assertEquals(3, hashes.size());
+            assertArrayEquals(Hashing.sha256().hashBytes(data, 1000, 4096).asBytes(), hashes.get(0));
+            assertArrayEquals(Hashing.sha256().hashBytes(data, 9192, 808).asBytes(), hashes.get(2));
+        }
+    }
+
+    @Test
+    public void testMerkleRoot() {
+        final byte[] a = {1}, b = {2}, c = {3};
+        final byte[] ab = Hashing.sha256().newHasher().putBytes(a).putBytes(b).hash().asBytes();
+        assertArrayEquals(a, ChunkHasher.merkleRoot(Collections.singletonList(a)));
+        assertArrayEquals(ab, ChunkHasher.merkleRoot(Arrays.asList(a, b)));
+        // The odd hash is carried up a level unchanged
+        assertArrayEquals(Hashing.sha256().newHasher().putBytes(ab).putBytes(c).hash().asBytes(),
+                ChunkHasher.merkleRoot(Arrays.asList(a, b, c)));
+        assertFalse(Arrays.equals(ChunkHasher.merkleRoot(Arrays.asList(a, b, c)),
+                ChunkHasher.merkleRoot(Arrays.asList(a, c, b))));
+    }
+}
@@ -0,0 +1,63 @@
+package metrics;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TransferMetricsTest {
+
+    @Test
+    public void testReadsAndWritesFollowDirection() {
+        final TransferMetrics received = new TransferMetrics(TransferMetrics.Direction.RECEIVE, "localhost");
+        received.addReadNanos(10);
+        received.addWriteNanos(3);
+        assertEquals(10, received.getNetworkNanos());
+        assertEquals(3, received.getDiskNanos());
+
+        final TransferMetrics sent = new TransferMetrics(TransferMetrics.Direction.SEND, "localhost");
+        sent.addReadNanos(10);
+        sent.addWriteNanos(3);
+        assertEquals(3, sent.getNetworkNanos());
+        assertEquals(10, sent.getDiskNanos());
+        received.succeed();
+        sent.succeed();
+    }
+
+    @Test
+    public void testOnlyFirstOutcomeCounts() {
+        final TransferStats stats = TransferStats.getInstance();
+        final long active = stats.getActiveTransfers(), completed = stats.getCompletedTransfers();
+        final long failed = stats.getFailedTransfers(), received = stats.getBytesReceived();
+
+        final TransferMetrics metrics = TransferMetrics.start(TransferMetrics.Direction.RECEIVE, "localhost");
+        assertSame(metrics, TransferMetrics.current());
+        assertEquals(active + 1, stats.getActiveTransfers());
+        TransferMetrics.current().addBytes(1234);
+        metrics.succeed();
+        metrics.fail("aborted");
+
+        assertNotSame(metrics, TransferMetrics.current());
+        assertEquals(active, stats.getActiveTransfers());
+        assertEquals(completed + 1, stats.getCompletedTransfers());
+        assertEquals(failed, stats.getFailedTransfers());
+        assertEquals(received + 1234, stats.getBytesReceived());
+        assertNull(stats.getFailuresByCause().get("aborted"));
+    }
+
+    @Test
+    public void testFailuresByCause() {
+        final TransferStats stats = TransferStats.getInstance();
+        final Long before = stats.getFailuresByCause().get("busy");
+
+        new TransferMetrics(TransferMetrics.Direction.SEND, "localhost").fail("busy");
+        assertEquals((before == null ? 0 : before) + 1, (long) stats.getFailuresByCause().get("busy"));
+    }
+
+    @Test
+    public void testUnboundRecordingIsNotReported() {
+        final long active = TransferStats.getInstance().getActiveTransfers();
+        TransferMetrics.current().addBytes(10);
+        TransferMetrics.current().succeed();
+        assertEquals(active, TransferStats.getInstance().getActiveTransfers());
+    }
+}
@@ -0,0 +1,72 @@
+package permissions;
+
+import com.google.common.collect.ImmutableSet;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class PermissionPipelineTest {
+    @Test
+    public void testTrustedHostNeverReachesArbiter() throws Exception {
+        final PermissionPipeline pipeline = new PermissionPipeline(
+                new PermissionPolicy(ImmutableSet.of("10.0.0.5"), Collections.emptySet(), -1, 60),
+                (filename, source, filesize) -> {
+                    throw new AssertionError("Trusted transfers must not prompt");
+                });
+        final CompletableFuture<Boolean> permission = pipeline.request("build.tar", "10.0.0.5", 100);
+        assertTrue(permission.isDone());
+        assertTrue(permission.get());
+    }
+
+    @Test
+    public void testQueuedRequestsShareOneAnswer() throws Exception {
+        final AtomicInteger prompts = new AtomicInteger();
+        final CompletableFuture<Boolean> answer = new CompletableFuture<>();
+        final PermissionPipeline pipeline = new PermissionPipeline(
+                new PermissionPolicy(Collections.emptySet(), Collections.emptySet(), -1, 60),
+                (filename, source, filesize) -> {
+                    prompts.incrementAndGet();
+                    return answer;
+                });
+        final List<CompletableFuture<Boolean>> permissions = new ArrayList<>();
+        for (int i = 0; i < 20; i++)
+            permissions.add(pipeline.request("file" + i, "10.0.0.6", 100));
+        // Nothing blocks the callers while the first prompt is open
+        assertFalse(permissions.get(19).isDone());
+
+        answer.complete(true);
+        for (CompletableFuture<Boolean> permission : permissions)
+            assertTrue(permission.get(5, TimeUnit.SECONDS));
+        assertEquals(1, prompts.get());
+    }
+
+    @Test
+    public void testFailedPromptDenies() throws Exception {
+        final CompletableFuture<Boolean> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new IllegalStateException("no display"));
+        final PermissionPipeline pipeline = new PermissionPipeline(
+                new PermissionPolicy(Collections.emptySet(), Collections.emptySet(), -1, 60),
+                (filename, source, filesize) -> failed);
+        assertFalse(pipeline.request("a.png", "10.0.0.6", 100).get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testUnansweredPromptDenies() throws Exception {
+        final CompletableFuture<Boolean> unanswered = new CompletableFuture<>();
+        final PermissionPipeline pipeline = new PermissionPipeline(
+                new PermissionPolicy(Collections.emptySet(), Collections.emptySet(), -1, 60),
+                (filename, source, filesize) -> filename.equals("a.png") ? unanswered
+                        : CompletableFuture.completedFuture(true), 50);
+        assertFalse(pipeline.request("a.png", "10.0.0.6", 100).get(5, TimeUnit.SECONDS));
+        assertTrue(unanswered.isCancelled());
+        // A timeout is not the user's answer, so the next request from that source is asked again
+        assertTrue(pipeline.request("b.png", "10.0.0.6", 100).get(5, TimeUnit.SECONDS));
+    }
+}
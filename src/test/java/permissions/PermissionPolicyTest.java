@@ -0,0 +1,48 @@
+package permissions;
+
+import com.google.common.collect.ImmutableSet;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class PermissionPolicyTest {
+    private long now;
+
+    private PermissionPolicy createPolicy() {
+        return new PermissionPolicy(ImmutableSet.of("10.0.0.5"), ImmutableSet.of("exe"), 1000, 60, () -> now);
+    }
+
+    @Test
+    public void testLimitsAndTrustedHosts() {
+        final PermissionPolicy policy = createPolicy();
+        assertEquals(PermissionPolicy.Decision.ALLOW, policy.evaluate("build.tar", "10.0.0.5", 1000));
+        assertEquals(PermissionPolicy.Decision.ASK, policy.evaluate("build.tar", "10.0.0.6", 1000));
+        // Limits hold for trusted hosts too
+        assertEquals(PermissionPolicy.Decision.DENY, policy.evaluate("build.tar", "10.0.0.5", 1001));
+        assertEquals(PermissionPolicy.Decision.DENY, policy.evaluate("setup.EXE", "10.0.0.5", 10));
+        assertEquals(PermissionPolicy.Decision.ASK, policy.evaluate("exe", "10.0.0.6", 10));
+    }
+
+    @Test
+    public void testRememberedDecisionsExpire() {
+        final PermissionPolicy policy = createPolicy();
+        policy.remember("10.0.0.6", true);
+        policy.remember("10.0.0.7", false);
+        assertEquals(PermissionPolicy.Decision.ALLOW, policy.evaluate("a.png", "10.0.0.6", 10));
+        assertEquals(PermissionPolicy.Decision.DENY, policy.evaluate("a.png", "10.0.0.7", 10));
+
+        now += TimeUnit.SECONDS.toNanos(60);
+        assertEquals(PermissionPolicy.Decision.ASK, policy.evaluate("a.png", "10.0.0.6", 10));
+        assertEquals(PermissionPolicy.Decision.ASK, policy.evaluate("a.png", "10.0.0.7", 10));
+    }
+
+    @Test
+    public void testNothingRememberedWithoutMemory() {
+        final PermissionPolicy policy = new PermissionPolicy(Collections.emptySet(), Collections.emptySet(), -1, 0);
+        policy.remember("10.0.0.6", true);
+        assertEquals(PermissionPolicy.Decision.ASK, policy.evaluate("a.png", "10.0.0.6", Long.MAX_VALUE));
+    }
+}
@@ -0,0 +1,231 @@
+package protocol;
+
+import compression.Codec;
+import delta.BlockSignature;
+import integrity.ChunkHasher;
+import model.ArchiveHeader;
+import model.BatchManifest;
+import model.ProtocolConstants;
+import model.TransferRequest;
+import org.junit.Test;
+
+import java.io.*;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ControlMessageTest {
+
+    @Test
+    public void testTransferRequestRoundTrip() throws IOException {
+        final TransferRequest sent = new TransferRequest(1L << 40, "report%/v2.csv", "localhost",
+                3, "transfer-1", 512, 1024, Codec.LZ4);
+        final ControlMessage message = ControlMessage.decode(
+                ByteBuffer.wrap(ControlMessage.fromTransferRequest(sent).encode()));
+
+        assertEquals(MessageType.TRANSFER_REQUEST, message.getType());
+        final TransferRequest received = message.toTransferRequest();
+        assertEquals(sent.getFilename(), received.getFilename());
+        assertEquals(sent.getFilesize(), received.getFilesize());
+        assertEquals(sent.getHost(), received.getHost());
+        assertEquals(sent.getStreams(), received.getStreams());
+        assertEquals(sent.getTransferId(), received.getTransferId());
+        assertEquals(sent.getOffset(), received.getOffset());
+        assertEquals(sent.getLength(), received.getLength());
+        assertEquals(sent.getCompression(), received.getCompression());
+    }
+
+    @Test
+    public void testOptionalFieldsDefault() throws IOException {
+        final TransferRequest received = new ControlMessage(MessageType.TRANSFER_REQUEST)
+                .putString(ControlMessage.FILENAME, "test.png")
+                .putLong(ControlMessage.FILESIZE, 2048)
+                .putString(ControlMessage.HOST, "localhost")
+                .toTransferRequest();
+
+        assertEquals(1, received.getStreams());
+        assertEquals(0, received.getOffset());
+        assertEquals(2048, received.getLength());
+        assertEquals(Codec.NONE, received.getCompression());
+    }
+
+    @Test
+    public void testUnknownFieldsSkipped() throws IOException {
+        final byte[] frame = ControlMessage.response(ProtocolConstants.OK_RESPONSE)
+                .putString(999, "from a newer peer")
+                .encode();
+        final ControlMessage message = ControlMessage.decode(ByteBuffer.wrap(frame));
+        assertEquals(ProtocolConstants.OK_RESPONSE, message.getString(ControlMessage.STATUS));
+    }
+
+    @Test
+    public void testFrameReaderReadsConsecutiveFrames() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ControlMessage.response(ProtocolConstants.OK_RESPONSE).writeTo(out);
+        new ControlMessage(MessageType.RESUME_CONFIRMATION).putLong(ControlMessage.OFFSET, 42).writeTo(out);
+
+        final FrameReader reader = new FrameReader(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(ProtocolConstants.OK_RESPONSE, reader.read(MessageType.RESPONSE).getString(ControlMessage.STATUS));
+        assertEquals(42, reader.read(MessageType.RESUME_CONFIRMATION).getLong(ControlMessage.OFFSET, 0));
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void testBadMagic() throws IOException {
+        final byte[] frame = ControlMessage.response(ProtocolConstants.OK_RESPONSE).encode();
+        frame[0] = '%';
+        new FrameReader(new ByteArrayInputStream(frame)).read();
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void testUnexpectedType() throws IOException {
+        final byte[] frame = ControlMessage.response(ProtocolConstants.OK_RESPONSE).encode();
+        new FrameReader(new ByteArrayInputStream(frame)).read(MessageType.TRANSFER_REQUEST);
+    }
+
+    @Test
+    public void testBatchManifestSpansFrames() throws IOException {
+        final List<BatchManifest.Entry> entries = new ArrayList<>();
+        for (int i = 0; i < 5000; i++)
+            entries.add(new BatchManifest.Entry("project/src/main/java/package" + i + "/Source" + i + ".java", i));
+        final List<ControlMessage> frames = ControlMessage.fromBatchManifest(new BatchManifest("localhost", entries));
+        assertTrue(frames.size() > 2);
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (ControlMessage frame : frames)
+            frame.writeTo(out);
+        final FrameReader reader = new FrameReader(new ByteArrayInputStream(out.toByteArray()));
+        final BatchManifest received = reader.readBatchManifest(reader.read(MessageType.BATCH_MANIFEST));
+
+        assertEquals("localhost", received.getHost());
+        assertEquals(entries.size(), received.getEntries().size());
+        for (int i = 0; i < entries.size(); i++) {
+            assertEquals(entries.get(i).getPath(), received.getEntries().get(i).getPath());
+            assertEquals(entries.get(i).getSize(), received.getEntries().get(i).getSize());
+        }
+    }
+
+    @Test
+    public void testBatchManifestAnnouncesTotal() throws IOException {
+        final BatchManifest manifest = new BatchManifest("localhost", Arrays.asList(
+                new BatchManifest.Entry("a.txt", 100), new BatchManifest.Entry("b.txt", 250)));
+        final List<ControlMessage> frames = ControlMessage.fromBatchManifest(manifest);
+        assertEquals(350, frames.get(0).getLong(ControlMessage.FILESIZE, -1));
+
+        // Entries that do not add up to the announced total are rejected
+        frames.get(0).putLong(ControlMessage.FILESIZE, 100);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (ControlMessage frame : frames)
+            frame.writeTo(out);
+        final FrameReader reader = new FrameReader(new ByteArrayInputStream(out.toByteArray()));
+        try {
+            reader.readBatchManifest(reader.read(MessageType.BATCH_MANIFEST));
+            fail("Batch manifest with the wrong total was accepted");
+        } catch (ProtocolException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testChunkHashesAndRetransmitRoundTrip() throws IOException {
+        final List<byte[]> hashes = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            final byte[] hash = new byte[ChunkHasher.HASH_LENGTH];
+            hash[0] = (byte) i;
+            hash[31] = (byte) (i >> 8);
+            hashes.add(hash);
+        }
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (ControlMessage frame : ControlMessage.fromChunkHashes(hashes, ChunkHasher.merkleRoot(hashes)))
+            frame.writeTo(out);
+        ControlMessage.retransmitRequest(Arrays.asList(3, 4999)).writeTo(out);
+
+        final FrameReader reader = new FrameReader(new ByteArrayInputStream(out.toByteArray()));
+        final ControlMessage header = reader.read(MessageType.CHUNK_HASHES);
+        final List<byte[]> received = reader.readChunkHashes(header);
+        assertEquals(hashes.size(), received.size());
+        for (int i = 0; i < hashes.size(); i++)
+            assertArrayEquals(hashes.get(i), received.get(i));
+        assertArrayEquals(ChunkHasher.merkleRoot(hashes), header.getBytes(ControlMessage.ROOT_HASH));
+        assertEquals(Arrays.asList(3, 4999), reader.read(MessageType.RETRANSMIT_REQUEST).getChunks());
+    }
+
+    @Test
+    public void testBlockSignatureSpansFrames() throws IOException {
+        final int count = 10000;
+        final int[] weak = new int[count];
+        final byte[][] strong = new byte[count][BlockSignature.STRONG_HASH_LENGTH];
+        for (int i = 0; i < count; i++) {
+            weak[i] = i * 31;
+            strong[i][0] = (byte) i;
+        }
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final List<ControlMessage> frames = ControlMessage.fromBlockSignature(new BlockSignature(4096, weak, strong));
+        assertTrue(frames.size() > 2);
+        for (ControlMessage frame : frames)
+            frame.writeTo(out);
+
+        final FrameReader reader = new FrameReader(new ByteArrayInputStream(out.toByteArray()));
+        final BlockSignature received = reader.readBlockSignature(reader.read(MessageType.BLOCK_SIGNATURE));
+        assertEquals(4096, received.getBlockSize());
+        assertArrayEquals(weak, received.getWeak());
+        for (int i = 0; i < count; i++)
+            assertArrayEquals(strong[i], received.getStrong()[i]);
+    }
+
+    @Test
+    public void testDeltaSyncFlag() throws IOException {
+        final TransferRequest sent = new TransferRequest(100, "a.db", "localhost", 1, "", 0, 100, Codec.NONE, 0, true);
+        assertTrue(ControlMessage.fromTransferRequest(sent).toTransferRequest().isDeltaSync());
+        assertFalse(ControlMessage.fromTransferRequest(new TransferRequest(100, "a.db", "localhost"))
+                .toTransferRequest().isDeltaSync());
+    }
+
+    @Test
+    public void testOptimisticLength() throws IOException {
+        final TransferRequest sent = new TransferRequest(100, "a.db", "localhost", 1, "", 0, 100, Codec.NONE, 0, false,
+                64);
+        assertEquals(64, ControlMessage.fromTransferRequest(sent).toTransferRequest().getOptimisticLength());
+        assertEquals(0, ControlMessage.fromTransferRequest(new TransferRequest(100, "a.db", "localhost"))
+                .toTransferRequest().getOptimisticLength());
+    }
+
+    @Test
+    public void testRelayHops() throws IOException {
+        final TransferRequest sent = new TransferRequest(100, "a.db", "localhost", 1, "", 0, 100, Codec.NONE, 0, false,
+                0, Arrays.asList("10.0.0.2", "10.0.0.3"));
+        assertEquals(Arrays.asList("10.0.0.2", "10.0.0.3"),
+                ControlMessage.fromTransferRequest(sent).toTransferRequest().getRelayHops());
+        assertFalse(ControlMessage.fromTransferRequest(new TransferRequest(100, "a.db", "localhost"))
+                .toTransferRequest().isRelayed());
+    }
+
+    @Test
+    public void testArchiveHeader() throws IOException {
+        final ArchiveHeader header = ControlMessage.fromArchiveHeader(
+                new ArchiveHeader("localhost", "photos", 40000, 123456789L, Codec.DEFLATE)).toArchiveHeader();
+        assertEquals("photos", header.getName());
+        assertEquals(40000, header.getFileCount());
+        assertEquals(123456789L, header.getTotalSize());
+        assertEquals(Codec.DEFLATE, header.getCompression());
+    }
+
+    @Test
+    public void testQueuePositionsAreSkipped() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ControlMessage.queuePosition(3).writeTo(out);
+        ControlMessage.queuePosition(3).writeTo(out);
+        ControlMessage.queuePosition(1).writeTo(out);
+        ControlMessage.response(ProtocolConstants.OK_RESPONSE).writeTo(out);
+
+        final FrameReader frames = new FrameReader(new ByteArrayInputStream(out.toByteArray()));
+        final List<Long> positions = new ArrayList<>();
+        frames.setQueueListener(positions::add);
+        assertEquals(ProtocolConstants.OK_RESPONSE, frames.read(MessageType.RESPONSE).getString(ControlMessage.STATUS));
+        // Repeated positions only tell the sender that the receiver is still there
+        assertEquals(Arrays.asList(3L, 1L), positions);
+    }
+}